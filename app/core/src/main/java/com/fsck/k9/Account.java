@@ -116,6 +116,8 @@ public class Account implements BaseAccount, StoreConfig {
     public static final boolean DEFAULT_REPLY_AFTER_QUOTE = false;
     public static final boolean DEFAULT_STRIP_SIGNATURE = true;
     public static final int DEFAULT_REMOTE_SEARCH_NUM_RESULTS = 25;
+    public static final int DEFAULT_MAX_SYNC_CONNECTIONS = 3;
+    public static final int DEFAULT_MAX_SMTP_SESSIONS = 1;
 
     public static final String ACCOUNT_DESCRIPTION_KEY = "description";
     public static final String STORE_URI_KEY = "storeUri";
@@ -190,6 +192,8 @@ public class Account implements BaseAccount, StoreConfig {
     private boolean isSignatureBeforeQuotedText;
     private Expunge expungePolicy = Expunge.EXPUNGE_IMMEDIATELY;
     private int maxPushFolders;
+    private int maxSyncConnections;
+    private int maxSmtpSessions;
     private int idleRefreshMinutes;
     private boolean goToUnreadMessageSearch;
     private final Map<NetworkType, Boolean> compressionMap = new ConcurrentHashMap<>();
@@ -219,6 +223,7 @@ public class Account implements BaseAccount, StoreConfig {
     private String savedE3Provider;
     private long e3Key;
     private String e3KeyVerificationPhrase;
+    private String e3SearchIndexKey;
     private boolean markMessageAsReadOnView;
     private boolean alwaysShowCcBcc;
     private boolean allowRemoteSearch;
@@ -307,6 +312,8 @@ public class Account implements BaseAccount, StoreConfig {
         autoExpandFolder = INBOX;
         inboxFolder = INBOX;
         maxPushFolders = 10;
+        maxSyncConnections = DEFAULT_MAX_SYNC_CONNECTIONS;
+        maxSmtpSessions = DEFAULT_MAX_SMTP_SESSIONS;
         goToUnreadMessageSearch = false;
         subscribedFoldersOnly = false;
         maximumPolledMessageAge = -1;
@@ -400,6 +407,8 @@ public class Account implements BaseAccount, StoreConfig {
         syncRemoteDeletions = storage.getBoolean(accountUuid + ".syncRemoteDeletions", true);
 
         maxPushFolders = storage.getInt(accountUuid + ".maxPushFolders", 10);
+        maxSyncConnections = storage.getInt(accountUuid + ".maxSyncConnections", DEFAULT_MAX_SYNC_CONNECTIONS);
+        maxSmtpSessions = storage.getInt(accountUuid + ".maxSmtpSessions", DEFAULT_MAX_SMTP_SESSIONS);
         goToUnreadMessageSearch = storage.getBoolean(accountUuid + ".goToUnreadMessageSearch", false);
         subscribedFoldersOnly = storage.getBoolean(accountUuid + ".subscribedFoldersOnly", false);
         maximumPolledMessageAge = storage.getInt(accountUuid + ".maximumPolledMessageAge", -1);
@@ -466,6 +475,7 @@ public class Account implements BaseAccount, StoreConfig {
         savedE3Provider = e3Provider;
         e3Key = storage.getLong(accountUuid + ".e3Key", NO_OPENPGP_KEY);
         e3KeyVerificationPhrase = storage.getString(accountUuid + ".e3KeyVerificationPhrase", "");
+        e3SearchIndexKey = storage.getString(accountUuid + ".e3SearchIndexKey", null);
 
         allowRemoteSearch = storage.getBoolean(accountUuid + ".allowRemoteSearch", false);
         remoteSearchFullText = storage.getBoolean(accountUuid + ".remoteSearchFullText", false);
@@ -538,6 +548,8 @@ public class Account implements BaseAccount, StoreConfig {
         editor.remove(accountUuid + ".expungePolicy");
         editor.remove(accountUuid + ".syncRemoteDeletions");
         editor.remove(accountUuid + ".maxPushFolders");
+        editor.remove(accountUuid + ".maxSyncConnections");
+        editor.remove(accountUuid + ".maxSmtpSessions");
         editor.remove(accountUuid + ".searchableFolders");
         editor.remove(accountUuid + ".chipColor");
         editor.remove(accountUuid + ".led");
@@ -564,6 +576,7 @@ public class Account implements BaseAccount, StoreConfig {
         editor.remove(accountUuid + ".e3Provider");
         editor.remove(accountUuid + ".e3Key");
         editor.remove(accountUuid + ".e3KeyVerificationPhrase");
+        editor.remove(accountUuid + ".e3SearchIndexKey");
         editor.remove(accountUuid + ".enabled");
         editor.remove(accountUuid + ".markMessageAsReadOnView");
         editor.remove(accountUuid + ".alwaysShowCcBcc");
@@ -714,6 +727,8 @@ public class Account implements BaseAccount, StoreConfig {
         editor.putString(accountUuid + ".expungePolicy", expungePolicy.name());
         editor.putBoolean(accountUuid + ".syncRemoteDeletions", syncRemoteDeletions);
         editor.putInt(accountUuid + ".maxPushFolders", maxPushFolders);
+        editor.putInt(accountUuid + ".maxSyncConnections", maxSyncConnections);
+        editor.putInt(accountUuid + ".maxSmtpSessions", maxSmtpSessions);
         editor.putString(accountUuid + ".searchableFolders", searchableFolders.name());
         editor.putInt(accountUuid + ".chipColor", chipColor);
         editor.putBoolean(accountUuid + ".goToUnreadMessageSearch", goToUnreadMessageSearch);
@@ -740,6 +755,7 @@ public class Account implements BaseAccount, StoreConfig {
         editor.putLong(accountUuid + ".e3Key", e3Key);
         editor.putString(accountUuid + ".e3ModeEnum", e3Mode.name());
         editor.putString(accountUuid + ".e3KeyVerificationPhrase", e3KeyVerificationPhrase);
+        editor.putString(accountUuid + ".e3SearchIndexKey", e3SearchIndexKey);
         editor.putBoolean(accountUuid + ".openPgpHideSignOnly", openPgpHideSignOnly);
         editor.putBoolean(accountUuid + ".openPgpEncryptSubject", openPgpEncryptSubject);
         editor.putString(accountUuid + ".openPgpProvider", openPgpProvider);
@@ -1190,6 +1206,31 @@ public class Account implements BaseAccount, StoreConfig {
         return oldMaxPushFolders != maxPushFolders;
     }
 
+    /**
+     * Returns the maximum number of folders that are synchronized concurrently, each using its own connection to
+     * the server. Accounts on the same incoming server share this limit.
+     */
+    public synchronized int getMaxSyncConnections() {
+        return maxSyncConnections;
+    }
+
+    public synchronized void setMaxSyncConnections(int maxSyncConnections) {
+        this.maxSyncConnections = maxSyncConnections;
+    }
+
+    /**
+     * Returns the maximum number of connections to the outgoing server that are used in parallel to send the
+     * messages in the outbox.
+     */
+    @Override
+    public synchronized int getMaxSmtpSessions() {
+        return maxSmtpSessions;
+    }
+
+    public synchronized void setMaxSmtpSessions(int maxSmtpSessions) {
+        this.maxSmtpSessions = maxSmtpSessions;
+    }
+
     public LocalStore getLocalStore() throws MessagingException {
         Context context = DI.get(Context.class);
         return LocalStore.getInstance(this, context);
@@ -1560,6 +1601,18 @@ public class Account implements BaseAccount, StoreConfig {
         this.e3KeyVerificationPhrase = e3KeyVerificationPhrase;
     }
 
+    /**
+     * Returns the Base64 encoded key used to hash the tokens of the E3 search index, or {@code null} if no message
+     * was indexed yet. The key is deliberately not part of the exported settings.
+     */
+    public synchronized String getE3SearchIndexKey() {
+        return e3SearchIndexKey;
+    }
+
+    public synchronized void setE3SearchIndexKey(String e3SearchIndexKey) {
+        this.e3SearchIndexKey = e3SearchIndexKey;
+    }
+
     public boolean hasOpenPgpKey() {
         return openPgpKey != NO_OPENPGP_KEY;
     }
@@ -0,0 +1,308 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+import com.fsck.k9.Account;
+import timber.log.Timber;
+
+
+/**
+ * Runs the commands queued by {@link MessagingController}.
+ * <p>
+ * Every account has a foreground and a background lane. The commands in one lane of an account run one after
+ * another, in the order they were queued, while lanes of different accounts run in parallel. Idle workers pick the
+ * next account round-robin, so an account with a long queue can't starve the others. Foreground commands have their
+ * own workers and never wait for background work like folder synchronizations.
+ * <p>
+ * Commands that aren't tied to an account, e.g. checking mail of all accounts, share a lane of their own.
+ * <p>
+ * Commands can name the folder they work on. Two commands for the same folder of an account never run at the same
+ * time, even if one is in the foreground lane and the other in the background lane.
+ */
+class CommandScheduler {
+    static final int FOREGROUND_THREADS = 2;
+    static final int BACKGROUND_THREADS = 3;
+    private static final long UNAVAILABLE_ACCOUNT_RETRY_DELAY_SECONDS = 30;
+    private static final String GLOBAL_LANE_KEY = "";
+
+    private static final AtomicInteger sequencing = new AtomicInteger(0);
+
+
+    private final Object lock = new Object();
+    private final Set<String> busyFolderKeys = new HashSet<>();
+    private final Lane foregroundLane;
+    private final Lane backgroundLane;
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean stopped = false;
+
+
+    CommandScheduler() {
+        this(FOREGROUND_THREADS, BACKGROUND_THREADS);
+    }
+
+    CommandScheduler(int foregroundThreads, int backgroundThreads) {
+        foregroundLane = new Lane("Foreground", foregroundThreads, Process.THREAD_PRIORITY_DEFAULT);
+        backgroundLane = new Lane("Background", backgroundThreads, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    void put(Account account, String description, MessagingListener listener, Runnable runnable,
+            boolean isForeground, String supersedeKey) {
+        put(account, null, description, listener, runnable, isForeground, supersedeKey);
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @param account
+     *         The account the command works on. {@code null} for commands that aren't tied to a single account.
+     * @param folderServerId
+     *         The folder the command works on, if any. The command doesn't start while another command for this
+     *         folder is running in the other lane.
+     * @param supersedeKey
+     *         If not {@code null}, commands of the same account and lane with this key that are still waiting are
+     *         dropped in favor of the new one, as long as they'd notify the same listener (or none at all).
+     */
+    void put(Account account, String folderServerId, String description, MessagingListener listener,
+            Runnable runnable, boolean isForeground, String supersedeKey) {
+        Command command = new Command();
+        command.laneKey = account != null ? account.getUuid() : GLOBAL_LANE_KEY;
+        command.folderKey = account != null && folderServerId != null ? command.laneKey + ":" + folderServerId : null;
+        command.description = description;
+        command.listener = listener;
+        command.runnable = runnable;
+        command.isForegroundPriority = isForeground;
+        command.supersedeKey = supersedeKey;
+
+        put(command);
+    }
+
+    private void put(Command command) {
+        Lane lane = command.isForegroundPriority ? foregroundLane : backgroundLane;
+        lane.add(command);
+    }
+
+    /**
+     * Runs {@code runnable} on the calling thread as soon as no command for the given folder is running. Commands
+     * for that folder don't start until it's done.
+     * <p>
+     * This is for work on a folder that doesn't run in one of the lanes, e.g. the folder synchronizations of a mail
+     * check.
+     */
+    void runForFolder(Account account, String folderServerId, Runnable runnable) throws InterruptedException {
+        String folderKey = account.getUuid() + ":" + folderServerId;
+        synchronized (lock) {
+            while (busyFolderKeys.contains(folderKey)) {
+                lock.wait();
+            }
+            busyFolderKeys.add(folderKey);
+        }
+
+        try {
+            runnable.run();
+        } finally {
+            synchronized (lock) {
+                busyFolderKeys.remove(folderKey);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    void stop() throws InterruptedException {
+        stopped = true;
+        retryExecutor.shutdownNow();
+        foregroundLane.stop();
+        backgroundLane.stop();
+    }
+
+    private void runCommand(final Command command) {
+        Timber.i("Running command '%s', seq = %s (%s priority)",
+                command.description,
+                command.sequence,
+                command.isForegroundPriority ? "foreground" : "background");
+
+        try {
+            command.runnable.run();
+            Timber.i(" Command '%s' completed", command.description);
+        } catch (UnavailableAccountException e) {
+            // retry later
+            retryExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    put(command);
+                }
+            }, UNAVAILABLE_ACCOUNT_RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Timber.e(e, "Error running command '%s'", command.description);
+        }
+    }
+
+
+    private class Lane {
+        private final Map<String, Deque<Command>> queues = new HashMap<>();
+        private final Deque<String> readyLaneKeys = new ArrayDeque<>();
+        private final Set<String> busyLaneKeys = new HashSet<>();
+        private final List<Thread> workers = new ArrayList<>();
+
+
+        Lane(String name, int threadCount, final int threadPriority) {
+            for (int i = 1; i <= threadCount; i++) {
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        runCommands();
+                    }
+                });
+                worker.setName("MessagingController-" + name + "-" + i);
+                worker.start();
+                workers.add(worker);
+            }
+        }
+
+        void add(Command command) {
+            synchronized (lock) {
+                Deque<Command> queue = queues.get(command.laneKey);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    queues.put(command.laneKey, queue);
+                }
+
+                if (command.supersedeKey != null) {
+                    removeSupersededCommands(queue, command);
+                }
+                queue.add(command);
+
+                if (!busyLaneKeys.contains(command.laneKey) && !readyLaneKeys.contains(command.laneKey)) {
+                    readyLaneKeys.add(command.laneKey);
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        private void removeSupersededCommands(Deque<Command> queue, Command command) {
+            Iterator<Command> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Command queuedCommand = iterator.next();
+                if (command.supersedes(queuedCommand)) {
+                    Timber.d("Dropping command '%s', seq = %s, superseded by seq = %s",
+                            queuedCommand.description, queuedCommand.sequence, command.sequence);
+                    iterator.remove();
+                }
+            }
+        }
+
+        private Command take() throws InterruptedException {
+            synchronized (lock) {
+                while (true) {
+                    Command command = pollReadyCommand();
+                    if (command != null) {
+                        return command;
+                    }
+
+                    lock.wait();
+                }
+            }
+        }
+
+        private Command pollReadyCommand() {
+            Iterator<String> iterator = readyLaneKeys.iterator();
+            while (iterator.hasNext()) {
+                String laneKey = iterator.next();
+                Deque<Command> queue = queues.get(laneKey);
+
+                // The other lane is working on this folder; try again once it's done
+                String folderKey = queue.peek().folderKey;
+                if (folderKey != null && busyFolderKeys.contains(folderKey)) {
+                    continue;
+                }
+
+                iterator.remove();
+                busyLaneKeys.add(laneKey);
+                if (folderKey != null) {
+                    busyFolderKeys.add(folderKey);
+                }
+                return queue.poll();
+            }
+
+            return null;
+        }
+
+        private void finished(Command command) {
+            synchronized (lock) {
+                busyLaneKeys.remove(command.laneKey);
+                if (command.folderKey != null) {
+                    busyFolderKeys.remove(command.folderKey);
+                }
+
+                Deque<Command> queue = queues.get(command.laneKey);
+                if (queue.isEmpty()) {
+                    queues.remove(command.laneKey);
+                } else {
+                    // Goes to the back, so every other account waiting in this lane gets a turn first
+                    readyLaneKeys.add(command.laneKey);
+                }
+
+                // Also wakes up the other lane, which might be waiting for this folder
+                lock.notifyAll();
+            }
+        }
+
+        private void runCommands() {
+            while (!stopped) {
+                Command command;
+                try {
+                    command = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    runCommand(command);
+                } finally {
+                    finished(command);
+                }
+            }
+        }
+
+        void stop() throws InterruptedException {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            for (Thread worker : workers) {
+                worker.join(1000L);
+            }
+        }
+    }
+
+    private static class Command {
+        String laneKey;
+        String folderKey;
+        Runnable runnable;
+        MessagingListener listener;
+        String description;
+        boolean isForegroundPriority;
+        String supersedeKey;
+
+        final int sequence = sequencing.getAndIncrement();
+
+        boolean supersedes(Command other) {
+            return supersedeKey.equals(other.supersedeKey) &&
+                    (other.listener == null || other.listener == listener);
+        }
+    }
+}
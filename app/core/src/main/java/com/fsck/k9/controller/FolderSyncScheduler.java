@@ -0,0 +1,225 @@
+package com.fsck.k9.controller;
+
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+import com.fsck.k9.Account;
+import timber.log.Timber;
+
+
+/**
+ * Runs folder synchronizations in parallel.
+ * <p>
+ * At most {@link Account#getMaxSyncConnections()} folders are synchronized at a time per incoming server, so we never
+ * need more connections than the user allowed for that server. Accounts on the same host share this limit (the
+ * lowest one applies); accounts on different hosts don't limit each other.
+ * <p>
+ * Synchronizations of the same folder are run one after another, in the order they were scheduled.
+ */
+class FolderSyncScheduler {
+    private final ExecutorService executor = Executors.newCachedThreadPool(new FolderSyncThreadFactory());
+    private final Map<String, ServerQueue> serverQueues = new HashMap<>();
+
+
+    /**
+     * Schedules the synchronization of a folder.
+     */
+    void execute(Account account, String folderServerId, Runnable runnable) {
+        execute(account, folderServerId, runnable, null);
+    }
+
+    /**
+     * Creates a group that can be used to run something once a number of folder synchronizations completed.
+     */
+    SyncGroup newGroup() {
+        return new SyncGroup();
+    }
+
+    private void execute(Account account, String folderServerId, Runnable runnable, SyncGroup group) {
+        String serverKey = getServerKey(account);
+        String folderKey = account.getUuid() + ":" + folderServerId;
+        FolderSyncTask task = new FolderSyncTask(serverKey, folderKey, folderServerId, runnable, group);
+        int maxSyncConnections = Math.max(1, account.getMaxSyncConnections());
+        synchronized (serverQueues) {
+            ServerQueue serverQueue = serverQueues.get(serverKey);
+            if (serverQueue == null) {
+                serverQueue = new ServerQueue();
+                serverQueue.maxRunning = maxSyncConnections;
+                serverQueues.put(serverKey, serverQueue);
+            } else {
+                serverQueue.maxRunning = Math.min(serverQueue.maxRunning, maxSyncConnections);
+            }
+
+            serverQueue.waiting.add(task);
+            startWaitingTasks(serverQueue);
+        }
+    }
+
+    /**
+     * Returns the host name of the account's incoming server, or the account's UUID if it can't be determined.
+     */
+    static String getServerKey(Account account) {
+        String storeUri = account.getStoreUri();
+        if (storeUri != null) {
+            try {
+                String host = new URI(storeUri).getHost();
+                if (host != null) {
+                    return host.toLowerCase(Locale.US);
+                }
+            } catch (URISyntaxException e) {
+                Timber.w(e, "Couldn't get host of incoming server for account %s", account.getDescription());
+            }
+        }
+
+        return account.getUuid();
+    }
+
+    private void startWaitingTasks(ServerQueue serverQueue) {
+        Iterator<FolderSyncTask> iterator = serverQueue.waiting.iterator();
+        while (iterator.hasNext() && serverQueue.running.size() < serverQueue.maxRunning) {
+            FolderSyncTask task = iterator.next();
+
+            // Keeps later syncs of the same folder waiting, so they run in order
+            if (serverQueue.running.contains(task.folderKey)) {
+                continue;
+            }
+
+            iterator.remove();
+            serverQueue.running.add(task.folderKey);
+            executor.execute(task);
+        }
+    }
+
+    private void taskFinished(FolderSyncTask task) {
+        synchronized (serverQueues) {
+            ServerQueue serverQueue = serverQueues.get(task.serverKey);
+            serverQueue.running.remove(task.folderKey);
+            startWaitingTasks(serverQueue);
+
+            if (serverQueue.running.isEmpty() && serverQueue.waiting.isEmpty()) {
+                serverQueues.remove(task.serverKey);
+            }
+        }
+    }
+
+
+    /**
+     * Tracks a number of folder synchronizations, e.g. all the folders synchronized by one mail check.
+     */
+    class SyncGroup {
+        private final AtomicInteger pendingCount = new AtomicInteger(1);
+        private final List<Runnable> finishedCallbacks = new ArrayList<>();
+
+
+        private SyncGroup() {
+        }
+
+        void execute(Account account, String folderServerId, Runnable runnable) {
+            pendingCount.incrementAndGet();
+            FolderSyncScheduler.this.execute(account, folderServerId, runnable, this);
+        }
+
+        /**
+         * Registers a callback that is run once all synchronizations of this group have completed. Callbacks are
+         * run in the order they were added, on the thread that completes the last synchronization.
+         */
+        synchronized void whenFinished(Runnable callback) {
+            finishedCallbacks.add(callback);
+        }
+
+        /**
+         * Signals that no more synchronizations will be added to this group.
+         */
+        void close() {
+            taskFinished();
+        }
+
+        private void taskFinished() {
+            if (pendingCount.decrementAndGet() != 0) {
+                return;
+            }
+
+            List<Runnable> callbacks;
+            synchronized (this) {
+                callbacks = new ArrayList<>(finishedCallbacks);
+                finishedCallbacks.clear();
+            }
+
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+
+    private static class ServerQueue {
+        final Deque<FolderSyncTask> waiting = new ArrayDeque<>();
+        final Set<String> running = new HashSet<>();
+        int maxRunning;
+    }
+
+    private class FolderSyncTask implements Runnable {
+        final String serverKey;
+        final String folderKey;
+        final String folderServerId;
+        final Runnable runnable;
+        final SyncGroup group;
+
+
+        FolderSyncTask(String serverKey, String folderKey, String folderServerId, Runnable runnable,
+                SyncGroup group) {
+            this.serverKey = serverKey;
+            this.folderKey = folderKey;
+            this.folderServerId = folderServerId;
+            this.runnable = runnable;
+            this.group = group;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runnable.run();
+            } catch (Exception e) {
+                Timber.e(e, "Error synchronizing folder %s", folderServerId);
+            } finally {
+                taskFinished(this);
+                if (group != null) {
+                    group.taskFinished();
+                }
+            }
+        }
+    }
+
+    private static class FolderSyncThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            });
+            thread.setName("FolderSync-" + threadNumber.getAndIncrement());
+            return thread;
+        }
+    }
+}
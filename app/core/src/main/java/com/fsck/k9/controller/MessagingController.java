@@ -14,21 +14,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.os.PowerManager;
-import android.os.Process;
-import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
@@ -59,12 +55,14 @@ import com.fsck.k9.controller.MessagingControllerCommands.PendingMoveOrCopy;
 import com.fsck.k9.controller.MessagingControllerCommands.PendingSetFlag;
 import com.fsck.k9.controller.ProgressBodyFactory.ProgressListener;
 import com.fsck.k9.crypto.e3.BackendE3PgpService;
+import com.fsck.k9.crypto.e3.E3Constants;
 import com.fsck.k9.crypto.e3.E3DeleteMessagePredicate;
 import com.fsck.k9.crypto.e3.E3HeaderSigner;
 import com.fsck.k9.crypto.e3.E3KeyEmail;
 import com.fsck.k9.crypto.e3.E3KeyEmailParser;
 import com.fsck.k9.crypto.e3.E3KeyMessagePredicate;
 import com.fsck.k9.crypto.e3.E3PublicKeyManager;
+import com.fsck.k9.crypto.e3.E3ReplacementException;
 import com.fsck.k9.helper.Contacts;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.AuthenticationFailedException;
@@ -79,7 +77,9 @@ import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.PushStatistics;
 import com.fsck.k9.mail.Pusher;
+import com.fsck.k9.mail.SendMessagesListener;
 import com.fsck.k9.mail.internet.MessageExtractor;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeUtility;
@@ -131,13 +131,14 @@ public class MessagingController {
     private final NotificationController notificationController;
     private final BackendManager backendManager;
 
-    private final Thread controllerThread;
-
-    private final BlockingQueue<Command> queuedCommands = new PriorityBlockingQueue<>();
+    private final CommandScheduler commandScheduler = new CommandScheduler();
     private final Set<MessagingListener> listeners = new CopyOnWriteArraySet<>();
     private final ConcurrentHashMap<String, AtomicInteger> sendCount = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Account, Pusher> pushers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BackendE3PgpService> e3PgpServices = new ConcurrentHashMap<>();
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private final FolderSyncScheduler folderSyncScheduler = new FolderSyncScheduler();
+    private final ConcurrentHashMap<String, Object> pendingCommandsLocks = new ConcurrentHashMap<>();
     private final MemorizingMessagingListener memorizingMessagingListener = new MemorizingMessagingListener();
     private final AccountStatsCollector accountStatsCollector;
     private final CoreResourceProvider resourceProvider;
@@ -145,7 +146,6 @@ public class MessagingController {
 
     private MessagingListener checkMailListener = null;
     private MessagingListener e3KeyListener = null;
-    private volatile boolean stopped = false;
 
 
     public static MessagingController getInstance(Context context) {
@@ -163,14 +163,6 @@ public class MessagingController {
         this.resourceProvider = resourceProvider;
         this.backendManager = backendManager;
 
-        controllerThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                runInBackground();
-            }
-        });
-        controllerThread.setName("MessagingController");
-        controllerThread.start();
         addListener(memorizingMessagingListener);
 
         initializeControllerExtensions(controllerExtensions);
@@ -185,13 +177,13 @@ public class MessagingController {
             @Override
             public void put(@NotNull String description, @Nullable MessagingListener listener,
                     @NotNull Runnable runnable) {
-                MessagingController.this.put(description, listener, runnable);
+                MessagingController.this.put(null, description, listener, runnable);
             }
 
             @Override
             public void putBackground(@NotNull String description, @Nullable MessagingListener listener,
                     @NotNull Runnable runnable) {
-                MessagingController.this.putBackground(description, listener, runnable);
+                MessagingController.this.putBackground(null, description, listener, runnable);
             }
         };
 
@@ -202,79 +194,39 @@ public class MessagingController {
 
     @VisibleForTesting
     void stop() throws InterruptedException {
-        stopped = true;
-        controllerThread.interrupt();
-        controllerThread.join(1000L);
+        commandScheduler.stop();
     }
 
-    private void runInBackground() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        while (!stopped) {
-            String commandDescription = null;
-            try {
-                final Command command = queuedCommands.take();
-
-                if (command != null) {
-                    commandDescription = command.description;
-
-                    Timber.i("Running command '%s', seq = %s (%s priority)",
-                            command.description,
-                            command.sequence,
-                            command.isForegroundPriority ? "foreground" : "background");
-
-                    try {
-                        command.runnable.run();
-                    } catch (UnavailableAccountException e) {
-                        // retry later
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    sleep(30 * 1000);
-                                    queuedCommands.put(command);
-                                } catch (InterruptedException e) {
-                                    Timber.e("Interrupted while putting a pending command for an unavailable account " +
-                                            "back into the queue. THIS SHOULD NEVER HAPPEN.");
-                                }
-                            }
-                        }.start();
-                    }
+    private void put(Account account, String description, MessagingListener listener, Runnable runnable) {
+        commandScheduler.put(account, description, listener, runnable, true, null);
+    }
 
-                    Timber.i(" Command '%s' completed", command.description);
-                }
-            } catch (Exception e) {
-                Timber.e(e, "Error running command '%s'", commandDescription);
-            }
-        }
+    /**
+     * Like {@link #put(Account, String, MessagingListener, Runnable)}, but doesn't run while a background command is
+     * working on the same folder.
+     */
+    private void putForFolder(Account account, String folderServerId, String description,
+            MessagingListener listener, Runnable runnable) {
+        commandScheduler.put(account, folderServerId, description, listener, runnable, true, null);
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(queuedCommands, description, listener, runnable, true);
+    private void putBackground(Account account, String description, MessagingListener listener,
+            Runnable runnable) {
+        commandScheduler.put(account, description, listener, runnable, false, null);
     }
 
-    private void putBackground(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(queuedCommands, description, listener, runnable, false);
+    private void putBackgroundForFolder(Account account, String folderServerId, String description,
+            MessagingListener listener, Runnable runnable) {
+        commandScheduler.put(account, folderServerId, description, listener, runnable, false, null);
     }
 
-    private void putCommand(BlockingQueue<Command> queue, String description, MessagingListener listener,
-            Runnable runnable, boolean isForeground) {
-        int retries = 10;
-        Exception e = null;
-        while (retries-- > 0) {
-            try {
-                Command command = new Command();
-                command.listener = listener;
-                command.runnable = runnable;
-                command.description = description;
-                command.isForegroundPriority = isForeground;
-                queue.put(command);
-                return;
-            } catch (InterruptedException ie) {
-                SystemClock.sleep(200);
-                e = ie;
-            }
-        }
-        throw new Error(e);
+    /**
+     * Like {@link #putBackgroundForFolder(Account, String, String, MessagingListener, Runnable)}, but drops commands
+     * with the same {@code supersedeKey} that are still waiting to run, since the new command will do the same work.
+     */
+    private void putBackgroundSuperseding(Account account, String folderServerId, String supersedeKey,
+            String description, MessagingListener listener, Runnable runnable) {
+        commandScheduler.put(account, folderServerId, description, listener, runnable, false, supersedeKey);
     }
 
     private Backend getBackend(Account account) {
@@ -442,7 +394,7 @@ public class MessagingController {
     }
 
     private void doRefreshRemote(final Account account, final MessagingListener listener) {
-        put("doRefreshRemote", listener, new Runnable() {
+        put(account, "doRefreshRemote", listener, new Runnable() {
             @Override
             public void run() {
                 refreshRemoteSynchronous(account, listener);
@@ -688,12 +640,18 @@ public class MessagingController {
      */
     public void synchronizeMailbox(final Account account, final String folder, final MessagingListener listener,
             final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
+        Runnable synchronizeRunnable = new Runnable() {
             @Override
             public void run() {
                 synchronizeMailboxSynchronous(account, folder, listener, providedRemoteFolder);
             }
-        });
+        };
+
+        // A sync of this folder that hasn't started yet would do the same work. Syncs using a remote folder provided
+        // by the caller (e.g. a pusher) are never dropped, since the caller expects that folder to be used.
+        String supersedeKey = providedRemoteFolder == null ? "synchronizeMailbox:" + folder : null;
+        putBackgroundSuperseding(account, folder, supersedeKey, "synchronizeMailbox", listener,
+                synchronizeRunnable);
     }
 
     /**
@@ -760,10 +718,33 @@ public class MessagingController {
                 cryptoProvider,
                 account.getE3Mode().toBackendE3ModeSyncConfig(),
                 keyId,
-                new BackendE3PgpService(context, account, cryptoProvider, keyId)
+                getBackendE3PgpService(account, cryptoProvider, keyId),
+                E3Constants.E3_ENCRYPT_PARALLELISM,
+                E3Constants.E3_STORE_PARALLELISM,
+                E3Constants.E3_PIPELINE_CAPACITY
         );
     }
 
+    /**
+     * Returns the long-lived E3 encryption service of the account, replacing it if the crypto configuration changed.
+     */
+    private BackendE3PgpService getBackendE3PgpService(Account account, String cryptoProvider, Long keyId) {
+        synchronized (e3PgpServices) {
+            BackendE3PgpService service = e3PgpServices.get(account.getUuid());
+            if (service != null && service.isConfiguredFor(cryptoProvider, keyId)) {
+                return service;
+            }
+
+            if (service != null) {
+                service.shutdown();
+            }
+
+            service = new BackendE3PgpService(context, account, cryptoProvider, keyId);
+            e3PgpServices.put(account.getUuid(), service);
+            return service;
+        }
+    }
+
     private void updateFolderStatus(Account account, String folderServerId, String status) {
         try {
             LocalStore localStore = account.getLocalStore();
@@ -794,7 +775,7 @@ public class MessagingController {
     }
 
     private void processPendingCommands(final Account account) {
-        putBackground("processPendingCommands", null, new Runnable() {
+        Runnable processPendingCommandsRunnable = new Runnable() {
             @Override
             public void run() {
                 try {
@@ -812,10 +793,34 @@ public class MessagingController {
                      */
                 }
             }
-        });
+        };
+
+        // Every run processes all pending commands, so one waiting run is enough
+        putBackgroundSuperseding(account, null, "processPendingCommands", "processPendingCommands", null,
+                processPendingCommandsRunnable);
     }
 
     public void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        // Folders of an account are synchronized in parallel, but pending commands have to be processed in order
+        synchronized (getPendingCommandsLock(account)) {
+            processPendingCommandsInOrder(account);
+        }
+    }
+
+    private Object getPendingCommandsLock(Account account) {
+        Object lock = pendingCommandsLocks.get(account.getUuid());
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = pendingCommandsLocks.putIfAbsent(account.getUuid(), newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        return lock;
+    }
+
+    private void processPendingCommandsInOrder(Account account) throws MessagingException {
         LocalStore localStore = account.getLocalStore();
         List<PendingCommand> commands = localStore.getPendingCommands();
 
@@ -1036,7 +1041,7 @@ public class MessagingController {
 
     private void queueSetFlag(final Account account, final String folderServerId,
             final boolean newState, final Flag flag, final List<String> uids) {
-        putBackground("queueSetFlag " + account.getDescription() + ":" + folderServerId, null, new Runnable() {
+        putBackground(account, "queueSetFlag " + account.getDescription() + ":" + folderServerId, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = PendingSetFlag.create(folderServerId, newState, flag, uids);
@@ -1055,7 +1060,7 @@ public class MessagingController {
     }
 
     private void queueExpunge(final Account account, final String folderServerId) {
-        putBackground("queueExpunge " + account.getDescription() + ":" + folderServerId, null, new Runnable() {
+        putBackground(account, "queueExpunge " + account.getDescription() + ":" + folderServerId, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = PendingExpunge.create(folderServerId);
@@ -1297,7 +1302,7 @@ public class MessagingController {
 
     public void loadMessageRemotePartial(final Account account, final String folder,
             final String uid, final MessagingListener listener) {
-        put("loadMessageRemotePartial", listener, new Runnable() {
+        putForFolder(account, folder, "loadMessageRemotePartial", listener, new Runnable() {
             @Override
             public void run() {
                 loadMessageRemoteSynchronous(account, folder, uid, listener, true);
@@ -1308,7 +1313,7 @@ public class MessagingController {
     //TODO: Fix the callback mess. See GH-782
     public void loadMessageRemote(final Account account, final String folder,
             final String uid, final MessagingListener listener) {
-        put("loadMessageRemote", listener, new Runnable() {
+        putForFolder(account, folder, "loadMessageRemote", listener, new Runnable() {
             @Override
             public void run() {
                 loadMessageRemoteSynchronous(account, folder, uid, listener, false);
@@ -1428,7 +1433,7 @@ public class MessagingController {
     public void loadAttachment(final Account account, final LocalMessage message, final Part part,
             final MessagingListener listener) {
 
-        put("loadAttachment", listener, new Runnable() {
+        putForFolder(account, message.getFolder().getServerId(), "loadAttachment", listener, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -1515,7 +1520,7 @@ public class MessagingController {
      */
     public void sendPendingMessages(final Account account,
             MessagingListener listener) {
-        putBackground("sendPendingMessages", listener, new Runnable() {
+        putBackground(account, "sendPendingMessages", listener, new Runnable() {
             @Override
             public void run() {
                 if (!account.isAvailable(context)) {
@@ -1571,6 +1576,9 @@ public class MessagingController {
 
     /**
      * Attempt to send any messages that are sitting in the Outbox.
+     * <p>
+     * All messages are handed to the backend at once, so it can send them over as few connections as possible. A
+     * message is only marked as being sent once the backend actually starts sending it.
      */
     @VisibleForTesting
     protected void sendPendingMessagesSynchronous(final Account account) {
@@ -1591,10 +1599,9 @@ public class MessagingController {
             localFolder.open(Folder.OPEN_MODE_RW);
 
             List<LocalMessage> localMessages = localFolder.getMessages(null);
-            int progress = 0;
             int todo = localMessages.size();
             for (MessagingListener l : getListeners()) {
-                l.synchronizeMailboxProgress(account, account.getSentFolder(), progress, todo);
+                l.synchronizeMailboxProgress(account, account.getSentFolder(), 0, todo);
             }
             /*
              * The profile we will use to pull all of the content
@@ -1609,6 +1616,7 @@ public class MessagingController {
 
             Backend backend = getBackend(account);
 
+            List<LocalMessage> messagesToSend = new ArrayList<>(localMessages.size());
             for (LocalMessage message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
                     message.destroy();
@@ -1632,48 +1640,13 @@ public class MessagingController {
                     }
 
                     localFolder.fetch(Collections.singletonList(message), fp, null);
-                    try {
-                        if (message.getHeader(K9.IDENTITY_HEADER).length > 0) {
-                            Timber.v("The user has set the Outbox and Drafts folder to the same thing. " +
-                                    "This message appears to be a draft, so K-9 will not send it");
-                            continue;
-                        }
-
-                        message.setFlag(Flag.X_SEND_IN_PROGRESS, true);
-
-                        Timber.i("Sending message with UID %s", message.getUid());
-                        backend.sendMessage(message);
-
-                        message.setFlag(Flag.X_SEND_IN_PROGRESS, false);
-                        message.setFlag(Flag.SEEN, true);
-                        progress++;
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxProgress(account, account.getSentFolder(), progress, todo);
-                        }
-                        moveOrDeleteSentMessage(account, localStore, localFolder, message);
-                    } catch (AuthenticationFailedException e) {
-                        lastFailure = e;
-                        wasPermanentFailure = false;
-
-                        handleAuthenticationFailure(account, false);
-                        handleSendFailure(account, localStore, localFolder, message, e, wasPermanentFailure);
-                    } catch (CertificateValidationException e) {
-                        lastFailure = e;
-                        wasPermanentFailure = false;
-
-                        notifyUserIfCertificateProblem(account, e, false);
-                        handleSendFailure(account, localStore, localFolder, message, e, wasPermanentFailure);
-                    } catch (MessagingException e) {
-                        lastFailure = e;
-                        wasPermanentFailure = e.isPermanentFailure();
-
-                        handleSendFailure(account, localStore, localFolder, message, e, wasPermanentFailure);
-                    } catch (Exception e) {
-                        lastFailure = e;
-                        wasPermanentFailure = true;
-
-                        handleSendFailure(account, localStore, localFolder, message, e, wasPermanentFailure);
+                    if (message.getHeader(K9.IDENTITY_HEADER).length > 0) {
+                        Timber.v("The user has set the Outbox and Drafts folder to the same thing. " +
+                                "This message appears to be a draft, so K-9 will not send it");
+                        continue;
                     }
+
+                    messagesToSend.add(message);
                 } catch (Exception e) {
                     lastFailure = e;
                     wasPermanentFailure = false;
@@ -1682,6 +1655,15 @@ public class MessagingController {
                 }
             }
 
+            Timber.i("Sending %d messages", messagesToSend.size());
+            OutboxSendListener sendListener = new OutboxSendListener(account, localStore, localFolder, todo);
+            backend.sendMessages(messagesToSend, sendListener);
+
+            if (sendListener.lastFailure != null) {
+                lastFailure = sendListener.lastFailure;
+                wasPermanentFailure = sendListener.wasPermanentFailure;
+            }
+
             for (MessagingListener l : getListeners()) {
                 l.sendPendingMessagesCompleted(account);
             }
@@ -1710,6 +1692,78 @@ public class MessagingController {
         }
     }
 
+    /**
+     * Moves sent messages out of the outbox and handles failures, one message at a time as the backend reports them.
+     */
+    private class OutboxSendListener implements SendMessagesListener<LocalMessage> {
+        private final Account account;
+        private final LocalStore localStore;
+        private final LocalFolder localFolder;
+        private final int todo;
+        private int progress = 0;
+
+        Exception lastFailure;
+        boolean wasPermanentFailure;
+
+
+        OutboxSendListener(Account account, LocalStore localStore, LocalFolder localFolder, int todo) {
+            this.account = account;
+            this.localStore = localStore;
+            this.localFolder = localFolder;
+            this.todo = todo;
+        }
+
+        @Override
+        public void messageSending(LocalMessage message) {
+            try {
+                message.setFlag(Flag.X_SEND_IN_PROGRESS, true);
+            } catch (MessagingException e) {
+                Timber.e(e, "Failed to mark message %s as being sent", message.getUid());
+            }
+        }
+
+        @Override
+        public void messageSent(LocalMessage message) {
+            Timber.i("Sent message with UID %s", message.getUid());
+            try {
+                message.setFlag(Flag.X_SEND_IN_PROGRESS, false);
+                message.setFlag(Flag.SEEN, true);
+                progress++;
+                for (MessagingListener l : getListeners()) {
+                    l.synchronizeMailboxProgress(account, account.getSentFolder(), progress, todo);
+                }
+                moveOrDeleteSentMessage(account, localStore, localFolder, message);
+            } catch (Exception e) {
+                messageFailed(message, e);
+            }
+        }
+
+        @Override
+        public void messageFailed(LocalMessage message, Exception exception) {
+            lastFailure = exception;
+            if (exception instanceof AuthenticationFailedException) {
+                wasPermanentFailure = false;
+                handleAuthenticationFailure(account, false);
+            } else if (exception instanceof CertificateValidationException) {
+                wasPermanentFailure = false;
+                notifyUserIfCertificateProblem(account, exception, false);
+            } else if (exception instanceof MessagingException) {
+                wasPermanentFailure = ((MessagingException) exception).isPermanentFailure();
+            } else {
+                wasPermanentFailure = true;
+            }
+
+            try {
+                handleSendFailure(account, localStore, localFolder, message, exception, wasPermanentFailure);
+            } catch (Exception e) {
+                lastFailure = e;
+                wasPermanentFailure = false;
+                Timber.e(e, "Failed to handle failure to send message");
+                notifySynchronizeMailboxFailed(account, localFolder, e);
+            }
+        }
+    }
+
     private void moveOrDeleteSentMessage(Account account, LocalStore localStore,
             LocalFolder localFolder, LocalMessage message) throws MessagingException {
         if (!account.hasSentFolder() || !account.isUploadSentMessages()) {
@@ -1814,7 +1868,7 @@ public class MessagingController {
         };
 
 
-        put("getFolderUnread:" + account.getDescription() + ":" + folderServerId, l, unreadRunnable);
+        put(account, "getFolderUnread:" + account.getDescription() + ":" + folderServerId, l, unreadRunnable);
     }
 
     public int getFolderUnreadMessageCount(Account account, String folderServerId) throws MessagingException {
@@ -1874,7 +1928,7 @@ public class MessagingController {
             public void act(final Account account, LocalFolder messageFolder, final List<LocalMessage> messages) {
                 suppressMessages(account, messages);
 
-                putBackground("moveMessages", null, new Runnable() {
+                putBackground(account, "moveMessages", null, new Runnable() {
                     @Override
                     public void run() {
                         moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, false);
@@ -1891,7 +1945,7 @@ public class MessagingController {
             public void act(final Account account, LocalFolder messageFolder, final List<LocalMessage> messages) {
                 suppressMessages(account, messages);
 
-                putBackground("moveMessagesInThread", null, new Runnable() {
+                putBackground(account, "moveMessagesInThread", null, new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -1916,7 +1970,7 @@ public class MessagingController {
         actOnMessageGroup(srcAccount, srcFolder, messageReferences, new MessageActor() {
             @Override
             public void act(final Account account, LocalFolder messageFolder, final List<LocalMessage> messages) {
-                putBackground("copyMessages", null, new Runnable() {
+                putBackground(account, "copyMessages", null, new Runnable() {
                     @Override
                     public void run() {
                         moveOrCopyMessageSynchronous(srcAccount, srcFolder, messages, destFolder, true);
@@ -1931,7 +1985,7 @@ public class MessagingController {
         actOnMessageGroup(srcAccount, srcFolder, messageReferences, new MessageActor() {
             @Override
             public void act(final Account account, LocalFolder messageFolder, final List<LocalMessage> messages) {
-                putBackground("copyMessagesInThread", null, new Runnable() {
+                putBackground(account, "copyMessagesInThread", null, new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -2046,7 +2100,7 @@ public class MessagingController {
     }
 
     public void expunge(final Account account, final String folder) {
-        putBackground("expunge", null, new Runnable() {
+        putBackgroundForFolder(account, folder, "expunge", null, new Runnable() {
             @Override
             public void run() {
                 queueExpunge(account, folder);
@@ -2080,7 +2134,7 @@ public class MessagingController {
                     final List<LocalMessage> accountMessages) {
                 suppressMessages(account, accountMessages);
 
-                putBackground("deleteThreads", null, new Runnable() {
+                putBackground(account, "deleteThreads", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteThreadsSynchronous(account, messageFolder.getServerId(), accountMessages);
@@ -2132,7 +2186,7 @@ public class MessagingController {
                     final List<LocalMessage> accountMessages) {
                 suppressMessages(account, accountMessages);
 
-                putBackground("deleteMessages", null, new Runnable() {
+                putBackground(account, "deleteMessages", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteMessagesSynchronous(account, messageFolder.getServerId(), accountMessages, listener);
@@ -2155,7 +2209,7 @@ public class MessagingController {
             public void act(final Account account, final LocalFolder messageFolder,
                     final List<LocalMessage> accountMessages) {
 
-                putBackground("debugClearLocalMessages", null, new Runnable() {
+                putBackground(account, "debugClearLocalMessages", null, new Runnable() {
                     @Override
                     public void run() {
                         for (LocalMessage message : accountMessages) {
@@ -2298,7 +2352,7 @@ public class MessagingController {
     }
 
     public void emptyTrash(final Account account, MessagingListener listener) {
-        putBackground("emptyTrash", listener, new Runnable() {
+        putBackground(account, "emptyTrash", listener, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -2336,7 +2390,7 @@ public class MessagingController {
     }
 
     public void clearFolder(final Account account, final String folderServerId, final MessagingListener listener) {
-        putBackground("clearFolder", listener, new Runnable() {
+        putBackgroundForFolder(account, folderServerId, "clearFolder", listener, new Runnable() {
             @Override
             public void run() {
                 clearFolderSynchronous(account, folderServerId, listener);
@@ -2446,9 +2500,10 @@ public class MessagingController {
         for (MessagingListener l : getListeners()) {
             l.checkMailStarted(context, account);
         }
-        putBackground("checkMail", listener, new Runnable() {
+        putBackground(account, "checkMail", listener, new Runnable() {
             @Override
             public void run() {
+                FolderSyncScheduler.SyncGroup syncGroup = folderSyncScheduler.newGroup();
 
                 try {
                     Timber.i("Starting mail check");
@@ -2464,28 +2519,36 @@ public class MessagingController {
                     }
 
                     for (final Account account : accounts) {
-                        checkMailForAccount(context, account, ignoreLastCheckedTime, listener);
+                        checkMailForAccount(context, account, ignoreLastCheckedTime, listener, syncGroup);
                     }
 
                 } catch (Exception e) {
                     Timber.e(e, "Unable to synchronize mail");
                 }
-                putBackground("finalize sync", null, new Runnable() {
-                            @Override
-                            public void run() {
 
-                                Timber.i("Finished mail sync");
+                // Folders are synchronized in parallel, so only finish once the last one is done
+                syncGroup.whenFinished(new Runnable() {
+                    @Override
+                    public void run() {
+                        putBackground(account, "finalize sync", null, new Runnable() {
+                                    @Override
+                                    public void run() {
+
+                                        Timber.i("Finished mail sync");
 
-                                if (wakeLock != null) {
-                                    wakeLock.release();
-                                }
-                                for (MessagingListener l : getListeners()) {
-                                    l.checkMailFinished(context, account);
-                                }
+                                        if (wakeLock != null) {
+                                            wakeLock.release();
+                                        }
+                                        for (MessagingListener l : getListeners()) {
+                                            l.checkMailFinished(context, account);
+                                        }
 
-                            }
-                        }
-                );
+                                    }
+                                }
+                        );
+                    }
+                });
+                syncGroup.close();
             }
         });
     }
@@ -2493,7 +2556,8 @@ public class MessagingController {
 
     private void checkMailForAccount(final Context context, final Account account,
             final boolean ignoreLastCheckedTime,
-            final MessagingListener listener) {
+            final MessagingListener listener,
+            final FolderSyncScheduler.SyncGroup syncGroup) {
         if (!account.isAvailable(context)) {
             Timber.i("Skipping synchronizing unavailable account %s", account.getDescription());
             return;
@@ -2544,40 +2608,59 @@ public class MessagingController {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener, syncGroup);
             }
         } catch (MessagingException e) {
             Timber.e(e, "Unable to synchronize account %s", account.getName());
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
-                        @Override
-                        public void run() {
-                            Timber.v("Clearing notification flag for %s", account.getDescription());
-
-                            account.setRingNotified(false);
-                            try {
-                                AccountStats stats = getAccountStats(account);
-                                if (stats == null || stats.unreadMessageCount == 0) {
-                                    notificationController.clearNewMailNotifications(account);
-                                }
-                            } catch (MessagingException e) {
-                                Timber.e(e, "Unable to getUnreadMessageCount for account: %s", account);
-                            }
-                        }
-                    }
-            );
+            syncGroup.whenFinished(new Runnable() {
+                @Override
+                public void run() {
+                    clearNotificationFlag(account);
+                }
+            });
         }
 
 
     }
 
 
+    private void clearNotificationFlag(final Account account) {
+        putBackground(account, "clear notification flag for " + account.getDescription(), null, new Runnable() {
+                    @Override
+                    public void run() {
+                        Timber.v("Clearing notification flag for %s", account.getDescription());
+
+                        account.setRingNotified(false);
+                        try {
+                            AccountStats stats = getAccountStats(account);
+                            if (stats == null || stats.unreadMessageCount == 0) {
+                                notificationController.clearNewMailNotifications(account);
+                            }
+                        } catch (MessagingException e) {
+                            Timber.e(e, "Unable to getUnreadMessageCount for account: %s", account);
+                        }
+                    }
+                }
+        );
+    }
+
     private void synchronizeFolder(
             final Account account,
             final Folder folder,
             final boolean ignoreLastCheckedTime,
             final long accountInterval,
             final MessagingListener listener) {
+        synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener, null);
+    }
+
+    private void synchronizeFolder(
+            final Account account,
+            final Folder folder,
+            final boolean ignoreLastCheckedTime,
+            final long accountInterval,
+            final MessagingListener listener,
+            final FolderSyncScheduler.SyncGroup syncGroup) {
 
         Timber.v("Folder %s was last synced @ %tc", folder.getServerId(), folder.getLastChecked());
 
@@ -2587,41 +2670,51 @@ public class MessagingController {
             return;
         }
 
-        putBackground("sync" + folder.getServerId(), null, new Runnable() {
-                    @Override
-                    public void run() {
-                        LocalFolder tLocalFolder = null;
-                        try {
-                            // In case multiple Commands get enqueued, don't run more than
-                            // once
-                            final LocalStore localStore = account.getLocalStore();
-                            tLocalFolder = localStore.getFolder(folder.getServerId());
-                            tLocalFolder.open(Folder.OPEN_MODE_RW);
-
-                            if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
-                                    (System.currentTimeMillis() - accountInterval)) {
-                                Timber.v("Not running Command for folder %s, previously synced @ %tc which would " +
-                                        "be too recent for the account period",
-                                        folder.getServerId(), folder.getLastChecked());
-                                return;
-                            }
-                            showFetchingMailNotificationIfNecessary(account, folder);
-                            try {
+        Runnable folderSync = new Runnable() {
+            @Override
+            public void run() {
+                LocalFolder tLocalFolder = null;
+                try {
+                    // In case multiple Commands get enqueued, don't run more than
+                    // once
+                    final LocalStore localStore = account.getLocalStore();
+                    tLocalFolder = localStore.getFolder(folder.getServerId());
+                    tLocalFolder.open(Folder.OPEN_MODE_RW);
+
+                    if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
+                            (System.currentTimeMillis() - accountInterval)) {
+                        Timber.v("Not running Command for folder %s, previously synced @ %tc which would " +
+                                "be too recent for the account period",
+                                folder.getServerId(), folder.getLastChecked());
+                        return;
+                    }
+                    showFetchingMailNotificationIfNecessary(account, folder);
+                    try {
+                        // Runs outside the command lanes, so make sure no command is working on this folder
+                        commandScheduler.runForFolder(account, folder.getServerId(), new Runnable() {
+                            @Override
+                            public void run() {
                                 synchronizeMailboxSynchronous(account, folder.getServerId(), listener, null);
-                            } finally {
-                                clearFetchingMailNotificationIfNecessary(account);
                             }
-                        } catch (Exception e) {
-                            Timber.e(e, "Exception while processing folder %s:%s",
-                                    account.getDescription(), folder.getServerId());
-                        } finally {
-                            closeFolder(tLocalFolder);
-                        }
+                        });
+                    } finally {
+                        clearFetchingMailNotificationIfNecessary(account);
                     }
+                } catch (Exception e) {
+                    Timber.e(e, "Exception while processing folder %s:%s",
+                            account.getDescription(), folder.getServerId());
+                } finally {
+                    closeFolder(tLocalFolder);
                 }
-        );
-
+            }
+        };
 
+        // Folders are synchronized in parallel, limited by the number of connections allowed for the account
+        if (syncGroup != null) {
+            syncGroup.execute(account, folder.getServerId(), folderSync);
+        } else {
+            folderSyncScheduler.execute(account, folder.getServerId(), folderSync);
+        }
     }
 
     private void showFetchingMailNotificationIfNecessary(Account account, Folder folder) {
@@ -2638,7 +2731,7 @@ public class MessagingController {
 
 
     public void compact(final Account account, final MessagingListener ml) {
-        putBackground("compact:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "compact:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2660,7 +2753,7 @@ public class MessagingController {
     }
 
     public void clear(final Account account, final MessagingListener ml) {
-        putBackground("clear:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "clear:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2688,7 +2781,7 @@ public class MessagingController {
     }
 
     public void recreate(final Account account, final MessagingListener ml) {
-        putBackground("recreate:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "recreate:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2775,6 +2868,11 @@ public class MessagingController {
     public void deleteAccount(Account account) {
         notificationController.clearNewMailNotifications(account);
         memorizingMessagingListener.removeAccount(account);
+
+        BackendE3PgpService e3PgpService = e3PgpServices.remove(account.getUuid());
+        if (e3PgpService != null) {
+            e3PgpService.shutdown();
+        }
     }
 
     /**
@@ -2843,7 +2941,7 @@ public class MessagingController {
                                        final Message originalMessage,
                                        final MimeMessage replacementMessage,
                                        final SyncUpdatedListener listener) {
-        putBackground("Synchronize encrypted-on-receipt email and update listeners", null, new Runnable() {
+        putBackground(account, "Synchronize encrypted-on-receipt email and update listeners", null, new Runnable() {
             @Override
             public void run() {
                 replaceExistingMessageSynchronous(account, localFolder, originalMessage, replacementMessage, listener);
@@ -2856,59 +2954,122 @@ public class MessagingController {
                                        final Message originalMessage,
                                        final MimeMessage replacementMessage,
                                        final SyncUpdatedListener listener) {
+        replaceExistingMessageSynchronous(account, localFolder, originalMessage, replacementMessage, listener, true);
+    }
 
-        final String srcFolder = originalMessage.getFolder().getName();
+    /**
+     * Like {@link #replaceExistingMessageSynchronous(Account, LocalFolder, Message, MimeMessage, SyncUpdatedListener)}
+     * but lets callers that replace many messages in a row skip the resync of the source folder and do it once at
+     * the end instead.
+     */
+    public void replaceExistingMessageSynchronous(final Account account,
+                                       final LocalFolder localFolder,
+                                       final Message originalMessage,
+                                       final MimeMessage replacementMessage,
+                                       final SyncUpdatedListener listener,
+                                       final boolean resyncFolder) {
+        replaceExistingMessagesSynchronous(account, localFolder, Collections.singletonList(originalMessage),
+                Collections.singletonList(replacementMessage), listener, resyncFolder);
+    }
+
+    /**
+     * Replaces several messages of the same folder at once. This is used for E3 message replacement.
+     * <p>
+     * The replacements are uploaded together, and the originals are moved to the trash folder, flagged as deleted and
+     * expunged with one command each, no matter how many messages there are.
+     *
+     * @param originalMessages The messages to be replaced. They all have to be in the same folder.
+     * @param replacementMessages The replacements, in the same order as {@code originalMessages}.
+     * @param resyncFolder Whether to resync the source folder afterwards.
+     * @return The local copies of the replacement messages.
+     * @throws E3ReplacementException if a step of the replacement failed.
+     */
+    public List<LocalMessage> replaceExistingMessagesSynchronous(final Account account,
+                                       final LocalFolder localFolder,
+                                       final List<? extends Message> originalMessages,
+                                       final List<MimeMessage> replacementMessages,
+                                       final SyncUpdatedListener listener,
+                                       final boolean resyncFolder) {
+        if (originalMessages.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final String srcFolder = originalMessages.get(0).getFolder().getName();
         final String trashFolder = account.getTrashFolder();
         Backend backend = getBackend(account);
 
-        final LocalMessage localMessage;
+        final List<LocalMessage> localMessages;
         try {
-            localMessage = synchronizeReplacementMessageLocally(localFolder, replacementMessage);
-            localMessage.setFlag(Flag.E3, true);
-            listener.updateWithNewMessage(localMessage);
+            localMessages = synchronizeReplacementMessagesLocally(localFolder, replacementMessages);
+            for (LocalMessage localMessage : localMessages) {
+                localMessage.setFlag(Flag.E3, true);
+                listener.updateWithNewMessage(localMessage);
+            }
         } catch (MessagingException e) {
-            throw new RuntimeException("Failed to store replacement message locally", e);
+            throw new E3ReplacementException("Failed to store replacement messages locally", e, false);
         }
 
+        boolean uploaded = false;
         try {
-            final List<LocalMessage> localMessageList = Collections.singletonList(localMessage);
             final FetchProfile fp = new FetchProfile();
             fp.add(FetchProfile.Item.ENVELOPE);
             fp.add(FetchProfile.Item.BODY);
-            localFolder.fetch(localMessageList, fp, null);
-            backend.uploadMessage(srcFolder, localMessage);
+            localFolder.fetch(localMessages, fp, null);
+            Map<String, String> uploadedUids = backend.uploadMessages(srcFolder, localMessages);
+            uploaded = true;
+
+            // Keeps the local copies from being replaced by a download of the uploaded messages on the next sync
+            if (uploadedUids != null) {
+                for (LocalMessage localMessage : localMessages) {
+                    if (uploadedUids.containsValue(localMessage.getUid())) {
+                        localFolder.changeUid(localMessage);
+                    }
+                }
+            }
         }  catch (final MessagingException e) {
-            throw new RuntimeException("Failed to append replacement message", e);
+            throw new E3ReplacementException("Failed to append replacement messages", e, uploaded);
         }
 
         try {
-            final List<String> uid = Collections.singletonList(originalMessage.getUid());
-            final Map<String, String> newUids = backend.moveMessages(srcFolder, trashFolder, uid);
+            final List<String> uids = new ArrayList<>(originalMessages.size());
+            for (Message originalMessage : originalMessages) {
+                uids.add(originalMessage.getUid());
+            }
+            final Map<String, String> newUids = backend.moveMessages(srcFolder, trashFolder, uids);
 
-            if (newUids != null) {
-                for (String k : newUids.keySet()) {
-                    final String newUid = newUids.get(k);
-                    backend.setFlag(trashFolder, Collections.singletonList(newUid), Flag.DELETED, true);
-                }
+            // Without the UIDs in the trash folder there's nothing we could flag or expunge
+            if (newUids != null && !newUids.isEmpty()) {
+                final List<String> trashUids = new ArrayList<>(newUids.values());
+                backend.setFlag(trashFolder, trashUids, Flag.DELETED, true);
+
+                Timber.i("replaceExistingMessages expunging %d messages in folder %s:%s", trashUids.size(),
+                        account.getDescription(), trashFolder);
+                backend.expungeMessages(trashFolder, trashUids);
             }
-            Timber.i("replaceExistingMessage expunging folder %s:%s", account.getDescription(), account.getTrashFolder());
-            backend.expungeMessages(account.getTrashFolder(), uid);
         } catch (MessagingException e) {
-            throw new RuntimeException("Failed to delete remote plaintext email", e);
+            throw new E3ReplacementException("Failed to delete remote plaintext emails", e, true);
+        }
+
+        if (resyncFolder) {
+            Timber.i("replaceExistingMessages syncing folder %s:%s", account.getDescription(), srcFolder);
+            syncFolder(account, srcFolder, null, null, backend);
         }
 
-        Timber.i("replaceExistingMessage syncing folder %s:%s", account.getDescription(), srcFolder);
-        syncFolder(account, srcFolder, null, null, backend);
+        return localMessages;
     }
 
-    private LocalMessage synchronizeReplacementMessageLocally(final LocalFolder localFolder,
-                                                              final MimeMessage encryptedMessage) throws MessagingException {
-        localFolder.appendMessages(Collections.singletonList(encryptedMessage));
+    private List<LocalMessage> synchronizeReplacementMessagesLocally(final LocalFolder localFolder,
+            final List<MimeMessage> encryptedMessages) throws MessagingException {
+        localFolder.appendMessages(encryptedMessages);
 
-        final LocalMessage localMessage = localFolder.getMessage(encryptedMessage.getUid());
-        localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true);
+        final List<LocalMessage> localMessages = new ArrayList<>(encryptedMessages.size());
+        for (MimeMessage encryptedMessage : encryptedMessages) {
+            final LocalMessage localMessage = localFolder.getMessage(encryptedMessage.getUid());
+            localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true);
+            localMessages.add(localMessage);
+        }
 
-        return localMessage;
+        return localMessages;
     }
 
     private boolean modeMismatch(Account.FolderMode aMode, Folder.FolderClass fMode) {
@@ -2922,28 +3083,6 @@ public class MessagingController {
                 fMode == Folder.FolderClass.SECOND_CLASS);
     }
 
-    private static AtomicInteger sequencing = new AtomicInteger(0);
-
-    private static class Command implements Comparable<Command> {
-        public Runnable runnable;
-        public MessagingListener listener;
-        public String description;
-        boolean isForegroundPriority;
-
-        int sequence = sequencing.getAndIncrement();
-
-        @Override
-        public int compareTo(@NonNull Command other) {
-            if (other.isForegroundPriority && !isForegroundPriority) {
-                return 1;
-            } else if (!other.isForegroundPriority && isForegroundPriority) {
-                return -1;
-            } else {
-                return (sequence - other.sequence);
-            }
-        }
-    }
-
     public MessagingListener getCheckMailListener() {
         return checkMailListener;
     }
@@ -2976,6 +3115,12 @@ public class MessagingController {
         return pushers.values();
     }
 
+    @Nullable
+    public PushStatistics getPushStatistics(Account account) {
+        Pusher pusher = pushers.get(account);
+        return pusher != null ? pusher.getPushStatistics() : null;
+    }
+
     public boolean setupPushing(final Account account) {
         try {
             Pusher previousPusher = pushers.remove(account);
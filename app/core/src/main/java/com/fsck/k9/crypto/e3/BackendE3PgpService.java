@@ -1,9 +1,22 @@
 package com.fsck.k9.crypto.e3;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import android.content.Context;
 import androidx.annotation.NonNull;
 
 import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.backend.api.E3EncryptPipeline;
 import com.fsck.k9.backend.api.EncryptSyncListener;
 import com.fsck.k9.backend.api.SyncUpdatedListener;
 import com.fsck.k9.controller.MessagingController;
@@ -12,86 +25,326 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mailstore.LocalFolder;
+import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.mailstore.LocalStore;
 
 import org.openintents.openpgp.IOpenPgpService2;
 import org.openintents.openpgp.util.OpenPgpApi;
-import org.openintents.openpgp.util.OpenPgpServiceConnection;
-import org.openintents.openpgp.util.OpenPgpServiceConnection.OnBound;
 
 import timber.log.Timber;
 
 /**
+ * Encrypts messages on receipt for a single account.
+ * <p>
+ * Instances are long-lived (see {@link MessagingController}) and share one {@link E3OpenPgpSession} across all
+ * messages. Parallelism and backpressure are provided by the {@link E3EncryptPipeline} that drives the two stages.
+ * Encrypted messages are collected per folder and replaced in batches, so the server sees one upload, one move and
+ * one expunge per batch instead of per message. Replacements that fail before reaching the server are tried again a
+ * few times; after that the folder is resynchronized.
+ * <p>
+ * The folder is resynchronized at most once per sync, in {@link #replacementsFinished(String)}, and only if it is
+ * needed: when a replacement was given up on, or when the server didn't report the UID of an uploaded replacement
+ * so it is still known by a local UID.
+ * <p>
+ * Before a message is encrypted its words are added to the account's {@link E3SearchIndex}, so it can still be found
+ * by a full text search afterwards.
+ * <p>
  * TODO: E3 refactor this and its use in ImapSync.
  */
 public class BackendE3PgpService implements EncryptSyncListener<Message> {
+    private static final long SESSION_IDLE_TIMEOUT_MILLIS = 60 * 1000L;
+    private static final int REPLACEMENT_BATCH_SIZE = 50;
+    private static final int MAX_REPLACEMENT_ATTEMPTS = 3;
 
     private final Context context;
     private final Account account;
     private final String cryptoProvider;
     private final Long keyId;
+    private final E3OpenPgpSession session;
+    private final Map<String, List<PendingReplacement>> pendingReplacements = new HashMap<>();
+    // Replacements per folder that were completed since the last call to replacementsFinished()
+    private final Map<String, Integer> completedReplacements = new HashMap<>();
+    // Folders with replacements that are still known by a local UID because the server didn't report the new UID
+    private final Set<String> foldersNeedingResync = Collections.synchronizedSet(new HashSet<String>());
+    // The encryptor modifies the message it is given, so search tokens are looked up by identity
+    private final Map<Message, Set<String>> searchTokens =
+            Collections.synchronizedMap(new IdentityHashMap<Message, Set<String>>());
 
     public BackendE3PgpService(final Context context, final Account account, final String cryptoProvider, final Long keyId) {
         this.context = context;
         this.account = account;
         this.cryptoProvider = cryptoProvider;
         this.keyId = keyId;
+        this.session = new E3OpenPgpSession(context, cryptoProvider, SESSION_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Returns {@code true} if this instance was created for the given crypto configuration.
+     */
+    public boolean isConfiguredFor(final String cryptoProvider, final Long keyId) {
+        return equalsOrBothNull(this.cryptoProvider, cryptoProvider) && equalsOrBothNull(this.keyId, keyId);
+    }
+
+    /**
+     * Releases the service binding.
+     */
+    public void shutdown() {
+        session.close();
     }
 
+    @NonNull
     @Override
-    public void asyncEncryptSync(final Message message, @NonNull final SyncUpdatedListener listener) {
+    public Message encryptSync(@NonNull final Message message) throws MessagingException {
         final String[] accountEmail = new String[]{account.getIdentity(0).getEmail()};
-        final OpenPgpServiceConnection serviceConnection = new OpenPgpServiceConnection(context, cryptoProvider, new OnBound() {
-            @Override
-            public void onBound(IOpenPgpService2 service) {
-                final LocalFolder localFolder;
-                try {
-                    final LocalStore localStore = account.getLocalStore();
-                    localFolder = localStore.getFolder(message.getFolder().getName());
-                    localFolder.open(Folder.OPEN_MODE_RW);
-                } catch (MessagingException e) {
-                    throw new RuntimeException("Failed to open local folder!", e);
-                }
+        final Set<String> tokens = createSearchTokens(message);
+
+        final IOpenPgpService2 service = session.acquire();
+        try {
+            final OpenPgpApi openPgpApi = new OpenPgpApi(context, service);
+            final SimpleE3PgpEncryptor encryptor = new SimpleE3PgpEncryptor(openPgpApi, keyId);
+
+            final MimeMessage encryptedMimeMessage = encryptor.encrypt((MimeMessage) message, accountEmail);
+            encryptedMimeMessage.setHeader(E3Constants.MIME_E3_ENCRYPTED_HEADER, accountEmail[0]);
 
-                final OpenPgpApi openPgpApi = new OpenPgpApi(context, service);
-                final SimpleE3PgpEncryptor encryptor = new SimpleE3PgpEncryptor(openPgpApi, keyId);
-
-                // Thread needed to prevent this from running on the UI thread
-                final Thread encryptThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            String emailToken = null;
-                            if (message.getHeaderNames().contains(E3Constants.MIME_STUDY_EMAIL_TOKEN)) {
-                                emailToken = message.getHeader(E3Constants.MIME_STUDY_EMAIL_TOKEN)[0];
-                            }
-                            final MimeMessage encryptedMimeMessage = encryptor.encrypt((MimeMessage) message, accountEmail);
-                            encryptedMimeMessage.setHeader(E3Constants.MIME_E3_ENCRYPTED_HEADER, accountEmail[0]);
-
-                            MessagingController.getInstance(context).replaceExistingMessage(account, localFolder, message, encryptedMimeMessage, listener);
-
-                            // Record that we encrypted this email for the email study
-                            if (emailToken != null) {
-                                final EmailStudyHelper helper = new EmailStudyHelper();
-                                final String hostname = message.getHeader(E3Constants.MIME_STUDY_HOSTNAME)[0];
-
-                                helper.apiGetRecordEncryptAsync(hostname, account.getEmail(), emailToken);
-                            }
-                        } catch (MessagingException e) {
-                            throw new RuntimeException("Failed to encrypt on receipt!", e);
-                        }
+            searchTokens.put(encryptedMimeMessage, tokens);
+            return encryptedMimeMessage;
+        } finally {
+            session.release();
+        }
+    }
+
+    @Override
+    public void storeSync(@NonNull final Message originalMessage, @NonNull final Message encryptedMessage,
+            @NonNull final SyncUpdatedListener listener) throws MessagingException {
+        // Removed first, so the tokens don't stay behind if anything below fails
+        final Set<String> tokens = searchTokens.remove(encryptedMessage);
+        final String folderServerId = originalMessage.getFolder().getName();
+
+        final List<PendingReplacement> fullBatch;
+        synchronized (pendingReplacements) {
+            List<PendingReplacement> batch = pendingReplacements.get(folderServerId);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                pendingReplacements.put(folderServerId, batch);
+            }
+            batch.add(new PendingReplacement(originalMessage, (MimeMessage) encryptedMessage, tokens, listener));
+
+            fullBatch = batch.size() >= REPLACEMENT_BATCH_SIZE ? pendingReplacements.remove(folderServerId) : null;
+        }
+
+        if (fullBatch != null) {
+            final List<PendingReplacement> retries = storeReplacements(folderServerId, fullBatch);
+            if (!retries.isEmpty()) {
+                // Tried again with the next batch of this folder, or at the latest in replacementsFinished()
+                synchronized (pendingReplacements) {
+                    List<PendingReplacement> batch = pendingReplacements.get(folderServerId);
+                    if (batch != null) {
+                        retries.addAll(batch);
                     }
-                });
+                    pendingReplacements.put(folderServerId, retries);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void encryptionDiscarded(@NonNull final Message encryptedMessage) {
+        searchTokens.remove(encryptedMessage);
+    }
+
+    @Override
+    public int replacementsFinished(@NonNull final String folderServerId) {
+        List<PendingReplacement> batch;
+        synchronized (pendingReplacements) {
+            batch = pendingReplacements.remove(folderServerId);
+        }
+
+        // Every failed attempt counts against the replacements, so this ends after MAX_REPLACEMENT_ATTEMPTS rounds
+        while (batch != null && !batch.isEmpty()) {
+            batch = storeReplacements(folderServerId, batch);
+        }
 
-                encryptThread.start();
+        final int replacedCount;
+        synchronized (completedReplacements) {
+            final Integer count = completedReplacements.remove(folderServerId);
+            replacedCount = count != null ? count : 0;
+        }
+
+        Timber.d("E3 replaced %d messages in %s:%s", replacedCount, account.getDescription(), folderServerId);
+
+        if (foldersNeedingResync.remove(folderServerId)) {
+            Timber.d("E3 scheduling resync of %s:%s to pick up the UIDs of uploaded replacements",
+                    account.getDescription(), folderServerId);
+            MessagingController.getInstance(context).synchronizeMailbox(account, folderServerId, null, null);
+        }
+
+        return replacedCount;
+    }
+
+    /**
+     * Replaces a batch of messages with one upload, one move and one expunge. If the server didn't report the UIDs of
+     * the uploaded replacements, the folder is marked for a resync in {@link #replacementsFinished(String)}.
+     *
+     * @return The replacements that failed and should be tried again.
+     */
+    private List<PendingReplacement> storeReplacements(final String folderServerId,
+            final List<PendingReplacement> batch) {
+        final LocalFolder localFolder;
+        try {
+            final LocalStore localStore = account.getLocalStore();
+            localFolder = localStore.getFolder(folderServerId);
+            localFolder.open(Folder.OPEN_MODE_RW);
+        } catch (MessagingException e) {
+            Timber.e(e, "E3 failed to open %s:%s to store %d replacements", account.getDescription(),
+                    folderServerId, batch.size());
+            return replacementsFailed(folderServerId, batch, true);
+        }
+
+        // All messages of a sync share a listener, so this is usually a single call
+        final Map<SyncUpdatedListener, List<PendingReplacement>> batchesByListener = new LinkedHashMap<>();
+        for (PendingReplacement replacement : batch) {
+            List<PendingReplacement> listenerBatch = batchesByListener.get(replacement.listener);
+            if (listenerBatch == null) {
+                listenerBatch = new ArrayList<>();
+                batchesByListener.put(replacement.listener, listenerBatch);
             }
+            listenerBatch.add(replacement);
+        }
 
-            @Override
-            public void onError(Exception e) {
-                Timber.e(e, "Got error while binding to OpenPGP service");
+        final List<PendingReplacement> retries = new ArrayList<>();
+        for (Map.Entry<SyncUpdatedListener, List<PendingReplacement>> entry : batchesByListener.entrySet()) {
+            final List<PendingReplacement> listenerBatch = entry.getValue();
+            final List<Message> originalMessages = new ArrayList<>(listenerBatch.size());
+            final List<MimeMessage> encryptedMessages = new ArrayList<>(listenerBatch.size());
+            for (PendingReplacement replacement : listenerBatch) {
+                originalMessages.add(replacement.originalMessage);
+                encryptedMessages.add(replacement.encryptedMessage);
             }
-        });
 
-        serviceConnection.bindToService();
+            final List<LocalMessage> localMessages;
+            try {
+                localMessages = MessagingController.getInstance(context)
+                        .replaceExistingMessagesSynchronous(account, localFolder, originalMessages,
+                                encryptedMessages, entry.getKey(), false);
+            } catch (RuntimeException e) {
+                Timber.e(e, "E3 failed to replace %d messages in %s:%s", listenerBatch.size(),
+                        account.getDescription(), folderServerId);
+
+                // Once the replacements were uploaded, trying again would leave duplicates on the server
+                final boolean retryable = !(e instanceof E3ReplacementException) ||
+                        !((E3ReplacementException) e).isUploaded();
+                retries.addAll(replacementsFailed(folderServerId, listenerBatch, retryable));
+                continue;
+            }
+            storeSearchTokens(localFolder, listenerBatch, localMessages);
+            addCompletedReplacements(folderServerId, localMessages.size());
+
+            markForResyncIfUidsMissing(folderServerId, localMessages);
+
+            for (Message originalMessage : originalMessages) {
+                recordStudyEncryption(originalMessage);
+            }
+        }
+
+        return retries;
+    }
+
+    private void markForResyncIfUidsMissing(final String folderServerId, final List<LocalMessage> localMessages) {
+        for (LocalMessage localMessage : localMessages) {
+            if (localMessage.getUid().startsWith(K9.LOCAL_UID_PREFIX)) {
+                foldersNeedingResync.add(folderServerId);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts a failed attempt against each of the replacements.
+     *
+     * @return The replacements that should be tried again. The others are given up on, and the folder is marked for a
+     *         resync so the local state matches what actually happened on the server.
+     */
+    private List<PendingReplacement> replacementsFailed(final String folderServerId,
+            final List<PendingReplacement> replacements, final boolean retryable) {
+        final List<PendingReplacement> retries = new ArrayList<>();
+        for (PendingReplacement replacement : replacements) {
+            replacement.attempts++;
+            if (retryable && replacement.attempts < MAX_REPLACEMENT_ATTEMPTS) {
+                retries.add(replacement);
+            } else {
+                Timber.w("E3 giving up on replacing message %s in %s:%s after %d attempts",
+                        replacement.originalMessage.getUid(), account.getDescription(), folderServerId,
+                        replacement.attempts);
+                foldersNeedingResync.add(folderServerId);
+            }
+        }
+
+        return retries;
+    }
+
+    private void addCompletedReplacements(final String folderServerId, final int count) {
+        synchronized (completedReplacements) {
+            final Integer previousCount = completedReplacements.get(folderServerId);
+            completedReplacements.put(folderServerId, previousCount != null ? previousCount + count : count);
+        }
+    }
+
+    private Set<String> createSearchTokens(final Message message) throws MessagingException {
+        final E3SearchIndex searchIndex = E3SearchIndex.getOrCreate(account, Preferences.getPreferences(context));
+        final String fulltext = account.getLocalStore().getMessageFulltextCreator().createFulltext(message);
+        return searchIndex.createTokens(fulltext);
+    }
+
+    /**
+     * Stores the search tokens of the replacements. {@code localMessages} is in the same order as {@code batch}.
+     */
+    private void storeSearchTokens(final LocalFolder localFolder, final List<PendingReplacement> batch,
+            final List<LocalMessage> localMessages) {
+        final Map<LocalMessage, Set<String>> tokensByMessage = new HashMap<>();
+        for (int i = 0; i < localMessages.size(); i++) {
+            final Set<String> tokens = batch.get(i).searchTokens;
+            if (tokens != null) {
+                tokensByMessage.put(localMessages.get(i), tokens);
+            }
+        }
+
+        try {
+            localFolder.setE3SearchTokens(tokensByMessage);
+        } catch (MessagingException e) {
+            Timber.e(e, "E3 failed to store search tokens of %d messages", tokensByMessage.size());
+        }
+    }
+
+    private void recordStudyEncryption(final Message originalMessage) {
+        // Record that we encrypted this email for the email study
+        if (originalMessage.getHeaderNames().contains(E3Constants.MIME_STUDY_EMAIL_TOKEN)) {
+            final String emailToken = originalMessage.getHeader(E3Constants.MIME_STUDY_EMAIL_TOKEN)[0];
+            final String hostname = originalMessage.getHeader(E3Constants.MIME_STUDY_HOSTNAME)[0];
+
+            final EmailStudyHelper helper = new EmailStudyHelper();
+            helper.apiGetRecordEncryptAsync(hostname, account.getEmail(), emailToken);
+        }
+    }
+
+    private static boolean equalsOrBothNull(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+
+    private static class PendingReplacement {
+        final Message originalMessage;
+        final MimeMessage encryptedMessage;
+        final Set<String> searchTokens;
+        final SyncUpdatedListener listener;
+        int attempts;
+
+
+        PendingReplacement(Message originalMessage, MimeMessage encryptedMessage, Set<String> searchTokens,
+                SyncUpdatedListener listener) {
+            this.originalMessage = originalMessage;
+            this.encryptedMessage = encryptedMessage;
+            this.searchTokens = searchTokens;
+            this.listener = listener;
+        }
     }
 }
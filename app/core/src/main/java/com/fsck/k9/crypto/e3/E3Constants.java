@@ -29,6 +29,17 @@ public final class E3Constants {
     public static final String E3_KEY_DIGEST_DELIMITER = ",";
     public static final long E3_VERIFICATION_ALLOWED_AGE_MS = 1200L; //120000L;
 
+    // Encrypt-on-receipt pipeline: worker threads per stage and the maximum number of messages in flight
+    public static final int E3_ENCRYPT_PARALLELISM = 2;
+    public static final int E3_STORE_PARALLELISM = 1;
+    public static final int E3_PIPELINE_CAPACITY = 8;
+
+    // Undo: emails per chained WorkManager job and concurrent decryptions within a job
+    public static final int E3_UNDO_BATCH_SIZE = 100;
+    public static final int E3_UNDO_PARALLELISM = 3;
+    // Undo: runs of a batch before emails that still couldn't be restored are reported as failed
+    public static final int E3_UNDO_MAX_ATTEMPTS = 3;
+
     // TODO: E3 make these strings usable by the Notification classes
     // <string name="e3_key_notification_title">New E3 device detected</string>
     // <string name="e3_key_notification_text">Press to verify your new device.</string>
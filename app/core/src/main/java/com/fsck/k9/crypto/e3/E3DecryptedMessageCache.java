@@ -0,0 +1,357 @@
+package com.fsck.k9.crypto.e3;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.fsck.k9.mailstore.AttachmentViewInfo;
+import com.fsck.k9.mailstore.LocalFolder;
+import com.fsck.k9.mailstore.LocalMessage;
+import com.fsck.k9.mailstore.MessageViewInfo;
+import timber.log.Timber;
+
+
+/**
+ * Keeps the {@link MessageViewInfo} of recently viewed E3 messages, so opening them again doesn't need another round
+ * trip to the OpenPGP provider.
+ * <p>
+ * Entries are keyed by the account, the message's database ID, its root part and the key that decrypted it. Database
+ * IDs are only unique within an account's database and may be reused once a message is gone, so {@link LocalFolder}
+ * invalidates the entry of a message whenever its parts are deleted, i.e. when the message is destroyed or replaced.
+ * The cache is limited both by the size of the decrypted text kept in memory and by the size of the decrypted
+ * attachments it keeps alive in the decrypted file cache. Least recently used entries are evicted first.
+ * <p>
+ * Plaintext shouldn't stay around longer than necessary. Entries expire when they haven't been used for a while, and
+ * are wiped on the main thread once they have expired even if the cache isn't touched again. Entries of a key are
+ * removed when that key is deleted, and the whole cache is cleared when the screen is turned off.
+ */
+public class E3DecryptedMessageCache {
+    private static final int MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_ENTRIES = 50;
+    @VisibleForTesting
+    static final long ENTRY_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private static final E3DecryptedMessageCache INSTANCE = new E3DecryptedMessageCache();
+
+
+    private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable expiryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onExpiryDue();
+        }
+    };
+    private boolean expiryScheduled = false;
+    private long memoryBytes = 0;
+    private long diskBytes = 0;
+    private ScreenOffReceiver screenOffReceiver;
+
+
+    public static E3DecryptedMessageCache getInstance() {
+        return INSTANCE;
+    }
+
+    E3DecryptedMessageCache() {
+    }
+
+    /**
+     * Returns the cached {@link MessageViewInfo} for a message, or {@code null} if there is none.
+     *
+     * @param message
+     *         The message as it was just loaded from the database. The returned {@code MessageViewInfo} refers to this
+     *         instance, so it reflects the current flags.
+     */
+    @Nullable
+    public synchronized MessageViewInfo get(LocalMessage message, Long keyId) {
+        CacheKey key = CacheKey.of(message, keyId);
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - entry.lastAccess > ENTRY_TIMEOUT_MILLIS) {
+            remove(key);
+            return null;
+        }
+        entry.lastAccess = now;
+
+        MessageViewInfo info = entry.messageViewInfo;
+        return new MessageViewInfo(message, info.isMessageIncomplete, info.rootPart, info.subject,
+                info.isSubjectEncrypted, info.text, info.attachments, info.cryptoResultAnnotation,
+                info.attachmentResolver, info.extraText, info.extraAttachments);
+    }
+
+    public synchronized void put(Context context, LocalMessage message, Long keyId, MessageViewInfo messageViewInfo) {
+        CacheEntry entry = new CacheEntry(messageViewInfo);
+        if (entry.memoryBytes > MAX_MEMORY_BYTES || entry.diskBytes > MAX_DISK_BYTES) {
+            return;
+        }
+
+        CacheKey key = CacheKey.of(message, keyId);
+        remove(key);
+
+        entries.put(key, entry);
+        memoryBytes += entry.memoryBytes;
+        diskBytes += entry.diskBytes;
+
+        removeExpiredEntries();
+        trimToSize();
+        scheduleExpiry();
+        registerScreenOffReceiver(context.getApplicationContext());
+    }
+
+    /**
+     * Removes all messages decrypted with the given key.
+     */
+    public synchronized void invalidateKey(long keyId) {
+        Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<CacheKey, CacheEntry> mapEntry = iterator.next();
+            Long entryKeyId = mapEntry.getKey().keyId;
+            if (entryKeyId != null && entryKeyId == keyId) {
+                removeEntry(iterator, mapEntry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the message stored with the given root part, no matter which key decrypted it.
+     */
+    public synchronized void invalidateMessage(String accountUuid, long messagePartId) {
+        Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<CacheKey, CacheEntry> mapEntry = iterator.next();
+            CacheKey key = mapEntry.getKey();
+            if (key.messagePartId == messagePartId && key.accountUuid.equals(accountUuid)) {
+                removeEntry(iterator, mapEntry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes all messages of an account.
+     */
+    public synchronized void invalidateAccount(String accountUuid) {
+        Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<CacheKey, CacheEntry> mapEntry = iterator.next();
+            if (mapEntry.getKey().accountUuid.equals(accountUuid)) {
+                removeEntry(iterator, mapEntry.getValue());
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        memoryBytes = 0;
+        diskBytes = 0;
+
+        handler.removeCallbacks(expiryRunnable);
+        expiryScheduled = false;
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(CacheKey key) {
+        CacheEntry entry = entries.remove(key);
+        if (entry != null) {
+            memoryBytes -= entry.memoryBytes;
+            diskBytes -= entry.diskBytes;
+        }
+    }
+
+    private void removeEntry(Iterator<?> iterator, CacheEntry entry) {
+        iterator.remove();
+        memoryBytes -= entry.memoryBytes;
+        diskBytes -= entry.diskBytes;
+    }
+
+    private void removeExpiredEntries() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            if (now - entry.lastAccess > ENTRY_TIMEOUT_MILLIS) {
+                removeEntry(iterator, entry);
+            }
+        }
+    }
+
+    /**
+     * Schedules a wipe for when the least recently used entry expires. Entries used in the meantime are checked again
+     * when the wipe runs, which then schedules itself for the next entry to expire.
+     */
+    private void scheduleExpiry() {
+        if (expiryScheduled || entries.isEmpty()) {
+            return;
+        }
+
+        CacheEntry oldestEntry = entries.values().iterator().next();
+        long delay = oldestEntry.lastAccess + ENTRY_TIMEOUT_MILLIS - SystemClock.elapsedRealtime() + 1;
+        handler.postDelayed(expiryRunnable, Math.max(delay, 0));
+        expiryScheduled = true;
+    }
+
+    private synchronized void onExpiryDue() {
+        expiryScheduled = false;
+        removeExpiredEntries();
+        scheduleExpiry();
+    }
+
+    private void trimToSize() {
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext() &&
+                (entries.size() > MAX_ENTRIES || memoryBytes > MAX_MEMORY_BYTES || diskBytes > MAX_DISK_BYTES)) {
+            removeEntry(iterator, iterator.next());
+        }
+    }
+
+    private void registerScreenOffReceiver(Context context) {
+        if (screenOffReceiver != null) {
+            return;
+        }
+
+        Timber.d("Registering E3 decrypted message cache receiver");
+        screenOffReceiver = new ScreenOffReceiver();
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(screenOffReceiver, intentFilter);
+    }
+
+    private synchronized void onScreenOff(Context context) {
+        Timber.d("Clearing E3 decrypted message cache");
+        clear();
+
+        if (screenOffReceiver != null) {
+            context.getApplicationContext().unregisterReceiver(screenOffReceiver);
+            screenOffReceiver = null;
+        }
+    }
+
+
+    private static long estimateMemoryBytes(MessageViewInfo messageViewInfo) {
+        long chars = 0;
+        if (messageViewInfo.text != null) {
+            chars += messageViewInfo.text.length();
+        }
+        if (messageViewInfo.extraText != null) {
+            chars += messageViewInfo.extraText.length();
+        }
+        if (messageViewInfo.subject != null) {
+            chars += messageViewInfo.subject.length();
+        }
+
+        return chars * 2;
+    }
+
+    private static long estimateDiskBytes(MessageViewInfo messageViewInfo) {
+        return sumAttachmentSizes(messageViewInfo.attachments) + sumAttachmentSizes(messageViewInfo.extraAttachments);
+    }
+
+    private static long sumAttachmentSizes(List<AttachmentViewInfo> attachments) {
+        if (attachments == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (AttachmentViewInfo attachment : attachments) {
+            if (attachment.size != AttachmentViewInfo.UNKNOWN_SIZE) {
+                size += attachment.size;
+            }
+        }
+
+        return size;
+    }
+
+
+    private static class CacheKey {
+        final String accountUuid;
+        final long messageId;
+        final long messagePartId;
+        final Long keyId;
+
+
+        static CacheKey of(LocalMessage message, Long keyId) {
+            return new CacheKey(message.getAccount().getUuid(), message.getDatabaseId(), message.getMessagePartId(),
+                    keyId);
+        }
+
+        CacheKey(String accountUuid, long messageId, long messagePartId, Long keyId) {
+            this.accountUuid = accountUuid;
+            this.messageId = messageId;
+            this.messagePartId = messagePartId;
+            this.keyId = keyId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+
+            CacheKey other = (CacheKey) o;
+            return messageId == other.messageId && messagePartId == other.messagePartId &&
+                    accountUuid.equals(other.accountUuid) &&
+                    (keyId == null ? other.keyId == null : keyId.equals(other.keyId));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = accountUuid.hashCode();
+            result = 31 * result + (int) (messageId ^ (messageId >>> 32));
+            result = 31 * result + (int) (messagePartId ^ (messagePartId >>> 32));
+            result = 31 * result + (keyId != null ? keyId.hashCode() : 0);
+            return result;
+        }
+    }
+
+    private static class CacheEntry {
+        final MessageViewInfo messageViewInfo;
+        final long memoryBytes;
+        final long diskBytes;
+        long lastAccess;
+
+
+        CacheEntry(MessageViewInfo messageViewInfo) {
+            this.messageViewInfo = messageViewInfo;
+            this.memoryBytes = estimateMemoryBytes(messageViewInfo);
+            this.diskBytes = estimateDiskBytes(messageViewInfo);
+            this.lastAccess = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private class ScreenOffReceiver extends BroadcastReceiver {
+        @Override
+        @MainThread
+        public void onReceive(Context context, Intent intent) {
+            if (!Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                throw new IllegalArgumentException("onReceive called with action that isn't screen off!");
+            }
+
+            onScreenOff(context);
+        }
+    }
+}
@@ -32,7 +32,7 @@ class E3KeyScanner(private val context: Context) {
 
             search.isManualSearch = true
             search.addAccountUuid(account.uuid)
-            search.and(SearchSpecification.SearchCondition(SearchSpecification.SearchField.SENDER, SearchSpecification.Attribute.CONTAINS, address.address))
+            search.and(SearchSpecification.SearchCondition(SearchSpecification.SearchField.SENDER, SearchSpecification.Attribute.EQUALS, address.address))
             search.and(SearchSpecification.SearchCondition(SearchSpecification.SearchField.SUBJECT, SearchSpecification.Attribute.CONTAINS, "E3"))
             //search.and(SearchCondition(SearchField.MESSAGE_CONTENTS, Attribute.CONTAINS, "E3"))
 
@@ -0,0 +1,228 @@
+package com.fsck.k9.crypto.e3;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import androidx.annotation.WorkerThread;
+
+import com.fsck.k9.helper.NamedThreadFactory;
+import com.fsck.k9.mail.MessagingException;
+
+import org.openintents.openpgp.IOpenPgpService2;
+import org.openintents.openpgp.util.OpenPgpServiceConnection;
+import org.openintents.openpgp.util.OpenPgpServiceConnection.OnBound;
+
+import timber.log.Timber;
+
+/**
+ * A reference-counted binding to an OpenPGP provider.
+ * <p>
+ * The service is bound on the first {@link #acquire()} and kept bound while there are outstanding references. Once
+ * the last reference is released the binding is kept around for {@code idleTimeoutMillis} so that bursts of E3
+ * operations (e.g. encrypting every message of an initial sync) don't pay for a bind/unbind cycle per message.
+ */
+public class E3OpenPgpSession {
+    private static final long BIND_TIMEOUT_MILLIS = 30 * 1000L;
+
+    private static final ScheduledExecutorService idleScheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("E3OpenPgpSessionIdle"));
+
+    private final Context context;
+    private final String cryptoProvider;
+    private final long idleTimeoutMillis;
+
+    private OpenPgpServiceConnection serviceConnection;
+    private ScheduledFuture<?> pendingUnbind;
+    private int refCount = 0;
+    private boolean binding = false;
+    private boolean closed = false;
+
+
+    public E3OpenPgpSession(Context context, String cryptoProvider, long idleTimeoutMillis) {
+        this.context = context.getApplicationContext();
+        this.cryptoProvider = cryptoProvider;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Returns a bound service, binding to the provider first if necessary. Every successful call must be paired with
+     * a call to {@link #release()}.
+     * <p>
+     * The bind happens outside of this object's monitor, so {@link #release()} and {@link #close()} don't have to wait
+     * for it. Concurrent callers wait for the bind that is already in progress.
+     * <p>
+     * Must not be called on the main thread since the binding callback is delivered there.
+     *
+     * @throws MessagingException
+     *         if binding fails or the session has been closed.
+     */
+    @WorkerThread
+    public IOpenPgpService2 acquire() throws MessagingException {
+        synchronized (this) {
+            checkNotClosed();
+            cancelPendingUnbind();
+
+            while (binding) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("Interrupted while waiting for OpenPGP service binding", e);
+                }
+                checkNotClosed();
+            }
+
+            if (serviceConnection != null && serviceConnection.isBound()) {
+                return acquireService();
+            }
+
+            binding = true;
+        }
+
+        OpenPgpServiceConnection connection = null;
+        try {
+            connection = bindSynchronous();
+        } finally {
+            synchronized (this) {
+                binding = false;
+                notifyAll();
+
+                if (connection != null && closed) {
+                    unbind(connection);
+                    connection = null;
+                } else if (connection != null) {
+                    serviceConnection = connection;
+                }
+            }
+        }
+
+        synchronized (this) {
+            checkNotClosed();
+            return acquireService();
+        }
+    }
+
+    public synchronized void release() {
+        if (closed) {
+            return;
+        }
+
+        if (refCount == 0) {
+            Timber.w("E3OpenPgpSession.release() called without matching acquire()");
+            return;
+        }
+
+        refCount--;
+        if (refCount == 0) {
+            scheduleUnbind();
+        }
+    }
+
+    /**
+     * Unbinds immediately, regardless of outstanding references. Used when the account configuration changes.
+     * <p>
+     * Afterwards {@link #acquire()} fails, so work that is still queued for this session reports an error instead of
+     * silently binding again.
+     */
+    public synchronized void close() {
+        closed = true;
+        cancelPendingUnbind();
+        if (serviceConnection != null) {
+            unbind(serviceConnection);
+            serviceConnection = null;
+        }
+        refCount = 0;
+        notifyAll();
+    }
+
+    private IOpenPgpService2 acquireService() throws MessagingException {
+        IOpenPgpService2 service = serviceConnection != null ? serviceConnection.getService() : null;
+        if (service == null) {
+            if (refCount == 0) {
+                scheduleUnbind();
+            }
+            throw new MessagingException("OpenPGP service disconnected while acquiring session");
+        }
+
+        refCount++;
+        return service;
+    }
+
+    private void checkNotClosed() throws MessagingException {
+        if (closed) {
+            throw new MessagingException("OpenPGP session for " + cryptoProvider + " has been closed");
+        }
+    }
+
+    private OpenPgpServiceConnection bindSynchronous() throws MessagingException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Exception[] bindError = new Exception[1];
+
+        OpenPgpServiceConnection connection = new OpenPgpServiceConnection(context, cryptoProvider, new OnBound() {
+            @Override
+            public void onBound(IOpenPgpService2 service) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                bindError[0] = e;
+                latch.countDown();
+            }
+        });
+
+        Timber.d("E3OpenPgpSession binding to %s", cryptoProvider);
+        connection.bindToService();
+
+        try {
+            if (!latch.await(BIND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("Timed out while binding to OpenPGP service " + cryptoProvider);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while binding to OpenPGP service", e);
+        }
+
+        if (bindError[0] != null) {
+            throw new MessagingException("Failed to bind to OpenPGP service " + cryptoProvider, bindError[0]);
+        }
+
+        return connection;
+    }
+
+    private void scheduleUnbind() {
+        cancelPendingUnbind();
+        pendingUnbind = idleScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (E3OpenPgpSession.this) {
+                    if (refCount == 0 && !binding && serviceConnection != null) {
+                        unbind(serviceConnection);
+                        serviceConnection = null;
+                    }
+                    pendingUnbind = null;
+                }
+            }
+        }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPendingUnbind() {
+        if (pendingUnbind != null) {
+            pendingUnbind.cancel(false);
+            pendingUnbind = null;
+        }
+    }
+
+    private void unbind(OpenPgpServiceConnection connection) {
+        Timber.d("E3OpenPgpSession unbinding from %s", cryptoProvider);
+        try {
+            connection.unbindFromService();
+        } catch (IllegalArgumentException e) {
+            Timber.w(e, "OpenPGP service was not bound");
+        }
+    }
+}
@@ -47,6 +47,7 @@ class E3PublicKeyManager(private val openPgpApi: OpenPgpApi) {
 
         if (resultCode == OpenPgpApi.RESULT_CODE_SUCCESS) {
             Timber.d("Successfully deleted E3 key from OpenKeychain $e3KeyIdName")
+            E3DecryptedMessageCache.getInstance().invalidateKey(e3KeyIdName.keyId)
             return true
         } else {
             Timber.d("Failed to delete E3 key from OpeKeychain: $resultCode")
@@ -0,0 +1,24 @@
+package com.fsck.k9.crypto.e3;
+
+
+/**
+ * Replacing messages with their encrypted versions failed.
+ * <p>
+ * {@link #isUploaded()} tells whether the replacements already reached the server. Only if they didn't can the
+ * replacement be retried without leaving duplicates behind.
+ */
+public class E3ReplacementException extends RuntimeException {
+    private static final long serialVersionUID = 4650123718237415093L;
+
+    private final boolean uploaded;
+
+
+    public E3ReplacementException(String detailMessage, Throwable throwable, boolean uploaded) {
+        super(detailMessage, throwable);
+        this.uploaded = uploaded;
+    }
+
+    public boolean isUploaded() {
+        return uploaded;
+    }
+}
@@ -0,0 +1,112 @@
+package com.fsck.k9.crypto.e3;
+
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.filter.Base64;
+import okio.ByteString;
+
+
+/**
+ * Search index for E3 encrypted messages.
+ * <p>
+ * Once a message has been encrypted there's no plaintext left for the full text search table. So before a message
+ * is encrypted, every word of its text is hashed with HMAC-SHA256 and stored in the {@code e3_search_tokens} table.
+ * Search terms are hashed the same way, which lets us find messages without decrypting them and without storing
+ * their plaintext.
+ * <p>
+ * The random key of the hash function is stored with the account settings, not in the message database, and is
+ * not exported.
+ */
+public class E3SearchIndex {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH_BYTES = 32;
+    private static final int TOKEN_LENGTH_BYTES = 16;
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 64;
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    private final byte[] key;
+
+
+    private E3SearchIndex(byte[] key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the search index of an account, or {@code null} if no message of the account has been indexed yet.
+     */
+    public static E3SearchIndex get(Account account) {
+        String encodedKey = account.getE3SearchIndexKey();
+        return encodedKey != null ? new E3SearchIndex(decodeKey(encodedKey)) : null;
+    }
+
+    /**
+     * Returns the search index of an account, creating its key if necessary.
+     */
+    public static E3SearchIndex getOrCreate(Account account, Preferences preferences) {
+        synchronized (account) {
+            String encodedKey = account.getE3SearchIndexKey();
+            if (encodedKey == null) {
+                byte[] key = new byte[KEY_LENGTH_BYTES];
+                new SecureRandom().nextBytes(key);
+
+                encodedKey = new String(Base64.encodeBase64(key), UTF_8);
+                account.setE3SearchIndexKey(encodedKey);
+                account.save(preferences);
+            }
+
+            return new E3SearchIndex(decodeKey(encodedKey));
+        }
+    }
+
+    /**
+     * Returns the hashed tokens of all words in {@code text}. Used for both message text and search terms.
+     */
+    public Set<String> createTokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+
+        Mac mac = createMac();
+        for (String word : WORD_SEPARATOR.split(text.toLowerCase(Locale.US))) {
+            int length = word.length();
+            if (length < MIN_WORD_LENGTH || length > MAX_WORD_LENGTH) {
+                continue;
+            }
+
+            byte[] hash = mac.doFinal(word.getBytes(UTF_8));
+            tokens.add(ByteString.of(hash, 0, TOKEN_LENGTH_BYTES).hex());
+        }
+
+        return tokens;
+    }
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 not available", e);
+        }
+    }
+
+    private static byte[] decodeKey(String encodedKey) {
+        return Base64.decodeBase64(encodedKey.getBytes(UTF_8));
+    }
+}
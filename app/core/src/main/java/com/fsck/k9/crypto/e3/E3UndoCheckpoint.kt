@@ -0,0 +1,60 @@
+package com.fsck.k9.crypto.e3
+
+import android.content.Context
+
+/**
+ * Remembers which message UIDs an E3 undo batch has already restored, so a batch that was killed and rescheduled by
+ * WorkManager resumes where it stopped instead of starting over.
+ *
+ * Checkpoints are kept per batch so the stored sets stay bounded by the batch size.
+ */
+class E3UndoCheckpoint(private val context: Context) {
+
+    @Synchronized
+    fun getCompletedUids(accountUuid: String, batchIndex: Int): Set<String> {
+        val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        return prefs.getStringSet(getKey(accountUuid, batchIndex), null)?.toSet() ?: emptySet()
+    }
+
+    @Synchronized
+    fun markCompleted(accountUuid: String, batchIndex: Int, uids: Collection<String>) {
+        if (uids.isEmpty()) return
+
+        val key = getKey(accountUuid, batchIndex)
+        val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        val completedUids = prefs.getStringSet(key, null)?.toMutableSet() ?: mutableSetOf()
+        completedUids.addAll(uids)
+
+        // commit() rather than apply(): the checkpoint is only useful if it's on disk when the process gets killed
+        prefs.edit().putStringSet(key, completedUids).commit()
+    }
+
+    @Synchronized
+    fun clearBatch(accountUuid: String, batchIndex: Int) {
+        val editor = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+        editor.remove(getKey(accountUuid, batchIndex))
+        editor.apply()
+    }
+
+    @Synchronized
+    fun clear(accountUuid: String) {
+        val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        val accountPrefix = PREF_PREFIX_KEY + accountUuid + "."
+
+        val editor = prefs.edit()
+        for (key in prefs.all.keys) {
+            if (key.startsWith(accountPrefix)) {
+                editor.remove(key)
+            }
+        }
+        editor.apply()
+    }
+
+    private fun getKey(accountUuid: String, batchIndex: Int) = "$PREF_PREFIX_KEY$accountUuid.$batchIndex"
+
+    companion object {
+        private const val PREFS_NAME = "e3_undo_checkpoint"
+
+        private const val PREF_PREFIX_KEY = "completed_uids."
+    }
+}
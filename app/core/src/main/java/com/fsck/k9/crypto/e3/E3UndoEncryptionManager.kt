@@ -1,7 +1,6 @@
 package com.fsck.k9.crypto.e3
 
 import android.content.Context
-import android.content.Intent
 import androidx.lifecycle.LiveData
 import androidx.work.*
 import com.fsck.k9.Account
@@ -11,26 +10,32 @@ import com.fsck.k9.backend.BackendManager
 import com.fsck.k9.backend.api.Backend
 import com.fsck.k9.backend.api.SyncUpdatedListener
 import com.fsck.k9.controller.MessagingController
+import com.fsck.k9.helper.NamedThreadFactory
 import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.MessageRetrievalListener
 import com.fsck.k9.mail.MessagingException
-import com.fsck.k9.mail.internet.MimeBodyPart
 import com.fsck.k9.mail.internet.MimeMessage
 import com.fsck.k9.mailstore.LocalFolder
 import com.fsck.k9.mailstore.LocalMessage
 import org.openintents.openpgp.IOpenPgpService2
 import org.openintents.openpgp.util.OpenPgpApi
-import org.openintents.openpgp.util.OpenPgpServiceConnection
 import timber.log.Timber
 import java.lang.Exception
-import java.util.concurrent.ArrayBlockingQueue
-import java.util.concurrent.BlockingQueue
-import java.util.concurrent.CountDownLatch
+import java.util.Collections
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 
 class E3UndoEncryptionManager private constructor() {
 
-    fun startUndo(account: Account, cryptoProvider: String, e3EncryptedMessageIds: List<String>): Operation? {
+    @JvmOverloads
+    fun startUndo(
+            account: Account,
+            cryptoProvider: String,
+            e3EncryptedMessageIds: List<String>,
+            batchSize: Int = E3Constants.E3_UNDO_BATCH_SIZE,
+            parallelism: Int = E3Constants.E3_UNDO_PARALLELISM
+    ): Operation? {
         val constraints = Constraints.Builder()
                 .setRequiredNetworkType(NetworkType.UNMETERED)
                 .setRequiresBatteryNotLow(true)
@@ -43,38 +48,51 @@ class E3UndoEncryptionManager private constructor() {
             return null
         }
 
-        val messageIdBatches = batchUids(e3EncryptedMessageIds)
-        val workRequests = mutableListOf<OneTimeWorkRequest>()
+        // A new undo run starts from scratch
+        E3UndoCheckpoint(DI.get(Context::class.java)).clear(account.uuid)
 
-        for (batch: List<String> in messageIdBatches) {
+        val messageIdBatches = batchUids(e3EncryptedMessageIds, batchSize)
+        val workRequests = messageIdBatches.mapIndexed { batchIndex, batch ->
             val inputData = Data.Builder()
                     .putStringArray(WORKER_INPUT_KEY_MESSAGE_IDS, batch.toTypedArray())
                     .putString(WORKER_INPUT_KEY_ACCOUNT_UUID, account.uuid)
                     .putString(WORKER_INPUT_KEY_CRYPTO_PROVIDER, cryptoProvider)
+                    .putInt(WORKER_INPUT_KEY_BATCH_INDEX, batchIndex)
+                    .putInt(WORKER_INPUT_KEY_BATCH_COUNT, messageIdBatches.size)
+                    .putInt(WORKER_INPUT_KEY_PARALLELISM, parallelism)
                     .build()
-            val undoWorkRequest = OneTimeWorkRequestBuilder<UndoWorker>()
+
+            OneTimeWorkRequestBuilder<UndoWorker>()
                     .setInputData(inputData)
                     .setConstraints(constraints)
                     .addTag(getTag(account))
                     .build()
+        }
 
-            workRequests.add(undoWorkRequest)
+        Timber.d("Scheduling ${workRequests.size} chained E3 undo batches of up to $batchSize emails")
+
+        // Chain the batches so each one is a small, separately retried job rather than one giant one
+        var continuation = WorkManager.getInstance()
+                .beginUniqueWork(getTag(account), ExistingWorkPolicy.REPLACE, workRequests.first())
+        for (workRequest in workRequests.drop(1)) {
+            continuation = continuation.then(workRequest)
         }
 
-        return WorkManager.getInstance().enqueueUniqueWork(getTag(account), ExistingWorkPolicy.REPLACE, workRequests)
+        return continuation.enqueue()
     }
 
     fun cancelUndo(account: Account) {
         WorkManager.getInstance().cancelUniqueWork(getTag(account))
         WorkManager.getInstance().pruneWork()
+        E3UndoCheckpoint(DI.get(Context::class.java)).clear(account.uuid)
     }
 
     fun getCurrentLiveData(account: Account): LiveData<List<WorkInfo>> {
         return WorkManager.getInstance().getWorkInfosForUniqueWorkLiveData(getTag(account))
     }
 
-    private fun batchUids(allMessageIds: List<String>): List<List<String>> {
-        return listOf(allMessageIds)
+    private fun batchUids(allMessageIds: List<String>, batchSize: Int): List<List<String>> {
+        return allMessageIds.chunked(batchSize.coerceAtLeast(1))
     }
 
     private fun getTag(account: Account): String {
@@ -85,24 +103,70 @@ class E3UndoEncryptionManager private constructor() {
         @JvmStatic
         val INSTANCE = E3UndoEncryptionManager()
 
+        /**
+         * Summarizes the state of a chained undo run, as returned by [getCurrentLiveData].
+         */
+        @JvmStatic
+        fun getProgress(workInfos: List<WorkInfo>): E3UndoProgress {
+            var completedBatches = 0
+            var restoredMessages = 0
+            var failedMessages = 0
+            for (workInfo in workInfos) {
+                if (workInfo.state == WorkInfo.State.SUCCEEDED) {
+                    completedBatches++
+                    restoredMessages += workInfo.outputData.getInt(WORKER_OUTPUT_KEY_DECRYPTED_COUNT, 0)
+                    failedMessages += workInfo.outputData.getInt(WORKER_OUTPUT_KEY_FAILED_COUNT, 0)
+                }
+            }
+
+            return E3UndoProgress(completedBatches, workInfos.size, restoredMessages, failedMessages)
+        }
+
         const val WORKER_INPUT_KEY_MESSAGE_IDS = "message_ids"
         const val WORKER_INPUT_KEY_ACCOUNT_UUID = "account_uuid"
         const val WORKER_INPUT_KEY_CRYPTO_PROVIDER = "crypto_provider"
-        const val WORKER_OUTPUT_KEY = "message_ids"
+        const val WORKER_INPUT_KEY_BATCH_INDEX = "batch_index"
+        const val WORKER_INPUT_KEY_BATCH_COUNT = "batch_count"
+        const val WORKER_INPUT_KEY_PARALLELISM = "parallelism"
+        // Output keys must not collide with input keys: outputs of a batch are merged into the next batch's input
+        const val WORKER_OUTPUT_KEY_DECRYPTED_COUNT = "decrypted_count"
+        const val WORKER_OUTPUT_KEY_FAILED_COUNT = "failed_count"
         const val WORKER_TAG_SUFFIX_UNDO = "undo_e3"
     }
 }
 
+data class E3UndoProgress(
+        val completedBatches: Int,
+        val totalBatches: Int,
+        val restoredMessages: Int,
+        val failedMessages: Int
+) {
+    val isFinished: Boolean
+        get() = totalBatches > 0 && completedBatches == totalBatches
+}
+
+/**
+ * Outcome of decrypting one undo batch. Messages in [failedUids] are still encrypted.
+ */
+private data class E3UndoBatchResult(val decryptedCount: Int, val failedUids: List<String>)
+
 class UndoWorker(appContext: Context,
                  workerParams: WorkerParameters) : Worker(appContext, workerParams) {
+    private val checkpoint = E3UndoCheckpoint(appContext)
 
     override fun doWork(): Result {
         return try {
             Timber.d("E3 UndoWorker doWork() started")
             doWorkSynchronous()
         } catch (e: Exception) {
-            Timber.e(e, "Failed E3 UndoWorker")
-            Result.failure(inputData)
+            // Failing would cancel every later batch of the chain, so transient errors are retried like failed UIDs
+            if (runAttemptCount + 1 < E3Constants.E3_UNDO_MAX_ATTEMPTS) {
+                Timber.w(e, "Failed E3 UndoWorker, retrying")
+                Result.retry()
+            } else {
+                Timber.e(e, "Failed E3 UndoWorker")
+                Result.failure(inputData)
+            }
         } finally {
             Timber.d("E3 UndoWorker doWork() finished")
         }
@@ -113,23 +177,57 @@ class UndoWorker(appContext: Context,
         val msgServerIds = inputData.getStringArray(E3UndoEncryptionManager.WORKER_INPUT_KEY_MESSAGE_IDS)!!.asList()
         val accountUuid = inputData.getString(E3UndoEncryptionManager.WORKER_INPUT_KEY_ACCOUNT_UUID)!!
         val cryptoProvider = inputData.getString(E3UndoEncryptionManager.WORKER_INPUT_KEY_CRYPTO_PROVIDER)!!
+        val batchIndex = inputData.getInt(E3UndoEncryptionManager.WORKER_INPUT_KEY_BATCH_INDEX, 0)
+        val batchCount = inputData.getInt(E3UndoEncryptionManager.WORKER_INPUT_KEY_BATCH_COUNT, 1)
+        val parallelism = inputData.getInt(E3UndoEncryptionManager.WORKER_INPUT_KEY_PARALLELISM,
+                E3Constants.E3_UNDO_PARALLELISM)
 
         val account = Preferences.getPreferences(applicationContext).getAccount(accountUuid)
 
-        val allMessagesWithE3 = retrieveMessagesWithE3(account, msgServerIds)
+        val completedUids = checkpoint.getCompletedUids(accountUuid, batchIndex)
+        val remainingServerIds = msgServerIds.filterNot { it in completedUids }
+        if (completedUids.isNotEmpty()) {
+            Timber.d("Resuming E3 undo batch ${batchIndex + 1}/$batchCount, " +
+                    "${completedUids.size} of ${msgServerIds.size} emails already restored")
+        }
+
+        val allMessagesWithE3 = retrieveMessagesWithE3(account, remainingServerIds)
 
+        var batchResult = E3UndoBatchResult(0, emptyList())
         if (allMessagesWithE3.isEmpty()) {
             Timber.d("E3 Undo batch found no E3 encrypted messages, so returning success")
         } else {
-            val decryptedStoredLocally = decryptBatchSynchronous(account, allMessagesWithE3, cryptoProvider)
+            batchResult = decryptBatchSynchronous(account, batchIndex, allMessagesWithE3, cryptoProvider,
+                    parallelism)
 
             // Remove any messages which we didn't have locally before to save space?
             //localFolder.destroyMessages(nonLocalMsgs)
+        }
 
-            Timber.d("E3 Undo batch completed, returning success")
+        if (batchResult.failedUids.isNotEmpty() && runAttemptCount + 1 < E3Constants.E3_UNDO_MAX_ATTEMPTS) {
+            // Restored messages are in the checkpoint, so the retry only works on the failed ones
+            Timber.w("E3 Undo batch ${batchIndex + 1}/$batchCount failed to restore " +
+                    "${batchResult.failedUids.size} emails, retrying")
+            return Result.retry()
         }
 
-        return Result.success(inputData)
+        if (batchResult.failedUids.isNotEmpty()) {
+            Timber.e("E3 Undo batch ${batchIndex + 1}/$batchCount gave up on ${batchResult.failedUids.size} emails: " +
+                    batchResult.failedUids.joinToString(","))
+        } else {
+            Timber.d("E3 Undo batch ${batchIndex + 1}/$batchCount restored ${batchResult.decryptedCount} emails, " +
+                    "returning success")
+        }
+
+        val restoredCount = checkpoint.getCompletedUids(accountUuid, batchIndex).size
+        checkpoint.clearBatch(accountUuid, batchIndex)
+
+        val outputData = Data.Builder()
+                .putInt(E3UndoEncryptionManager.WORKER_OUTPUT_KEY_DECRYPTED_COUNT, restoredCount)
+                .putInt(E3UndoEncryptionManager.WORKER_OUTPUT_KEY_FAILED_COUNT, batchResult.failedUids.size)
+                .build()
+
+        return Result.success(outputData)
     }
 
     private fun retrieveMessagesWithE3(account: Account, msgServerIds: List<String>): List<LocalMessage> {
@@ -156,35 +254,92 @@ class UndoWorker(appContext: Context,
     }
 
     /**
-     * This uses a [CountDownLatch]
+     * Decrypts the batch with [parallelism] workers sharing a single OpenPGP service binding. The inbox is
+     * resynchronized once at the end rather than after every replaced message.
+     *
+     * @return the number of messages that were decrypted and replaced, and the UIDs of the messages that weren't.
      */
-    private fun decryptBatchSynchronous(account: Account, messageBatch: List<LocalMessage>, cryptoProvider: String): BlockingQueue<Message> {
-        val decryptedStoredLocally = ArrayBlockingQueue<Message>(messageBatch.size)
-
+    private fun decryptBatchSynchronous(account: Account, batchIndex: Int, messageBatch: List<LocalMessage>,
+                                        cryptoProvider: String, parallelism: Int): E3UndoBatchResult {
+        val decryptedCount = AtomicInteger(0)
         val syncUpdatedListener = object : SyncUpdatedListener {
             override fun updateWithNewMessage(message: Message) {
-                decryptedStoredLocally.add(message)
+                decryptedCount.incrementAndGet()
             }
         }
 
-        for (message in messageBatch) {
-            Timber.d("Synchronize starting in for-loop")
-            val latch = CountDownLatch(1)
-            val onBoundListener = PgpOnBoundListener(applicationContext, account, message, syncUpdatedListener, latch)
-            val pgpServiceConnection = OpenPgpServiceConnection(applicationContext, cryptoProvider, onBoundListener)
-            pgpServiceConnection.bindToService()
+        val session = E3OpenPgpSession(applicationContext, cryptoProvider, 0)
+        val service = session.acquire()
+        val executor = Executors.newFixedThreadPool(parallelism.coerceAtLeast(1), NamedThreadFactory("E3Undo"))
+        val decryptedMessages = Collections.synchronizedMap(LinkedHashMap<LocalMessage, MimeMessage>())
+        val failedUids = Collections.synchronizedList(mutableListOf<String>())
+        try {
+            val futures = messageBatch.map { message ->
+                executor.submit {
+                    if (isStopped) {
+                        failedUids.add(message.uid)
+                        return@submit
+                    }
+
+                    try {
+                        decryptedMessages[message] = decryptSync(account, service, message)
+                    } catch (e: Exception) {
+                        Timber.e(e, "Failed to decrypt message: ${message.subject}, likely because E3 encrypted " +
+                                "using an unavailable key!")
+                        failedUids.add(message.uid)
+                    }
+                }
+            }
 
-            latch.await()
-            Timber.d("Synchronize finished in for-loop")
+            for (future in futures) {
+                future.get()
+            }
+        } finally {
+            executor.shutdown()
+            session.release()
+            session.close()
+        }
+
+        // Replaces the decrypted messages with one upload, one move and one expunge per folder
+        val messagingController = MessagingController.getInstance(applicationContext)
+        for ((folder, folderMessages) in decryptedMessages.entries.groupBy { it.key.folder }) {
+            // Uploading the replacements assigns new UIDs to the message objects
+            val originalUids = folderMessages.map { it.key.uid }
+            try {
+                messagingController.replaceExistingMessagesSynchronous(account, folder,
+                        folderMessages.map { it.key }, folderMessages.map { it.value }, syncUpdatedListener, false)
+                checkpoint.markCompleted(account.uuid, batchIndex, originalUids)
+            } catch (e: Exception) {
+                Timber.e(e, "Failed to replace ${folderMessages.size} decrypted messages in ${folder.serverId}")
+                failedUids.addAll(originalUids)
+            }
+        }
+
+        if (decryptedCount.get() > 0) {
+            messagingController.synchronizeMailbox(account, account.inboxFolder, null, null)
         }
 
         Timber.d("Reached end of decryptBatchSynchronous")
 
-        return decryptedStoredLocally
+        return E3UndoBatchResult(decryptedCount.get(), failedUids.toList())
+    }
+
+    @Throws(MessagingException::class)
+    private fun decryptSync(account: Account, service: IOpenPgpService2, message: LocalMessage): MimeMessage {
+        val openPgpApi = OpenPgpApi(applicationContext, service)
+        val decryptor = SimpleE3PgpDecryptor(openPgpApi, account.e3Key)
+
+        Timber.d("Decrypting E3 message: ${message.subject} (originalUid=${message.uid}")
+        return decryptor.decrypt(message as MimeMessage, account.email)
     }
 
+    /**
+     * Downloads the given messages using windowed bulk fetches and stores them in batched transactions.
+     */
     @Throws(MessagingException::class)
     private fun loadSearchResultsSynchronous(account: Account, messageServerIds: List<String>, localFolder: LocalFolder) {
+        if (messageServerIds.isEmpty()) return
+
         val fetchProfile = FetchProfile()
         fetchProfile.add(FetchProfile.Item.FLAGS)
         fetchProfile.add(FetchProfile.Item.ENVELOPE)
@@ -192,59 +347,32 @@ class UndoWorker(appContext: Context,
 
         val backend = getBackend(account)
         val folderServerId = localFolder.serverId
+        val pendingMessages = mutableListOf<Message>()
 
-        for (messageServerId in messageServerIds) {
-            val localMessage = localFolder.getMessage(messageServerId)
+        backend.fetchMessages(folderServerId, messageServerIds, fetchProfile, object : MessageRetrievalListener<Message> {
+            override fun messageStarted(uid: String, number: Int, ofTotal: Int) = Unit
 
-            if (localMessage == null) {
-                val message = backend.fetchMessage(folderServerId, messageServerId, fetchProfile)
-                localFolder.appendMessages(listOf(message))
+            override fun messageFinished(message: Message, number: Int, ofTotal: Int) {
+                pendingMessages.add(message)
+                if (pendingMessages.size >= APPEND_BATCH_SIZE) {
+                    localFolder.appendMessages(pendingMessages)
+                    pendingMessages.clear()
+                }
             }
-        }
-    }
 
-    private fun getBackend(account: Account): Backend {
-        return DI.get(BackendManager::class.java).getBackend(account)
-    }
-}
+            override fun messagesFinished(total: Int) = Unit
+        })
 
-private class PgpOnBoundListener(private val appContext: Context,
-                                 private val account: Account,
-                                 private val message: LocalMessage,
-                                 private val listener: SyncUpdatedListener,
-                                 private val countDownLatch: CountDownLatch) : OpenPgpServiceConnection.OnBound {
-    override fun onBound(service: IOpenPgpService2) {
-        val executor = Executors.newSingleThreadExecutor()
-        executor.execute {
-            try {
-                decryptReplaceSync(service)
-                Timber.d("Synchronize finished in onBound")
-            } finally {
-                countDownLatch.countDown()
-            }
+        if (pendingMessages.isNotEmpty()) {
+            localFolder.appendMessages(pendingMessages)
         }
     }
 
-    @Throws(MessagingException::class)
-    private fun decryptReplaceSync(service: IOpenPgpService2) {
-        val messagingController = MessagingController.getInstance(appContext)
-        val openPgpApi = OpenPgpApi(appContext, service)
-        val decryptor = SimpleE3PgpDecryptor(openPgpApi, account.e3Key)
-
-        try {
-            Timber.d("Decrypting E3 message: ${message.subject} (originalUid=${message.uid}")
-            val decryptedMessage = decryptor.decrypt(message as MimeMessage, account.email)
-            //val decryptedMessage = decryptor.decryptWithProgress(message as MimeMessage, account.email)
-
-            Timber.d("Synchronizing decrypted E3 message: ${message.subject} (originalUid=${message.uid}, decryptedMessageUid=${decryptedMessage.uid}")
-            messagingController.replaceExistingMessageSynchronous(account, message.folder, message, decryptedMessage, listener)
-        } catch (e: MessagingException) {
-            Timber.e(e, "Failed to decrypt message: ${message.subject}, likely because E3 encrypted using an unavailable key!")
-            throw e
-        }
+    private fun getBackend(account: Account): Backend {
+        return DI.get(BackendManager::class.java).getBackend(account)
     }
 
-    override fun onError(e: Exception) {
-        Timber.e(e, "Got error while binding to OpenPGP service")
+    companion object {
+        private const val APPEND_BATCH_SIZE = 25
     }
-}
\ No newline at end of file
+}
@@ -11,22 +11,23 @@ import com.fsck.k9.mail.BodyPart;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Multipart;
-import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeMessageHelper;
+import com.fsck.k9.mailstore.MimePartStreamParser;
+import com.fsck.k9.mailstore.util.FileFactory;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.james.mime4j.util.MimeUtil;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
 import org.openintents.openpgp.util.OpenPgpApi.CancelableBackgroundOperation;
 import org.openintents.openpgp.util.OpenPgpApi.IOpenPgpSinkResultCallback;
+import org.openintents.openpgp.util.OpenPgpApi.OpenPgpDataResult;
 import org.openintents.openpgp.util.OpenPgpApi.OpenPgpDataSink;
 import org.openintents.openpgp.util.OpenPgpApi.OpenPgpDataSource;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,6 +37,13 @@ import androidx.annotation.WorkerThread;
 import timber.log.Timber;
 
 public class SimpleE3PgpDecryptor {
+    private static final FileFactory TEMP_FILE_FACTORY = new FileFactory() {
+        @Override
+        public File createFile() throws IOException {
+            return File.createTempFile("decrypted", null, BinaryTempFileBody.getTempDirectory());
+        }
+    };
+
     private final Long pgpKeyId;
     private final OpenPgpApi openPgpApi;
 
@@ -49,21 +57,12 @@ public class SimpleE3PgpDecryptor {
 
         MimeBodyPart bodyPart = encryptedMessage.toBodyPart();
         OpenPgpDataSource dataSource = createOpenPgpDataSourceFromBodyPart(bodyPart);
-        BinaryTempFileBody pgpResultTempBody = null;
-        OutputStream outputStream = null;
-        try {
-            pgpResultTempBody = new BinaryTempFileBody(MimeUtil.ENC_7BIT); // MimeUtil.ENC_8BIT
-            outputStream = new EOLConvertingOutputStream(pgpResultTempBody.getOutputStream());
-        } catch (IOException e) {
-            throw new MessagingException("could not allocate temp file for storage!", e);
-        }
 
-        final Intent result = openPgpApi.executeApi(pgpApiIntent, dataSource, outputStream);
+        // The decrypted data is parsed as it arrives, so every part is written to disk at most once
+        final OpenPgpDataResult<MimeBodyPart> result = openPgpApi.executeApi(pgpApiIntent, dataSource,
+                getDataSinkForDecryptedData());
 
-        MimeMessage decryptedMessage = MimeMessage.parseMimeMessage(pgpResultTempBody.getInputStream(), true);
-        Body decryptedBody = decryptedMessage.getBody();
-
-        return handleDecryptResult(encryptedMessage, result, decryptedBody, decryptedMessage.getContentType());
+        return handleDecryptResult(encryptedMessage, result.getApiResult(), result.getSinkResult());
     }
 
     /**
@@ -81,22 +80,12 @@ public class SimpleE3PgpDecryptor {
         MimeBodyPart bodyPart = encryptedMessage.toBodyPart();
         OpenPgpDataSource dataSource = createOpenPgpDataSourceFromBodyPart(bodyPart);
 
-        // Output after decryption
-        final BinaryTempFileBody pgpResultTempBody;
-        OutputStream outputStream = null;
-        try {
-            pgpResultTempBody = new BinaryTempFileBody(MimeUtil.ENC_7BIT); // MimeUtil.ENC_8BIT
-            outputStream = new EOLConvertingOutputStream(pgpResultTempBody.getOutputStream());
-        } catch (IOException e) {
-            throw new MessagingException("could not allocate temp file for storage!", e);
-        }
-
         final CountDownLatch latch = new CountDownLatch(1);
         Timber.d("SimpleE3PgpDecryptor invoking executeApiAsync");
         final CancelableBackgroundOperation cancelableBgOp = openPgpApi.executeApiAsync(
                 pgpApiIntent,
                 dataSource,
-                getDataSinkForDecryptedData(outputStream),
+                getDataSinkForDecryptedData(),
                 new IOpenPgpSinkResultCallback<MimeBodyPart>() {
                     @Override
                     public void onProgress(int current, int max) {
@@ -104,13 +93,11 @@ public class SimpleE3PgpDecryptor {
                     }
 
                     @Override
-                    public void onReturn(Intent result, MimeBodyPart dummy) {
+                    public void onReturn(Intent result, MimeBodyPart decryptedPart) {
                         try {
                             Timber.d("SimpleE3PgpDecryptor Sink result onReturn");
-                            MimeMessage decryptedMessage = MimeMessage.parseMimeMessage(pgpResultTempBody.getInputStream(), true);
-                            Body decryptedBody = decryptedMessage.getBody();
-                            handleDecryptResult(encryptedMessage, result, decryptedBody, decryptedMessage.getContentType());
-                        } catch (MessagingException | IOException e) {
+                            handleDecryptResult(encryptedMessage, result, decryptedPart);
+                        } catch (MessagingException e) {
                             throw new RuntimeException(e);
                         } finally {
                             Timber.d("SimpleE3PgpDecryptor latch.countDown()");
@@ -132,16 +119,19 @@ public class SimpleE3PgpDecryptor {
 
     private MimeMessage handleDecryptResult(MimeMessage encryptedMessage,
                                             Intent resultIntent,
-                                            Body decryptedBody,
-                                            String contentType) throws MessagingException {
+                                            MimeBodyPart decryptedPart) throws MessagingException {
 
         final int resultCode = resultIntent.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
 
         switch (resultCode) {
             case OpenPgpApi.RESULT_CODE_SUCCESS:
-                MimeMessageHelper.setBody(encryptedMessage, decryptedBody);
+                if (decryptedPart == null) {
+                    throw new MessagingException("openpgp api returned no decrypted data!");
+                }
+
+                MimeMessageHelper.setBody(encryptedMessage, decryptedPart.getBody());
 
-                encryptedMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, contentType);
+                encryptedMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, decryptedPart.getContentType());
                 encryptedMessage.removeHeader(E3Constants.MIME_E3_ENCRYPTED_HEADER);
                 encryptedMessage.setFlag(Flag.E3, false);
 
@@ -204,13 +194,20 @@ public class SimpleE3PgpDecryptor {
         };
     }
 
-    private OpenPgpDataSink<MimeBodyPart> getDataSinkForDecryptedData(final OutputStream os) {
+    /**
+     * Builds the MIME tree of the decrypted message while the crypto provider is still writing it. Small parts stay
+     * in memory, larger ones go to temp files that {@link com.fsck.k9.mailstore.LocalFolder} moves into place.
+     */
+    private OpenPgpDataSink<MimeBodyPart> getDataSinkForDecryptedData() {
         return new OpenPgpDataSink<MimeBodyPart>() {
             @Override
             @WorkerThread
             public MimeBodyPart processData(InputStream is) throws IOException {
-                IOUtils.copy(is, os);
-                return null;
+                try {
+                    return MimePartStreamParser.parse(TEMP_FILE_FACTORY, is);
+                } catch (MessagingException e) {
+                    throw new IOException("Failed to parse decrypted message", e);
+                }
             }
         };
     }
@@ -13,6 +13,7 @@ import android.provider.ContactsContract.CommonDataKinds.Photo;
 import com.fsck.k9.mail.Address;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper class to access the contacts stored on the device.
@@ -67,6 +68,7 @@ public class Contacts {
     protected Context mContext;
     protected ContentResolver mContentResolver;
     private static HashMap<String, String> nameCache = new HashMap<>();
+    private static final AtomicInteger cacheGeneration = new AtomicInteger();
 
 
     /**
@@ -286,6 +288,15 @@ public class Contacts {
      */
     public static void clearCache() {
         nameCache.clear();
+        cacheGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever the cache is cleared, i.e. whenever names looked up earlier might be
+     * outdated.
+     */
+    public static int getCacheGeneration() {
+        return cacheGeneration.get();
     }
 
 }
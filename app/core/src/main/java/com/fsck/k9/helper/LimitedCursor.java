@@ -0,0 +1,69 @@
+package com.fsck.k9.helper;
+
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+
+/**
+ * Only exposes the first {@code count} rows of the wrapped cursor.
+ */
+public class LimitedCursor extends CursorWrapper {
+    private final int count;
+
+
+    public LimitedCursor(Cursor cursor, int count) {
+        super(cursor);
+        this.count = Math.min(count, cursor.getCount());
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position >= count) {
+            super.moveToPosition(count);
+            return false;
+        }
+
+        return super.moveToPosition(position);
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(getPosition() + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(count - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(getPosition() + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(getPosition() - 1);
+    }
+
+    @Override
+    public boolean isLast() {
+        return count > 0 && getPosition() == count - 1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return count == 0 || getPosition() >= count;
+    }
+}
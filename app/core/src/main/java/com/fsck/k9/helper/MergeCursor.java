@@ -100,6 +100,64 @@ public class MergeCursor implements Cursor {
         }
     }
 
+    /**
+     * Returns the index of the cursor the current row belongs to.
+     */
+    public int getActiveCursorIndex() {
+        return mActiveCursorIndex;
+    }
+
+    /**
+     * Returns the position a row of one of the combined cursors has in this cursor.
+     * <p>
+     * Instead of merging all rows up to the given one, the number of rows that come before it is looked up in each of
+     * the other cursors with a binary search. So every combined cursor has to be sorted in the order of the
+     * comparator. This cursor is moved before the first row afterwards.
+     *
+     * @param cursorIndex
+     *         The index of the cursor in the array passed to the constructor.
+     * @param position
+     *         The position of the row in that cursor.
+     */
+    public int getMergedPosition(int cursorIndex, int position) {
+        Cursor target = mCursors[cursorIndex];
+
+        int mergedPosition = position;
+        for (int i = 0, len = mCursors.length; i < len; i++) {
+            if (i == cursorIndex || mCursors[i] == null) {
+                continue;
+            }
+
+            // On ties moveToNext() picks the row of the cursor with the lower index first
+            boolean includeEqualRows = i < cursorIndex;
+            mergedPosition += countRowsBefore(mCursors[i], target, position, includeEqualRows);
+        }
+
+        resetCursors();
+
+        return mergedPosition;
+    }
+
+    private int countRowsBefore(Cursor cursor, Cursor target, int targetPosition, boolean includeEqualRows) {
+        target.moveToPosition(targetPosition);
+
+        int low = 0;
+        int high = cursor.getCount();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            cursor.moveToPosition(middle);
+
+            int result = mComparator.compare(cursor, target);
+            if (result < 0 || (includeEqualRows && result == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
     @Override
     public void close() {
         for (Cursor cursor : mCursors) {
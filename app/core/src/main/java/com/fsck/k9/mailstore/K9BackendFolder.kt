@@ -2,6 +2,7 @@ package com.fsck.k9.mailstore
 
 import android.content.ContentValues
 import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
 import androidx.core.database.getStringOrNull
 import com.fsck.k9.Account
 import com.fsck.k9.Preferences
@@ -51,7 +52,8 @@ class K9BackendFolder(
     }
 
     override fun getLastUid(): Long? {
-        return database.rawQuery("SELECT MAX(uid) FROM messages WHERE folder_id = ?", folderServerId) { cursor ->
+        return database.rawQuery("SELECT MAX(CAST(uid AS INTEGER)) FROM messages" +
+                " WHERE folder_id = ? AND uid NOT LIKE '${BackendFolder.LOCAL_UID_PREFIX}%'", databaseId) { cursor ->
             if (cursor.moveToFirst()) {
                 cursor.getLongOrNull(0)
             } else {
@@ -90,14 +92,7 @@ class K9BackendFolder(
     }
 
     override fun getUnreadMessageCount(): Int {
-        return database.rawQuery("SELECT COUNT(id) FROM messages" +
-                " WHERE folder_id = ? AND empty = 0 AND deleted = 0 AND read = 0", databaseId) { cursor ->
-            if (cursor.moveToFirst()) {
-                cursor.getInt(0)
-            } else {
-                throw IllegalStateException("Couldn't get unread message count for folder $folderServerId")
-            }
-        }
+        return database.getLongOrNull(column = "unread_count")?.toInt() ?: 0
     }
 
     override fun setLastChecked(timestamp: Long) {
@@ -245,31 +240,31 @@ class K9BackendFolder(
     override fun getFolderExtraString(name: String): String? {
         return database.getStringOrNull(
                 table = "folder_extra_values",
-                column = "value_string"
+                column = "value_text",
+                selection = "folder_id = ? AND name = ?",
+                selectionArgs = *arrayOf(databaseId, name)
         )
     }
 
     override fun setFolderExtraString(name: String, value: String) {
-        database.setString(
-                table = "folder_extra_values",
-                column = "value_string",
-                value = value
-        )
+        database.setFolderExtraValue(name) {
+            put("value_text", value)
+        }
     }
 
     override fun getFolderExtraNumber(name: String): Long? {
         return database.getLongOrNull(
                 table = "folder_extra_values",
-                column = "value_integer"
+                column = "value_integer",
+                selection = "folder_id = ? AND name = ?",
+                selectionArgs = *arrayOf(databaseId, name)
         )
     }
 
     override fun setFolderExtraNumber(name: String, value: Long) {
-        database.setLong(
-                table = "folder_extra_values",
-                column = "value_integer",
-                value = value
-        )
+        database.setFolderExtraValue(name) {
+            put("value_integer", value)
+        }
     }
 
 
@@ -370,6 +365,17 @@ class K9BackendFolder(
         }
     }
 
+    private fun LockableDatabase.setFolderExtraValue(name: String, putValue: ContentValues.() -> Unit) {
+        execute(false) { db ->
+            val contentValues = ContentValues().apply {
+                put("folder_id", databaseId)
+                put("name", name)
+                putValue()
+            }
+            db.insertWithOnConflict("folder_extra_values", null, contentValues, SQLiteDatabase.CONFLICT_REPLACE)
+        }
+    }
+
     private fun Cursor.getLongOrNull(columnIndex: Int): Long? = if (isNull(columnIndex)) null else getLong(columnIndex)
 
     private fun String.toMoreMessages(): MoreMessages = when (this) {
@@ -33,6 +33,7 @@ import com.fsck.k9.controller.MessageReference;
 import com.fsck.k9.backend.api.MessageRemovalListener;
 import com.fsck.k9.crypto.EncryptionExtractor;
 import com.fsck.k9.crypto.EncryptionResult;
+import com.fsck.k9.crypto.e3.E3DecryptedMessageCache;
 import com.fsck.k9.helper.FileHelper;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Address;
@@ -310,66 +311,23 @@ public class LocalFolder extends Folder<LocalMessage> {
 
     @Override
     public int getMessageCount() throws MessagingException {
-        try {
-            return this.localStore.getDatabase().execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    try {
-                        open(OPEN_MODE_RW);
-                    } catch (MessagingException e) {
-                        throw new WrappedException(e);
-                    }
-                    Cursor cursor = null;
-                    try {
-                        cursor = db.rawQuery(
-                                "SELECT COUNT(id) FROM messages " +
-                                "WHERE empty = 0 AND deleted = 0 and folder_id = ?",
-                                new String[] { Long.toString(databaseId) });
-                        cursor.moveToFirst();
-                        return cursor.getInt(0);   //messagecount
-                    } finally {
-                        Utility.closeQuietly(cursor);
-                    }
-                }
-            });
-        } catch (WrappedException e) {
-            throw (MessagingException) e.getCause();
-        }
+        return getFolderCount("message_count");
     }
 
     @Override
     public int getUnreadMessageCount() throws MessagingException {
-        if (databaseId == -1) {
-            open(OPEN_MODE_RW);
-        }
-
-        try {
-            return this.localStore.getDatabase().execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int unreadMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND empty = 0 AND deleted = 0 AND read=0",
-                            new String[] { Long.toString(databaseId) }, null, null, null);
-
-                    try {
-                        if (cursor.moveToFirst()) {
-                            unreadMessageCount = cursor.getInt(0);
-                        }
-                    } finally {
-                        cursor.close();
-                    }
-
-                    return unreadMessageCount;
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return getFolderCount("unread_count");
     }
 
     @Override
     public int getFlaggedMessageCount() throws MessagingException {
+        return getFolderCount("flagged_count");
+    }
+
+    /**
+     * Reads one of the message counts that are kept up to date by triggers on the {@code messages} table.
+     */
+    private int getFolderCount(final String column) throws MessagingException {
         if (databaseId == -1) {
             open(OPEN_MODE_RW);
         }
@@ -378,20 +336,13 @@ public class LocalFolder extends Folder<LocalMessage> {
             return this.localStore.getDatabase().execute(false, new DbCallback<Integer>() {
                 @Override
                 public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int flaggedMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND empty = 0 AND deleted = 0 AND flagged = 1",
+                    Cursor cursor = db.query("folders", new String[] { column }, "id = ?",
                             new String[] { Long.toString(databaseId) }, null, null, null);
-
                     try {
-                        if (cursor.moveToFirst()) {
-                            flaggedMessageCount = cursor.getInt(0);
-                        }
+                        return cursor.moveToFirst() ? cursor.getInt(0) : 0;
                     } finally {
                         cursor.close();
                     }
-
-                    return flaggedMessageCount;
                 }
             });
         } catch (WrappedException e) {
@@ -1108,7 +1059,9 @@ public class LocalFolder extends Folder<LocalMessage> {
                             uidMap.put(oldUID, newUid);
 
                             // Message threading in the target folder
-                            ThreadInfo threadInfo = lDestFolder.doMessageThreading(db, message);
+                            ThreadInfoResolver threadInfoResolver =
+                                    new ThreadInfoResolver(lDestFolder.getDatabaseId());
+                            ThreadInfo threadInfo = lDestFolder.doMessageThreading(db, message, threadInfoResolver);
 
                             /*
                              * "Move" the message into the new folder
@@ -1264,39 +1217,6 @@ public class LocalFolder extends Folder<LocalMessage> {
         }
     }
 
-    private ThreadInfo getThreadInfo(SQLiteDatabase db, String messageId, boolean onlyEmpty) {
-        if (messageId == null) {
-            return null;
-        }
-
-        String sql = "SELECT t.id, t.message_id, t.root, t.parent " +
-                "FROM messages m " +
-                "LEFT JOIN threads t ON (t.message_id = m.id) " +
-                "WHERE m.folder_id = ? AND m.message_id = ? " +
-                ((onlyEmpty) ? "AND m.empty = 1 " : "") +
-                "ORDER BY m.id LIMIT 1";
-        String[] selectionArgs = { Long.toString(databaseId), messageId };
-        Cursor cursor = db.rawQuery(sql, selectionArgs);
-
-        if (cursor != null) {
-            try {
-                if (cursor.getCount() > 0) {
-                    cursor.moveToFirst();
-                    long threadId = cursor.getLong(0);
-                    long msgId = cursor.getLong(1);
-                    long rootId = (cursor.isNull(2)) ? -1 : cursor.getLong(2);
-                    long parentId = (cursor.isNull(3)) ? -1 : cursor.getLong(3);
-
-                    return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
-                }
-            } finally {
-                cursor.close();
-            }
-        }
-
-        return null;
-    }
-
     /**
      * The method differs slightly from the contract; If an incoming message already has a uid
      * assigned and it matches the uid of an existing message then this message will replace
@@ -1318,8 +1238,11 @@ public class LocalFolder extends Folder<LocalMessage> {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
+                        ThreadInfoResolver threadInfoResolver = new ThreadInfoResolver(databaseId);
+                        threadInfoResolver.prefetch(db, getThreadingMessageIds(messages));
+
                         for (Message message : messages) {
-                            saveMessage(db, message, copy, uidMap);
+                            saveMessage(db, message, copy, uidMap, threadInfoResolver);
                         }
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
@@ -1336,8 +1259,8 @@ public class LocalFolder extends Folder<LocalMessage> {
         }
     }
 
-    private void saveMessage(SQLiteDatabase db, Message message, boolean copy, Map<String, String> uidMap)
-            throws MessagingException {
+    private void saveMessage(SQLiteDatabase db, Message message, boolean copy, Map<String, String> uidMap,
+            ThreadInfoResolver threadInfoResolver) throws MessagingException {
         if (!(message instanceof MimeMessage)) {
             throw new Error("LocalStore can only store Messages that extend MimeMessage");
         }
@@ -1375,7 +1298,7 @@ public class LocalFolder extends Folder<LocalMessage> {
 
         if (oldMessageId == -1) {
             // This is a new message. Do the message threading.
-            ThreadInfo threadInfo = doMessageThreading(db, message);
+            ThreadInfo threadInfo = doMessageThreading(db, message, threadInfoResolver);
             oldMessageId = threadInfo.msgId;
             rootId = threadInfo.rootId;
             parentId = threadInfo.parentId;
@@ -1467,12 +1390,18 @@ public class LocalFolder extends Folder<LocalMessage> {
                     cv.put("parent", parentId);
                 }
 
-                db.insert("threads", null, cv);
+                long threadId = db.insert("threads", null, cv);
+                threadInfoResolver.messageInserted(msgId, messageId, false, threadId,
+                        (rootId != -1) ? rootId : threadId, parentId);
             } else {
                 msgId = oldMessageId;
                 db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
+                threadInfoResolver.messageUpdated(msgId, messageId, false);
             }
 
+            MessageAddressIndex.replaceAddresses(db, msgId, message.getFrom(),
+                    message.getRecipients(RecipientType.TO), message.getRecipients(RecipientType.CC));
+
             if (fulltext != null) {
                 cv.clear();
                 cv.put("docid", msgId);
@@ -1623,6 +1552,9 @@ public class LocalFolder extends Folder<LocalMessage> {
         Body body = part.getBody();
         if (body instanceof BinaryTempFileBody) {
             return ((BinaryTempFileBody) body).getFile();
+        } else if (body instanceof DeferredFileBody) {
+            // Large streamed parts (e.g. decrypted E3 messages) already live in a temp file we can move into place
+            return ((DeferredFileBody) body).getFile();
         } else {
             return writeBodyToDisk(body);
         }
@@ -1773,6 +1705,39 @@ public class LocalFolder extends Folder<LocalMessage> {
         this.localStore.notifyChange();
     }
 
+    /**
+     * Replaces the search tokens of E3 encrypted messages.
+     *
+     * @see com.fsck.k9.crypto.e3.E3SearchIndex
+     */
+    public void setE3SearchTokens(final Map<LocalMessage, Set<String>> tokensByMessage) throws MessagingException {
+        open(OPEN_MODE_RW);
+
+        try {
+            this.localStore.getDatabase().execute(true, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    ContentValues cv = new ContentValues();
+                    for (Map.Entry<LocalMessage, Set<String>> entry : tokensByMessage.entrySet()) {
+                        long messageId = entry.getKey().getDatabaseId();
+                        db.delete("e3_search_tokens", "message_id = ?", new String[] { Long.toString(messageId) });
+
+                        for (String token : entry.getValue()) {
+                            cv.clear();
+                            cv.put("message_id", messageId);
+                            cv.put("token", token);
+                            db.insert("e3_search_tokens", null, cv);
+                        }
+                    }
+
+                    return null;
+                }
+            });
+        } catch (WrappedException e) {
+            throw (MessagingException) e.getCause();
+        }
+    }
+
     @Override
     public void setFlags(final List<? extends Message> messages, final Set<Flag> flags, final boolean value)
     throws MessagingException {
@@ -2062,6 +2027,8 @@ public class LocalFolder extends Folder<LocalMessage> {
     void deleteFulltextIndexEntry(SQLiteDatabase db, long messageId) {
         String[] idArg = { Long.toString(messageId) };
         db.delete("messages_fulltext", "docid = ?", idArg);
+        db.delete("e3_search_tokens", "message_id = ?", idArg);
+        MessageAddressIndex.deleteAddresses(db, messageId);
     }
 
     void deleteMessagePartsAndDataFromDisk(final long rootMessagePartId) throws MessagingException {
@@ -2080,6 +2047,8 @@ public class LocalFolder extends Folder<LocalMessage> {
     }
 
     private void deleteMessageDataFromDisk(final long rootMessagePartId) throws MessagingException {
+        E3DecryptedMessageCache.getInstance().invalidateMessage(getAccountUuid(), rootMessagePartId);
+
         localStore.getDatabase().execute(false, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
@@ -2186,15 +2155,31 @@ public class LocalFolder extends Folder<LocalMessage> {
         });
     }
 
-    private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message) {
-        long rootId = -1;
-        long parentId = -1;
+    /**
+     * Collects the Message-IDs that will be looked up when threading the given messages.
+     */
+    private static Set<String> getThreadingMessageIds(List<? extends Message> messages) {
+        Set<String> messageIds = new HashSet<>();
+        for (Message message : messages) {
+            String messageId = message.getMessageId();
+            if (messageId != null) {
+                messageIds.add(messageId);
+            }
 
-        String messageId = message.getMessageId();
+            List<String> references = getReferencedMessageIds(message);
+            if (references != null) {
+                messageIds.addAll(references);
+            }
+        }
 
-        // If there's already an empty message in the database, update that
-        ThreadInfo msgThreadInfo = getThreadInfo(db, messageId, true);
+        return messageIds;
+    }
 
+    /**
+     * Returns the Message-IDs from the "References" header line followed by the first one from the "In-Reply-To"
+     * header line, or {@code null} if the message is not a reply.
+     */
+    private static List<String> getReferencedMessageIds(Message message) {
         // Get the message IDs from the "References" header line
         String[] referencesArray = message.getHeader("References");
         List<String> messageIds = null;
@@ -2217,6 +2202,19 @@ public class LocalFolder extends Folder<LocalMessage> {
             }
         }
 
+        return messageIds;
+    }
+
+    private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message, ThreadInfoResolver threadInfoResolver) {
+        long rootId = -1;
+        long parentId = -1;
+
+        String messageId = message.getMessageId();
+
+        // If there's already an empty message in the database, update that
+        ThreadInfo msgThreadInfo = threadInfoResolver.getThreadInfo(db, messageId, true);
+
+        List<String> messageIds = getReferencedMessageIds(message);
         if (messageIds == null) {
             // This is not a reply, nothing to do for us.
             return (msgThreadInfo != null) ?
@@ -2224,7 +2222,7 @@ public class LocalFolder extends Folder<LocalMessage> {
         }
 
         for (String reference : messageIds) {
-            ThreadInfo threadInfo = getThreadInfo(db, reference, false);
+            ThreadInfo threadInfo = threadInfoResolver.getThreadInfo(db, reference, false);
 
             if (threadInfo == null) {
                 // Create placeholder message in 'messages' table
@@ -2245,7 +2243,11 @@ public class LocalFolder extends Folder<LocalMessage> {
                     cv.put("parent", parentId);
                 }
 
-                parentId = db.insert("threads", null, cv);
+                long threadId = db.insert("threads", null, cv);
+                threadInfoResolver.messageInserted(newMsgId, reference, true, threadId,
+                        (rootId != -1) ? rootId : threadId, parentId);
+
+                parentId = threadId;
                 if (rootId == -1) {
                     rootId = parentId;
                 }
@@ -2265,6 +2267,9 @@ public class LocalFolder extends Folder<LocalMessage> {
                     cv.put("parent", parentId);
                     db.update("threads", cv, "id = ?",
                             new String[] { Long.toString(threadInfo.threadId) });
+
+                    threadInfoResolver.threadsRerooted(threadInfo.threadId, rootId);
+                    threadInfoResolver.threadUpdated(threadInfo.threadId, rootId, parentId);
                 } else {
                     rootId = (threadInfo.rootId == -1) ?
                             threadInfo.threadId : threadInfo.rootId;
@@ -441,6 +441,15 @@ public class LocalMessage extends MimeMessage {
         super.writeTo(out);
     }
 
+    @Override
+    public void writeHeaderTo(OutputStream out) throws IOException, MessagingException {
+        if (headerNeedsUpdating) {
+            updateHeader();
+        }
+
+        super.writeHeaderTo(out);
+    }
+
     private void updateHeader() {
         super.setSubject(subject);
         super.setReplyTo(mReplyTo);
@@ -36,6 +36,7 @@ import com.fsck.k9.K9;
 import com.fsck.k9.Preferences;
 import com.fsck.k9.controller.MessagingControllerCommands.PendingCommand;
 import com.fsck.k9.controller.PendingCommandSerializer;
+import com.fsck.k9.crypto.e3.E3DecryptedMessageCache;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.BodyPart;
@@ -266,6 +267,7 @@ public class LocalStore {
     private static void removeInstance(Account account) {
         String accountUuid = account.getUuid();
         sLocalStores.remove(accountUuid);
+        E3DecryptedMessageCache.getInstance().invalidateAccount(accountUuid);
     }
 
     public void switchLocalStorage(final String newStorageProviderId) throws MessagingException {
@@ -315,6 +317,8 @@ public class LocalStore {
             Timber.i("Before compaction size = %d", getSize());
         }
 
+        repairFolderCounts();
+
         database.execute(false, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
@@ -329,6 +333,28 @@ public class LocalStore {
     }
 
 
+    /**
+     * Recalculates the message counts stored in the {@code folders} table.
+     * <p>
+     * The counts are maintained by triggers on the {@code messages} table, so this should only be necessary if they
+     * were modified in some other way.
+     */
+    public void repairFolderCounts() throws MessagingException {
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                db.execSQL("UPDATE folders SET " +
+                        "message_count = (SELECT COUNT(id) FROM messages " +
+                        "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0), " +
+                        "unread_count = (SELECT COUNT(id) FROM messages " +
+                        "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0 AND read = 0), " +
+                        "flagged_count = (SELECT COUNT(id) FROM messages " +
+                        "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0 AND flagged = 1)");
+                return null;
+            }
+        });
+    }
+
     public void clear() throws MessagingException {
         if (K9.isDebug()) {
             Timber.i("Before prune size = %d", getSize());
@@ -953,7 +979,7 @@ public class LocalStore {
                     }
                     folder.refresh(serverId, prefHolder);   // Recover settings from Preferences
 
-                    db.execSQL("INSERT INTO folders (name, visible_limit, top_group, display_class, poll_class, notify_class, push_class, integrate, server_id, local_only) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", new Object[] {
+                    db.execSQL("INSERT INTO folders (name, visible_limit, top_group, display_class, poll_class, notify_class, push_class, integrate, server_id, local_only, message_count, unread_count, flagged_count) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0, 0, 0)", new Object[] {
                                    name,
                                    visibleLimit,
                                    prefHolder.inTopGroup ? 1 : 0,
@@ -1317,11 +1343,20 @@ public class LocalStore {
         String where = whereBuilder.toString();
         final String[] selectionArgs = queryArgs.toArray(new String[queryArgs.size()]);
 
-        final String sqlQuery = "SELECT SUM(read=0), SUM(flagged) " +
-                "FROM messages " +
-                "JOIN folders ON (folders.id = messages.folder_id) " +
-                "WHERE (messages.empty = 0 AND messages.deleted = 0)" +
-                (!TextUtils.isEmpty(where) ? " AND (" + where + ")" : "");
+        final String sqlQuery;
+        if (SqlQueryBuilder.containsOnlyFolderConditions(search.getConditions())) {
+            // Use the per-folder counts maintained by triggers on the messages table
+            sqlQuery = "SELECT SUM(unread_count), SUM(flagged_count) " +
+                    "FROM (SELECT id AS folder_id, integrate, display_class, unread_count, flagged_count " +
+                    "FROM folders)" +
+                    (!TextUtils.isEmpty(where) ? " WHERE " + where : "");
+        } else {
+            sqlQuery = "SELECT SUM(read=0), SUM(flagged) " +
+                    "FROM messages " +
+                    "JOIN folders ON (folders.id = messages.folder_id) " +
+                    "WHERE (messages.empty = 0 AND messages.deleted = 0)" +
+                    (!TextUtils.isEmpty(where) ? " AND (" + where + ")" : "");
+        }
 
         return database.execute(false, new DbCallback<AccountStats>() {
             @Override
@@ -0,0 +1,67 @@
+package com.fsck.k9.mailstore;
+
+
+import java.util.Locale;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.fsck.k9.mail.Address;
+
+
+/**
+ * Maintains the {@code message_addresses} table, which holds one row per sender and recipient of a message.
+ * <p>
+ * Addresses are stored in normalized form so searching for an address and sorting by sender can use an index instead
+ * of matching against the packed address lists in the {@code messages} table.
+ */
+public class MessageAddressIndex {
+    public static final String ROLE_FROM = "from";
+    public static final String ROLE_TO = "to";
+    public static final String ROLE_CC = "cc";
+
+
+    public static void replaceAddresses(SQLiteDatabase db, long messageId, Address[] from, Address[] to,
+            Address[] cc) {
+        deleteAddresses(db, messageId);
+
+        ContentValues cv = new ContentValues();
+        insertAddresses(db, cv, messageId, ROLE_FROM, from);
+        insertAddresses(db, cv, messageId, ROLE_TO, to);
+        insertAddresses(db, cv, messageId, ROLE_CC, cc);
+    }
+
+    public static void deleteAddresses(SQLiteDatabase db, long messageId) {
+        db.delete("message_addresses", "message_id = ?", new String[] { Long.toString(messageId) });
+    }
+
+    private static void insertAddresses(SQLiteDatabase db, ContentValues cv, long messageId, String role,
+            Address[] addresses) {
+        if (addresses == null) {
+            return;
+        }
+
+        int position = 0;
+        for (Address address : addresses) {
+            if (TextUtils.isEmpty(address.getAddress())) {
+                continue;
+            }
+
+            cv.clear();
+            cv.put("message_id", messageId);
+            cv.put("role", role);
+            cv.put("position", position++);
+            cv.put("address", normalizeAddress(address.getAddress()));
+            cv.put("name", address.getPersonal());
+            db.insert("message_addresses", null, cv);
+        }
+    }
+
+    /**
+     * Returns the form of an email address that is stored in the {@code message_addresses} table.
+     */
+    public static String normalizeAddress(String address) {
+        return address.trim().toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,198 @@
+package com.fsck.k9.mailstore;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+
+/**
+ * Resolves Message-IDs to {@link ThreadInfo}s while messages are threaded into a folder.
+ * <p>
+ * {@link #prefetch(SQLiteDatabase, Collection)} looks up all Message-IDs of a batch of messages with a few set-based
+ * queries. Message-IDs that weren't prefetched are loaded when they are first requested. Afterwards the caller has to
+ * report every change it makes to the {@code messages} and {@code threads} tables of the folder, so the in-memory state
+ * keeps matching the database.
+ */
+class ThreadInfoResolver {
+    private static final int PREFETCH_BATCH_SIZE = 500;
+
+
+    private final long folderId;
+    private final Map<String, List<Row>> rowsByMessageId = new HashMap<>();
+    private final Map<Long, Row> rowsById = new HashMap<>();
+
+
+    ThreadInfoResolver(long folderId) {
+        this.folderId = folderId;
+    }
+
+    void prefetch(SQLiteDatabase db, Collection<String> messageIds) {
+        Set<String> pendingMessageIds = new LinkedHashSet<>();
+        for (String messageId : messageIds) {
+            if (messageId != null && !rowsByMessageId.containsKey(messageId)) {
+                pendingMessageIds.add(messageId);
+            }
+        }
+
+        List<String> batch = new ArrayList<>(PREFETCH_BATCH_SIZE);
+        for (String messageId : pendingMessageIds) {
+            rowsByMessageId.put(messageId, new ArrayList<Row>());
+
+            batch.add(messageId);
+            if (batch.size() == PREFETCH_BATCH_SIZE) {
+                loadRows(db, batch);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            loadRows(db, batch);
+        }
+    }
+
+    private void loadRows(SQLiteDatabase db, List<String> messageIds) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT m.id, m.message_id, m.empty, t.id, t.message_id, t.root, t.parent " +
+                "FROM messages m " +
+                "LEFT JOIN threads t ON (t.message_id = m.id) " +
+                "WHERE m.folder_id = ? AND m.message_id IN (");
+
+        String[] selectionArgs = new String[messageIds.size() + 1];
+        selectionArgs[0] = Long.toString(folderId);
+        for (int i = 0, size = messageIds.size(); i < size; i++) {
+            sql.append((i == 0) ? "?" : ",?");
+            selectionArgs[i + 1] = messageIds.get(i);
+        }
+        sql.append(") ORDER BY m.id");
+
+        Cursor cursor = db.rawQuery(sql.toString(), selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                List<Row> rows = rowsByMessageId.get(cursor.getString(1));
+
+                // Rows we already know about have been kept up to date
+                Row row = rowsById.get(id);
+                if (row == null) {
+                    row = new Row(cursor.getString(1), cursor.getInt(2) == 1);
+                    row.threadId = cursor.getLong(3);
+                    row.threadMessageId = cursor.getLong(4);
+                    row.rootId = cursor.isNull(5) ? -1 : cursor.getLong(5);
+                    row.parentId = cursor.isNull(6) ? -1 : cursor.getLong(6);
+                    rowsById.put(id, row);
+                } else if (!rows.isEmpty() && rows.get(rows.size() - 1) == row) {
+                    // More than one entry in 'threads' for this message
+                    continue;
+                }
+
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the thread information of the oldest message in the folder with the given Message-ID.
+     *
+     * @param onlyEmpty
+     *         {@code true} to only consider placeholder messages.
+     */
+    ThreadInfo getThreadInfo(SQLiteDatabase db, String messageId, boolean onlyEmpty) {
+        if (messageId == null) {
+            return null;
+        }
+
+        List<Row> rows = rowsByMessageId.get(messageId);
+        if (rows == null) {
+            prefetch(db, Collections.singletonList(messageId));
+            rows = rowsByMessageId.get(messageId);
+        }
+
+        for (Row row : rows) {
+            if (!onlyEmpty || row.empty) {
+                return new ThreadInfo(row.threadId, row.threadMessageId, messageId, row.rootId, row.parentId);
+            }
+        }
+
+        return null;
+    }
+
+    void messageInserted(long id, String messageId, boolean empty, long threadId, long rootId, long parentId) {
+        Row row = new Row(messageId, empty);
+        row.threadId = threadId;
+        row.threadMessageId = id;
+        row.rootId = rootId;
+        row.parentId = parentId;
+        rowsById.put(id, row);
+
+        // New rows have the highest id, so appending keeps the list ordered
+        List<Row> rows = (messageId != null) ? rowsByMessageId.get(messageId) : null;
+        if (rows != null) {
+            rows.add(row);
+        }
+    }
+
+    void messageUpdated(long id, String messageId, boolean empty) {
+        Row row = rowsById.get(id);
+        if (row != null && TextUtils.equals(row.messageId, messageId)) {
+            row.empty = empty;
+            return;
+        }
+
+        if (row != null) {
+            List<Row> rows = (row.messageId != null) ? rowsByMessageId.get(row.messageId) : null;
+            if (rows != null) {
+                rows.remove(row);
+            }
+            rowsById.remove(id);
+        }
+
+        // The position of the message in the list isn't known. Load the list again when it's needed.
+        if (messageId != null) {
+            rowsByMessageId.remove(messageId);
+        }
+    }
+
+    void threadsRerooted(long oldRootId, long newRootId) {
+        for (Row row : rowsById.values()) {
+            if (row.rootId == oldRootId) {
+                row.rootId = newRootId;
+            }
+        }
+    }
+
+    void threadUpdated(long threadId, long rootId, long parentId) {
+        for (Row row : rowsById.values()) {
+            if (row.threadId == threadId) {
+                row.rootId = rootId;
+                row.parentId = parentId;
+            }
+        }
+    }
+
+
+    private static class Row {
+        final String messageId;
+        boolean empty;
+        long threadId;
+        long threadMessageId;
+        long rootId;
+        long parentId;
+
+        Row(String messageId, boolean empty) {
+            this.messageId = messageId;
+            this.empty = empty;
+        }
+    }
+}
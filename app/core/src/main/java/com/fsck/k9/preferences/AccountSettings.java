@@ -119,6 +119,12 @@ public class AccountSettings {
         s.put("maxPushFolders", Settings.versions(
                 new V(1, new IntegerRangeSetting(0, 100, 10))
         ));
+        s.put("maxSyncConnections", Settings.versions(
+                new V(54, new IntegerRangeSetting(1, 10, Account.DEFAULT_MAX_SYNC_CONNECTIONS))
+        ));
+        s.put("maxSmtpSessions", Settings.versions(
+                new V(55, new IntegerRangeSetting(1, 5, Account.DEFAULT_MAX_SMTP_SESSIONS))
+        ));
         s.put("maximumAutoDownloadMessageSize", Settings.versions(
                 new V(1, new IntegerResourceSetting(32768, R.array.autodownload_message_size_values))
         ));
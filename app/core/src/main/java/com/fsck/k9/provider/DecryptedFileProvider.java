@@ -22,6 +22,7 @@ import android.text.TextUtils;
 import timber.log.Timber;
 
 import com.fsck.k9.K9;
+import com.fsck.k9.crypto.e3.E3DecryptedMessageCache;
 import com.fsck.k9.mailstore.util.FileFactory;
 import org.apache.james.mime4j.codec.Base64InputStream;
 import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
@@ -160,6 +161,9 @@ public class DecryptedFileProvider extends FileProvider {
             return;
         }
 
+        // Cached messages may refer to the files we're about to delete
+        E3DecryptedMessageCache.getInstance().clear();
+
         new AsyncTask<Void,Void,Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
@@ -46,6 +46,19 @@ public class EmailProvider extends ContentProvider {
     public static String AUTHORITY;
     public static Uri CONTENT_URI;
 
+    /**
+     * Query parameter to limit the number of rows returned for the message list URIs. Together with an indexed sort
+     * order this allows the message list to only load what is displayed.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameter to signal that the selection of a threaded message list URI selects a single folder and nothing
+     * else. The list can then be read from the precomputed {@code thread_summary} table instead of aggregating over
+     * all messages.
+     */
+    public static final String QUERY_PARAMETER_SINGLE_FOLDER = "single_folder";
+
     private UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
 
@@ -60,6 +73,23 @@ public class EmailProvider extends ContentProvider {
 
     private static final String MESSAGES_TABLE = "messages";
 
+    private static final String THREAD_SUMMARY_TABLE = "thread_summary";
+
+    private static final Map<String, String> THREAD_SUMMARY_COLUMNS = new HashMap<>();
+    static {
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.ID, "m.id");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.FOLDER_ID, "s.folder_id");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.DATE, "s.date");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.INTERNAL_DATE, "s.internal_date");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.ATTACHMENT_COUNT, "s.attachment_count");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.READ, "(s.unread_count = 0)");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.FLAGGED, "(s.flagged_count > 0)");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.ANSWERED, "(s.answered_count = s.thread_count)");
+        THREAD_SUMMARY_COLUMNS.put(MessageColumns.FORWARDED, "(s.forwarded_count = s.thread_count)");
+        THREAD_SUMMARY_COLUMNS.put(ThreadColumns.ROOT, "s.root");
+        THREAD_SUMMARY_COLUMNS.put(SpecialColumns.THREAD_COUNT, "s.thread_count");
+    }
+
     private static final Map<String, String> THREAD_AGGREGATION_FUNCS = new HashMap<>();
     static {
         THREAD_AGGREGATION_FUNCS.put(MessageColumns.DATE, "MAX");
@@ -224,11 +254,16 @@ public class EmailProvider extends ContentProvider {
                 }
 
                 String[] dbProjection = dbColumnNames.toArray(new String[0]);
+                String limit = getLimit(uri);
 
                 if (match == MESSAGES) {
-                    cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder);
+                    cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder, limit);
+                } else if (match == MESSAGES_THREADED && isSingleFolderSelection(uri)) {
+                    cursor = getThreadSummaries(accountUuid, dbProjection, selection, selectionArgs, sortOrder,
+                            limit);
                 } else if (match == MESSAGES_THREADED) {
-                    cursor = getThreadedMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder);
+                    cursor = getThreadedMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder,
+                            limit);
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -248,6 +283,23 @@ public class EmailProvider extends ContentProvider {
         return cursor;
     }
 
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+
+        try {
+            return Integer.toString(Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + limit, e);
+        }
+    }
+
+    private static boolean isSingleFolderSelection(Uri uri) {
+        return uri.getBooleanQueryParameter(QUERY_PARAMETER_SINGLE_FOLDER, false);
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         throw new RuntimeException("not implemented yet");
@@ -264,7 +316,7 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getMessages(String accountUuid, final String[] projection, final String selection,
-            final String[] selectionArgs, final String sortOrder) {
+            final String[] selectionArgs, final String sortOrder, final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -313,9 +365,15 @@ public class EmailProvider extends ContentProvider {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS, "m.", sortOrder));
 
+                        if (limit != null) {
+                            query.append(" LIMIT ");
+                            query.append(limit);
+                        }
+
                         cursor = db.rawQuery(query.toString(), selectionArgs);
                     } else {
-                        cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null, null, sortOrder);
+                        cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null, null, sortOrder,
+                                limit);
                     }
 
                     return cursor;
@@ -329,7 +387,7 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getThreadedMessages(String accountUuid, final String[] projection, final String selection,
-            final String[] selectionArgs, final String sortOrder) {
+            final String[] selectionArgs, final String sortOrder, final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -389,8 +447,84 @@ public class EmailProvider extends ContentProvider {
 
                     if (!TextUtils.isEmpty(sortOrder)) {
                         query.append(" ORDER BY ");
+                        String threadSortOrder = SqlQueryBuilder.addPrefixToSelection(
+                                FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder);
                         query.append(SqlQueryBuilder.addPrefixToSelection(
-                                FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
+                                FIXUP_MESSAGES_COLUMNS, "m.", threadSortOrder));
+                    }
+
+                    if (limit != null) {
+                        query.append(" LIMIT ");
+                        query.append(limit);
+                    }
+
+                    return db.rawQuery(query.toString(), selectionArgs);
+                }
+            });
+        } catch (UnavailableStorageException e) {
+            throw new RuntimeException("Storage not available", e);
+        } catch (MessagingException e) {
+            throw new RuntimeException("messaging exception", e);
+        }
+    }
+
+    /**
+     * Reads the threaded message list from the {@code thread_summary} table, which holds one row per thread and folder.
+     * <p>
+     * This may only be used if {@code selection} selects a single folder. With any other condition the aggregated
+     * values would have to be limited to the matching messages of a thread. With several folders a thread that spans
+     * them would show up once per folder, with its counts split between the rows.
+     */
+    protected Cursor getThreadSummaries(String accountUuid, final String[] projection, final String selection,
+            final String[] selectionArgs, final String sortOrder, final String limit) {
+
+        Account account = getAccount(accountUuid);
+        LockableDatabase database = getDatabase(account);
+
+        try {
+            return database.execute(false, new DbCallback<Cursor>() {
+                @Override
+                public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+
+                    StringBuilder query = new StringBuilder();
+                    query.append("SELECT * FROM (SELECT ");
+                    boolean first = true;
+                    for (String columnName : projection) {
+                        if (!first) {
+                            query.append(",");
+                        } else {
+                            first = false;
+                        }
+
+                        String summaryColumn = THREAD_SUMMARY_COLUMNS.get(columnName);
+                        if (summaryColumn != null) {
+                            query.append(summaryColumn);
+                            query.append(" AS ");
+                        }
+                        query.append(columnName);
+                    }
+
+                    query.append(" FROM " + THREAD_SUMMARY_TABLE + " s " +
+                            "JOIN " + MESSAGES_TABLE + " m ON (m." + MessageColumns.ID + " = s.latest_message_id) " +
+                            "JOIN " + FOLDERS_TABLE + " f ON (f." + FolderColumns.ID + " = s.folder_id)");
+
+                    if (!TextUtils.isEmpty(selection)) {
+                        query.append(" WHERE ");
+                        query.append(SqlQueryBuilder.addPrefixToSelection(
+                                new String[] { MessageColumns.FOLDER_ID }, "s.", selection));
+                    }
+
+                    query.append(")");
+
+                    if (!TextUtils.isEmpty(sortOrder)) {
+                        query.append(" ORDER BY ");
+                        query.append(sortOrder);
+                    }
+
+                    if (limit != null) {
+                        query.append(" LIMIT ");
+                        query.append(limit);
                     }
 
                     return db.rawQuery(query.toString(), selectionArgs);
@@ -444,7 +578,7 @@ public class EmailProvider extends ContentProvider {
 
         if (!TextUtils.isEmpty(selection)) {
             query.append(" AND (");
-            query.append(selection);
+            query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS, "m.", selection));
             query.append(")");
         }
 
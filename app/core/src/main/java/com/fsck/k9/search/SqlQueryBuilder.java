@@ -1,14 +1,18 @@
 package com.fsck.k9.search;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import timber.log.Timber;
 
 import com.fsck.k9.Account;
+import com.fsck.k9.crypto.e3.E3SearchIndex;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mailstore.LocalFolder;
 import com.fsck.k9.mailstore.LocalStore;
+import com.fsck.k9.mailstore.MessageAddressIndex;
 import com.fsck.k9.search.SearchSpecification.Attribute;
 import com.fsck.k9.search.SearchSpecification.SearchCondition;
 import com.fsck.k9.search.SearchSpecification.SearchField;
@@ -79,8 +83,27 @@ public class SqlQueryBuilder {
                     if (condition.attribute != Attribute.CONTAINS) {
                         Timber.e("message contents can only be matched!");
                     }
-                    query.append("m.id IN (SELECT docid FROM messages_fulltext WHERE fulltext MATCH ?)");
-                    selectionArgs.add(fulltextQueryString);
+                    Set<String> e3SearchTokens = getE3SearchTokens(account, fulltextQueryString);
+                    if (e3SearchTokens.isEmpty()) {
+                        query.append("m.id IN (SELECT docid FROM messages_fulltext WHERE fulltext MATCH ?)");
+                        selectionArgs.add(fulltextQueryString);
+                    } else {
+                        query.append("(m.id IN (SELECT docid FROM messages_fulltext WHERE fulltext MATCH ?)");
+                        selectionArgs.add(fulltextQueryString);
+                        query.append(" OR ");
+                        appendE3SearchTokensCondition(e3SearchTokens, query, selectionArgs);
+                        query.append(")");
+                    }
+                    break;
+                }
+                case SENDER:
+                case TO:
+                case CC: {
+                    if (condition.attribute == Attribute.EQUALS) {
+                        appendAddressCondition(condition, query, selectionArgs);
+                    } else {
+                        appendCondition(condition, query, selectionArgs);
+                    }
                     break;
                 }
                 default: {
@@ -98,6 +121,63 @@ public class SqlQueryBuilder {
         }
     }
 
+    private static Set<String> getE3SearchTokens(Account account, String queryString) {
+        E3SearchIndex searchIndex = account != null ? E3SearchIndex.get(account) : null;
+        if (searchIndex == null) {
+            return Collections.emptySet();
+        }
+
+        return searchIndex.createTokens(queryString);
+    }
+
+    /**
+     * Matches E3 encrypted messages that contain all words of the search query.
+     */
+    private static void appendE3SearchTokensCondition(Set<String> tokens, StringBuilder query,
+            List<String> selectionArgs) {
+        query.append("m.id IN (SELECT message_id FROM e3_search_tokens WHERE token IN (");
+        boolean first = true;
+        for (String token : tokens) {
+            if (!first) {
+                query.append(", ");
+            }
+            query.append("?");
+            selectionArgs.add(token);
+            first = false;
+        }
+        query.append(") GROUP BY message_id HAVING COUNT(DISTINCT token) = ");
+        query.append(tokens.size());
+        query.append(")");
+    }
+
+    /**
+     * Matches messages where one of the addresses in the searched field is the given address. This uses the index on
+     * the {@code message_addresses} table instead of matching against the packed address list.
+     */
+    private static void appendAddressCondition(SearchCondition condition, StringBuilder query,
+            List<String> selectionArgs) {
+        query.append("id IN (SELECT message_id FROM message_addresses WHERE address = ? AND role = ?)");
+        selectionArgs.add(MessageAddressIndex.normalizeAddress(condition.value));
+        selectionArgs.add(getAddressRole(condition.field));
+    }
+
+    private static String getAddressRole(SearchField field) {
+        switch (field) {
+            case SENDER: {
+                return MessageAddressIndex.ROLE_FROM;
+            }
+            case TO: {
+                return MessageAddressIndex.ROLE_TO;
+            }
+            case CC: {
+                return MessageAddressIndex.ROLE_CC;
+            }
+            default: {
+                throw new RuntimeException("Unhandled case");
+            }
+        }
+    }
+
     private static void appendCondition(SearchCondition condition, StringBuilder query,
             List<String> selectionArgs) {
         query.append(getColumnName(condition));
@@ -283,6 +363,44 @@ public class SqlQueryBuilder {
         }
     }
 
+    /**
+     * Checks whether a search only restricts the selection of folders, i.e. whether its where clause can be evaluated
+     * against the {@code folders} table alone.
+     */
+    public static boolean containsOnlyFolderConditions(ConditionsTreeNode node) {
+        if (node == null) {
+            return true;
+        }
+
+        for (ConditionsTreeNode current : node.preorder()) {
+            if (current.mCondition == null) {
+                continue;
+            }
+
+            switch (current.mCondition.field) {
+                case FOLDER:
+                case SEARCHABLE:
+                case INTEGRATE:
+                case DISPLAY_CLASS: {
+                    break;
+                }
+                default: {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks whether a search selects exactly one folder, i.e. consists of a single {@code FOLDER EQUALS} condition.
+     */
+    public static boolean isSingleFolderCondition(ConditionsTreeNode node) {
+        return node != null && node.mCondition != null && node.mCondition.field == SearchField.FOLDER &&
+                node.mCondition.attribute == Attribute.EQUALS;
+    }
+
     public static String addPrefixToSelection(String[] columnNames, String prefix, String selection) {
         String result = selection;
         for (String columnName : columnNames) {
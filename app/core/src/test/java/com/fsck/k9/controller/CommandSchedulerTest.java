@@ -0,0 +1,219 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9RobolectricTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class CommandSchedulerTest extends K9RobolectricTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private CommandScheduler scheduler;
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+
+    @Before
+    public void setUp() {
+        scheduler = new CommandScheduler(1, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.stop();
+    }
+
+    @Test
+    public void put_withForegroundCommand_shouldNotWaitForBackgroundCommand() throws Exception {
+        Account account = createAccount("account");
+        CountDownLatch blockBackground = new CountDownLatch(1);
+        CountDownLatch foregroundDone = new CountDownLatch(1);
+
+        scheduler.put(account, "background", null, awaiting(blockBackground), false, null);
+        scheduler.put(account, "foreground", null, countingDown(foregroundDone), true, null);
+
+        try {
+            assertTrue(foregroundDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            blockBackground.countDown();
+        }
+    }
+
+    @Test
+    public void put_withForegroundCommandForSameFolder_shouldWaitForBackgroundCommand() throws Exception {
+        Account account = createAccount("account");
+        final CountDownLatch backgroundStarted = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+
+        scheduler.put(account, "INBOX", "background", null, new Runnable() {
+            @Override
+            public void run() {
+                backgroundStarted.countDown();
+                sleep(100);
+                executed.add("background");
+                finished.countDown();
+            }
+        }, false, null);
+        assertTrue(backgroundStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        scheduler.put(account, "INBOX", "foreground", null, recording("foreground", finished), true, null);
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList("background", "foreground"), executed);
+    }
+
+    @Test
+    public void put_withForegroundCommandForOtherFolder_shouldNotWaitForBackgroundCommand() throws Exception {
+        Account account = createAccount("account");
+        CountDownLatch blockBackground = new CountDownLatch(1);
+        CountDownLatch foregroundDone = new CountDownLatch(1);
+
+        scheduler.put(account, "INBOX", "background", null, awaiting(blockBackground), false, null);
+        scheduler.put(account, "Sent", "foreground", null, countingDown(foregroundDone), true, null);
+
+        try {
+            assertTrue(foregroundDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            blockBackground.countDown();
+        }
+    }
+
+    @Test
+    public void runForFolder_shouldKeepCommandsForSameFolderWaiting() throws Exception {
+        final Account account = createAccount("account");
+        final CountDownLatch syncStarted = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.runForFolder(account, "INBOX", new Runnable() {
+                        @Override
+                        public void run() {
+                            syncStarted.countDown();
+                            sleep(100);
+                            executed.add("sync");
+                        }
+                    });
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        syncThread.start();
+        assertTrue(syncStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        scheduler.put(account, "INBOX", "foreground", null, recording("foreground", finished), true, null);
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList("sync", "foreground"), executed);
+        syncThread.join();
+    }
+
+    @Test
+    public void put_withSeveralAccounts_shouldTakeTurns() throws Exception {
+        Account account1 = createAccount("account1");
+        Account account2 = createAccount("account2");
+        CountDownLatch blockWorker = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(4);
+
+        scheduler.put(null, "block", null, awaiting(blockWorker), false, null);
+        scheduler.put(account1, "a1", null, recording("a1", finished), false, null);
+        scheduler.put(account1, "a2", null, recording("a2", finished), false, null);
+        scheduler.put(account1, "a3", null, recording("a3", finished), false, null);
+        scheduler.put(account2, "b1", null, recording("b1", finished), false, null);
+        blockWorker.countDown();
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList("a1", "b1", "a2", "a3"), executed);
+    }
+
+    @Test
+    public void put_withSupersedeKey_shouldDropWaitingCommandWithSameKey() throws Exception {
+        Account account = createAccount("account");
+        CountDownLatch blockWorker = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+
+        scheduler.put(account, "block", null, awaiting(blockWorker), false, null);
+        scheduler.put(account, "sync1", null, recording("sync1", finished), false, "sync:INBOX");
+        scheduler.put(account, "other", null, recording("other", finished), false, "sync:Sent");
+        scheduler.put(account, "sync2", null, recording("sync2", finished), false, "sync:INBOX");
+        blockWorker.countDown();
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList("other", "sync2"), executed);
+    }
+
+    @Test
+    public void put_withSupersedeKeyAndDifferentListener_shouldKeepWaitingCommand() throws Exception {
+        Account account = createAccount("account");
+        CountDownLatch blockWorker = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+
+        scheduler.put(account, "block", null, awaiting(blockWorker), false, null);
+        scheduler.put(account, "sync1", mock(MessagingListener.class), recording("sync1", finished), false,
+                "sync:INBOX");
+        scheduler.put(account, "sync2", mock(MessagingListener.class), recording("sync2", finished), false,
+                "sync:INBOX");
+        blockWorker.countDown();
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList("sync1", "sync2"), executed);
+    }
+
+    private Runnable awaiting(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+    }
+
+    private Runnable countingDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private Runnable recording(final String name, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name);
+                latch.countDown();
+            }
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private Account createAccount(String uuid) {
+        Account account = mock(Account.class);
+        when(account.getUuid()).thenReturn(uuid);
+        return account;
+    }
+}
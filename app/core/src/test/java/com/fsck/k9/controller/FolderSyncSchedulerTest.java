@@ -0,0 +1,215 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9RobolectricTest;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class FolderSyncSchedulerTest extends K9RobolectricTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private FolderSyncScheduler scheduler;
+
+
+    @Before
+    public void setUp() {
+        scheduler = new FolderSyncScheduler();
+    }
+
+    @Test
+    public void execute_shouldNotExceedMaxSyncConnectionsOfAccount() throws Exception {
+        Account account = createAccount("account", 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(6);
+
+        for (int i = 0; i < 6; i++) {
+            scheduler.execute(account, "folder" + i, new Runnable() {
+                @Override
+                public void run() {
+                    int nowRunning = running.incrementAndGet();
+                    updateMax(maxRunning, nowRunning);
+                    sleep(50);
+                    running.decrementAndGet();
+                    finished.countDown();
+                }
+            });
+        }
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void execute_withDifferentAccounts_shouldRunInParallel() throws Exception {
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final CountDownLatch finished = new CountDownLatch(2);
+        Runnable waitForOtherAccount = new Runnable() {
+            @Override
+            public void run() {
+                bothRunning.countDown();
+                try {
+                    if (bothRunning.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        finished.countDown();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+
+        scheduler.execute(createAccount("account1", 1), "INBOX", waitForOtherAccount);
+        scheduler.execute(createAccount("account2", 1), "INBOX", waitForOtherAccount);
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void execute_withAccountsOnSameHost_shouldShareMaxSyncConnections() throws Exception {
+        Account account1 = createAccount("account1", 2, "imap+ssl+://PLAIN:user1:pass@imap.example.com:993");
+        Account account2 = createAccount("account2", 2, "imap+ssl+://PLAIN:user2:pass@IMAP.example.com:993");
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(6);
+        Runnable folderSync = new Runnable() {
+            @Override
+            public void run() {
+                int nowRunning = running.incrementAndGet();
+                updateMax(maxRunning, nowRunning);
+                sleep(50);
+                running.decrementAndGet();
+                finished.countDown();
+            }
+        };
+
+        for (int i = 0; i < 3; i++) {
+            scheduler.execute(account1, "folder" + i, folderSync);
+            scheduler.execute(account2, "folder" + i, folderSync);
+        }
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void getServerKey_withStoreUri_shouldReturnLowerCaseHost() {
+        Account account = createAccount("account", 1, "imap+ssl+://PLAIN:user:pass@IMAP.Example.com:993");
+
+        assertEquals("imap.example.com", FolderSyncScheduler.getServerKey(account));
+    }
+
+    @Test
+    public void getServerKey_withoutStoreUri_shouldReturnAccountUuid() {
+        Account account = createAccount("account", 1);
+
+        assertEquals("account", FolderSyncScheduler.getServerKey(account));
+    }
+
+    @Test
+    public void execute_withSameFolder_shouldRunInOrder() throws Exception {
+        Account account = createAccount("account", 5);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch finished = new CountDownLatch(3);
+
+        for (int i = 0; i < 3; i++) {
+            final int index = i;
+            scheduler.execute(account, "INBOX", new Runnable() {
+                @Override
+                public void run() {
+                    sleep(20);
+                    order.add(index);
+                    finished.countDown();
+                }
+            });
+        }
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(asList(0, 1, 2), order);
+    }
+
+    @Test
+    public void syncGroup_shouldRunCallbackAfterAllSyncsFinished() throws Exception {
+        Account account = createAccount("account", 3);
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger completedWhenFinished = new AtomicInteger(-1);
+        final CountDownLatch callbackRun = new CountDownLatch(1);
+
+        FolderSyncScheduler.SyncGroup group = scheduler.newGroup();
+        for (int i = 0; i < 4; i++) {
+            group.execute(account, "folder" + i, new Runnable() {
+                @Override
+                public void run() {
+                    sleep(20);
+                    completed.incrementAndGet();
+                }
+            });
+        }
+        group.whenFinished(new Runnable() {
+            @Override
+            public void run() {
+                completedWhenFinished.set(completed.get());
+                callbackRun.countDown();
+            }
+        });
+        group.close();
+
+        assertTrue(callbackRun.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(4, completedWhenFinished.get());
+    }
+
+    @Test
+    public void syncGroup_withoutSyncs_shouldRunCallbackOnClose() {
+        final AtomicInteger callbackCount = new AtomicInteger();
+        FolderSyncScheduler.SyncGroup group = scheduler.newGroup();
+        group.whenFinished(new Runnable() {
+            @Override
+            public void run() {
+                callbackCount.incrementAndGet();
+            }
+        });
+
+        group.close();
+
+        assertEquals(1, callbackCount.get());
+    }
+
+    private static Account createAccount(String uuid, int maxSyncConnections) {
+        return createAccount(uuid, maxSyncConnections, null);
+    }
+
+    private static Account createAccount(String uuid, int maxSyncConnections, String storeUri) {
+        Account account = mock(Account.class);
+        when(account.getUuid()).thenReturn(uuid);
+        when(account.getMaxSyncConnections()).thenReturn(maxSyncConnections);
+        when(account.getStoreUri()).thenReturn(storeUri);
+        return account;
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int currentMax;
+        do {
+            currentMax = max.get();
+        } while (value > currentMax && !max.compareAndSet(currentMax, value));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
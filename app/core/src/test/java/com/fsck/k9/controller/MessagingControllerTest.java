@@ -26,6 +26,7 @@ import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.SendMessagesListener;
 import com.fsck.k9.mailstore.LocalFolder;
 import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.mailstore.LocalStore;
@@ -446,7 +447,8 @@ public class MessagingControllerTest extends K9RobolectricTest {
 
         controller.sendPendingMessagesSynchronous(account);
 
-        verify(backend).sendMessage(localMessageToSend1);
+        verify(backend).sendMessages(eq(Collections.singletonList(localMessageToSend1)),
+                any(SendMessagesListener.class));
     }
 
     @Test
@@ -455,12 +457,28 @@ public class MessagingControllerTest extends K9RobolectricTest {
 
         controller.sendPendingMessagesSynchronous(account);
 
-        InOrder ordering = inOrder(localMessageToSend1, backend);
+        InOrder ordering = inOrder(localMessageToSend1);
         ordering.verify(localMessageToSend1).setFlag(Flag.X_SEND_IN_PROGRESS, true);
-        ordering.verify(backend).sendMessage(localMessageToSend1);
         ordering.verify(localMessageToSend1).setFlag(Flag.X_SEND_IN_PROGRESS, false);
     }
 
+    @Test
+    public void sendPendingMessagesSynchronous_withMessageNotStartedByBackend_shouldNotSetSendInProgressFlag()
+            throws MessagingException {
+        setupAccountWithMessageToSend();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                return null;
+            }
+        }).when(backend).sendMessages(ArgumentMatchers.<LocalMessage>anyList(),
+                ArgumentMatchers.<SendMessagesListener<LocalMessage>>any());
+
+        controller.sendPendingMessagesSynchronous(account);
+
+        verify(localMessageToSend1, never()).setFlag(Flag.X_SEND_IN_PROGRESS, true);
+    }
+
     @Test
     public void sendPendingMessagesSynchronous_shouldMarkSentMessageAsSeen() throws MessagingException {
         setupAccountWithMessageToSend();
@@ -491,7 +509,7 @@ public class MessagingControllerTest extends K9RobolectricTest {
     @Test
     public void sendPendingMessagesSynchronous_withAuthenticationFailure_shouldNotify() throws MessagingException {
         setupAccountWithMessageToSend();
-        doThrow(new AuthenticationFailedException("Test")).when(backend).sendMessage(localMessageToSend1);
+        reportSendResults(new AuthenticationFailedException("Test"));
 
         controller.sendPendingMessagesSynchronous(account);
 
@@ -501,7 +519,7 @@ public class MessagingControllerTest extends K9RobolectricTest {
     @Test
     public void sendPendingMessagesSynchronous_withCertificateFailure_shouldNotify() throws MessagingException {
         setupAccountWithMessageToSend();
-        doThrow(new CertificateValidationException("Test")).when(backend).sendMessage(localMessageToSend1);
+        reportSendResults(new CertificateValidationException("Test"));
 
         controller.sendPendingMessagesSynchronous(account);
 
@@ -527,9 +545,30 @@ public class MessagingControllerTest extends K9RobolectricTest {
         when(localFolder.getMessages(null)).thenReturn(Collections.singletonList(localMessageToSend1));
         when(localMessageToSend1.getUid()).thenReturn("localMessageToSend1");
         when(localMessageToSend1.getHeader(K9.IDENTITY_HEADER)).thenReturn(new String[]{});
+        reportSendResults(null);
         controller.addListener(listener);
     }
 
+    private void reportSendResults(final Exception failure) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                List<LocalMessage> messages = invocation.getArgument(0);
+                SendMessagesListener<LocalMessage> sendListener = invocation.getArgument(1);
+                for (LocalMessage message : messages) {
+                    sendListener.messageSending(message);
+                    if (failure == null) {
+                        sendListener.messageSent(message);
+                    } else {
+                        sendListener.messageFailed(message, failure);
+                    }
+                }
+                return null;
+            }
+        }).when(backend).sendMessages(ArgumentMatchers.<LocalMessage>anyList(),
+                ArgumentMatchers.<SendMessagesListener<LocalMessage>>any());
+    }
+
     private void configureBackendManager() {
         when(backendManager.getBackend(account)).thenReturn(backend);
     }
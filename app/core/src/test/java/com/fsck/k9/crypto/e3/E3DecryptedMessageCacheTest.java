@@ -0,0 +1,155 @@
+package com.fsck.k9.crypto.e3;
+
+
+import java.util.Collections;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9RobolectricTest;
+import com.fsck.k9.mailstore.AttachmentViewInfo;
+import com.fsck.k9.mailstore.LocalMessage;
+import com.fsck.k9.mailstore.MessageViewInfo;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class E3DecryptedMessageCacheTest extends K9RobolectricTest {
+    private static final Long KEY_ID = 23L;
+    private static final Long OTHER_KEY_ID = 42L;
+    private static final String ACCOUNT_UUID = "account";
+    private static final String OTHER_ACCOUNT_UUID = "otherAccount";
+
+
+    private final E3DecryptedMessageCache cache = new E3DecryptedMessageCache();
+
+
+    @Test
+    public void get_afterPut_shouldReturnInfoForNewMessageInstance() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("text"));
+        LocalMessage reloadedMessage = createMessage(1);
+
+        MessageViewInfo result = cache.get(reloadedMessage, KEY_ID);
+
+        assertSame(reloadedMessage, result.message);
+        assertEquals("text", result.text);
+    }
+
+    @Test
+    public void get_withOtherKey_shouldReturnNull() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("text"));
+
+        assertNull(cache.get(createMessage(1), OTHER_KEY_ID));
+    }
+
+    @Test
+    public void get_withSamePartIdInOtherAccount_shouldReturnNull() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("text"));
+
+        assertNull(cache.get(createMessage(OTHER_ACCOUNT_UUID, 1, 1), KEY_ID));
+    }
+
+    @Test
+    public void get_withReusedPartIdOfOtherMessage_shouldReturnNull() {
+        cache.put(RuntimeEnvironment.application, createMessage(ACCOUNT_UUID, 1, 1), KEY_ID,
+                createMessageViewInfo("text"));
+
+        assertNull(cache.get(createMessage(ACCOUNT_UUID, 2, 1), KEY_ID));
+    }
+
+    @Test
+    public void invalidateMessage_shouldOnlyRemoveEntriesOfMessage() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("one"));
+        cache.put(RuntimeEnvironment.application, createMessage(1), OTHER_KEY_ID, createMessageViewInfo("one"));
+        cache.put(RuntimeEnvironment.application, createMessage(2), KEY_ID, createMessageViewInfo("two"));
+        cache.put(RuntimeEnvironment.application, createMessage(OTHER_ACCOUNT_UUID, 1, 1), KEY_ID,
+                createMessageViewInfo("other"));
+
+        cache.invalidateMessage(ACCOUNT_UUID, 1);
+
+        assertNull(cache.get(createMessage(1), KEY_ID));
+        assertNull(cache.get(createMessage(1), OTHER_KEY_ID));
+        assertEquals("two", cache.get(createMessage(2), KEY_ID).text);
+        assertEquals("other", cache.get(createMessage(OTHER_ACCOUNT_UUID, 1, 1), KEY_ID).text);
+    }
+
+    @Test
+    public void invalidateAccount_shouldOnlyRemoveEntriesOfAccount() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("one"));
+        cache.put(RuntimeEnvironment.application, createMessage(OTHER_ACCOUNT_UUID, 1, 1), KEY_ID,
+                createMessageViewInfo("other"));
+
+        cache.invalidateAccount(ACCOUNT_UUID);
+
+        assertNull(cache.get(createMessage(1), KEY_ID));
+        assertEquals("other", cache.get(createMessage(OTHER_ACCOUNT_UUID, 1, 1), KEY_ID).text);
+    }
+
+    @Test
+    public void invalidateKey_shouldOnlyRemoveEntriesOfKey() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("one"));
+        cache.put(RuntimeEnvironment.application, createMessage(2), OTHER_KEY_ID, createMessageViewInfo("two"));
+
+        cache.invalidateKey(KEY_ID);
+
+        assertNull(cache.get(createMessage(1), KEY_ID));
+        assertEquals("two", cache.get(createMessage(2), OTHER_KEY_ID).text);
+    }
+
+    @Test
+    public void clear_shouldRemoveAllEntries() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("one"));
+
+        cache.clear();
+
+        assertNull(cache.get(createMessage(1), KEY_ID));
+    }
+
+    @Test
+    public void put_afterTimeout_shouldWipeEntryWithoutAccess() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("text"));
+
+        ShadowLooper.idleMainLooper(E3DecryptedMessageCache.ENTRY_TIMEOUT_MILLIS + 1);
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void get_beforeTimeout_shouldKeepEntryUntilItExpires() {
+        cache.put(RuntimeEnvironment.application, createMessage(1), KEY_ID, createMessageViewInfo("one"));
+        ShadowLooper.idleMainLooper(E3DecryptedMessageCache.ENTRY_TIMEOUT_MILLIS / 2);
+        cache.get(createMessage(1), KEY_ID);
+
+        ShadowLooper.idleMainLooper(E3DecryptedMessageCache.ENTRY_TIMEOUT_MILLIS / 2 + 1);
+        assertEquals(1, cache.size());
+
+        ShadowLooper.idleMainLooper(E3DecryptedMessageCache.ENTRY_TIMEOUT_MILLIS / 2);
+        assertEquals(0, cache.size());
+    }
+
+    private LocalMessage createMessage(long messagePartId) {
+        return createMessage(ACCOUNT_UUID, messagePartId, messagePartId);
+    }
+
+    private LocalMessage createMessage(String accountUuid, long messageId, long messagePartId) {
+        Account account = mock(Account.class);
+        when(account.getUuid()).thenReturn(accountUuid);
+
+        LocalMessage message = mock(LocalMessage.class);
+        when(message.getAccount()).thenReturn(account);
+        when(message.getDatabaseId()).thenReturn(messageId);
+        when(message.getMessagePartId()).thenReturn(messagePartId);
+        return message;
+    }
+
+    private MessageViewInfo createMessageViewInfo(String text) {
+        return new MessageViewInfo(mock(LocalMessage.class), false, null, "subject", false, text,
+                Collections.<AttachmentViewInfo>emptyList(), null, null, null,
+                Collections.<AttachmentViewInfo>emptyList());
+    }
+}
@@ -0,0 +1,86 @@
+package com.fsck.k9.crypto.e3;
+
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9RobolectricTest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class E3SearchIndexTest extends K9RobolectricTest {
+    private static final String KEY = "AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8=";
+    private static final String OTHER_KEY = "HxwdHhscGhkYFxYVFBMSERAPDg0MCwoJCAcGBQQDAgE=";
+
+
+    @Test
+    public void get_withoutKey_shouldReturnNull() {
+        assertNull(E3SearchIndex.get(createAccount(null)));
+    }
+
+    @Test
+    public void createTokens_withSameWord_shouldReturnSameToken() {
+        E3SearchIndex searchIndex = E3SearchIndex.get(createAccount(KEY));
+
+        Set<String> tokens = searchIndex.createTokens("hello");
+
+        assertEquals(tokens, searchIndex.createTokens("hello"));
+        assertEquals(1, tokens.size());
+    }
+
+    @Test
+    public void createTokens_shouldIgnoreCase() {
+        E3SearchIndex searchIndex = E3SearchIndex.get(createAccount(KEY));
+
+        assertEquals(searchIndex.createTokens("hello"), searchIndex.createTokens("HeLLo"));
+    }
+
+    @Test
+    public void createTokens_shouldSplitAtNonWordCharacters() {
+        E3SearchIndex searchIndex = E3SearchIndex.get(createAccount(KEY));
+
+        Set<String> tokens = searchIndex.createTokens("hello, world! hello");
+
+        assertEquals(2, tokens.size());
+        assertTrue(tokens.containsAll(searchIndex.createTokens("world")));
+    }
+
+    @Test
+    public void createTokens_shouldSkipTooShortAndTooLongWords() {
+        E3SearchIndex searchIndex = E3SearchIndex.get(createAccount(KEY));
+        String tooLongWord = new String(new char[65]).replace('\0', 'a');
+
+        Set<String> tokens = searchIndex.createTokens("a " + tooLongWord + " ok");
+
+        assertEquals(searchIndex.createTokens("ok"), tokens);
+    }
+
+    @Test
+    public void createTokens_withDifferentKeys_shouldReturnDifferentTokens() {
+        E3SearchIndex searchIndex = E3SearchIndex.get(createAccount(KEY));
+        E3SearchIndex otherSearchIndex = E3SearchIndex.get(createAccount(OTHER_KEY));
+
+        assertNotEquals(searchIndex.createTokens("hello"), otherSearchIndex.createTokens("hello"));
+    }
+
+    @Test
+    public void createTokens_withNullText_shouldReturnEmptySet() {
+        E3SearchIndex searchIndex = E3SearchIndex.get(createAccount(KEY));
+
+        assertEquals(Collections.emptySet(), searchIndex.createTokens(null));
+    }
+
+    private Account createAccount(String searchIndexKey) {
+        Account account = mock(Account.class);
+        when(account.getE3SearchIndexKey()).thenReturn(searchIndexKey);
+        return account;
+    }
+}
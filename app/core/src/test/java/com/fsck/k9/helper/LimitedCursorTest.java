@@ -0,0 +1,70 @@
+package com.fsck.k9.helper;
+
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.fsck.k9.K9RobolectricTest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class LimitedCursorTest extends K9RobolectricTest {
+
+    @Test
+    public void getCount_shouldReturnLimit() {
+        Cursor cursor = new LimitedCursor(createCursor(5), 3);
+
+        assertEquals(3, cursor.getCount());
+    }
+
+    @Test
+    public void getCount_withLimitAboveRowCount_shouldReturnRowCount() {
+        Cursor cursor = new LimitedCursor(createCursor(2), 3);
+
+        assertEquals(2, cursor.getCount());
+    }
+
+    @Test
+    public void moveToNext_shouldStopAtLimit() {
+        Cursor cursor = new LimitedCursor(createCursor(5), 3);
+
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            assertEquals(rows, cursor.getLong(0));
+            rows++;
+        }
+
+        assertEquals(3, rows);
+        assertTrue(cursor.isAfterLast());
+    }
+
+    @Test
+    public void moveToLast_shouldMoveToLastRowWithinLimit() {
+        Cursor cursor = new LimitedCursor(createCursor(5), 3);
+
+        assertTrue(cursor.moveToLast());
+        assertEquals(2, cursor.getLong(0));
+        assertTrue(cursor.isLast());
+    }
+
+    @Test
+    public void moveToPosition_beyondLimit_shouldReturnFalse() {
+        Cursor cursor = new LimitedCursor(createCursor(5), 3);
+
+        assertFalse(cursor.moveToPosition(3));
+        assertTrue(cursor.isAfterLast());
+    }
+
+    private Cursor createCursor(int rows) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id" });
+        for (int i = 0; i < rows; i++) {
+            cursor.addRow(new Object[] { i });
+        }
+
+        return cursor;
+    }
+}
@@ -0,0 +1,98 @@
+package com.fsck.k9.helper;
+
+
+import java.util.Comparator;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.fsck.k9.K9RobolectricTest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class MergeCursorTest extends K9RobolectricTest {
+    private static final Comparator<Cursor> VALUE_COMPARATOR = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor left, Cursor right) {
+            long leftValue = left.getLong(0);
+            long rightValue = right.getLong(0);
+            return (leftValue < rightValue) ? -1 : ((leftValue == rightValue) ? 0 : 1);
+        }
+    };
+
+
+    @Test
+    public void getMergedPosition_shouldMatchPositionWhenMerging() {
+        MergeCursor mergeCursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 4, 5, 9),
+                createCursor(2, 3, 8),
+                createCursor(6, 7, 10, 11)
+        }, VALUE_COMPARATOR);
+
+        assertMergedPositionsMatchMerging(mergeCursor);
+    }
+
+    @Test
+    public void getMergedPosition_withEqualRows_shouldMatchPositionWhenMerging() {
+        MergeCursor mergeCursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 2, 2, 3),
+                createCursor(2, 3, 3),
+                createCursor(1, 2, 3)
+        }, VALUE_COMPARATOR);
+
+        assertMergedPositionsMatchMerging(mergeCursor);
+    }
+
+    @Test
+    public void getMergedPosition_withNullAndEmptyCursors_shouldIgnoreThem() {
+        MergeCursor mergeCursor = new MergeCursor(new Cursor[] {
+                null,
+                createCursor(),
+                createCursor(1, 3)
+        }, VALUE_COMPARATOR);
+
+        assertEquals(1, mergeCursor.getMergedPosition(2, 1));
+    }
+
+    @Test
+    public void getMergedPosition_shouldMoveBeforeFirstRow() {
+        MergeCursor mergeCursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 4),
+                createCursor(2, 3)
+        }, VALUE_COMPARATOR);
+        mergeCursor.moveToPosition(2);
+
+        mergeCursor.getMergedPosition(1, 1);
+
+        assertTrue(mergeCursor.isBeforeFirst());
+        assertTrue(mergeCursor.moveToNext());
+        assertEquals(1, mergeCursor.getLong(0));
+    }
+
+
+    private void assertMergedPositionsMatchMerging(MergeCursor mergeCursor) {
+        int[] positions = new int[3];
+        int mergedPosition = 0;
+        while (mergeCursor.moveToNext()) {
+            int cursorIndex = mergeCursor.getActiveCursorIndex();
+            int position = positions[cursorIndex]++;
+
+            // getMergedPosition() moves the cursor, so the walk is continued from the expected position afterwards
+            assertEquals(mergedPosition, mergeCursor.getMergedPosition(cursorIndex, position));
+            mergeCursor.moveToPosition(mergedPosition);
+            mergedPosition++;
+        }
+    }
+
+    private Cursor createCursor(long... values) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "value" });
+        for (long value : values) {
+            cursor.addRow(new Object[] { value });
+        }
+
+        return cursor;
+    }
+}
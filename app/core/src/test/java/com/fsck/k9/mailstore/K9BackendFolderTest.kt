@@ -17,6 +17,7 @@ import com.fsck.k9.mail.internet.TextBody
 import com.fsck.k9.provider.EmailProvider
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
@@ -73,6 +74,68 @@ class K9BackendFolderTest : K9RobolectricTest() {
         assertEquals(flags, messageFlags)
     }
 
+    @Test
+    fun getFolderExtraNumber_afterSet_shouldReturnLatestValue() {
+        backendFolder.setFolderExtraNumber("highestModSeq", 23)
+        backendFolder.setFolderExtraNumber("highestModSeq", 42)
+        backendFolder.setFolderExtraNumber("uidValidity", 1)
+
+        assertEquals(42L, backendFolder.getFolderExtraNumber("highestModSeq"))
+        assertEquals(1L, backendFolder.getFolderExtraNumber("uidValidity"))
+    }
+
+    @Test
+    fun getFolderExtraNumber_withoutValue_shouldReturnNull() {
+        assertNull(backendFolder.getFolderExtraNumber("highestModSeq"))
+    }
+
+    @Test
+    fun getLastUid_shouldCompareUidsNumerically() {
+        createMessage("9")
+        createMessage("10")
+
+        assertEquals(10L, backendFolder.getLastUid())
+    }
+
+    @Test
+    fun getUnreadMessageCount_shouldCountUnreadMessages() {
+        createMessage("1")
+        createMessage("2", setOf(Flag.SEEN))
+        createMessage("3")
+
+        assertEquals(2, backendFolder.getUnreadMessageCount())
+    }
+
+    @Test
+    fun getUnreadMessageCount_afterSettingSeenFlag_shouldBeUpdated() {
+        createMessage("1")
+        createMessage("2")
+
+        backendFolder.setMessageFlag("1", Flag.SEEN, true)
+
+        assertEquals(1, backendFolder.getUnreadMessageCount())
+    }
+
+    @Test
+    fun getUnreadMessageCount_afterDestroyingMessage_shouldBeUpdated() {
+        createMessage("1")
+        createMessage("2")
+
+        backendFolder.destroyMessages(listOf("2"))
+
+        assertEquals(1, backendFolder.getUnreadMessageCount())
+    }
+
+    @Test
+    fun repairFolderCounts_shouldFixModifiedCounts() {
+        createMessage("1")
+        dbOperation { db -> db.execSQL("UPDATE folders SET unread_count = 42") }
+
+        account.localStore.repairFolderCounts()
+
+        assertEquals(1, backendFolder.getUnreadMessageCount())
+    }
+
 
     fun createAccount(): Account {
         //FIXME: This is a hack to get Preferences into a state where it's safe to call newAccount()
@@ -0,0 +1,121 @@
+package com.fsck.k9.mailstore
+
+import android.content.Intent
+import com.fsck.k9.crypto.e3.SimpleE3PgpDecryptor
+import com.fsck.k9.mail.Address
+import com.fsck.k9.mail.internet.BinaryTempFileBody
+import com.fsck.k9.mail.internet.MimeBodyPart
+import com.fsck.k9.mail.internet.MimeMessage
+import com.fsck.k9.mail.internet.MimeMessageHelper
+import com.fsck.k9.mail.internet.MimeMultipart
+import com.fsck.k9.mail.internet.TextBody
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.doAnswer
+import com.nhaarman.mockito_kotlin.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.openintents.openpgp.util.OpenPgpApi
+import org.openintents.openpgp.util.OpenPgpApi.OpenPgpDataResult
+import org.openintents.openpgp.util.OpenPgpApi.OpenPgpDataSink
+import org.openintents.openpgp.util.OpenPgpApi.OpenPgpDataSource
+import java.io.ByteArrayInputStream
+
+
+class LocalFolderDecryptedBodyTest : LocalFolderRobolectricTest() {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val openPgpApi = mock<OpenPgpApi> {
+        on { executeApi(any<Intent>(), any<OpenPgpDataSource>(), any<OpenPgpDataSink<MimeBodyPart>>()) } doAnswer {
+            // Like the provider, hand the decrypted data to the sink as a stream
+            val dataSink = it.getArgument<OpenPgpDataSink<MimeBodyPart>>(2)
+            val decryptedPart = dataSink.processData(ByteArrayInputStream(DECRYPTED_MESSAGE.toByteArray()))
+
+            val result = Intent().putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS)
+            OpenPgpDataResult(result, decryptedPart)
+        }
+    }
+
+
+    @Before
+    fun setUp() {
+        BinaryTempFileBody.setTempDirectory(temporaryFolder.root)
+    }
+
+    @Test
+    fun decrypt_shouldBuildMimeTreeFromStream() {
+        val decryptedMessage = SimpleE3PgpDecryptor(openPgpApi, KEY_ID).decrypt(createEncryptedMessage(), ACCOUNT_EMAIL)
+
+        val multipart = decryptedMessage.body as MimeMultipart
+        assertEquals(2, multipart.count)
+        assertEquals("text/plain", multipart.getBodyPart(0).mimeType)
+        assertEquals("application/octet-stream", multipart.getBodyPart(1).mimeType)
+        assertTrue(multipart.getBodyPart(1).body is DeferredFileBody)
+    }
+
+    @Test
+    fun appendMessages_withDecryptedMessage_shouldMoveFileBackedBodyIntoPlace() {
+        val decryptedMessage = SimpleE3PgpDecryptor(openPgpApi, KEY_ID).decrypt(createEncryptedMessage(), ACCOUNT_EMAIL)
+        val attachmentBody = (decryptedMessage.body as MimeMultipart).getBodyPart(1).body as DeferredFileBody
+        val tempFile = attachmentBody.file
+        val tempFileContents = tempFile.readBytes()
+
+        localFolder.appendMessages(listOf(decryptedMessage))
+
+        val storedFile = account.localStore.getAttachmentFile(getOnDiskMessagePartId().toString())
+        assertFalse("temp file should have been moved", tempFile.exists())
+        assertTrue(storedFile.exists())
+        assertEquals(tempFileContents.toList(), storedFile.readBytes().toList())
+        assertEquals(0, temporaryFolder.root.listFiles().size)
+    }
+
+
+    private fun createEncryptedMessage(): MimeMessage {
+        return MimeMessage().apply {
+            subject = "Encrypted message"
+            setFrom(Address(ACCOUNT_EMAIL))
+            MimeMessageHelper.setBody(this, TextBody("Encrypted"))
+
+            uid = "1"
+        }
+    }
+
+    private fun getOnDiskMessagePartId(): Long {
+        return account.localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT id FROM message_parts WHERE data_location = ?",
+                    arrayOf(LocalFolder.DataLocation.ON_DISK.toString())).use { cursor ->
+                check(cursor.moveToFirst()) { "No message part stored on disk" }
+                cursor.getLong(0)
+            }
+        }
+    }
+
+
+    companion object {
+        const val KEY_ID = 23L
+        const val ACCOUNT_EMAIL = "alice@domain.example"
+
+        // Large enough to be written to a temp file while parsing and to be stored on disk
+        private val ATTACHMENT_DATA = "0123456789abcdef".repeat(2048)
+
+        private val DECRYPTED_MESSAGE = """
+            Content-Type: multipart/mixed; boundary=boundary
+
+            --boundary
+            Content-Type: text/plain
+
+            Decrypted text
+            --boundary
+            Content-Type: application/octet-stream
+            Content-Disposition: attachment; filename="data.bin"
+
+            $ATTACHMENT_DATA
+            --boundary--
+            """.trimIndent()
+    }
+}
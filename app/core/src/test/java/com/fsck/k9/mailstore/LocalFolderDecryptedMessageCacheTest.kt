@@ -0,0 +1,62 @@
+package com.fsck.k9.mailstore
+
+import com.fsck.k9.crypto.e3.E3DecryptedMessageCache
+import com.nhaarman.mockito_kotlin.mock
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.robolectric.RuntimeEnvironment
+
+
+class LocalFolderDecryptedMessageCacheTest : LocalFolderRobolectricTest() {
+    private val cache = E3DecryptedMessageCache.getInstance()
+
+
+    @Before
+    fun setUp() {
+        localFolder.appendMessages(listOf(createMessage("1")))
+        cache.put(RuntimeEnvironment.application, localFolder.getMessage("1"), KEY_ID, createMessageViewInfo())
+    }
+
+    @After
+    fun tearDown() {
+        cache.clear()
+    }
+
+    @Test
+    fun get_withUnchangedMessage_shouldReturnCachedInfo() {
+        assertEquals(DECRYPTED_TEXT, cache.get(localFolder.getMessage("1"), KEY_ID)?.text)
+    }
+
+    @Test
+    fun destroyMessages_shouldInvalidateCachedInfo() {
+        val message = localFolder.getMessage("1")
+
+        localFolder.destroyMessages(listOf(message))
+
+        assertNull(cache.get(message, KEY_ID))
+    }
+
+    @Test
+    fun appendMessages_replacingMessage_shouldInvalidateCachedInfo() {
+        val message = localFolder.getMessage("1")
+
+        localFolder.appendMessages(listOf(createMessage("1")))
+
+        assertNull(cache.get(message, KEY_ID))
+    }
+
+
+    private fun createMessageViewInfo(): MessageViewInfo {
+        return MessageViewInfo(mock(), false, null, "subject", false, DECRYPTED_TEXT, emptyList(), null, null, null,
+                emptyList())
+    }
+
+
+    companion object {
+        const val KEY_ID = 23L
+        const val DECRYPTED_TEXT = "Decrypted text"
+    }
+}
@@ -0,0 +1,76 @@
+package com.fsck.k9.mailstore
+
+import com.fsck.k9.crypto.e3.E3SearchIndex
+import com.fsck.k9.search.LocalSearch
+import com.fsck.k9.search.SearchSpecification.Attribute
+import com.fsck.k9.search.SearchSpecification.SearchField
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+
+class LocalFolderE3SearchTokensTest : LocalFolderRobolectricTest() {
+    val searchIndex: E3SearchIndex = E3SearchIndex.getOrCreate(account, preferences)
+
+
+    @Test
+    fun searchForMessages_withAllWordsIndexed_shouldMatchEncryptedMessage() {
+        localFolder.appendMessages(listOf(createMessage("1"), createMessage("2")))
+        localFolder.setE3SearchTokens(mapOf(
+                localFolder.getMessage("1") to searchIndex.createTokens("Secret plans for Monday"),
+                localFolder.getMessage("2") to searchIndex.createTokens("Secret recipes")
+        ))
+
+        val messages = account.localStore.searchForMessages(null, createSearch("monday SECRET"))
+
+        assertEquals(listOf("1"), messages.map { it.uid })
+    }
+
+    @Test
+    fun searchForMessages_withOneWordNotIndexed_shouldNotMatch() {
+        localFolder.appendMessages(listOf(createMessage("1")))
+        localFolder.setE3SearchTokens(mapOf(localFolder.getMessage("1") to searchIndex.createTokens("Secret plans")))
+
+        val messages = account.localStore.searchForMessages(null, createSearch("secret recipes"))
+
+        assertEquals(emptyList<String>(), messages.map { it.uid })
+    }
+
+    @Test
+    fun setE3SearchTokens_shouldReplaceExistingTokens() {
+        localFolder.appendMessages(listOf(createMessage("1")))
+        val message = localFolder.getMessage("1")
+        localFolder.setE3SearchTokens(mapOf(message to searchIndex.createTokens("Secret plans")))
+
+        localFolder.setE3SearchTokens(mapOf(message to searchIndex.createTokens("Recipes")))
+
+        assertEquals(1, countTokenRows(message.databaseId))
+    }
+
+    @Test
+    fun destroyMessages_shouldDeleteTokens() {
+        localFolder.appendMessages(listOf(createMessage("1")))
+        val message = localFolder.getMessage("1")
+        localFolder.setE3SearchTokens(mapOf(message to searchIndex.createTokens("Secret plans")))
+
+        localFolder.destroyMessages(listOf(localFolder.getMessage("1")))
+
+        assertEquals(0, countTokenRows(message.databaseId))
+    }
+
+
+    private fun createSearch(query: String): LocalSearch {
+        return LocalSearch().apply {
+            and(SearchField.MESSAGE_CONTENTS, query, Attribute.CONTAINS)
+        }
+    }
+
+    private fun countTokenRows(messageId: Long): Int {
+        return account.localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT COUNT(*) FROM e3_search_tokens WHERE message_id = ?",
+                    arrayOf(messageId.toString())).use { cursor ->
+                cursor.moveToFirst()
+                cursor.getInt(0)
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.fsck.k9.mailstore
+
+import com.fsck.k9.search.LocalSearch
+import com.fsck.k9.search.SearchSpecification.Attribute
+import com.fsck.k9.search.SearchSpecification.SearchField
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+
+class LocalFolderMessageAddressesTest : LocalFolderRobolectricTest() {
+    @Test
+    fun appendMessages_shouldStoreNormalizedAddresses() {
+        localFolder.appendMessages(listOf(createMessage("1", from = "Alice@Domain.Example",
+                to = listOf("bob@domain.example", "carol@domain.example"))))
+
+        assertEquals(listOf(
+                "from:0:alice@domain.example",
+                "to:0:bob@domain.example",
+                "to:1:carol@domain.example"
+        ), getAddressRows("1"))
+    }
+
+    @Test
+    fun appendMessages_withExistingMessage_shouldReplaceAddresses() {
+        localFolder.appendMessages(listOf(createMessage("1", from = "alice@domain.example")))
+        localFolder.appendMessages(listOf(createMessage("1", from = "dave@domain.example")))
+
+        assertEquals(listOf("from:0:dave@domain.example", "to:0:bob@domain.example"), getAddressRows("1"))
+    }
+
+    @Test
+    fun destroyMessages_shouldDeleteAddresses() {
+        localFolder.appendMessages(listOf(createMessage("1", from = "alice@domain.example")))
+        val messageId = localFolder.getMessage("1").databaseId
+
+        localFolder.destroyMessages(listOf(localFolder.getMessage("1")))
+
+        assertEquals(0, countAddressRows(messageId))
+    }
+
+    @Test
+    fun searchForMessages_withSenderEquals_shouldMatchAddressIgnoringCase() {
+        localFolder.appendMessages(listOf(
+                createMessage("1", from = "alice@domain.example"),
+                createMessage("2", from = "malice@domain.example")
+        ))
+        val search = LocalSearch().apply {
+            and(SearchField.SENDER, "ALICE@domain.example", Attribute.EQUALS)
+        }
+
+        val messages = account.localStore.searchForMessages(null, search)
+
+        assertEquals(listOf("1"), messages.map { it.uid })
+    }
+
+
+    private fun getAddressRows(uid: String): List<String> {
+        return account.localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT a.role, a.position, a.address FROM message_addresses a " +
+                    "JOIN messages m ON (m.id = a.message_id) WHERE m.uid = ? " +
+                    "ORDER BY a.role, a.position", arrayOf(uid)).use { cursor ->
+                val rows = mutableListOf<String>()
+                while (cursor.moveToNext()) {
+                    rows.add("${cursor.getString(0)}:${cursor.getInt(1)}:${cursor.getString(2)}")
+                }
+                rows
+            }
+        }
+    }
+
+    private fun countAddressRows(messageId: Long): Int {
+        return account.localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT COUNT(*) FROM message_addresses WHERE message_id = ?",
+                    arrayOf(messageId.toString())).use { cursor ->
+                cursor.moveToFirst()
+                cursor.getInt(0)
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.fsck.k9.mailstore
+
+import android.net.Uri
+import com.fsck.k9.Account
+import com.fsck.k9.K9RobolectricTest
+import com.fsck.k9.Preferences
+import com.fsck.k9.mail.Address
+import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.internet.MimeMessage
+import com.fsck.k9.mail.internet.MimeMessageHelper
+import com.fsck.k9.mail.internet.TextBody
+import com.fsck.k9.provider.EmailProvider
+import org.junit.After
+import org.junit.Before
+import org.koin.standalone.inject
+import java.util.Date
+
+/**
+ * A [K9RobolectricTest] with a fresh account and a [LocalFolder] to store messages in.
+ */
+abstract class LocalFolderRobolectricTest : K9RobolectricTest() {
+    val preferences: Preferences by inject()
+
+    val account: Account = createAccount()
+    val localFolder = createLocalFolder(FOLDER_SERVER_ID, FOLDER_NAME)
+
+
+    @Before
+    fun setUpLocalStore() {
+        // Set EmailProvider.CONTENT_URI so LocalStore.notifyChange() won't crash
+        EmailProvider.CONTENT_URI = Uri.parse("content://dummy")
+    }
+
+    @After
+    fun tearDownLocalStore() {
+        preferences.deleteAccount(account)
+    }
+
+
+    fun createAccount(): Account {
+        //FIXME: This is a hack to get Preferences into a state where it's safe to call newAccount()
+        preferences.loadAccounts()
+
+        return preferences.newAccount()
+    }
+
+    fun createLocalFolder(serverId: String, name: String): LocalFolder {
+        val localStore: LocalStore = account.localStore
+        localStore.createFolders(listOf(localStore.getFolder(serverId, name)), account.displayCount)
+
+        return localStore.getFolder(serverId)
+    }
+
+    fun createMessage(
+            uid: String,
+            messageId: String? = null,
+            from: String = "alice@domain.example",
+            to: List<String> = listOf("bob@domain.example"),
+            date: Long? = null,
+            inReplyTo: String? = null,
+            references: String? = null
+    ): Message {
+        return MimeMessage().apply {
+            subject = "Test message"
+            setFrom(Address(from))
+            setRecipients(Message.RecipientType.TO, to.map { Address(it) }.toTypedArray())
+            date?.let { setSentDate(Date(it), false) }
+            MimeMessageHelper.setBody(this, TextBody("Hello Bob!"))
+
+            this.uid = uid
+            messageId?.let { setMessageId(it) }
+            inReplyTo?.let { setInReplyTo(it) }
+            references?.let { setReferences(it) }
+        }
+    }
+
+
+    companion object {
+        const val FOLDER_SERVER_ID = "testFolder"
+        const val FOLDER_NAME = "Test Folder"
+    }
+}
@@ -0,0 +1,148 @@
+package com.fsck.k9.mailstore
+
+import com.fsck.k9.mail.Flag
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+
+class LocalFolderThreadSummaryTest : LocalFolderRobolectricTest() {
+    val otherFolder = createLocalFolder(OTHER_FOLDER_SERVER_ID, OTHER_FOLDER_NAME)
+
+
+    @Test
+    fun appendMessages_withThread_shouldMatchAggregateQuery() {
+        appendThread()
+
+        assertSummaryMatchesAggregate()
+        assertEquals(1, countSummaryRows())
+        assertEquals(listOf("3"), getLatestMessageUids())
+    }
+
+    @Test
+    fun appendMessages_withReplyBeforeOriginalMessage_shouldMatchAggregateQuery() {
+        localFolder.appendMessages(listOf(createMessage("2", "<b@domain.example>", date = 2000,
+                inReplyTo = "<a@domain.example>")))
+        localFolder.appendMessages(listOf(createMessage("1", "<a@domain.example>", date = 1000)))
+
+        assertSummaryMatchesAggregate()
+        assertEquals(1, countSummaryRows())
+    }
+
+    @Test
+    fun setFlags_shouldMatchAggregateQuery() {
+        appendThread()
+
+        localFolder.setFlags(listOf(localFolder.getMessage("1"), localFolder.getMessage("2")),
+                setOf(Flag.SEEN, Flag.ANSWERED), true)
+        assertSummaryMatchesAggregate()
+
+        localFolder.setFlags(listOf(localFolder.getMessage("3")), setOf(Flag.FLAGGED, Flag.SEEN), true)
+        assertSummaryMatchesAggregate()
+
+        localFolder.setFlags(setOf(Flag.FLAGGED), false)
+        assertSummaryMatchesAggregate()
+    }
+
+    @Test
+    fun moveMessages_shouldMatchAggregateQuery() {
+        appendThread()
+
+        localFolder.moveMessages(listOf(localFolder.getMessage("3")), otherFolder)
+
+        assertSummaryMatchesAggregate()
+        assertEquals(2, countSummaryRows())
+        assertEquals(listOf("2"), getLatestMessageUids(localFolder))
+    }
+
+    @Test
+    fun destroyMessages_shouldMatchAggregateQuery() {
+        appendThread()
+
+        localFolder.destroyMessages(listOf(localFolder.getMessage("3")))
+        assertSummaryMatchesAggregate()
+        assertEquals(listOf("2"), getLatestMessageUids())
+
+        localFolder.destroyMessages(listOf(localFolder.getMessage("1")))
+        assertSummaryMatchesAggregate()
+
+        localFolder.destroyMessages(listOf(localFolder.getMessage("2")))
+        assertSummaryMatchesAggregate()
+        assertEquals(0, countSummaryRows())
+    }
+
+    @Test
+    fun threadSpanningTwoFolders_shouldMatchAggregateQueryOfEachFolder() {
+        appendThread()
+
+        // Moving a message with LocalFolder.moveMessages() threads it anew in the target folder, so this keeps its root
+        moveToOtherFolderKeepingThread("3")
+
+        assertSummaryMatchesAggregate()
+        assertEquals(2, countSummaryRows())
+        assertEquals(listOf("2"), getLatestMessageUids(localFolder))
+        assertEquals(listOf("3"), getLatestMessageUids(otherFolder))
+    }
+
+
+    private fun appendThread() {
+        localFolder.appendMessages(listOf(
+                createMessage("1", "<a@domain.example>", date = 1000),
+                createMessage("2", "<b@domain.example>", date = 2000, inReplyTo = "<a@domain.example>"),
+                createMessage("3", "<c@domain.example>", date = 3000, inReplyTo = "<b@domain.example>")
+        ))
+    }
+
+    private fun moveToOtherFolderKeepingThread(uid: String) {
+        account.localStore.database.execute(false) { db ->
+            db.execSQL("UPDATE messages SET folder_id = ? WHERE uid = ?", arrayOf(otherFolder.databaseId, uid))
+        }
+    }
+
+    /**
+     * thread_summary is only used for the threaded list of a single folder, so it's compared with what the list used
+     * to show for each folder on its own.
+     */
+    private fun assertSummaryMatchesAggregate() {
+        for (folder in listOf(localFolder, otherFolder)) {
+            val summaryRows = queryRows("SELECT root, date, internal_date, thread_count, " +
+                    "(unread_count = 0), (flagged_count > 0), (answered_count = thread_count), " +
+                    "(forwarded_count = thread_count), attachment_count FROM thread_summary " +
+                    "WHERE folder_id = ${folder.databaseId}")
+
+            // The aggregation the threaded message list used before thread_summary existed
+            val aggregateRows = queryRows("SELECT t.root, MAX(m.date), MAX(m.internal_date), " +
+                    "COUNT(m.id), MIN(m.read), MAX(m.flagged), MIN(m.answered), MIN(m.forwarded), " +
+                    "SUM(m.attachment_count) " +
+                    "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                    "WHERE m.empty = 0 AND m.deleted = 0 AND m.folder_id = ${folder.databaseId} " +
+                    "GROUP BY t.root")
+
+            assertEquals(aggregateRows, summaryRows)
+        }
+    }
+
+    private fun countSummaryRows(): Int = queryRows("SELECT 1 FROM thread_summary").size
+
+    private fun getLatestMessageUids(folder: LocalFolder = localFolder): List<String> {
+        return queryRows("SELECT m.uid FROM thread_summary s JOIN messages m ON (m.id = s.latest_message_id) " +
+                "WHERE s.folder_id = ${folder.databaseId}")
+    }
+
+    private fun queryRows(query: String): List<String> {
+        return account.localStore.database.execute(false) { db ->
+            db.rawQuery(query, null).use { cursor ->
+                val rows = mutableListOf<String>()
+                while (cursor.moveToNext()) {
+                    rows.add((0 until cursor.columnCount).joinToString(":") { cursor.getString(it) ?: "null" })
+                }
+                rows.sorted()
+            }
+        }
+    }
+
+
+    companion object {
+        const val OTHER_FOLDER_SERVER_ID = "otherFolder"
+        const val OTHER_FOLDER_NAME = "Other Folder"
+    }
+}
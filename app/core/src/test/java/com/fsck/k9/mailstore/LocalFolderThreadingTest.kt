@@ -0,0 +1,77 @@
+package com.fsck.k9.mailstore
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Test
+
+
+class LocalFolderThreadingTest : LocalFolderRobolectricTest() {
+    @Test
+    fun appendMessages_withRepliesInSameBatch_shouldCreateOneThread() {
+        localFolder.appendMessages(listOf(
+                createMessage("1", "<a@domain.example>"),
+                createMessage("2", "<b@domain.example>", inReplyTo = "<a@domain.example>"),
+                createMessage("3", "<c@domain.example>", references = "<a@domain.example> <b@domain.example>")
+        ))
+
+        val root = getThreadRoot("1")
+        assertEquals(root, getThreadRoot("2"))
+        assertEquals(root, getThreadRoot("3"))
+        assertEquals(getThreadId("2"), getThreadParent("3"))
+    }
+
+    @Test
+    fun appendMessages_withReplyBeforeOriginalMessage_shouldReplacePlaceholder() {
+        localFolder.appendMessages(listOf(
+                createMessage("2", "<b@domain.example>", inReplyTo = "<a@domain.example>"),
+                createMessage("1", "<a@domain.example>")
+        ))
+
+        assertEquals(1, countMessagesWithMessageId("<a@domain.example>"))
+        assertEquals(getThreadRoot("1"), getThreadRoot("2"))
+    }
+
+    @Test
+    fun appendMessages_inSeparateBatches_shouldUseExistingThread() {
+        localFolder.appendMessages(listOf(createMessage("1", "<a@domain.example>")))
+        localFolder.appendMessages(listOf(createMessage("2", "<b@domain.example>", inReplyTo = "<a@domain.example>")))
+
+        assertEquals(getThreadRoot("1"), getThreadRoot("2"))
+    }
+
+    @Test
+    fun appendMessages_withUnrelatedMessages_shouldCreateSeparateThreads() {
+        localFolder.appendMessages(listOf(
+                createMessage("1", "<a@domain.example>"),
+                createMessage("2", "<b@domain.example>")
+        ))
+
+        assertNotEquals(getThreadRoot("1"), getThreadRoot("2"))
+    }
+
+
+    private fun getThreadRoot(uid: String): Long = getThreadColumn("root", uid)
+
+    private fun getThreadParent(uid: String): Long = getThreadColumn("parent", uid)
+
+    private fun getThreadId(uid: String): Long = getThreadColumn("id", uid)
+
+    private fun getThreadColumn(column: String, uid: String): Long {
+        return account.localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT t.$column FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                    "WHERE m.uid = ?", arrayOf(uid)).use { cursor ->
+                check(cursor.moveToFirst()) { "No thread entry for message $uid" }
+                cursor.getLong(0)
+            }
+        }
+    }
+
+    private fun countMessagesWithMessageId(messageId: String): Int {
+        return account.localStore.database.execute(false) { db ->
+            db.rawQuery("SELECT COUNT(*) FROM messages WHERE message_id = ?", arrayOf(messageId)).use { cursor ->
+                cursor.moveToFirst()
+                cursor.getInt(0)
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.fsck.k9.search
+
+import com.fsck.k9.RobolectricTest
+import com.fsck.k9.search.SearchSpecification.Attribute
+import com.fsck.k9.search.SearchSpecification.SearchCondition
+import com.fsck.k9.search.SearchSpecification.SearchField
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+
+class SqlQueryBuilderTest : RobolectricTest() {
+    @Test
+    fun isSingleFolderCondition_withFolderEquals_shouldReturnTrue() {
+        val search = LocalSearch().apply {
+            addAllowedFolder("INBOX")
+        }
+
+        assertTrue(SqlQueryBuilder.isSingleFolderCondition(search.conditions))
+    }
+
+    @Test
+    fun isSingleFolderCondition_withTwoFolders_shouldReturnFalse() {
+        val search = LocalSearch().apply {
+            or(SearchCondition(SearchField.FOLDER, Attribute.EQUALS, "INBOX"))
+            or(SearchCondition(SearchField.FOLDER, Attribute.EQUALS, "Sent"))
+        }
+
+        assertFalse(SqlQueryBuilder.isSingleFolderCondition(search.conditions))
+    }
+
+    @Test
+    fun isSingleFolderCondition_withFolderNotEquals_shouldReturnFalse() {
+        val search = LocalSearch().apply {
+            and(SearchField.FOLDER, "Trash", Attribute.NOT_EQUALS)
+        }
+
+        assertFalse(SqlQueryBuilder.isSingleFolderCondition(search.conditions))
+    }
+
+    @Test
+    fun isSingleFolderCondition_withUnifiedInbox_shouldReturnFalse() {
+        val search = LocalSearch().apply {
+            and(SearchField.INTEGRATE, "1", Attribute.EQUALS)
+        }
+
+        assertFalse(SqlQueryBuilder.isSingleFolderCondition(search.conditions))
+    }
+
+    @Test
+    fun isSingleFolderCondition_withoutConditions_shouldReturnFalse() {
+        assertFalse(SqlQueryBuilder.isSingleFolderCondition(LocalSearch().conditions))
+    }
+}
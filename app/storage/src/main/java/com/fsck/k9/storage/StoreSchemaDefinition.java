@@ -12,7 +12,17 @@ import timber.log.Timber;
 
 
 class StoreSchemaDefinition implements SchemaDefinition {
-    static final int DB_VERSION = 66;
+    static final int DB_VERSION = 71;
+
+    private static final String THREAD_SUMMARY_COLUMNS = "folder_id, root, latest_message_id, date, internal_date, " +
+            "thread_count, unread_count, flagged_count, answered_count, forwarded_count, attachment_count";
+
+    private static final String THREAD_SUMMARY_AGGREGATES = "m.folder_id, t.root, " +
+            "(SELECT lm.id FROM threads lt JOIN messages lm ON (lm.id = lt.message_id) " +
+            "WHERE lt.root = t.root AND lm.folder_id = m.folder_id AND lm.empty = 0 AND lm.deleted = 0 " +
+            "ORDER BY lm.date DESC, lm.id DESC LIMIT 1), " +
+            "MAX(m.date), MAX(m.internal_date), COUNT(m.id), SUM(m.read = 0), SUM(m.flagged = 1), " +
+            "SUM(m.answered = 1), SUM(m.forwarded = 1), SUM(m.attachment_count)";
 
     private final MigrationsHelper migrationsHelper;
 
@@ -93,7 +103,8 @@ class StoreSchemaDefinition implements SchemaDefinition {
                 "notify_class TEXT default '"+ Folder.FolderClass.INHERITED.name() + "', " +
                 "more_messages TEXT default \"unknown\", " +
                 "server_id TEXT," +
-                "local_only INTEGER" +
+                "local_only INTEGER, " +
+                "message_count INTEGER default 0" +
                 ")");
 
         db.execSQL("DROP INDEX IF EXISTS folder_server_id");
@@ -171,6 +182,9 @@ class StoreSchemaDefinition implements SchemaDefinition {
         db.execSQL("DROP INDEX IF EXISTS msg_folder_id_date");
         db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_date ON messages (folder_id,deleted,internal_date)");
 
+        db.execSQL("DROP INDEX IF EXISTS msg_folder_id_date_sort");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_date_sort ON messages (folder_id, date)");
+
         db.execSQL("DROP INDEX IF EXISTS msg_empty");
         db.execSQL("CREATE INDEX IF NOT EXISTS msg_empty ON messages (empty)");
 
@@ -208,6 +222,70 @@ class StoreSchemaDefinition implements SchemaDefinition {
                 "UPDATE threads SET root=id WHERE root IS NULL AND ROWID = NEW.ROWID; " +
                 "END");
 
+        db.execSQL("DROP TABLE IF EXISTS thread_summary");
+        db.execSQL("CREATE TABLE thread_summary (" +
+                "folder_id INTEGER NOT NULL, " +
+                "root INTEGER NOT NULL, " +
+                "latest_message_id INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "thread_count INTEGER, " +
+                "unread_count INTEGER, " +
+                "flagged_count INTEGER, " +
+                "answered_count INTEGER, " +
+                "forwarded_count INTEGER, " +
+                "attachment_count INTEGER, " +
+                "PRIMARY KEY (folder_id, root)" +
+                ")");
+
+        db.execSQL("DROP INDEX IF EXISTS thread_summary_folder_id_date");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_id_date ON thread_summary (folder_id, date)");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_message");
+        db.execSQL("CREATE TRIGGER thread_summary_update_message " +
+                "AFTER UPDATE OF folder_id, date, internal_date, empty, deleted, read, flagged, answered, forwarded, " +
+                "attachment_count ON messages " +
+                "BEGIN " +
+                updateThreadSummary("NEW.folder_id", "(SELECT root FROM threads WHERE message_id = NEW.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_move_message");
+        db.execSQL("CREATE TRIGGER thread_summary_move_message " +
+                "AFTER UPDATE OF folder_id ON messages " +
+                "WHEN OLD.folder_id != NEW.folder_id " +
+                "BEGIN " +
+                updateThreadSummary("OLD.folder_id", "(SELECT root FROM threads WHERE message_id = OLD.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_message");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_message " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                updateThreadSummary("OLD.folder_id", "(SELECT root FROM threads WHERE message_id = OLD.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_insert_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_insert_thread " +
+                "AFTER INSERT ON threads " +
+                "BEGIN " +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = NEW.message_id)", "NEW.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_update_thread " +
+                "AFTER UPDATE OF root, message_id ON threads " +
+                "BEGIN " +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = OLD.message_id)", "OLD.root") +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = NEW.message_id)", "NEW.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_thread " +
+                "AFTER DELETE ON threads " +
+                "BEGIN " +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = OLD.message_id)", "OLD.root") +
+                "END");
+
         db.execSQL("DROP TABLE IF EXISTS pending_commands");
         db.execSQL("CREATE TABLE pending_commands " +
                 "(id INTEGER PRIMARY KEY, command TEXT, data TEXT)");
@@ -228,9 +306,88 @@ class StoreSchemaDefinition implements SchemaDefinition {
                 "BEGIN " +
                 "DELETE FROM message_parts WHERE root = OLD.message_part_id; " +
                 "DELETE FROM messages_fulltext WHERE docid = OLD.id; " +
+                "DELETE FROM e3_search_tokens WHERE message_id = OLD.id; " +
+                "DELETE FROM message_addresses WHERE message_id = OLD.id; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS insert_message_folder_counts");
+        db.execSQL("CREATE TRIGGER insert_message_folder_counts " +
+                "AFTER INSERT ON messages " +
+                "BEGIN " +
+                "UPDATE folders SET " +
+                "message_count = message_count + (NEW.empty = 0 AND NEW.deleted = 0), " +
+                "unread_count = unread_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.read = 0), " +
+                "flagged_count = flagged_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.flagged = 1) " +
+                "WHERE id = NEW.folder_id; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS update_message_folder_counts");
+        db.execSQL("CREATE TRIGGER update_message_folder_counts " +
+                "AFTER UPDATE OF folder_id, empty, deleted, read, flagged ON messages " +
+                "BEGIN " +
+                "UPDATE folders SET " +
+                "message_count = message_count - (OLD.empty = 0 AND OLD.deleted = 0), " +
+                "unread_count = unread_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.read = 0), " +
+                "flagged_count = flagged_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.flagged = 1) " +
+                "WHERE id = OLD.folder_id; " +
+                "UPDATE folders SET " +
+                "message_count = message_count + (NEW.empty = 0 AND NEW.deleted = 0), " +
+                "unread_count = unread_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.read = 0), " +
+                "flagged_count = flagged_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.flagged = 1) " +
+                "WHERE id = NEW.folder_id; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS delete_message_folder_counts");
+        db.execSQL("CREATE TRIGGER delete_message_folder_counts " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                "UPDATE folders SET " +
+                "message_count = message_count - (OLD.empty = 0 AND OLD.deleted = 0), " +
+                "unread_count = unread_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.read = 0), " +
+                "flagged_count = flagged_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.flagged = 1) " +
+                "WHERE id = OLD.folder_id; " +
                 "END");
 
         db.execSQL("DROP TABLE IF EXISTS messages_fulltext");
         db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+
+        db.execSQL("DROP TABLE IF EXISTS e3_search_tokens");
+        db.execSQL("CREATE TABLE e3_search_tokens (" +
+                "message_id INTEGER NOT NULL, " +
+                "token TEXT NOT NULL" +
+                ")");
+
+        db.execSQL("DROP INDEX IF EXISTS e3_search_tokens_token");
+        db.execSQL("CREATE INDEX IF NOT EXISTS e3_search_tokens_token ON e3_search_tokens (token)");
+
+        db.execSQL("DROP INDEX IF EXISTS e3_search_tokens_message_id");
+        db.execSQL("CREATE INDEX IF NOT EXISTS e3_search_tokens_message_id ON e3_search_tokens (message_id)");
+
+        db.execSQL("DROP TABLE IF EXISTS message_addresses");
+        db.execSQL("CREATE TABLE message_addresses (" +
+                "message_id INTEGER NOT NULL, " +
+                "role TEXT NOT NULL, " +
+                "position INTEGER NOT NULL, " +
+                "address TEXT NOT NULL, " +
+                "name TEXT" +
+                ")");
+
+        db.execSQL("DROP INDEX IF EXISTS message_addresses_address");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_addresses_address ON message_addresses (address, role)");
+
+        db.execSQL("DROP INDEX IF EXISTS message_addresses_message_id");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_addresses_message_id ON message_addresses (message_id)");
+    }
+
+    /**
+     * Statements that recalculate the {@code thread_summary} row of the given folder and thread root.
+     */
+    private static String updateThreadSummary(String folderId, String root) {
+        return "DELETE FROM thread_summary WHERE folder_id = " + folderId + " AND root = " + root + "; " +
+                "INSERT INTO thread_summary (" + THREAD_SUMMARY_COLUMNS + ") " +
+                "SELECT " + THREAD_SUMMARY_AGGREGATES + " " +
+                "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE t.root = " + root + " AND m.folder_id = " + folderId + " AND m.empty = 0 AND m.deleted = 0 " +
+                "GROUP BY m.folder_id, t.root; ";
     }
 }
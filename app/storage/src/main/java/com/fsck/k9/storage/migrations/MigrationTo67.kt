@@ -0,0 +1,26 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+
+
+internal object MigrationTo67 {
+    @JvmStatic
+    fun addE3SearchTokensTable(db: SQLiteDatabase) {
+        db.execSQL("CREATE TABLE e3_search_tokens (" +
+                "message_id INTEGER NOT NULL, " +
+                "token TEXT NOT NULL" +
+                ")")
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS e3_search_tokens_token ON e3_search_tokens (token)")
+        db.execSQL("CREATE INDEX IF NOT EXISTS e3_search_tokens_message_id ON e3_search_tokens (message_id)")
+
+        db.execSQL("DROP TRIGGER IF EXISTS delete_message")
+        db.execSQL("CREATE TRIGGER delete_message " +
+                "BEFORE DELETE ON messages " +
+                "BEGIN " +
+                "DELETE FROM message_parts WHERE root = OLD.message_part_id; " +
+                "DELETE FROM messages_fulltext WHERE docid = OLD.id; " +
+                "DELETE FROM e3_search_tokens WHERE message_id = OLD.id; " +
+                "END")
+    }
+}
@@ -0,0 +1,11 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+
+
+internal object MigrationTo68 {
+    @JvmStatic
+    fun addMessageListSortIndex(db: SQLiteDatabase) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_date_sort ON messages (folder_id, date)")
+    }
+}
@@ -0,0 +1,57 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+
+
+internal object MigrationTo69 {
+    @JvmStatic
+    fun addFolderMessageCounters(db: SQLiteDatabase) {
+        db.execSQL("ALTER TABLE folders ADD message_count INTEGER default 0")
+
+        db.execSQL("DROP TRIGGER IF EXISTS insert_message_folder_counts")
+        db.execSQL("CREATE TRIGGER insert_message_folder_counts " +
+                "AFTER INSERT ON messages " +
+                "BEGIN " +
+                "UPDATE folders SET " +
+                "message_count = message_count + (NEW.empty = 0 AND NEW.deleted = 0), " +
+                "unread_count = unread_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.read = 0), " +
+                "flagged_count = flagged_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.flagged = 1) " +
+                "WHERE id = NEW.folder_id; " +
+                "END")
+
+        db.execSQL("DROP TRIGGER IF EXISTS update_message_folder_counts")
+        db.execSQL("CREATE TRIGGER update_message_folder_counts " +
+                "AFTER UPDATE OF folder_id, empty, deleted, read, flagged ON messages " +
+                "BEGIN " +
+                "UPDATE folders SET " +
+                "message_count = message_count - (OLD.empty = 0 AND OLD.deleted = 0), " +
+                "unread_count = unread_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.read = 0), " +
+                "flagged_count = flagged_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.flagged = 1) " +
+                "WHERE id = OLD.folder_id; " +
+                "UPDATE folders SET " +
+                "message_count = message_count + (NEW.empty = 0 AND NEW.deleted = 0), " +
+                "unread_count = unread_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.read = 0), " +
+                "flagged_count = flagged_count + (NEW.empty = 0 AND NEW.deleted = 0 AND NEW.flagged = 1) " +
+                "WHERE id = NEW.folder_id; " +
+                "END")
+
+        db.execSQL("DROP TRIGGER IF EXISTS delete_message_folder_counts")
+        db.execSQL("CREATE TRIGGER delete_message_folder_counts " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                "UPDATE folders SET " +
+                "message_count = message_count - (OLD.empty = 0 AND OLD.deleted = 0), " +
+                "unread_count = unread_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.read = 0), " +
+                "flagged_count = flagged_count - (OLD.empty = 0 AND OLD.deleted = 0 AND OLD.flagged = 1) " +
+                "WHERE id = OLD.folder_id; " +
+                "END")
+
+        db.execSQL("UPDATE folders SET " +
+                "message_count = (SELECT COUNT(id) FROM messages " +
+                "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0), " +
+                "unread_count = (SELECT COUNT(id) FROM messages " +
+                "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0 AND read = 0), " +
+                "flagged_count = (SELECT COUNT(id) FROM messages " +
+                "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0 AND flagged = 1)")
+    }
+}
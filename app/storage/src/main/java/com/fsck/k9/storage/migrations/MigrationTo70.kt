@@ -0,0 +1,96 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+
+
+internal object MigrationTo70 {
+    @JvmStatic
+    fun addThreadSummaryTable(db: SQLiteDatabase) {
+        db.execSQL("CREATE TABLE thread_summary (" +
+                "folder_id INTEGER NOT NULL, " +
+                "root INTEGER NOT NULL, " +
+                "latest_message_id INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "thread_count INTEGER, " +
+                "unread_count INTEGER, " +
+                "flagged_count INTEGER, " +
+                "answered_count INTEGER, " +
+                "forwarded_count INTEGER, " +
+                "attachment_count INTEGER, " +
+                "PRIMARY KEY (folder_id, root)" +
+                ")")
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_id_date ON thread_summary (folder_id, date)")
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_message")
+        db.execSQL("CREATE TRIGGER thread_summary_update_message " +
+                "AFTER UPDATE OF folder_id, date, internal_date, empty, deleted, read, flagged, answered, forwarded, " +
+                "attachment_count ON messages " +
+                "BEGIN " +
+                updateThreadSummary("NEW.folder_id", "(SELECT root FROM threads WHERE message_id = NEW.id)") +
+                "END")
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_move_message")
+        db.execSQL("CREATE TRIGGER thread_summary_move_message " +
+                "AFTER UPDATE OF folder_id ON messages " +
+                "WHEN OLD.folder_id != NEW.folder_id " +
+                "BEGIN " +
+                updateThreadSummary("OLD.folder_id", "(SELECT root FROM threads WHERE message_id = OLD.id)") +
+                "END")
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_message")
+        db.execSQL("CREATE TRIGGER thread_summary_delete_message " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                updateThreadSummary("OLD.folder_id", "(SELECT root FROM threads WHERE message_id = OLD.id)") +
+                "END")
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_insert_thread")
+        db.execSQL("CREATE TRIGGER thread_summary_insert_thread " +
+                "AFTER INSERT ON threads " +
+                "BEGIN " +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = NEW.message_id)", "NEW.root") +
+                "END")
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_thread")
+        db.execSQL("CREATE TRIGGER thread_summary_update_thread " +
+                "AFTER UPDATE OF root, message_id ON threads " +
+                "BEGIN " +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = OLD.message_id)", "OLD.root") +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = NEW.message_id)", "NEW.root") +
+                "END")
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_thread")
+        db.execSQL("CREATE TRIGGER thread_summary_delete_thread " +
+                "AFTER DELETE ON threads " +
+                "BEGIN " +
+                updateThreadSummary("(SELECT folder_id FROM messages WHERE id = OLD.message_id)", "OLD.root") +
+                "END")
+
+        db.execSQL("INSERT INTO thread_summary (" + THREAD_SUMMARY_COLUMNS + ") " +
+                "SELECT " + THREAD_SUMMARY_AGGREGATES + " " +
+                "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE m.empty = 0 AND m.deleted = 0 AND t.root IS NOT NULL " +
+                "GROUP BY m.folder_id, t.root")
+    }
+
+    private const val THREAD_SUMMARY_COLUMNS = "folder_id, root, latest_message_id, date, internal_date, " +
+            "thread_count, unread_count, flagged_count, answered_count, forwarded_count, attachment_count"
+
+    private const val THREAD_SUMMARY_AGGREGATES = "m.folder_id, t.root, " +
+            "(SELECT lm.id FROM threads lt JOIN messages lm ON (lm.id = lt.message_id) " +
+            "WHERE lt.root = t.root AND lm.folder_id = m.folder_id AND lm.empty = 0 AND lm.deleted = 0 " +
+            "ORDER BY lm.date DESC, lm.id DESC LIMIT 1), " +
+            "MAX(m.date), MAX(m.internal_date), COUNT(m.id), SUM(m.read = 0), SUM(m.flagged = 1), " +
+            "SUM(m.answered = 1), SUM(m.forwarded = 1), SUM(m.attachment_count)"
+
+    private fun updateThreadSummary(folderId: String, root: String): String {
+        return "DELETE FROM thread_summary WHERE folder_id = $folderId AND root = $root; " +
+                "INSERT INTO thread_summary ($THREAD_SUMMARY_COLUMNS) " +
+                "SELECT $THREAD_SUMMARY_AGGREGATES " +
+                "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE t.root = $root AND m.folder_id = $folderId AND m.empty = 0 AND m.deleted = 0 " +
+                "GROUP BY m.folder_id, t.root; "
+    }
+}
@@ -0,0 +1,42 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+import com.fsck.k9.mail.Address
+import com.fsck.k9.mailstore.MessageAddressIndex
+
+
+internal object MigrationTo71 {
+    @JvmStatic
+    fun addMessageAddressesTable(db: SQLiteDatabase) {
+        db.execSQL("CREATE TABLE message_addresses (" +
+                "message_id INTEGER NOT NULL, " +
+                "role TEXT NOT NULL, " +
+                "position INTEGER NOT NULL, " +
+                "address TEXT NOT NULL, " +
+                "name TEXT" +
+                ")")
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_addresses_address ON message_addresses (address, role)")
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_addresses_message_id ON message_addresses (message_id)")
+
+        db.execSQL("DROP TRIGGER IF EXISTS delete_message")
+        db.execSQL("CREATE TRIGGER delete_message " +
+                "BEFORE DELETE ON messages " +
+                "BEGIN " +
+                "DELETE FROM message_parts WHERE root = OLD.message_part_id; " +
+                "DELETE FROM messages_fulltext WHERE docid = OLD.id; " +
+                "DELETE FROM e3_search_tokens WHERE message_id = OLD.id; " +
+                "DELETE FROM message_addresses WHERE message_id = OLD.id; " +
+                "END")
+
+        db.rawQuery("SELECT id, sender_list, to_list, cc_list FROM messages WHERE empty = 0 AND deleted = 0",
+                null).use { cursor ->
+            while (cursor.moveToNext()) {
+                MessageAddressIndex.replaceAddresses(db, cursor.getLong(0),
+                        Address.unpack(cursor.getString(1)),
+                        Address.unpack(cursor.getString(2)),
+                        Address.unpack(cursor.getString(3)))
+            }
+        }
+    }
+}
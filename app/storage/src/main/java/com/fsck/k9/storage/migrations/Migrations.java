@@ -90,6 +90,16 @@ public class Migrations {
                 MigrationTo65.addLocalOnlyColumnToFoldersTable(db, migrationsHelper);
             case 65:
                 MigrationTo66.addEncryptionTypeColumnToMessagesTable(db);
+            case 66:
+                MigrationTo67.addE3SearchTokensTable(db);
+            case 67:
+                MigrationTo68.addMessageListSortIndex(db);
+            case 68:
+                MigrationTo69.addFolderMessageCounters(db);
+            case 69:
+                MigrationTo70.addThreadSummaryTable(db);
+            case 70:
+                MigrationTo71.addMessageAddressesTable(db);
         }
 
         if (shouldBuildFtsTable) {
@@ -0,0 +1,141 @@
+package com.fsck.k9.storage.migrations
+
+import android.database.sqlite.SQLiteDatabase
+import com.fsck.k9.storage.RobolectricTest
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+
+
+class MigrationTo70Test : RobolectricTest() {
+    private lateinit var database: SQLiteDatabase
+
+
+    @Before
+    fun setUp() {
+        database = createWithV69Tables()
+    }
+
+    @Test
+    fun addThreadSummaryTable_withEmptyMessagesTable_shouldCreateEmptyTable() {
+        MigrationTo70.addThreadSummaryTable(database)
+
+        assertEquals(emptyList<String>(), querySummaryRows())
+    }
+
+    @Test
+    fun addThreadSummaryTable_shouldSummarizeExistingThreadsPerFolder() {
+        insertMessage(id = 1, folderId = 1, date = 1000, read = 1, root = 1)
+        insertMessage(id = 2, folderId = 1, date = 3000, flagged = 1, attachmentCount = 2, root = 1)
+        insertMessage(id = 3, folderId = 2, date = 2000, read = 1, answered = 1, root = 1)
+        insertMessage(id = 4, folderId = 1, date = 4000, root = 4)
+
+        MigrationTo70.addThreadSummaryTable(database)
+
+        assertEquals(listOf(
+                "1:1:2:3000:2:1:1:0:0:2",
+                "1:4:4:4000:1:1:0:0:0:0",
+                "2:1:3:2000:1:0:0:1:0:0"
+        ), querySummaryRows())
+    }
+
+    @Test
+    fun addThreadSummaryTable_shouldSkipEmptyAndDeletedMessages() {
+        insertMessage(id = 1, folderId = 1, date = 1000, empty = 1, root = 1)
+        insertMessage(id = 2, folderId = 1, date = 3000, deleted = 1, root = 1)
+        insertMessage(id = 3, folderId = 1, date = 2000, root = 1)
+
+        MigrationTo70.addThreadSummaryTable(database)
+
+        assertEquals(listOf("1:1:3:2000:1:1:0:0:0:0"), querySummaryRows())
+    }
+
+    @Test
+    fun addThreadSummaryTable_shouldCreateTriggersThatKeepTableUpToDate() {
+        insertMessage(id = 1, folderId = 1, date = 1000, root = 1)
+        insertMessage(id = 2, folderId = 1, date = 2000, root = 1)
+
+        MigrationTo70.addThreadSummaryTable(database)
+        database.execSQL("UPDATE messages SET read = 1, flagged = 1 WHERE id = 1")
+        database.execSQL("UPDATE messages SET folder_id = 2 WHERE id = 2")
+        insertMessage(id = 3, folderId = 1, date = 3000, root = 1)
+
+        assertEquals(listOf(
+                "1:1:3:3000:2:1:1:0:0:0",
+                "2:1:2:2000:1:1:0:0:0:0"
+        ), querySummaryRows())
+
+        database.execSQL("DELETE FROM threads WHERE message_id = 3")
+        database.execSQL("DELETE FROM messages WHERE id = 3")
+
+        assertEquals(listOf(
+                "1:1:1:1000:1:0:1:0:0:0",
+                "2:1:2:2000:1:1:0:0:0:0"
+        ), querySummaryRows())
+    }
+
+
+    private fun createWithV69Tables(): SQLiteDatabase {
+        val database = SQLiteDatabase.create(null)
+        database.execSQL("""
+            CREATE TABLE messages (
+                id INTEGER PRIMARY KEY,
+                deleted INTEGER default 0,
+                folder_id INTEGER,
+                uid TEXT,
+                date INTEGER,
+                internal_date INTEGER,
+                attachment_count INTEGER,
+                empty INTEGER default 0,
+                read INTEGER default 0,
+                flagged INTEGER default 0,
+                answered INTEGER default 0,
+                forwarded INTEGER default 0
+            )
+            """.trimIndent()
+        )
+        database.execSQL("""
+            CREATE TABLE threads (
+                id INTEGER PRIMARY KEY,
+                message_id INTEGER,
+                root INTEGER,
+                parent INTEGER
+            )
+            """.trimIndent()
+        )
+
+        return database
+    }
+
+    private fun insertMessage(
+            id: Long,
+            folderId: Long,
+            date: Long,
+            root: Long,
+            read: Int = 0,
+            flagged: Int = 0,
+            answered: Int = 0,
+            attachmentCount: Int = 0,
+            empty: Int = 0,
+            deleted: Int = 0
+    ) {
+        database.execSQL(
+                "INSERT INTO messages (id, folder_id, date, internal_date, read, flagged, answered, " +
+                        "attachment_count, empty, deleted) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                arrayOf(id, folderId, date, date, read, flagged, answered, attachmentCount, empty, deleted)
+        )
+        database.execSQL("INSERT INTO threads (message_id, root) VALUES (?, ?)", arrayOf(id, root))
+    }
+
+    private fun querySummaryRows(): List<String> {
+        return database.rawQuery("SELECT folder_id, root, latest_message_id, date, thread_count, unread_count, " +
+                "flagged_count, answered_count, forwarded_count, attachment_count FROM thread_summary " +
+                "ORDER BY folder_id, root", null).use { cursor ->
+            val rows = mutableListOf<String>()
+            while (cursor.moveToNext()) {
+                rows.add((0 until cursor.columnCount).joinToString(":") { cursor.getString(it) })
+            }
+            rows
+        }
+    }
+}
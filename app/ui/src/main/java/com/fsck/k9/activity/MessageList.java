@@ -1390,7 +1390,7 @@ public class MessageList extends K9Activity implements MessageListFragmentListen
     public void showMoreFromSameSender(String senderAddress) {
         LocalSearch tmpSearch = new LocalSearch(getString(R.string.search_from_format, senderAddress));
         tmpSearch.addAccountUuids(search.getAccountUuids());
-        tmpSearch.and(SearchField.SENDER, senderAddress, Attribute.CONTAINS);
+        tmpSearch.and(SearchField.SENDER, senderAddress, Attribute.EQUALS);
 
         initializeFromLocalSearch(tmpSearch);
 
@@ -24,10 +24,12 @@ import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.controller.MessagingListener;
 import com.fsck.k9.controller.SimpleMessagingListener;
 import com.fsck.k9.crypto.e3.E3Constants;
+import com.fsck.k9.crypto.e3.E3DecryptedMessageCache;
 import com.fsck.k9.helper.RetainFragment;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mailstore.CryptoResultAnnotation.CryptoError;
 import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.mailstore.MessageCryptoAnnotations;
 import com.fsck.k9.mailstore.MessageViewInfo;
@@ -236,10 +238,15 @@ public class MessageLoaderHelper {
             return;
         }
 
-        boolean isE3Encrypted = localMessage.isSet(Flag.E3)
-                || (localMessage instanceof MimeMessage && localMessage.getHeader(E3Constants.MIME_E3_ENCRYPTED_HEADER).length > 0);
+        if (account.isE3ProviderConfigured() && isE3Encrypted()) {
+            MessageViewInfo cachedMessageViewInfo =
+                    E3DecryptedMessageCache.getInstance().get(localMessage, account.getE3Key());
+            if (cachedMessageViewInfo != null) {
+                Timber.d("Using cached E3 decrypted message");
+                onDecodeMessageFinished(cachedMessageViewInfo);
+                return;
+            }
 
-        if (account.isE3ProviderConfigured() && isE3Encrypted) {
             startOrResumeCryptoOperation(account.getE3Provider(), account.getE3Key());
             return;
         }
@@ -253,6 +260,11 @@ public class MessageLoaderHelper {
         startOrResumeDecodeMessage();
     }
 
+    private boolean isE3Encrypted() {
+        return localMessage.isSet(Flag.E3)
+                || (localMessage instanceof MimeMessage && localMessage.getHeader(E3Constants.MIME_E3_ENCRYPTED_HEADER).length > 0);
+    }
+
     private void onLoadMessageFromDatabaseFailed() {
         if (callback == null) {
             throw new IllegalStateException("unexpected call when callback is already detached");
@@ -403,9 +415,19 @@ public class MessageLoaderHelper {
             }
         }
 
+        if (isCacheableE3Message(messageViewInfo)) {
+            E3DecryptedMessageCache.getInstance().put(context, localMessage, account.getE3Key(), messageViewInfo);
+        }
+
         callback.onMessageViewInfoLoadFinished(messageViewInfo);
     }
 
+    private boolean isCacheableE3Message(MessageViewInfo messageViewInfo) {
+        return account.isE3ProviderConfigured() && isE3Encrypted() && !messageViewInfo.isMessageIncomplete &&
+                messageViewInfo.cryptoResultAnnotation != null &&
+                messageViewInfo.cryptoResultAnnotation.getErrorType() == CryptoError.OPENPGP_OK;
+    }
+
     @NonNull
     private MessageViewInfo createErrorStateMessageViewInfo() {
         boolean isMessageIncomplete = !localMessage.isSet(Flag.X_DOWNLOADED_FULL);
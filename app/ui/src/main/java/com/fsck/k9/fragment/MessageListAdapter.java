@@ -6,11 +6,8 @@ import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
-import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.format.DateUtils;
-import android.text.style.AbsoluteSizeSpan;
-import android.text.style.ForegroundColorSpan;
 import android.util.TypedValue;
 import android.view.View;
 import android.view.ViewGroup;
@@ -23,23 +20,16 @@ import com.fsck.k9.FontSizes;
 import com.fsck.k9.K9;
 import com.fsck.k9.ui.R;
 import com.fsck.k9.mail.Address;
-import com.fsck.k9.mailstore.DatabasePreviewType;
 import com.fsck.k9.ui.ContactBadge;
 
 import static com.fsck.k9.fragment.MLFProjectionInfo.ANSWERED_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.ATTACHMENT_COUNT_COLUMN;
-import static com.fsck.k9.fragment.MLFProjectionInfo.CC_LIST_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.DATE_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.FLAGGED_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.FOLDER_SERVER_ID_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.FORWARDED_COLUMN;
-import static com.fsck.k9.fragment.MLFProjectionInfo.PREVIEW_COLUMN;
-import static com.fsck.k9.fragment.MLFProjectionInfo.PREVIEW_TYPE_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.READ_COLUMN;
-import static com.fsck.k9.fragment.MLFProjectionInfo.SENDER_LIST_COLUMN;
-import static com.fsck.k9.fragment.MLFProjectionInfo.SUBJECT_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.THREAD_COUNT_COLUMN;
-import static com.fsck.k9.fragment.MLFProjectionInfo.TO_LIST_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.UID_COLUMN;
 
 
@@ -61,16 +51,6 @@ public class MessageListAdapter extends CursorAdapter {
         mForwardedAnsweredIcon = fragment.getResources().getDrawable(R.drawable.ic_email_forwarded_answered_small);
     }
 
-    private String recipientSigil(boolean toMe, boolean ccMe) {
-        if (toMe) {
-            return fragment.getString(R.string.messagelist_sent_to_me_sigil);
-        } else if (ccMe) {
-            return fragment.getString(R.string.messagelist_sent_cc_me_sigil);
-        } else {
-            return "";
-        }
-    }
-
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
         View view = fragment.getK9LayoutInflater().inflate(R.layout.message_list_item, parent, false);
@@ -139,28 +119,10 @@ public class MessageListAdapter extends CursorAdapter {
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
         Account account = fragment.getAccountFromCursor(cursor);
+        MessageListRow row = fragment.rowBuilder.getRow(account, cursor);
 
-        String fromList = cursor.getString(SENDER_LIST_COLUMN);
-        String toList = cursor.getString(TO_LIST_COLUMN);
-        String ccList = cursor.getString(CC_LIST_COLUMN);
-        Address[] fromAddrs = Address.unpack(fromList);
-        Address[] toAddrs = Address.unpack(toList);
-        Address[] ccAddrs = Address.unpack(ccList);
-
-        boolean fromMe = fragment.messageHelper.toMe(account, fromAddrs);
-        boolean toMe = fragment.messageHelper.toMe(account, toAddrs);
-        boolean ccMe = fragment.messageHelper.toMe(account, ccAddrs);
-
-        CharSequence displayName = fragment.messageHelper.getDisplayName(account, fromAddrs, toAddrs);
         CharSequence displayDate = DateUtils.getRelativeTimeSpanString(context, cursor.getLong(DATE_COLUMN));
 
-        Address counterpartyAddress = fetchCounterPartyAddress(fromMe, toAddrs, ccAddrs, fromAddrs);
-
-        int threadCount = (fragment.showingThreadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
-
-        String subject = MlfUtils.buildSubject(cursor.getString(SUBJECT_COLUMN),
-                fragment.getString(R.string.general_no_subject), threadCount);
-
         boolean read = (cursor.getInt(READ_COLUMN) == 1);
         boolean flagged = (cursor.getInt(FLAGGED_COLUMN) == 1);
         boolean answered = (cursor.getInt(ANSWERED_COLUMN) == 1);
@@ -184,24 +146,15 @@ public class MessageListAdapter extends CursorAdapter {
         }
         holder.position = cursor.getPosition();
         if (holder.contactBadge != null) {
-            updateContactBadge(holder, counterpartyAddress);
+            updateContactBadge(holder, row.counterpartyAddress);
         }
         setBackgroundColor(view, selected, read);
         if (fragment.activeMessage != null) {
             changeBackgroundColorIfActiveMessage(cursor, account, view);
         }
+        int threadCount = (fragment.showingThreadedList) ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
         updateWithThreadCount(holder, threadCount);
-        CharSequence beforePreviewText = (fragment.senderAboveSubject) ? subject : displayName;
-        String sigil = recipientSigil(toMe, ccMe);
-        SpannableStringBuilder messageStringBuilder = new SpannableStringBuilder(sigil)
-                .append(beforePreviewText);
-        if (fragment.previewLines > 0) {
-            String preview = getPreview(cursor);
-            messageStringBuilder.append(" ").append(preview);
-        }
-        holder.preview.setText(messageStringBuilder, TextView.BufferType.SPANNABLE);
-
-        formatPreviewText(holder.preview, beforePreviewText, sigil);
+        holder.preview.setText(row.previewText);
 
         Drawable statusHolder = buildStatusHolder(forwarded, answered);
 
@@ -214,9 +167,9 @@ public class MessageListAdapter extends CursorAdapter {
                         hasAttachments ? mAttachmentIcon : null, // right
                         null); // bottom
 
-                holder.from.setText(displayName);
+                holder.from.setText(row.displayName);
             } else {
-                holder.from.setText(new SpannableStringBuilder(sigil).append(displayName));
+                holder.from.setText(new SpannableStringBuilder(row.sigil).append(row.displayName));
             }
         }
         if (holder.subject != null ) {
@@ -229,46 +182,11 @@ public class MessageListAdapter extends CursorAdapter {
             }
 
             holder.subject.setTypeface(Typeface.create(holder.subject.getTypeface(), maybeBoldTypeface));
-            holder.subject.setText(subject);
+            holder.subject.setText(row.subject);
         }
         holder.date.setText(displayDate);
     }
 
-    private void formatPreviewText(TextView preview, CharSequence beforePreviewText, String sigil) {
-        Spannable previewText = (Spannable)preview.getText();
-        previewText.setSpan(buildSenderSpan(), 0, beforePreviewText.length() + sigil.length(),
-                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-
-        int previewSpanColor = buildPreviewSpanColor();
-
-        // Set span (color) for preview message
-        previewText.setSpan(new ForegroundColorSpan(previewSpanColor), beforePreviewText.length() + sigil.length(),
-                previewText.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-    }
-
-    /**
-     * Create a span section for the sender, and assign the correct font size and weight
-     */
-    private AbsoluteSizeSpan buildSenderSpan() {
-        int fontSize = (fragment.senderAboveSubject) ?
-                fontSizes.getMessageListSubject():
-                fontSizes.getMessageListSender();
-        return new AbsoluteSizeSpan(fontSize, true);
-    }
-
-    private Address fetchCounterPartyAddress(boolean fromMe, Address[] toAddrs, Address[] ccAddrs, Address[] fromAddrs) {
-        if (fromMe) {
-            if (toAddrs.length > 0) {
-                return toAddrs[0];
-            } else if (ccAddrs.length > 0) {
-                return ccAddrs[0];
-            }
-        } else if (fromAddrs.length > 0) {
-            return fromAddrs[0];
-        }
-        return null;
-    }
-
     private void updateContactBadge(MessageViewHolder holder, Address counterpartyAddress) {
         if (counterpartyAddress != null) {
             holder.contactBadge.setContact(counterpartyAddress);
@@ -300,13 +218,6 @@ public class MessageListAdapter extends CursorAdapter {
         }
     }
 
-    private int buildPreviewSpanColor() {
-        //TODO: make this part of the theme
-        return (K9.getK9Theme() == K9.Theme.LIGHT) ?
-                Color.rgb(105, 105, 105) :
-                Color.rgb(160, 160, 160);
-    }
-
     private Drawable buildStatusHolder(boolean forwarded, boolean answered) {
         if (forwarded && answered) {
             return mForwardedAnsweredIcon;
@@ -346,23 +257,4 @@ public class MessageListAdapter extends CursorAdapter {
         }
     }
 
-    private String getPreview(Cursor cursor) {
-        String previewTypeString = cursor.getString(PREVIEW_TYPE_COLUMN);
-        DatabasePreviewType previewType = DatabasePreviewType.fromDatabaseValue(previewTypeString);
-
-        switch (previewType) {
-            case NONE:
-            case ERROR: {
-                return "";
-            }
-            case ENCRYPTED: {
-                return fragment.getString(R.string.preview_encrypted);
-            }
-            case TEXT: {
-                return cursor.getString(PREVIEW_COLUMN);
-            }
-        }
-
-        throw new AssertionError("Unknown preview type: " + previewType);
-    }
 }
@@ -27,7 +27,6 @@ import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.Fragment;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.app.LoaderManager.LoaderCallbacks;
-import androidx.loader.content.CursorLoader;
 import androidx.loader.content.Loader;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.text.TextUtils;
@@ -42,6 +41,8 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
@@ -75,6 +76,8 @@ import com.fsck.k9.fragment.MessageListFragmentComparators.ReverseIdComparator;
 import com.fsck.k9.fragment.MessageListFragmentComparators.SenderComparator;
 import com.fsck.k9.fragment.MessageListFragmentComparators.SubjectComparator;
 import com.fsck.k9.fragment.MessageListFragmentComparators.UnreadComparator;
+import com.fsck.k9.helper.LimitedCursor;
+import com.fsck.k9.helper.MergeCursor;
 import com.fsck.k9.helper.MergeCursorWithUniqueId;
 import com.fsck.k9.helper.MessageHelper;
 import com.fsck.k9.helper.Utility;
@@ -82,6 +85,7 @@ import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mailstore.LocalFolder;
+import com.fsck.k9.mailstore.MessageAddressIndex;
 import com.fsck.k9.preferences.StorageEditor;
 import com.fsck.k9.provider.EmailProvider;
 import com.fsck.k9.provider.EmailProvider.MessageColumns;
@@ -134,6 +138,23 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private static final String STATE_ACTIVE_MESSAGE = "activeMessage";
     private static final String STATE_REMOTE_SEARCH_PERFORMED = "remoteSearchPerformed";
     private static final String STATE_MESSAGE_LIST = "listState";
+    private static final String STATE_WINDOW_SIZE = "windowSize";
+
+    /**
+     * Number of messages loaded per account at first. The window doubles whenever the user scrolls close to the end of
+     * the loaded messages, so the rows re-read when growing it add up to about the number of rows shown in the end.
+     */
+    private static final int PAGE_SIZE = 100;
+    private static final int LOAD_MORE_THRESHOLD = 25;
+    private static final int UNLIMITED_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * The normalized address of the first sender, i.e. the address {@link SenderComparator} compares when merging the
+     * message lists of multiple accounts.
+     */
+    private static final String SENDER_SORT_KEY = "(SELECT address FROM message_addresses " +
+            "WHERE message_id = " + MessageColumns.ID + " AND role = '" + MessageAddressIndex.ROLE_FROM + "' " +
+            "ORDER BY position LIMIT 1)";
 
     /**
      * Maps a {@link SortType} to a {@link Comparator} implementation.
@@ -178,6 +199,9 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private Cursor[] cursors;
     private boolean[] cursorValid;
     int uniqueIdColumn;
+    private int windowSize = PAGE_SIZE;
+    private boolean moreMessagesAvailable = false;
+    private boolean selectAllAfterLoad = false;
 
     /**
      * Stores the server ID of the folder that we want to open as soon as possible after load.
@@ -215,6 +239,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private List<MessageReference> activeMessages;
     /* package visibility for faster inner class access */
     MessageHelper messageHelper;
+    MessageListRowBuilder rowBuilder;
     private final ActionModeCallback actionModeCallback = new ActionModeCallback();
     MessageListFragmentListener fragmentListener;
     boolean showingThreadedList;
@@ -427,6 +452,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         messagingController = MessagingController.getInstance(getActivity().getApplication());
 
         previewLines = K9.messageListPreviewLines();
+        senderAboveSubject = K9.messageListSenderAboveSubject();
         checkboxes = K9.messageListCheckboxes();
         stars = K9.messageListStars();
 
@@ -469,6 +495,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         super.onActivityCreated(savedInstanceState);
 
         messageHelper = MessageHelper.getInstance(getActivity());
+        rowBuilder = createRowBuilder();
 
         initializeMessageList();
 
@@ -494,6 +521,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         saveListState(outState);
 
         outState.putBoolean(STATE_REMOTE_SEARCH_PERFORMED, remoteSearchPerformed);
+        outState.putInt(STATE_WINDOW_SIZE, windowSize);
         if (activeMessage != null) {
             outState.putString(STATE_ACTIVE_MESSAGE, activeMessage.toIdentityString());
         }
@@ -512,6 +540,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         restoreSelectedMessages(savedInstanceState);
 
         remoteSearchPerformed = savedInstanceState.getBoolean(STATE_REMOTE_SEARCH_PERFORMED);
+        windowSize = savedInstanceState.getInt(STATE_WINDOW_SIZE, PAGE_SIZE);
         savedListState = savedInstanceState.getParcelable(STATE_MESSAGE_LIST);
         String messageReferenceString = savedInstanceState.getString(STATE_ACTIVE_MESSAGE);
         activeMessage = MessageReference.parse(messageReferenceString);
@@ -666,7 +695,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     public void onResume() {
         super.onResume();
 
-        senderAboveSubject = K9.messageListSenderAboveSubject();
+        if (senderAboveSubject != K9.messageListSenderAboveSubject()) {
+            senderAboveSubject = K9.messageListSenderAboveSubject();
+            rowBuilder = createRowBuilder();
+        }
 
         if (!loaderJustInitialized) {
             restartLoader();
@@ -704,6 +736,11 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         updateTitle();
     }
 
+    private MessageListRowBuilder createRowBuilder() {
+        return new MessageListRowBuilder(getActivity(), messageHelper, senderAboveSubject, previewLines,
+                showingThreadedList);
+    }
+
     private void restartLoader() {
         if (cursorValid == null) {
             return;
@@ -751,10 +788,36 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         listView.setFastScrollEnabled(true);
         listView.setScrollingCacheEnabled(false);
         listView.setOnItemClickListener(this);
+        listView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // Ignore
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD) {
+                    loadMoreMessages();
+                }
+            }
+        });
 
         registerForContextMenu(listView);
     }
 
+    /**
+     * Grows the number of messages loaded per account when there are more messages than currently loaded.
+     */
+    private void loadMoreMessages() {
+        if (!moreMessagesAvailable || !isLoadFinished()) {
+            return;
+        }
+
+        moreMessagesAvailable = false;
+        windowSize = (windowSize > UNLIMITED_WINDOW_SIZE / 2) ? UNLIMITED_WINDOW_SIZE : windowSize * 2;
+        restartLoader();
+    }
+
     public void onCompose() {
         if (!singleAccountMode) {
             /*
@@ -865,6 +928,8 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         Toast toast = Toast.makeText(getActivity(), toastString, Toast.LENGTH_SHORT);
         toast.show();
 
+        windowSize = PAGE_SIZE;
+
         LoaderManager loaderManager = getLoaderManager();
         for (int i = 0, len = accountUuids.length; i < len; i++) {
             loaderManager.restartLoader(i, null, this);
@@ -1503,7 +1568,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     private void computeSelectAllVisibility() {
-        actionModeCallback.showSelectAll(selected.size() != adapter.getCount());
+        actionModeCallback.showSelectAll(moreMessagesAvailable || selected.size() != adapter.getCount());
     }
 
     private void computeBatchDirection() {
@@ -2171,6 +2236,15 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     public void selectAll() {
+        if (moreMessagesAvailable) {
+            // Only the first messages are loaded. Load the rest, so the selection covers every message in the list.
+            moreMessagesAvailable = false;
+            selectAllAfterLoad = true;
+            windowSize = UNLIMITED_WINDOW_SIZE;
+            restartLoader();
+            return;
+        }
+
         setSelectionState(true);
     }
 
@@ -2478,11 +2552,24 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             needConditions = true;
         }
 
+        if (threadId == null) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT, Integer.toString(windowSize))
+                    .build();
+        }
+
+        boolean selectActive = activeMessage != null && activeMessage.getAccountUuid().equals(accountUuid);
+
+        if (showingThreadedList && threadId == null && !selectActive &&
+                SqlQueryBuilder.isSingleFolderCondition(search.getConditions())) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(EmailProvider.QUERY_PARAMETER_SINGLE_FOLDER, Boolean.toString(true))
+                    .build();
+        }
+
         StringBuilder query = new StringBuilder();
         List<String> queryArgs = new ArrayList<>();
         if (needConditions) {
-            boolean selectActive = activeMessage != null && activeMessage.getAccountUuid().equals(accountUuid);
-
             if (selectActive) {
                 query.append("(" + MessageColumns.UID + " = ? AND " + SpecialColumns.FOLDER_SERVER_ID + " = ?) OR (");
                 queryArgs.add(activeMessage.getUid());
@@ -2501,7 +2588,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         String sortOrder = buildSortOrder();
 
-        return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
+        return new MessageListLoader(getActivity(), account, rowBuilder, uri, projection, selection, selectionArgs,
                 sortOrder);
     }
 
@@ -2532,8 +2619,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
                 break;
             }
             case SORT_SENDER: {
-                //FIXME
-                sortColumn = MessageColumns.SENDER_LIST;
+                sortColumn = SENDER_SORT_KEY;
                 break;
             }
             case SORT_SUBJECT: {
@@ -2575,9 +2661,13 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         cursors[loaderId] = data;
         cursorValid[loaderId] = true;
 
+        boolean windowed = getThreadId(search) == null;
+        moreMessagesAvailable = windowed && isAnyCursorFull();
+
         Cursor cursor;
         if (cursors.length > 1) {
-            cursor = new MergeCursorWithUniqueId(cursors, getComparator());
+            MergeCursorWithUniqueId mergeCursor = new MergeCursorWithUniqueId(cursors, getComparator());
+            cursor = windowed ? limitToLoadedRange(mergeCursor) : mergeCursor;
             uniqueIdColumn = cursor.getColumnIndex("_id");
         } else {
             cursor = data;
@@ -2612,10 +2702,47 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
                 handler.restoreListPosition();
             }
 
+            if (selectAllAfterLoad) {
+                selectAllAfterLoad = false;
+                setSelectionState(true);
+            }
+
             fragmentListener.updateMenu();
         }
     }
 
+    private boolean isAnyCursorFull() {
+        for (Cursor cursor : cursors) {
+            if (cursor != null && cursor.getCount() >= windowSize) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Every account only returns the first {@link #windowSize} messages of its list. Once all loaded messages of
+     * such an account have been merged, its unloaded messages could belong anywhere below. So the merged list has to
+     * end there until more messages are loaded.
+     * <p>
+     * The positions of the last loaded messages are looked up with a binary search, so the merged list isn't walked
+     * on the main thread.
+     */
+    private Cursor limitToLoadedRange(MergeCursor mergeCursor) {
+        int count = mergeCursor.getCount();
+        int limit = count;
+        for (int i = 0; i < cursors.length; i++) {
+            Cursor cursor = cursors[i];
+            if (cursor != null && cursor.getCount() >= windowSize) {
+                int lastPosition = mergeCursor.getMergedPosition(i, cursor.getCount() - 1);
+                limit = Math.min(limit, lastPosition + 1);
+            }
+        }
+
+        return (limit < count) ? new LimitedCursor(mergeCursor, limit) : mergeCursor;
+    }
+
     private void updateMoreMessagesOfCurrentFolder() {
         if (folderServerId != null) {
             try {
@@ -0,0 +1,37 @@
+package com.fsck.k9.fragment;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import androidx.loader.content.CursorLoader;
+
+import com.fsck.k9.Account;
+
+
+/**
+ * Loads the message list of an account and prepares its rows with {@link MessageListRowBuilder} while still on the
+ * background thread.
+ */
+class MessageListLoader extends CursorLoader {
+    private final Account account;
+    private final MessageListRowBuilder rowBuilder;
+
+
+    MessageListLoader(Context context, Account account, MessageListRowBuilder rowBuilder, Uri uri,
+            String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        this.account = account;
+        this.rowBuilder = rowBuilder;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = super.loadInBackground();
+        if (cursor != null) {
+            rowBuilder.preloadRows(account, cursor);
+        }
+
+        return cursor;
+    }
+}
@@ -0,0 +1,68 @@
+package com.fsck.k9.fragment;
+
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.fsck.k9.mail.Address;
+
+import static com.fsck.k9.fragment.MLFProjectionInfo.CC_LIST_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.PREVIEW_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.PREVIEW_TYPE_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.SENDER_LIST_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.SUBJECT_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.TO_LIST_COLUMN;
+
+
+/**
+ * The parts of a message list row that are expensive to compute, ready to be displayed.
+ * <p>
+ * Flags aren't part of this, because {@link com.fsck.k9.cache.EmailProviderCache} changes them in the cursor without
+ * reloading the message list.
+ */
+class MessageListRow {
+    final CharSequence displayName;
+    final String sigil;
+    final Address counterpartyAddress;
+    final String subject;
+    final CharSequence previewText;
+
+    private final String senderList;
+    private final String toList;
+    private final String ccList;
+    private final String rawSubject;
+    private final String previewType;
+    private final String preview;
+    private final int threadCount;
+
+
+    MessageListRow(Cursor cursor, int threadCount, CharSequence displayName, String sigil,
+            Address counterpartyAddress, String subject, CharSequence previewText) {
+        this.displayName = displayName;
+        this.sigil = sigil;
+        this.counterpartyAddress = counterpartyAddress;
+        this.subject = subject;
+        this.previewText = previewText;
+
+        senderList = cursor.getString(SENDER_LIST_COLUMN);
+        toList = cursor.getString(TO_LIST_COLUMN);
+        ccList = cursor.getString(CC_LIST_COLUMN);
+        rawSubject = cursor.getString(SUBJECT_COLUMN);
+        previewType = cursor.getString(PREVIEW_TYPE_COLUMN);
+        preview = cursor.getString(PREVIEW_COLUMN);
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Checks whether this row was built from the same values as the current row of {@code cursor}.
+     */
+    boolean isBuiltFrom(Cursor cursor, int threadCount) {
+        return this.threadCount == threadCount &&
+                TextUtils.equals(senderList, cursor.getString(SENDER_LIST_COLUMN)) &&
+                TextUtils.equals(toList, cursor.getString(TO_LIST_COLUMN)) &&
+                TextUtils.equals(ccList, cursor.getString(CC_LIST_COLUMN)) &&
+                TextUtils.equals(rawSubject, cursor.getString(SUBJECT_COLUMN)) &&
+                TextUtils.equals(previewType, cursor.getString(PREVIEW_TYPE_COLUMN)) &&
+                TextUtils.equals(preview, cursor.getString(PREVIEW_COLUMN));
+    }
+}
@@ -0,0 +1,301 @@
+package com.fsck.k9.fragment;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Color;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.SpannedString;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.ForegroundColorSpan;
+import android.util.LruCache;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.FontSizes;
+import com.fsck.k9.K9;
+import com.fsck.k9.helper.Contacts;
+import com.fsck.k9.helper.MessageHelper;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mailstore.DatabasePreviewType;
+import com.fsck.k9.ui.R;
+
+import static com.fsck.k9.fragment.MLFProjectionInfo.CC_LIST_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.ID_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.PREVIEW_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.PREVIEW_TYPE_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.SENDER_LIST_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.SUBJECT_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.THREAD_COUNT_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.TO_LIST_COLUMN;
+
+
+/**
+ * Builds {@link MessageListRow}s and keeps the most recently used ones, so binding a row doesn't have to parse
+ * addresses, look up contacts or format text on the UI thread.
+ * <p>
+ * {@link #preloadRows(Account, Cursor)} is called by {@link MessageListLoader} on a background thread whenever the
+ * message list is loaded. {@link #getRow(Account, Cursor)} is called when binding a row, and only has to build the
+ * row itself when it isn't cached. The cache grows to hold all loaded rows, so that only happens for rows built with
+ * settings or contact names that have changed since the last load.
+ */
+class MessageListRowBuilder {
+    private static final int MIN_CACHE_SIZE = 2000;
+
+
+    private volatile LruCache<String, MessageListRow> cache = new LruCache<>(MIN_CACHE_SIZE);
+    private final Map<String, Integer> loadedRowCounts = new HashMap<>();
+    private DisplaySettings displaySettings = DisplaySettings.current();
+    private final MessageHelper messageHelper;
+    private final FontSizes fontSizes;
+    private final boolean senderAboveSubject;
+    private final int previewLines;
+    private final boolean threaded;
+    private final String noSubject;
+    private final String sentToMeSigil;
+    private final String sentCcMeSigil;
+    private final String encryptedPreview;
+
+
+    MessageListRowBuilder(Context context, MessageHelper messageHelper, boolean senderAboveSubject, int previewLines,
+            boolean threaded) {
+        this.messageHelper = messageHelper;
+        this.senderAboveSubject = senderAboveSubject;
+        this.previewLines = previewLines;
+        this.threaded = threaded;
+        fontSizes = K9.getFontSizes();
+        noSubject = context.getString(R.string.general_no_subject);
+        sentToMeSigil = context.getString(R.string.messagelist_sent_to_me_sigil);
+        sentCcMeSigil = context.getString(R.string.messagelist_sent_cc_me_sigil);
+        encryptedPreview = context.getString(R.string.preview_encrypted);
+    }
+
+    void preloadRows(Account account, Cursor cursor) {
+        prepareCache(account, cursor.getCount());
+
+        LruCache<String, MessageListRow> cache = this.cache;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            String key = getKey(account, cursor);
+            int threadCount = getThreadCount(cursor);
+
+            MessageListRow row = cache.get(key);
+            if (row == null || !row.isBuiltFrom(cursor, threadCount)) {
+                cache.put(key, buildRow(account, cursor, threadCount));
+            }
+        }
+
+        cursor.moveToPosition(-1);
+    }
+
+    MessageListRow getRow(Account account, Cursor cursor) {
+        String key = getKey(account, cursor);
+
+        LruCache<String, MessageListRow> cache = this.cache;
+        MessageListRow row = cache.get(key);
+        if (row == null) {
+            row = buildRow(account, cursor, getThreadCount(cursor));
+            cache.put(key, row);
+        }
+
+        return row;
+    }
+
+    /**
+     * Drops all rows when the settings or contact names they were built with have changed, and makes sure the cache
+     * can keep the loaded rows of all accounts.
+     */
+    private synchronized void prepareCache(Account account, int rowCount) {
+        DisplaySettings currentSettings = DisplaySettings.current();
+        if (!currentSettings.equals(displaySettings)) {
+            displaySettings = currentSettings;
+            cache.evictAll();
+        }
+
+        loadedRowCounts.put(account.getUuid(), rowCount);
+        int loadedRows = 0;
+        for (int count : loadedRowCounts.values()) {
+            loadedRows += count;
+        }
+
+        if (loadedRows > cache.maxSize()) {
+            // android.util.LruCache can't be resized before API 21
+            LruCache<String, MessageListRow> largerCache = new LruCache<>(loadedRows);
+            for (Map.Entry<String, MessageListRow> entry : cache.snapshot().entrySet()) {
+                largerCache.put(entry.getKey(), entry.getValue());
+            }
+            cache = largerCache;
+        }
+    }
+
+    private String getKey(Account account, Cursor cursor) {
+        return account.getUuid() + ":" + cursor.getLong(ID_COLUMN);
+    }
+
+    private int getThreadCount(Cursor cursor) {
+        return threaded ? cursor.getInt(THREAD_COUNT_COLUMN) : 0;
+    }
+
+    private MessageListRow buildRow(Account account, Cursor cursor, int threadCount) {
+        Address[] fromAddrs = Address.unpack(cursor.getString(SENDER_LIST_COLUMN));
+        Address[] toAddrs = Address.unpack(cursor.getString(TO_LIST_COLUMN));
+        Address[] ccAddrs = Address.unpack(cursor.getString(CC_LIST_COLUMN));
+
+        boolean fromMe = messageHelper.toMe(account, fromAddrs);
+        boolean toMe = messageHelper.toMe(account, toAddrs);
+        boolean ccMe = messageHelper.toMe(account, ccAddrs);
+
+        CharSequence displayName = messageHelper.getDisplayName(account, fromAddrs, toAddrs);
+        Address counterpartyAddress = fetchCounterPartyAddress(fromMe, toAddrs, ccAddrs, fromAddrs);
+        String subject = MlfUtils.buildSubject(cursor.getString(SUBJECT_COLUMN), noSubject, threadCount);
+        String sigil = recipientSigil(toMe, ccMe);
+
+        CharSequence beforePreviewText = senderAboveSubject ? subject : displayName;
+        CharSequence previewText = buildPreviewText(cursor, beforePreviewText, sigil);
+
+        return new MessageListRow(cursor, threadCount, displayName, sigil, counterpartyAddress, subject, previewText);
+    }
+
+    private CharSequence buildPreviewText(Cursor cursor, CharSequence beforePreviewText, String sigil) {
+        SpannableStringBuilder previewText = new SpannableStringBuilder(sigil).append(beforePreviewText);
+        if (previewLines > 0) {
+            previewText.append(" ").append(getPreview(cursor));
+        }
+
+        int beforePreviewLength = beforePreviewText.length() + sigil.length();
+        previewText.setSpan(buildSenderSpan(), 0, beforePreviewLength, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        // Set span (color) for preview message
+        previewText.setSpan(new ForegroundColorSpan(buildPreviewSpanColor()), beforePreviewLength,
+                previewText.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        return new SpannedString(previewText);
+    }
+
+    private String recipientSigil(boolean toMe, boolean ccMe) {
+        if (toMe) {
+            return sentToMeSigil;
+        } else if (ccMe) {
+            return sentCcMeSigil;
+        } else {
+            return "";
+        }
+    }
+
+    /**
+     * Create a span section for the sender, and assign the correct font size and weight
+     */
+    private AbsoluteSizeSpan buildSenderSpan() {
+        int fontSize = (senderAboveSubject) ?
+                fontSizes.getMessageListSubject():
+                fontSizes.getMessageListSender();
+        return new AbsoluteSizeSpan(fontSize, true);
+    }
+
+    private int buildPreviewSpanColor() {
+        //TODO: make this part of the theme
+        return (K9.getK9Theme() == K9.Theme.LIGHT) ?
+                Color.rgb(105, 105, 105) :
+                Color.rgb(160, 160, 160);
+    }
+
+    private Address fetchCounterPartyAddress(boolean fromMe, Address[] toAddrs, Address[] ccAddrs, Address[] fromAddrs) {
+        if (fromMe) {
+            if (toAddrs.length > 0) {
+                return toAddrs[0];
+            } else if (ccAddrs.length > 0) {
+                return ccAddrs[0];
+            }
+        } else if (fromAddrs.length > 0) {
+            return fromAddrs[0];
+        }
+        return null;
+    }
+
+    private String getPreview(Cursor cursor) {
+        String previewTypeString = cursor.getString(PREVIEW_TYPE_COLUMN);
+        DatabasePreviewType previewType = DatabasePreviewType.fromDatabaseValue(previewTypeString);
+
+        switch (previewType) {
+            case NONE:
+            case ERROR: {
+                return "";
+            }
+            case ENCRYPTED: {
+                return encryptedPreview;
+            }
+            case TEXT: {
+                return cursor.getString(PREVIEW_COLUMN);
+            }
+        }
+
+        throw new AssertionError("Unknown preview type: " + previewType);
+    }
+
+
+    /**
+     * The settings and contact names that {@link #buildRow(Account, Cursor, int)} depends on besides the cursor.
+     */
+    private static class DisplaySettings {
+        final boolean showContactName;
+        final boolean showCorrespondentNames;
+        final boolean changeContactNameColor;
+        final int contactNameColor;
+        final K9.Theme theme;
+        final int senderFontSize;
+        final int subjectFontSize;
+        final int contactsCacheGeneration;
+
+
+        static DisplaySettings current() {
+            return new DisplaySettings();
+        }
+
+        private DisplaySettings() {
+            FontSizes fontSizes = K9.getFontSizes();
+            showContactName = K9.showContactName();
+            showCorrespondentNames = K9.showCorrespondentNames();
+            changeContactNameColor = K9.changeContactNameColor();
+            contactNameColor = K9.getContactNameColor();
+            theme = K9.getK9Theme();
+            senderFontSize = fontSizes.getMessageListSender();
+            subjectFontSize = fontSizes.getMessageListSubject();
+            contactsCacheGeneration = Contacts.getCacheGeneration();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DisplaySettings)) {
+                return false;
+            }
+
+            DisplaySettings other = (DisplaySettings) o;
+            return showContactName == other.showContactName &&
+                    showCorrespondentNames == other.showCorrespondentNames &&
+                    changeContactNameColor == other.changeContactNameColor &&
+                    contactNameColor == other.contactNameColor &&
+                    theme == other.theme &&
+                    senderFontSize == other.senderFontSize &&
+                    subjectFontSize == other.subjectFontSize &&
+                    contactsCacheGeneration == other.contactsCacheGeneration;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (showContactName ? 1 : 0);
+            result = 31 * result + (showCorrespondentNames ? 1 : 0);
+            result = 31 * result + (changeContactNameColor ? 1 : 0);
+            result = 31 * result + contactNameColor;
+            result = 31 * result + (theme != null ? theme.hashCode() : 0);
+            result = 31 * result + senderFontSize;
+            result = 31 * result + subjectFontSize;
+            result = 31 * result + contactsCacheGeneration;
+            return result;
+        }
+    }
+}
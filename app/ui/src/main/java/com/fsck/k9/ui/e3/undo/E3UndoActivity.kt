@@ -112,6 +112,16 @@ class E3UndoActivity : E3ActionBaseActivity(), View.OnClickListener {
         done.visibility = View.GONE
     }
 
+    fun setUndoProgress(completedBatches: Int, totalBatches: Int, restoredMessages: Int, failedMessages: Int) {
+        e3ExistingUndoProgress.visibility = View.VISIBLE
+        e3ExistingUndoProgress.text = if (failedMessages > 0) {
+            resources.getString(R.string.e3_undo_progress_with_failures,
+                    completedBatches, totalBatches, restoredMessages, failedMessages)
+        } else {
+            resources.getString(R.string.e3_undo_progress, completedBatches, totalBatches, restoredMessages)
+        }
+    }
+
     fun setLoadingStateUndoing() {
         e3UndoProgressUndoing.setDisplayedChild(StatusIndicator.Status.PROGRESS)
     }
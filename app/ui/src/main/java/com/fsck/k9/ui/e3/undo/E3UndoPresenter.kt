@@ -5,6 +5,7 @@ import androidx.lifecycle.Observer
 import androidx.work.WorkInfo
 import com.fsck.k9.Account
 import com.fsck.k9.Preferences
+import com.fsck.k9.crypto.e3.E3UndoEncryptionManager
 
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
@@ -89,28 +90,26 @@ class E3UndoPresenter internal constructor(
         }
 
         var failed = 0
-        var succeeded = 0
         for (workInfo in workInfoList) {
             when (workInfo.state) {
-                WorkInfo.State.SUCCEEDED -> {
-                    Timber.d("Found succeeded undo work")
-                    succeeded += 1
-                }
                 WorkInfo.State.FAILED -> {
                     Timber.d("Found failed undo work")
                     failed += 1
                 }
                 else -> {
-                    Timber.d("Found existing and queued or running job")
+                    Timber.d("Found undo work in state ${workInfo.state}")
                 }
             }
         }
 
-        if (failed > 0) {
+        val progress = E3UndoEncryptionManager.getProgress(workInfoList)
+
+        // Emails that still couldn't be decrypted after the last retry mean the undo didn't finish
+        if (failed > 0 || (progress.isFinished && progress.failedMessages > 0)) {
             viewModel.cancelExistingWork(account)
             view.sceneCancelledUndoWithFailure()
             return
-        } else if (succeeded > 0) {
+        } else if (progress.isFinished) {
             viewModel.cancelExistingWork(account)
             view.sceneFinished()
             return
@@ -118,5 +117,7 @@ class E3UndoPresenter internal constructor(
 
         Timber.d("Existing E3 undo workers: $workInfoList")
         view.sceneUndoing()
+        view.setUndoProgress(progress.completedBatches, progress.totalBatches, progress.restoredMessages,
+                progress.failedMessages)
     }
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import android.app.AlertDialog
 import android.content.DialogInterface
 import android.content.Intent
 import android.os.Bundle
+import android.text.format.DateUtils
 import androidx.preference.SwitchPreference
 import androidx.preference.ListPreference
 import android.widget.Toast
@@ -154,6 +155,17 @@ class AccountSettingsFragment : PreferenceFragmentCompat() {
             findPreference(PREFERENCE_PUSH_MODE)?.remove()
             findPreference(PREFERENCE_ADVANCED_PUSH_SETTINGS)?.remove()
             findPreference(PREFERENCE_REMOTE_SEARCH)?.remove()
+            return
+        }
+
+        findPreference(PREFERENCE_PUSH_STATISTICS)?.apply {
+            val statistics = messagingController.getPushStatistics(account)
+            summary = if (statistics == null) {
+                getString(R.string.push_statistics_not_pushing)
+            } else {
+                val uptime = DateUtils.formatElapsedTime(statistics.uptime / 1000)
+                getString(R.string.push_statistics_summary, uptime, statistics.reconnectCount, statistics.wakeupCount)
+            }
         }
     }
 
@@ -401,6 +413,7 @@ class AccountSettingsFragment : PreferenceFragmentCompat() {
         private const val PREFERENCE_MESSAGE_AGE = "account_message_age"
         private const val PREFERENCE_PUSH_MODE = "folder_push_mode"
         private const val PREFERENCE_ADVANCED_PUSH_SETTINGS = "push_advanced"
+        private const val PREFERENCE_PUSH_STATISTICS = "push_statistics"
         private const val PREFERENCE_REMOTE_SEARCH = "search"
         private const val PREFERENCE_LOCAL_STORAGE_PROVIDER = "local_storage_provider"
         private const val PREFERENCE_OPENPGP_ENABLE = "openpgp_provider"
@@ -6,10 +6,12 @@ import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Flag
 import com.fsck.k9.mail.Folder
 import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.MessageRetrievalListener
 import com.fsck.k9.mail.MessagingException
 import com.fsck.k9.mail.Part
 import com.fsck.k9.mail.PushReceiver
 import com.fsck.k9.mail.Pusher
+import com.fsck.k9.mail.SendMessagesListener
 
 
 interface Backend {
@@ -75,6 +77,18 @@ interface Backend {
     @Throws(MessagingException::class)
     fun fetchMessage(folderServerId: String, messageServerId: String, fetchProfile: FetchProfile): Message
 
+    /**
+     * Fetches several messages with as few round trips as the protocol allows. [listener] is notified as each
+     * message has been fetched, so callers can store messages in batches while the download is still running.
+     */
+    @Throws(MessagingException::class)
+    fun fetchMessages(
+            folderServerId: String,
+            messageServerIds: List<String>,
+            fetchProfile: FetchProfile,
+            listener: MessageRetrievalListener<Message>
+    )
+
     @Throws(MessagingException::class)
     fun fetchPart(folderServerId: String, messageServerId: String, part: Part, bodyFactory: BodyFactory)
 
@@ -84,6 +98,15 @@ interface Backend {
     @Throws(MessagingException::class)
     fun uploadMessage(folderServerId: String, message: Message): String?
 
+    /**
+     * Uploads several messages to the same folder with as few commands as the protocol allows.
+     *
+     * @return a map from the messages' previous UIDs to the UIDs assigned by the server, or `null` if the server
+     * didn't report them.
+     */
+    @Throws(MessagingException::class)
+    fun uploadMessages(folderServerId: String, messages: List<Message>): Map<String, String>?
+
     fun createPusher(receiver: PushReceiver): Pusher
 
     @Throws(MessagingException::class)
@@ -92,6 +115,12 @@ interface Backend {
     @Throws(MessagingException::class)
     fun sendMessage(message: Message)
 
+    /**
+     * Sends several messages, e.g. the content of the outbox, reusing connections to the server where possible.
+     * The outcome of each message is reported to [listener] on the calling thread.
+     */
+    fun <T : Message> sendMessages(messages: List<T>, listener: SendMessagesListener<T>)
+
     @Throws(MessagingException::class)
     fun checkOutgoingServerSettings()
 }
@@ -0,0 +1,151 @@
+package com.fsck.k9.backend.api
+
+import com.fsck.k9.mail.Message
+import timber.log.Timber
+import java.util.IdentityHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Phaser
+import java.util.concurrent.Semaphore
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Staged fetch → encrypt → store pipeline used to encrypt messages on receipt during a sync.
+ *
+ * [submit] blocks while [E3SyncConfig.pipelineCapacity] messages are in flight. Since it is called from the FETCH
+ * response loop this pushes back on the download, so neither encrypted temp files nor pending work pile up.
+ * [awaitCompletion] is the barrier the sync waits on before reporting that it finished.
+ *
+ * The worker threads are only started once the first message is submitted, so syncs without messages to encrypt
+ * don't pay for them. The [SyncUpdatedListener]s passed to [submit] are not called from the worker threads. Their
+ * updates are queued and delivered on the thread that calls [deliverUpdates], i.e. the sync thread.
+ */
+class E3EncryptPipeline(
+        private val encryptSyncListener: EncryptSyncListener<Message>,
+        private val e3SyncConfig: E3SyncConfig
+) {
+    private val inFlight = Semaphore(e3SyncConfig.pipelineCapacity)
+    private val outstanding = Phaser(1)
+    private val queuedCount = AtomicInteger(0)
+    private var replacedCount = 0
+    private val failedCount = AtomicInteger(0)
+    private val pendingUpdates = ConcurrentLinkedQueue<PendingUpdate>()
+    private val deferredListeners = IdentityHashMap<SyncUpdatedListener, SyncUpdatedListener>()
+    private var encryptExecutor: ExecutorService? = null
+    private var storeExecutor: ExecutorService? = null
+
+    val replaced: Int
+        get() = replacedCount
+
+    val failed: Int
+        get() = failedCount.get()
+
+    fun submit(message: Message, listener: SyncUpdatedListener) {
+        val encryptExecutor = encryptExecutor ?: startWorkers()
+
+        inFlight.acquire()
+        outstanding.register()
+
+        try {
+            // Replacements are batched per listener, so every listener gets exactly one wrapper
+            val deferredListener = deferredListeners.getOrPut(listener) { DeferredSyncUpdatedListener(listener) }
+            encryptExecutor.execute { encrypt(message, deferredListener) }
+        } catch (e: Exception) {
+            finish(success = false)
+            throw e
+        }
+    }
+
+    /**
+     * Calls the [SyncUpdatedListener]s of all replacements that were stored since the last call. Must be called from
+     * the thread that calls [submit].
+     */
+    fun deliverUpdates() {
+        while (true) {
+            val update = pendingUpdates.poll() ?: return
+            update.listener.updateWithNewMessage(update.message)
+        }
+    }
+
+    /**
+     * Waits until every submitted message went through all stages, then releases the worker threads. Afterwards the
+     * replacements that [EncryptSyncListener.storeSync] only queued are completed by
+     * [EncryptSyncListener.replacementsFinished].
+     *
+     * @return the number of messages that were successfully replaced.
+     */
+    fun awaitCompletion(folderServerId: String): Int {
+        try {
+            outstanding.arriveAndAwaitAdvance()
+        } finally {
+            encryptExecutor?.shutdown()
+            storeExecutor?.shutdown()
+        }
+
+        if (queuedCount.get() > 0) {
+            replacedCount = encryptSyncListener.replacementsFinished(folderServerId)
+        }
+
+        Timber.d("E3 pipeline drained: %d queued, %d replaced, %d failed", queuedCount.get(), replacedCount,
+                failedCount.get())
+        return replacedCount
+    }
+
+    private fun startWorkers(): ExecutorService {
+        storeExecutor = Executors.newFixedThreadPool(e3SyncConfig.storeParallelism, StageThreadFactory("E3Store"))
+        return Executors.newFixedThreadPool(e3SyncConfig.encryptParallelism, StageThreadFactory("E3Encrypt"))
+                .also { encryptExecutor = it }
+    }
+
+    private fun encrypt(message: Message, listener: SyncUpdatedListener) {
+        val encryptedMessage = try {
+            encryptSyncListener.encryptSync(message)
+        } catch (e: Exception) {
+            Timber.e(e, "E3 pipeline failed to encrypt message %s", message.uid)
+            finish(success = false)
+            return
+        }
+
+        try {
+            storeExecutor!!.execute { store(message, encryptedMessage, listener) }
+        } catch (e: Exception) {
+            Timber.e(e, "E3 pipeline failed to queue encrypted message %s", message.uid)
+            encryptSyncListener.encryptionDiscarded(encryptedMessage)
+            finish(success = false)
+        }
+    }
+
+    private fun store(originalMessage: Message, encryptedMessage: Message, listener: SyncUpdatedListener) {
+        var success = false
+        try {
+            encryptSyncListener.storeSync(originalMessage, encryptedMessage, listener)
+            success = true
+        } catch (e: Exception) {
+            Timber.e(e, "E3 pipeline failed to store encrypted message %s", originalMessage.uid)
+        } finally {
+            finish(success)
+        }
+    }
+
+    private fun finish(success: Boolean) {
+        if (success) queuedCount.incrementAndGet() else failedCount.incrementAndGet()
+        outstanding.arriveAndDeregister()
+        inFlight.release()
+    }
+
+    private inner class DeferredSyncUpdatedListener(val listener: SyncUpdatedListener) : SyncUpdatedListener {
+        override fun updateWithNewMessage(message: Message) {
+            pendingUpdates.add(PendingUpdate(listener, message))
+        }
+    }
+
+    private class PendingUpdate(val listener: SyncUpdatedListener, val message: Message)
+
+    private class StageThreadFactory(private val name: String) : ThreadFactory {
+        private val counter = AtomicInteger(0)
+
+        override fun newThread(runnable: Runnable) = Thread(runnable, "$name-${counter.incrementAndGet()}")
+    }
+}
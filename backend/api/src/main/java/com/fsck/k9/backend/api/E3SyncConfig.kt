@@ -8,7 +8,10 @@ data class E3SyncConfig(
         val e3Provider: String?,
         val e3Mode: E3ModeBackend,
         val e3KeyId: Long?,
-        val encryptSyncListener: EncryptSyncListener<Message>
+        val encryptSyncListener: EncryptSyncListener<Message>,
+        val encryptParallelism: Int,
+        val storeParallelism: Int,
+        val pipelineCapacity: Int
 ) {
 
     companion object {
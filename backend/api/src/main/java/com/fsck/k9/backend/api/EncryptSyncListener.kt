@@ -1,8 +1,39 @@
 package com.fsck.k9.backend.api
 
+import com.fsck.k9.mail.MessagingException
+
 /**
+ * Encrypts messages on receipt. The two stages are driven by [E3EncryptPipeline] and may be called concurrently
+ * from several worker threads.
+ *
  * TODO: E3 figure out a better way to deal with ImapSync
  */
 interface EncryptSyncListener<T> {
-    fun asyncEncryptSync(message: T, listener: SyncUpdatedListener)
-}
\ No newline at end of file
+    /**
+     * Encrypts the message and returns the replacement. Called from the pipeline's encrypt workers.
+     */
+    @Throws(MessagingException::class)
+    fun encryptSync(message: T): T
+
+    /**
+     * Persists the encrypted replacement locally and remotely. Called from the pipeline's store workers.
+     *
+     * [listener] may be called from any thread. [E3EncryptPipeline] hands the calls over to the sync thread.
+     */
+    @Throws(MessagingException::class)
+    fun storeSync(originalMessage: T, encryptedMessage: T, listener: SyncUpdatedListener)
+
+    /**
+     * Called instead of [storeSync] if the pipeline couldn't hand [encryptedMessage] to a store worker, so any state
+     * kept for it by [encryptSync] can be released.
+     */
+    fun encryptionDiscarded(encryptedMessage: T)
+
+    /**
+     * Called once per sync after the pipeline drained, if at least one message was handed to [storeSync].
+     * Replacements that [storeSync] only queued have to be completed or given up on before this returns.
+     *
+     * @return the number of replacements in this folder that were completed since the last call.
+     */
+    fun replacementsFinished(folderServerId: String): Int
+}
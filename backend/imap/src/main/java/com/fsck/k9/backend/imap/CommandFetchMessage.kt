@@ -5,6 +5,7 @@ import com.fsck.k9.mail.BodyFactory
 import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Folder
 import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.MessageRetrievalListener
 import com.fsck.k9.mail.Part
 import com.fsck.k9.mail.store.imap.ImapFolder
 import com.fsck.k9.mail.store.imap.ImapMessage
@@ -38,6 +39,47 @@ internal class CommandFetchMessage(private val imapStore: ImapStore) {
         }
     }
 
+    fun fetchMessages(
+            folderServerId: String,
+            messageServerIds: List<String>,
+            fetchProfile: FetchProfile,
+            listener: MessageRetrievalListener<Message>
+    ) {
+        val folder = imapStore.getFolder(folderServerId)
+        try {
+            folder.open(Folder.OPEN_MODE_RO)
+
+            // ImapFolder.fetch() issues one UID FETCH per FETCH_WINDOW_SIZE messages
+            val messages = messageServerIds.map { folder.getMessage(it) }
+            val retrievalListener = object : MessageRetrievalListener<ImapMessage> {
+                override fun messageStarted(uid: String, number: Int, ofTotal: Int) {
+                    listener.messageStarted(uid, number, ofTotal)
+                }
+
+                override fun messageFinished(message: ImapMessage, number: Int, ofTotal: Int) {
+                    listener.messageFinished(message, number, ofTotal)
+                }
+
+                override fun messagesFinished(total: Int) {
+                    listener.messagesFinished(total)
+                }
+            }
+
+            if (fetchProfile.contains(FetchProfile.Item.STRUCTURE) &&
+                    fetchProfile.contains(FetchProfile.Item.ENVELOPE)) {
+                val headerFetchProfile = fetchProfile.without(FetchProfile.Item.STRUCTURE)
+                val structureFetchProfile = FetchProfile().apply { add(FetchProfile.Item.STRUCTURE) }
+
+                folder.fetch(messages, headerFetchProfile, null)
+                folder.fetch(messages, structureFetchProfile, retrievalListener)
+            } else {
+                folder.fetch(messages, fetchProfile, retrievalListener)
+            }
+        } finally {
+            folder.close()
+        }
+    }
+
     fun fetchPart(folderServerId: String, messageServerId: String, part: Part, bodyFactory: BodyFactory) {
         val folder = imapStore.getFolder(folderServerId)
         try {
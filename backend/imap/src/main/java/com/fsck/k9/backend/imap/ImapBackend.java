@@ -1,6 +1,7 @@
 package com.fsck.k9.backend.imap;
 
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -14,10 +15,12 @@ import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.PushReceiver;
 import com.fsck.k9.mail.Pusher;
+import com.fsck.k9.mail.SendMessagesListener;
 import com.fsck.k9.mail.power.PowerManager;
 import com.fsck.k9.mail.store.imap.ImapPusher;
 import com.fsck.k9.mail.store.imap.ImapStore;
@@ -184,6 +187,13 @@ public class ImapBackend implements Backend {
         return commandFetchMessage.fetchMessage(folderServerId, messageServerId, fetchProfile);
     }
 
+    @Override
+    public void fetchMessages(@NotNull String folderServerId, @NotNull List<String> messageServerIds,
+            @NotNull FetchProfile fetchProfile, @NotNull MessageRetrievalListener<Message> listener)
+            throws MessagingException {
+        commandFetchMessage.fetchMessages(folderServerId, messageServerIds, fetchProfile, listener);
+    }
+
     @Override
     public void fetchPart(@NotNull String folderServerId, @NotNull String messageServerId, @NotNull Part part,
             @NotNull BodyFactory bodyFactory) throws MessagingException {
@@ -202,6 +212,13 @@ public class ImapBackend implements Backend {
         return commandUploadMessage.uploadMessage(folderServerId, message);
     }
 
+    @Nullable
+    @Override
+    public Map<String, String> uploadMessages(@NotNull String folderServerId,
+            @NotNull List<? extends Message> messages) throws MessagingException {
+        return commandUploadMessage.uploadMessages(folderServerId, messages);
+    }
+
     @NotNull
     @Override
     public Pusher createPusher(@NotNull PushReceiver receiver) {
@@ -218,6 +235,12 @@ public class ImapBackend implements Backend {
         smtpTransport.sendMessage(message);
     }
 
+    @Override
+    public <T extends Message> void sendMessages(@NotNull List<? extends T> messages,
+            @NotNull SendMessagesListener<T> listener) {
+        smtpTransport.sendMessages(new ArrayList<T>(messages), listener);
+    }
+
     @Override
     public void checkOutgoingServerSettings() throws MessagingException {
         smtpTransport.checkSettings();
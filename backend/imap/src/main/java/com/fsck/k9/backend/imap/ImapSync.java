@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -15,9 +16,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.fsck.k9.backend.api.BackendFolder;
 import com.fsck.k9.backend.api.BackendFolder.MoreMessages;
 import com.fsck.k9.backend.api.BackendStorage;
+import com.fsck.k9.backend.api.E3EncryptPipeline;
 import com.fsck.k9.backend.api.E3SyncConfig;
 import com.fsck.k9.backend.api.E3SyncConfig.E3ModeBackend;
-import com.fsck.k9.backend.api.EncryptSyncListener;
 import com.fsck.k9.backend.api.MessageRemovalListener;
 import com.fsck.k9.backend.api.SyncConfig;
 import com.fsck.k9.backend.api.SyncConfig.ExpungePolicy;
@@ -38,7 +39,10 @@ import com.fsck.k9.mail.internet.MessageExtractor;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.store.imap.ImapFolder;
+import com.fsck.k9.mail.store.imap.ImapMessage;
 import com.fsck.k9.mail.store.imap.ImapStore;
+import com.fsck.k9.mail.store.imap.QresyncResponse;
+import com.fsck.k9.mail.store.imap.UidRangeSet;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -46,6 +50,20 @@ import timber.log.Timber;
 
 
 class ImapSync {
+    private static final String EXTRA_UID_VALIDITY = "imapUidValidity";
+    private static final String EXTRA_HIGHEST_MOD_SEQ = "imapHighestModSeq";
+    private static final String EXTRA_UID_NEXT = "imapUidNext";
+    private static final String EXTRA_MESSAGE_COUNT = "imapMessageCount";
+    private static final String EXTRA_SYNC_VISIBLE_LIMIT = "imapSyncVisibleLimit";
+    private static final String EXTRA_LAST_FULL_SYNC = "imapLastFullSync";
+    private static final long FULL_SYNC_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long NO_MOD_SEQ = -1L;
+    /**
+     * Passed as {@code flagsChangedSince} when the server already sent the current flags along with the messages,
+     * e.g. in reply to {@code SELECT ... (QRESYNC ...)}.
+     */
+    private static final long FLAGS_ALREADY_FETCHED = Long.MAX_VALUE;
+
     private final String accountName;
     private final BackendStorage backendStorage;
     private final ImapStore imapStore;
@@ -75,21 +93,26 @@ class ImapSync {
 
             listener.syncStarted(folder, folderName);
 
-            /*
-             * Get the message list from the local store and create an index of
-             * the uids within the list.
-             */
-
             Long lastUid = backendFolder.getLastUid();
 
-            Map<String, Long> localUidMap = backendFolder.getAllMessagesAndEffectiveDates();
+            int visibleLimit = backendFolder.getVisibleLimit();
+
+            if (visibleLimit < 0) {
+                visibleLimit = syncConfig.getDefaultVisibleLimit();
+            }
+
+            ImapFolder imapFolder = null;
+            QresyncResponse qresyncResponse = null;
+            long knownHighestModSeq = NO_MOD_SEQ;
+            boolean syncStateValid = false;
 
             if (providedRemoteFolder != null) {
                 Timber.v("SYNC: using providedRemoteFolder %s", folder);
                 remoteFolder = providedRemoteFolder;
             } else {
                 Timber.v("SYNC: About to get remote folder %s", folder);
-                remoteFolder = imapStore.getFolder(folder);
+                imapFolder = imapStore.getFolder(folder);
+                remoteFolder = imapFolder;
 
                 /*
                  * Synchronization process:
@@ -118,8 +141,23 @@ class ImapSync {
                     Timber.d("SYNC: Expunging folder %s:%s", accountName, folder);
                     remoteFolder.expunge();
                 }
-                remoteFolder.open(Folder.OPEN_MODE_RO);
 
+                long knownUidValidity = getFolderExtraNumber(backendFolder, EXTRA_UID_VALIDITY);
+                boolean fullSyncRequired = isFullSyncRequired(backendFolder, visibleLimit);
+                if (!fullSyncRequired) {
+                    knownHighestModSeq = getFolderExtraNumber(backendFolder, EXTRA_HIGHEST_MOD_SEQ);
+                }
+
+                qresyncResponse = imapFolder.openUsingQresync(Folder.OPEN_MODE_RO, knownUidValidity,
+                        knownHighestModSeq);
+
+                syncStateValid = !fullSyncRequired && knownUidValidity > 0 &&
+                        imapFolder.getUidValidity() == knownUidValidity;
+                if (!syncStateValid || imapFolder.getHighestModSeq() <= 0) {
+                    Timber.d("SYNC: No usable mod-sequence for folder %s:%s", accountName, folder);
+                    knownHighestModSeq = NO_MOD_SEQ;
+                    qresyncResponse = null;
+                }
             }
 
             listener.syncAuthenticationSuccess();
@@ -129,12 +167,22 @@ class ImapSync {
              */
             int remoteMessageCount = remoteFolder.getMessageCount();
 
-            int visibleLimit = backendFolder.getVisibleLimit();
+            if (qresyncResponse != null) {
+                int newMessages = synchronizeChangedMessages(syncConfig, imapFolder, backendFolder, qresyncResponse,
+                        knownHighestModSeq, lastUid, listener);
+                storeSyncState(backendFolder, imapFolder, visibleLimit, remoteMessageCount, false);
 
-            if (visibleLimit < 0) {
-                visibleLimit = syncConfig.getDefaultVisibleLimit();
+                finishSync(backendFolder, folder, remoteMessageCount, newMessages, listener);
+                return;
             }
 
+            /*
+             * Get the message list from the local store and create an index of
+             * the uids within the list.
+             */
+
+            Map<String, Long> localUidMap = backendFolder.getAllMessagesAndEffectiveDates();
+
             final List<Message> remoteMessages = new ArrayList<>();
             Map<String, Message> remoteUidMap = new HashMap<>();
 
@@ -160,8 +208,16 @@ class ImapSync {
                 listener.syncHeadersStarted(folder, folderName);
 
 
-                List<? extends Message> remoteMessageArray =
-                        remoteFolder.getMessages(remoteStart, remoteMessageCount, earliestDate, null);
+                List<? extends Message> remoteMessageArray = null;
+                if (syncStateValid && earliestDate == null) {
+                    remoteMessageArray = getMessagesUsingUidRange(syncConfig, imapFolder, backendFolder,
+                            localUidMap.keySet(), lastUid, remoteMessageCount);
+                }
+
+                boolean listedRemoteWindow = remoteMessageArray == null;
+                if (listedRemoteWindow) {
+                    remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteMessageCount, earliestDate, null);
+                }
 
                 int messageCount = remoteMessageArray.size();
 
@@ -217,25 +273,13 @@ class ImapSync {
              * Now we download the actual content of messages.
              */
             int newMessages = downloadMessages(syncConfig, remoteFolder, backendFolder, remoteMessages, false,
-                    true, lastUid, listener);
-
-            int unreadMessageCount = backendFolder.getUnreadMessageCount();
-            listener.folderStatusChanged(folder, unreadMessageCount);
+                    true, lastUid, knownHighestModSeq, listener);
 
-            /* Notify listeners that we're finally done. */
-
-            backendFolder.setLastChecked(System.currentTimeMillis());
-            backendFolder.setStatus(null);
-
-            Timber.d("Done synchronizing folder %s:%s @ %tc with %d new messages",
-                    accountName,
-                    folder,
-                    System.currentTimeMillis(),
-                    newMessages);
-
-            listener.syncFinished(folder, remoteMessageCount, newMessages);
+            if (imapFolder != null) {
+                storeSyncState(backendFolder, imapFolder, visibleLimit, remoteMessageCount, listedRemoteWindow);
+            }
 
-            Timber.i("Done synchronizing folder %s:%s", accountName, folder);
+            finishSync(backendFolder, folder, remoteMessageCount, newMessages, listener);
 
         } catch (AuthenticationFailedException e) {
             listener.syncFailed(folder, "Authentication failure", e);
@@ -266,6 +310,160 @@ class ImapSync {
 
     }
 
+    private void finishSync(BackendFolder backendFolder, String folder, int remoteMessageCount, int newMessages,
+            SyncListener listener) {
+        int unreadMessageCount = backendFolder.getUnreadMessageCount();
+        listener.folderStatusChanged(folder, unreadMessageCount);
+
+        /* Notify listeners that we're finally done. */
+
+        backendFolder.setLastChecked(System.currentTimeMillis());
+        backendFolder.setStatus(null);
+
+        Timber.d("Done synchronizing folder %s:%s @ %tc with %d new messages",
+                accountName,
+                folder,
+                System.currentTimeMillis(),
+                newMessages);
+
+        listener.syncFinished(folder, remoteMessageCount, newMessages);
+
+        Timber.i("Done synchronizing folder %s:%s", accountName, folder);
+    }
+
+    /**
+     * Applies the changes reported by {@code SELECT ... (QRESYNC ...)} instead of listing the whole visible window.
+     * <p>
+     * Flag changes are only applied to messages we already have. Changed messages we don't have locally are only
+     * downloaded if they are newer than anything we've seen; older ones are outside the synchronized window.
+     * <p>
+     * The expunged UIDs are reported as ranges that can span most of the folder, so they are matched against the local
+     * UIDs (loaded once) instead of being looked up one by one.
+     */
+    private int synchronizeChangedMessages(SyncConfig syncConfig, ImapFolder remoteFolder,
+            BackendFolder backendFolder, QresyncResponse qresyncResponse, long knownHighestModSeq, Long lastUid,
+            SyncListener listener) throws MessagingException {
+        String folder = remoteFolder.getServerId();
+
+        Timber.v("SYNC: Incremental sync of folder %s since mod-sequence %d", folder, knownHighestModSeq);
+
+        Set<String> localUids = backendFolder.getAllMessagesAndEffectiveDates().keySet();
+
+        UidRangeSet expungedUids = qresyncResponse.getExpungedUids();
+        if (syncConfig.getSyncRemoteDeletions() && !expungedUids.isEmpty()) {
+            List<String> destroyMessageUids = new ArrayList<>();
+            for (String localUid : localUids) {
+                if (expungedUids.contains(localUid)) {
+                    destroyMessageUids.add(localUid);
+                }
+            }
+
+            if (!destroyMessageUids.isEmpty()) {
+                backendFolder.destroyMessages(destroyMessageUids);
+                for (String uid : destroyMessageUids) {
+                    listener.syncRemovedMessage(folder, uid);
+                }
+            }
+        }
+
+        listener.syncHeadersStarted(folder, backendFolder.getName());
+
+        List<Message> changedMessages = new ArrayList<>();
+        for (ImapMessage message : qresyncResponse.getChangedMessages()) {
+            String messageServerId = message.getUid();
+            if (localUids.contains(messageServerId) || !isOldMessage(messageServerId, lastUid)) {
+                changedMessages.add(message);
+            }
+        }
+
+        Timber.v("SYNC: Got %d changed messages for folder %s", changedMessages.size(), folder);
+
+        listener.syncHeadersFinished(folder, changedMessages.size(), changedMessages.size());
+
+        return downloadMessages(syncConfig, remoteFolder, backendFolder, changedMessages, false, true, lastUid,
+                FLAGS_ALREADY_FETCHED, listener);
+    }
+
+    /**
+     * Returns the messages of the synchronized window without listing it: the messages we have locally plus those
+     * the server added since the last sync ({@code UID SEARCH UID n:* NOT DELETED}).
+     * <p>
+     * Returns {@code null} if the window has to be listed to find out which messages were expunged, i.e. when the
+     * message count doesn't add up with the number of new messages. This also happens when new messages are already
+     * flagged as deleted, since those are left out of the search but still counted by the server.
+     */
+    private List<Message> getMessagesUsingUidRange(SyncConfig syncConfig, ImapFolder remoteFolder,
+            BackendFolder backendFolder, Set<String> localUids, Long lastUid, int remoteMessageCount)
+            throws MessagingException {
+        long storedUidNext = getFolderExtraNumber(backendFolder, EXTRA_UID_NEXT);
+        long storedMessageCount = getFolderExtraNumber(backendFolder, EXTRA_MESSAGE_COUNT);
+        if (storedMessageCount < 0 || (storedUidNext <= 0 && lastUid == null)) {
+            return null;
+        }
+
+        List<ImapMessage> newMessages;
+        if (storedUidNext > 0 && storedUidNext == remoteFolder.getUidNext()) {
+            newMessages = Collections.emptyList();
+        } else {
+            long firstNewUid = storedUidNext > 0 ? storedUidNext : lastUid + 1;
+            newMessages = remoteFolder.getMessagesFromUid(firstNewUid);
+        }
+
+        if (syncConfig.getSyncRemoteDeletions() && storedMessageCount + newMessages.size() != remoteMessageCount) {
+            Timber.d("SYNC: Messages were expunged from folder %s, listing all messages",
+                    remoteFolder.getServerId());
+            return null;
+        }
+
+        Timber.v("SYNC: Found %d new messages in folder %s using UID range", newMessages.size(),
+                remoteFolder.getServerId());
+
+        List<Message> messages = new ArrayList<>(localUids.size() + newMessages.size());
+        messages.addAll(newMessages);
+        for (String localUid : localUids) {
+            if (!localUid.startsWith(BackendFolder.LOCAL_UID_PREFIX)) {
+                messages.add(remoteFolder.getMessage(localUid));
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * A full sync is forced periodically and whenever the visible limit changed, since incremental syncs only learn
+     * about changes and never widen the synchronized window.
+     */
+    private boolean isFullSyncRequired(BackendFolder backendFolder, int visibleLimit) {
+        long lastFullSync = getFolderExtraNumber(backendFolder, EXTRA_LAST_FULL_SYNC);
+        if (System.currentTimeMillis() - lastFullSync > FULL_SYNC_INTERVAL_MILLIS) {
+            return true;
+        }
+
+        return getFolderExtraNumber(backendFolder, EXTRA_SYNC_VISIBLE_LIMIT) != visibleLimit;
+    }
+
+    private void storeSyncState(BackendFolder backendFolder, ImapFolder imapFolder, int visibleLimit,
+            int remoteMessageCount, boolean fullSync) {
+        long uidValidity = imapFolder.getUidValidity();
+        if (uidValidity <= 0) {
+            return;
+        }
+
+        backendFolder.setFolderExtraNumber(EXTRA_UID_VALIDITY, uidValidity);
+        backendFolder.setFolderExtraNumber(EXTRA_HIGHEST_MOD_SEQ, imapFolder.getHighestModSeq());
+        backendFolder.setFolderExtraNumber(EXTRA_UID_NEXT, imapFolder.getUidNext());
+        backendFolder.setFolderExtraNumber(EXTRA_MESSAGE_COUNT, remoteMessageCount);
+        backendFolder.setFolderExtraNumber(EXTRA_SYNC_VISIBLE_LIMIT, visibleLimit);
+        if (fullSync) {
+            backendFolder.setFolderExtraNumber(EXTRA_LAST_FULL_SYNC, System.currentTimeMillis());
+        }
+    }
+
+    private static long getFolderExtraNumber(BackendFolder backendFolder, String name) {
+        Long value = backendFolder.getFolderExtraNumber(name);
+        return value != null ? value : NO_MOD_SEQ;
+    }
+
     void downloadMessage(SyncConfig syncConfig, String folderServerId, String messageServerId)
             throws MessagingException {
         BackendFolder backendFolder = backendStorage.getFolder(folderServerId);
@@ -282,6 +480,7 @@ class ImapSync {
                     false,
                     false,
                     null,
+                    NO_MOD_SEQ,
                     new SimpleSyncListener());
         } finally {
             remoteFolder.close();
@@ -302,6 +501,9 @@ class ImapSync {
      *         Only flags will be fetched from the remote store if this is {@code true}.
      * @param purgeToVisibleLimit
      *         If true, local messages will be purged down to the limit of visible messages.
+     * @param flagsChangedSince
+     *         If not {@link #NO_MOD_SEQ}, only flags of messages changed since this mod-sequence are refreshed.
+     *         {@link #FLAGS_ALREADY_FETCHED} uses the flags of {@code inputMessages} without fetching them again.
      *
      * @return The number of downloaded messages that are not flagged as {@link Flag#SEEN}.
      *
@@ -309,7 +511,7 @@ class ImapSync {
      */
     private int downloadMessages(SyncConfig syncConfig, Folder remoteFolder, BackendFolder backendFolder,
             List<Message> inputMessages, boolean flagSyncOnly, boolean purgeToVisibleLimit, Long lastUid,
-            final SyncListener listener) throws MessagingException {
+            long flagsChangedSince, final SyncListener listener) throws MessagingException {
 
         final Date earliestDate = syncConfig.getEarliestPollDate();
 
@@ -399,7 +601,8 @@ class ImapSync {
          * download.
          */
 
-        refreshLocalMessageFlags(syncConfig, remoteFolder, backendFolder, syncFlagMessages, progress, todo, listener);
+        refreshLocalMessageFlags(syncConfig, remoteFolder, backendFolder, syncFlagMessages, flagsChangedSince,
+                progress, todo, listener);
 
         Timber.d("SYNC: Synced remote messages for folder %s, %d new messages", folder, newMessages.get());
 
@@ -550,8 +753,49 @@ class ImapSync {
 
         Timber.d("SYNC: Fetching %d small messages for folder %s", smallMessages.size(), folder);
 
+        final E3SyncConfig e3SyncConfig = syncConfig.getE3SyncConfig();
+        final E3EncryptPipeline e3Pipeline = new E3EncryptPipeline(e3SyncConfig.getEncryptSyncListener(), e3SyncConfig);
+
+        try {
+            fetchSmallMessages(remoteFolder, backendFolder, smallMessages, progress, newMessages, todo, fp, lastUid,
+                    listener, earliestDate, e3SyncConfig, e3Pipeline);
+        } finally {
+            // Barrier: don't report the sync as finished before every encrypted replacement was persisted
+            e3Pipeline.awaitCompletion(folder);
+
+            // Report the remaining replacements on this thread, like the messages that weren't encrypted
+            e3Pipeline.deliverUpdates();
+        }
+
+        Timber.d("SYNC: Done fetching small messages for folder %s", folder);
+    }
+
+    private <T extends Message> void fetchSmallMessages(
+            final Folder<T> remoteFolder,
+            final BackendFolder backendFolder,
+            List<T> smallMessages,
+            final AtomicInteger progress,
+            final AtomicInteger newMessages,
+            final int todo,
+            FetchProfile fp,
+            final Long lastUid,
+            final SyncListener listener,
+            final Date earliestDate,
+            final E3SyncConfig e3SyncConfig,
+            final E3EncryptPipeline e3Pipeline) throws MessagingException {
+        final String folder = remoteFolder.getServerId();
+
         remoteFolder.fetch(smallMessages,
                 fp, new MessageRetrievalListener<T>() {
+                    // Called on this thread by E3EncryptPipeline.deliverUpdates()
+                    private final SyncUpdatedListener syncUpdatedListener = new SyncUpdatedListener() {
+                        @Override
+                        public void updateWithNewMessage(@NotNull Message updatedMessage) {
+                            progress.incrementAndGet();
+                            updateListeners(updatedMessage);
+                        }
+                    };
+
                     @Override
                     public void messageFinished(final T message, int number, int ofTotal) {
                         try {
@@ -561,21 +805,15 @@ class ImapSync {
                                 return;
                             }
 
-                            if (shouldEncrypt(message, syncConfig.getE3SyncConfig())) {
-                                final EncryptSyncListener<Message> e3Listener = syncConfig.getE3SyncConfig().getEncryptSyncListener();
-                                final SyncUpdatedListener syncUpdatedListener = new SyncUpdatedListener() {
-                                    @Override
-                                    public void updateWithNewMessage(@NotNull Message updatedMessage) {
-                                        updateListeners(updatedMessage);
-                                    }
-                                };
-
-                                e3Listener.asyncEncryptSync(message, syncUpdatedListener);
+                            if (shouldEncrypt(message, e3SyncConfig)) {
+                                // Blocks while the pipeline is full, which throttles this FETCH
+                                e3Pipeline.submit(message, syncUpdatedListener);
                             } else {
                                 storeLocally(message);
                                 updateListeners(message);
                             }
 
+                            e3Pipeline.deliverUpdates();
                         } catch (Exception e) {
                             Timber.e(e, "SYNC: fetch small messages");
                         }
@@ -634,8 +872,6 @@ class ImapSync {
 
                     }
                 });
-
-        Timber.d("SYNC: Done fetching small messages for folder %s", folder);
     }
 
     private <T extends Message> void downloadLargeMessages(
@@ -697,6 +933,7 @@ class ImapSync {
             final Folder remoteFolder,
             final BackendFolder backendFolder,
             List<Message> syncFlagMessages,
+            long flagsChangedSince,
             final AtomicInteger progress,
             final int todo,
             SyncListener listener
@@ -715,11 +952,32 @@ class ImapSync {
             }
         }
 
-        remoteFolder.fetch(undeletedMessages, fp, null);
+        Set<String> unchangedUids = new HashSet<>();
+        if (flagsChangedSince == FLAGS_ALREADY_FETCHED) {
+            Timber.d("SYNC: Using flags reported by the server for folder %s", folder);
+        } else if (flagsChangedSince == NO_MOD_SEQ) {
+            remoteFolder.fetch(undeletedMessages, fp, null);
+        } else {
+            for (Message message : undeletedMessages) {
+                unchangedUids.add(message.getUid());
+            }
+
+            List<ImapMessage> changedMessages =
+                    ((ImapFolder) remoteFolder).fetchChangedFlags(undeletedMessages, flagsChangedSince);
+            for (Message message : changedMessages) {
+                unchangedUids.remove(message.getUid());
+            }
+
+            Timber.d("SYNC: %d of %d messages changed since mod-sequence %d", changedMessages.size(),
+                    undeletedMessages.size(), flagsChangedSince);
+        }
+
         for (Message remoteMessage : syncFlagMessages) {
-            boolean messageChanged = syncFlags(syncConfig, backendFolder, remoteMessage);
-            if (messageChanged) {
-                listener.syncFlagChanged(folder, remoteMessage.getUid());
+            if (!unchangedUids.contains(remoteMessage.getUid())) {
+                boolean messageChanged = syncFlags(syncConfig, backendFolder, remoteMessage);
+                if (messageChanged) {
+                    listener.syncFlagChanged(folder, remoteMessage.getUid());
+                }
             }
             progress.incrementAndGet();
             listener.syncProgress(folder, progress.get(), todo);
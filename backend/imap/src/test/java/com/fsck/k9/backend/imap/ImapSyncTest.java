@@ -4,7 +4,9 @@ package com.fsck.k9.backend.imap;
 import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.fsck.k9.backend.api.BackendFolder;
@@ -19,7 +21,10 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.imap.ImapFolder;
+import com.fsck.k9.mail.store.imap.ImapMessage;
 import com.fsck.k9.mail.store.imap.ImapStore;
+import com.fsck.k9.mail.store.imap.QresyncResponse;
+import com.fsck.k9.mail.store.imap.UidRangeSet;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -35,6 +40,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
@@ -51,6 +57,8 @@ public class ImapSyncTest {
     private static final int MAXIMUM_SMALL_MESSAGE_SIZE = 1000;
     private static final String MESSAGE_UID1 = "message-uid1";
     private static final int DEFAULT_VISIBLE_LIMIT = 25;
+    private static final long UID_VALIDITY = 1125022061L;
+    private static final long HIGHEST_MOD_SEQ = 715194045007L;
     private static final Set<Flag> SYNC_FLAGS = EnumSet.of(Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED);
 
 
@@ -127,7 +135,110 @@ public class ImapSyncTest {
 
         imapSync.sync(FOLDER_NAME, syncConfig, listener, null);
 
-        verify(remoteFolder).open(Folder.OPEN_MODE_RO);
+        verify(remoteFolder).openUsingQresync(Folder.OPEN_MODE_RO, -1L, -1L);
+    }
+
+    @Test
+    public void sync_withStoredModSeqAndQresyncResponse_shouldOnlyApplyReportedChanges() throws Exception {
+        messageCountInRemoteFolder(1);
+        configureRemoteStoreWithFolder();
+        storedModSeqState(UID_VALIDITY, HIGHEST_MOD_SEQ);
+        QresyncResponse qresyncResponse = mock(QresyncResponse.class);
+        when(qresyncResponse.getExpungedUids()).thenReturn(UidRangeSet.parse("1:41"));
+        when(qresyncResponse.getChangedMessages()).thenReturn(Collections.<ImapMessage>emptyList());
+        when(remoteFolder.openUsingQresync(Folder.OPEN_MODE_RO, UID_VALIDITY, HIGHEST_MOD_SEQ))
+                .thenReturn(qresyncResponse);
+        when(remoteFolder.getUidValidity()).thenReturn(UID_VALIDITY);
+        when(remoteFolder.getHighestModSeq()).thenReturn(HIGHEST_MOD_SEQ + 10);
+        localMessages("41", "42");
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, null);
+
+        verify(backendFolder).destroyMessages(Collections.singletonList("41"));
+        verify(backendFolder, never()).isMessagePresent("1");
+        verify(remoteFolder, never()).getMessages(anyInt(), anyInt(), nullable(Date.class),
+                nullable(MessageRetrievalListener.class));
+        verify(backendFolder).setFolderExtraNumber("imapHighestModSeq", HIGHEST_MOD_SEQ + 10);
+        verify(listener).syncFinished(FOLDER_NAME, 1, 0);
+    }
+
+    @Test
+    public void sync_withStoredModSeqAndChangedLocalMessage_shouldUseReportedFlags() throws Exception {
+        messageCountInRemoteFolder(1);
+        configureRemoteStoreWithFolder();
+        storedModSeqState(UID_VALIDITY, HIGHEST_MOD_SEQ);
+        ImapMessage changedMessage = mock(ImapMessage.class);
+        when(changedMessage.getUid()).thenReturn("42");
+        QresyncResponse qresyncResponse = mock(QresyncResponse.class);
+        when(qresyncResponse.getExpungedUids()).thenReturn(UidRangeSet.empty());
+        when(qresyncResponse.getChangedMessages()).thenReturn(Collections.singletonList(changedMessage));
+        when(remoteFolder.openUsingQresync(Folder.OPEN_MODE_RO, UID_VALIDITY, HIGHEST_MOD_SEQ))
+                .thenReturn(qresyncResponse);
+        when(remoteFolder.getUidValidity()).thenReturn(UID_VALIDITY);
+        when(remoteFolder.getHighestModSeq()).thenReturn(HIGHEST_MOD_SEQ + 10);
+        localMessages("42");
+        when(backendFolder.isMessagePresent("42")).thenReturn(true);
+        when(backendFolder.getMessageFlags("42")).thenReturn(Collections.singleton(Flag.X_DOWNLOADED_FULL));
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, null);
+
+        verify(remoteFolder, never()).fetch(any(List.class), any(FetchProfile.class),
+                nullable(MessageRetrievalListener.class));
+        verify(remoteFolder, never()).fetchChangedFlags(any(List.class), anyLong());
+    }
+
+    @Test
+    public void sync_withStoredModSeqAndChangedUidValidity_shouldDoFullSync() throws Exception {
+        messageCountInRemoteFolder(1);
+        configureRemoteStoreWithFolder();
+        storedModSeqState(UID_VALIDITY, HIGHEST_MOD_SEQ);
+        when(remoteFolder.openUsingQresync(Folder.OPEN_MODE_RO, UID_VALIDITY, HIGHEST_MOD_SEQ))
+                .thenReturn(mock(QresyncResponse.class));
+        when(remoteFolder.getUidValidity()).thenReturn(UID_VALIDITY + 1);
+        when(remoteFolder.getHighestModSeq()).thenReturn(HIGHEST_MOD_SEQ);
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, null);
+
+        verify(remoteFolder).getMessages(anyInt(), anyInt(), nullable(Date.class),
+                nullable(MessageRetrievalListener.class));
+        verify(backendFolder).setFolderExtraNumber("imapUidValidity", UID_VALIDITY + 1);
+    }
+
+    @Test
+    public void sync_withStoredSyncStateAndNoModSeq_shouldOnlySearchForNewUids() throws Exception {
+        messageCountInRemoteFolder(2);
+        configureRemoteStoreWithFolder();
+        storedSyncState(UID_VALIDITY, 100L, 1L);
+        when(remoteFolder.getUidValidity()).thenReturn(UID_VALIDITY);
+        when(remoteFolder.getUidNext()).thenReturn(102L);
+        ImapMessage newMessage = mock(ImapMessage.class);
+        when(newMessage.getUid()).thenReturn("101");
+        when(remoteFolder.getMessagesFromUid(100L)).thenReturn(Collections.singletonList(newMessage));
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, null);
+
+        verify(remoteFolder).getMessagesFromUid(100L);
+        verify(remoteFolder, never()).getMessages(anyInt(), anyInt(), nullable(Date.class),
+                nullable(MessageRetrievalListener.class));
+        verify(backendFolder).setFolderExtraNumber("imapUidNext", 102L);
+        verify(backendFolder).setFolderExtraNumber("imapMessageCount", 2L);
+    }
+
+    @Test
+    public void sync_withStoredSyncStateAndExpungedMessages_shouldListRemoteWindow() throws Exception {
+        messageCountInRemoteFolder(1);
+        configureRemoteStoreWithFolder();
+        storedSyncState(UID_VALIDITY, 100L, 1L);
+        when(remoteFolder.getUidValidity()).thenReturn(UID_VALIDITY);
+        when(remoteFolder.getUidNext()).thenReturn(102L);
+        ImapMessage newMessage = mock(ImapMessage.class);
+        when(newMessage.getUid()).thenReturn("101");
+        when(remoteFolder.getMessagesFromUid(100L)).thenReturn(Collections.singletonList(newMessage));
+
+        imapSync.sync(FOLDER_NAME, syncConfig, listener, null);
+
+        verify(remoteFolder).getMessages(anyInt(), anyInt(), nullable(Date.class),
+                nullable(MessageRetrievalListener.class));
     }
 
     @Test
@@ -304,6 +415,20 @@ public class ImapSyncTest {
         return message;
     }
 
+    private void storedModSeqState(long uidValidity, long highestModSeq) {
+        when(backendFolder.getFolderExtraNumber("imapUidValidity")).thenReturn(uidValidity);
+        when(backendFolder.getFolderExtraNumber("imapHighestModSeq")).thenReturn(highestModSeq);
+        when(backendFolder.getFolderExtraNumber("imapSyncVisibleLimit")).thenReturn((long) DEFAULT_VISIBLE_LIMIT);
+        when(backendFolder.getFolderExtraNumber("imapLastFullSync")).thenReturn(System.currentTimeMillis());
+        when(backendFolder.getVisibleLimit()).thenReturn(DEFAULT_VISIBLE_LIMIT);
+    }
+
+    private void storedSyncState(long uidValidity, long uidNext, long messageCount) {
+        storedModSeqState(uidValidity, -1L);
+        when(backendFolder.getFolderExtraNumber("imapUidNext")).thenReturn(uidNext);
+        when(backendFolder.getFolderExtraNumber("imapMessageCount")).thenReturn(messageCount);
+    }
+
     private void messageCountInRemoteFolder(int value) {
         when(remoteFolder.getMessageCount()).thenReturn(value);
     }
@@ -318,6 +443,14 @@ public class ImapSyncTest {
         return remoteMessage;
     }
 
+    private void localMessages(String... uids) {
+        Map<String, Long> localUidMap = new HashMap<>();
+        for (String uid : uids) {
+            localUidMap.put(uid, 0L);
+        }
+        when(backendFolder.getAllMessagesAndEffectiveDates()).thenReturn(localUidMap);
+    }
+
     private void hasUnsyncedRemoteMessage() throws MessagingException {
         String messageUid = "UID";
         Message remoteMessage = mock(Message.class);
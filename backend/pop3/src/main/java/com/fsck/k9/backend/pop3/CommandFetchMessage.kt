@@ -3,6 +3,8 @@ package com.fsck.k9.backend.pop3
 
 import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.MessageRetrievalListener
+import com.fsck.k9.mail.store.pop3.Pop3Message
 import com.fsck.k9.mail.store.pop3.Pop3Store
 
 
@@ -20,4 +22,32 @@ internal class CommandFetchMessage(private val pop3Store: Pop3Store) {
             folder.close()
         }
     }
+
+    fun fetchMessages(
+            folderServerId: String,
+            messageServerIds: List<String>,
+            fetchProfile: FetchProfile,
+            listener: MessageRetrievalListener<Message>
+    ) {
+        val folder = pop3Store.getFolder(folderServerId)
+        try {
+            val messages = messageServerIds.map { folder.getMessage(it) }
+
+            folder.fetch(messages, fetchProfile, object : MessageRetrievalListener<Pop3Message> {
+                override fun messageStarted(uid: String, number: Int, ofTotal: Int) {
+                    listener.messageStarted(uid, number, ofTotal)
+                }
+
+                override fun messageFinished(message: Pop3Message, number: Int, ofTotal: Int) {
+                    listener.messageFinished(message, number, ofTotal)
+                }
+
+                override fun messagesFinished(total: Int) {
+                    listener.messagesFinished(total)
+                }
+            })
+        } finally {
+            folder.close()
+        }
+    }
 }
@@ -9,9 +9,11 @@ import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Flag
 import com.fsck.k9.mail.Folder
 import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.MessageRetrievalListener
 import com.fsck.k9.mail.Part
 import com.fsck.k9.mail.PushReceiver
 import com.fsck.k9.mail.Pusher
+import com.fsck.k9.mail.SendMessagesListener
 import com.fsck.k9.mail.store.pop3.Pop3Store
 import com.fsck.k9.mail.transport.smtp.SmtpTransport
 
@@ -106,6 +108,15 @@ class Pop3Backend(
         return commandFetchMessage.fetchMessage(folderServerId, messageServerId, fetchProfile)
     }
 
+    override fun fetchMessages(
+            folderServerId: String,
+            messageServerIds: List<String>,
+            fetchProfile: FetchProfile,
+            listener: MessageRetrievalListener<Message>
+    ) {
+        commandFetchMessage.fetchMessages(folderServerId, messageServerIds, fetchProfile, listener)
+    }
+
     override fun fetchPart(folderServerId: String, messageServerId: String, part: Part, bodyFactory: BodyFactory) {
         throw UnsupportedOperationException("not supported")
     }
@@ -118,6 +129,10 @@ class Pop3Backend(
         throw UnsupportedOperationException("not supported")
     }
 
+    override fun uploadMessages(folderServerId: String, messages: List<Message>): Map<String, String>? {
+        throw UnsupportedOperationException("not supported")
+    }
+
     override fun createPusher(receiver: PushReceiver): Pusher {
         throw UnsupportedOperationException("not supported")
     }
@@ -130,6 +145,10 @@ class Pop3Backend(
         smtpTransport.sendMessage(message)
     }
 
+    override fun <T : Message> sendMessages(messages: List<T>, listener: SendMessagesListener<T>) {
+        smtpTransport.sendMessages(messages, listener)
+    }
+
     override fun checkOutgoingServerSettings() {
         smtpTransport.checkSettings()
     }
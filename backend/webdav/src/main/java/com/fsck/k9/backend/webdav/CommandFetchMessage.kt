@@ -3,6 +3,8 @@ package com.fsck.k9.backend.webdav
 
 import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.MessageRetrievalListener
+import com.fsck.k9.mail.store.webdav.WebDavMessage
 import com.fsck.k9.mail.store.webdav.WebDavStore
 
 
@@ -20,4 +22,32 @@ internal class CommandFetchMessage(private val webDavStore: WebDavStore) {
             folder.close()
         }
     }
+
+    fun fetchMessages(
+            folderServerId: String,
+            messageServerIds: List<String>,
+            fetchProfile: FetchProfile,
+            listener: MessageRetrievalListener<Message>
+    ) {
+        val folder = webDavStore.getFolder(folderServerId)
+        try {
+            val messages = messageServerIds.map { folder.getMessage(it) }
+
+            folder.fetch(messages, fetchProfile, object : MessageRetrievalListener<WebDavMessage> {
+                override fun messageStarted(uid: String, number: Int, ofTotal: Int) {
+                    listener.messageStarted(uid, number, ofTotal)
+                }
+
+                override fun messageFinished(message: WebDavMessage, number: Int, ofTotal: Int) {
+                    listener.messageFinished(message, number, ofTotal)
+                }
+
+                override fun messagesFinished(total: Int) {
+                    listener.messagesFinished(total)
+                }
+            })
+        } finally {
+            folder.close()
+        }
+    }
 }
@@ -20,4 +20,15 @@ internal class CommandUploadMessage(private val webDavStore: WebDavStore) {
             folder.close()
         }
     }
+
+    fun uploadMessages(folderServerId: String, messages: List<Message>): Map<String, String>? {
+        val folder = webDavStore.getFolder(folderServerId)
+        try {
+            folder.open(Folder.OPEN_MODE_RW)
+
+            return folder.appendMessages(messages)
+        } finally {
+            folder.close()
+        }
+    }
 }
@@ -9,10 +9,12 @@ import com.fsck.k9.mail.FetchProfile
 import com.fsck.k9.mail.Flag
 import com.fsck.k9.mail.Folder
 import com.fsck.k9.mail.Message
+import com.fsck.k9.mail.MessageRetrievalListener
 import com.fsck.k9.mail.MessagingException
 import com.fsck.k9.mail.Part
 import com.fsck.k9.mail.PushReceiver
 import com.fsck.k9.mail.Pusher
+import com.fsck.k9.mail.SendMessagesListener
 import com.fsck.k9.mail.store.webdav.WebDavStore
 import com.fsck.k9.mail.transport.WebDavTransport
 
@@ -111,6 +113,15 @@ class WebDavBackend(
         return commandFetchMessage.fetchMessage(folderServerId, messageServerId, fetchProfile)
     }
 
+    override fun fetchMessages(
+            folderServerId: String,
+            messageServerIds: List<String>,
+            fetchProfile: FetchProfile,
+            listener: MessageRetrievalListener<Message>
+    ) {
+        commandFetchMessage.fetchMessages(folderServerId, messageServerIds, fetchProfile, listener)
+    }
+
     override fun fetchPart(folderServerId: String, messageServerId: String, part: Part, bodyFactory: BodyFactory) {
         throw UnsupportedOperationException("not supported")
     }
@@ -123,6 +134,10 @@ class WebDavBackend(
         return commandUploadMessage.uploadMessage(folderServerId, message)
     }
 
+    override fun uploadMessages(folderServerId: String, messages: List<Message>): Map<String, String>? {
+        return commandUploadMessage.uploadMessages(folderServerId, messages)
+    }
+
     override fun createPusher(receiver: PushReceiver): Pusher {
         throw UnsupportedOperationException("not supported")
     }
@@ -135,6 +150,10 @@ class WebDavBackend(
         webDavTransport.sendMessage(message)
     }
 
+    override fun <T : Message> sendMessages(messages: List<T>, listener: SendMessagesListener<T>) {
+        webDavTransport.sendMessages(messages, listener)
+    }
+
     override fun checkOutgoingServerSettings() {
         webDavTransport.checkSettings()
     }
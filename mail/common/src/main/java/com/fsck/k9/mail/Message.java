@@ -193,6 +193,9 @@ public abstract class Message implements Part, Body {
 
     public abstract void setCharset(String charset) throws MessagingException;
 
+    /**
+     * Returns the exact number of bytes written by {@link #writeTo(java.io.OutputStream)} with CRLF line endings.
+     */
     public long calculateSize() {
         try {
 
@@ -208,4 +211,12 @@ public abstract class Message implements Part, Body {
         }
         return 0;
     }
+
+    /**
+     * Returns the approximate size of the message. Subclasses may override this with something cheaper than
+     * {@link #calculateSize()}, so don't use it where the exact size is needed.
+     */
+    public long estimateSize() {
+        return calculateSize();
+    }
 }
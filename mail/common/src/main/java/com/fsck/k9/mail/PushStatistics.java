@@ -0,0 +1,64 @@
+package com.fsck.k9.mail;
+
+
+/**
+ * Keeps track of how well push is working for an account: how long push connections have been up, how often they
+ * had to be re-established, and how often the device was woken up by them.
+ */
+public class PushStatistics {
+    private int openSessionCount;
+    private long connectedSince;
+    private long uptime;
+    private int reconnectCount;
+    private int wakeupCount;
+
+
+    public synchronized void sessionStarted(boolean reconnect) {
+        if (openSessionCount == 0) {
+            connectedSince = currentTimeMillis();
+        }
+
+        openSessionCount++;
+        if (reconnect) {
+            reconnectCount++;
+        }
+    }
+
+    public synchronized void sessionEnded() {
+        if (openSessionCount == 0) {
+            return;
+        }
+
+        openSessionCount--;
+        if (openSessionCount == 0) {
+            uptime += currentTimeMillis() - connectedSince;
+        }
+    }
+
+    public synchronized void wakeup() {
+        wakeupCount++;
+    }
+
+    /**
+     * @return milliseconds during which at least one push connection was open
+     */
+    public synchronized long getUptime() {
+        if (openSessionCount > 0) {
+            return uptime + currentTimeMillis() - connectedSince;
+        }
+
+        return uptime;
+    }
+
+    public synchronized int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    public synchronized int getWakeupCount() {
+        return wakeupCount;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
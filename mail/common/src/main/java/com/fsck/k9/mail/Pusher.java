@@ -14,4 +14,5 @@ public interface Pusher {
     int getRefreshInterval();
     void setLastRefresh(long lastRefresh);
     long getLastRefresh();
+    PushStatistics getPushStatistics();
 }
@@ -0,0 +1,20 @@
+package com.fsck.k9.mail;
+
+
+/**
+ * Reports the outcome of each message passed to {@link Transport#sendMessages(java.util.List, SendMessagesListener)}.
+ * <p>
+ * {@link #messageSent(Message)} and {@link #messageFailed(Message, Exception)} are called on the thread that called
+ * {@code sendMessages()}.
+ */
+public interface SendMessagesListener<T extends Message> {
+    /**
+     * Called right before a message is handed to the server. Transports that send over several connections at once
+     * call this on the thread of the connection sending the message.
+     */
+    void messageSending(T message);
+
+    void messageSent(T message);
+
+    void messageFailed(T message, Exception exception);
+}
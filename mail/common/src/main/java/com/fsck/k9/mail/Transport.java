@@ -1,6 +1,8 @@
-
 package com.fsck.k9.mail;
 
+import java.util.List;
+
+
 public abstract class Transport {
 
     protected static final int SOCKET_CONNECT_TIMEOUT = 10000;
@@ -12,5 +14,22 @@ public abstract class Transport {
 
     public abstract void sendMessage(Message message) throws MessagingException;
 
+    /**
+     * Sends several messages. A failure to send one message doesn't stop the others from being sent.
+     * <p>
+     * Transports that can send more than one message per connection should override this.
+     */
+    public <T extends Message> void sendMessages(List<T> messages, SendMessagesListener<T> listener) {
+        for (T message : messages) {
+            try {
+                listener.messageSending(message);
+                sendMessage(message);
+                listener.messageSent(message);
+            } catch (Exception e) {
+                listener.messageFailed(message, e);
+            }
+        }
+    }
+
     public abstract void close();
 }
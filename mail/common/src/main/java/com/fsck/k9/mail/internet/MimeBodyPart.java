@@ -157,4 +157,13 @@ public class MimeBodyPart extends BodyPart {
         mHeader.writeTo(out);
     }
 
+    /**
+     * Estimates the size of this part as written by {@link #writeTo(OutputStream)}, with CRLF line endings.
+     *
+     * @see MimePartSizeCalculator
+     */
+    public long estimateSize() throws IOException, MessagingException {
+        return MimePartSizeCalculator.estimateSize(this);
+    }
+
 }
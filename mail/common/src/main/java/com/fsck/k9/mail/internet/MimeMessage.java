@@ -505,6 +505,23 @@ public class MimeMessage extends Message {
         mHeader.writeTo(out);
     }
 
+    /**
+     * Estimates the size of the message without writing bodies whose encoded size is already known.
+     *
+     * @see MimePartSizeCalculator
+     */
+    @Override
+    public long estimateSize() {
+        try {
+            return MimePartSizeCalculator.estimateSize(this);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to calculate a message size");
+        } catch (MessagingException e) {
+            Timber.e(e, "Failed to calculate a message size");
+        }
+        return 0;
+    }
+
     @Override
     public InputStream getInputStream() throws MessagingException {
         throw new UnsupportedOperationException();
@@ -0,0 +1,103 @@
+package com.fsck.k9.mail.internet;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.BodyPart;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import org.apache.james.mime4j.util.MimeUtil;
+
+
+/**
+ * Estimates the size of a MIME part as it would be written by {@link Part#writeTo(OutputStream)}, with line endings
+ * converted to CRLF.
+ * <p>
+ * Headers, boundaries and bodies of unknown size are written to a counting stream. Bodies that are already base64
+ * encoded and know their size are not written at all. That's the case for attachments loaded from the database, so
+ * a large attachment doesn't have to be read twice when sending a message.
+ * <p>
+ * The stored size of a body isn't guaranteed to match the bytes it writes, e.g. if the stored data has bare line
+ * feeds. So this is only good for checking size limits. Use {@link com.fsck.k9.mail.Message#calculateSize()} where
+ * the exact size is needed, like for an IMAP literal.
+ */
+class MimePartSizeCalculator {
+    private static final byte[] CRLF = { '\r', '\n' };
+
+
+    static long estimateSize(Part part) throws IOException, MessagingException {
+        CountingOutputStream countingOut = new CountingOutputStream();
+        EOLConvertingOutputStream out = new EOLConvertingOutputStream(countingOut);
+
+        long knownBodySize = writePart(part, out);
+        out.flush();
+
+        return countingOut.getCount() + knownBodySize;
+    }
+
+    private static long writePart(Part part, OutputStream out) throws IOException, MessagingException {
+        part.writeHeaderTo(out);
+        out.write(CRLF);
+
+        Body body = part.getBody();
+        if (body == null) {
+            return 0;
+        } else if (body instanceof MimeMultipart) {
+            return writeMultipart((MimeMultipart) body, out);
+        } else if (body instanceof MimeMessage) {
+            return writePart((MimeMessage) body, out);
+        } else if (hasKnownEncodedSize(body)) {
+            return ((SizeAware) body).getSize();
+        }
+
+        body.writeTo(out);
+        return 0;
+    }
+
+    private static long writeMultipart(MimeMultipart multipart, OutputStream out)
+            throws IOException, MessagingException {
+        byte[] boundary = ("--" + multipart.getBoundary()).getBytes();
+        long knownBodySize = 0;
+
+        byte[] preamble = multipart.getPreamble();
+        if (preamble != null) {
+            out.write(preamble);
+            out.write(CRLF);
+        }
+
+        if (multipart.getBodyParts().isEmpty()) {
+            out.write(boundary);
+            out.write(CRLF);
+        } else {
+            for (BodyPart bodyPart : multipart.getBodyParts()) {
+                out.write(boundary);
+                out.write(CRLF);
+                knownBodySize += writePart(bodyPart, out);
+                out.write(CRLF);
+            }
+        }
+
+        out.write(boundary);
+        out.write("--".getBytes());
+        out.write(CRLF);
+
+        byte[] epilogue = multipart.getEpilogue();
+        if (epilogue != null) {
+            out.write(epilogue);
+        }
+
+        return knownBodySize;
+    }
+
+    /**
+     * Base64 encoded data only consists of lines ending in CRLF, so line ending conversion won't change its size.
+     */
+    private static boolean hasKnownEncodedSize(Body body) {
+        return body instanceof RawDataBody && body instanceof SizeAware &&
+                MimeUtil.ENC_BASE64.equalsIgnoreCase(((RawDataBody) body).getEncoding());
+    }
+}
@@ -31,4 +31,6 @@ public interface StoreConfig {
     int getIdleRefreshMinutes();
 
     boolean shouldHideHostname();
+
+    int getMaxSmtpSessions();
 }
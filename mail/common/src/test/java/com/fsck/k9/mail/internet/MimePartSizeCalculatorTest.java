@@ -0,0 +1,154 @@
+package com.fsck.k9.mail.internet;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import org.apache.james.mime4j.util.MimeUtil;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+
+@RunWith(K9LibRobolectricTestRunner.class)
+public class MimePartSizeCalculatorTest {
+    private static final String BASE64_DATA = "VGhpcyBpcyBhbiBhdHRhY2htZW50Lg==\r\n";
+
+
+    @Test
+    public void estimateSize_withTextMessage_shouldMatchWrittenSize() throws Exception {
+        MimeMessage message = createMessage();
+        message.setBody(new TextBody("Line one\nLine two\r\n"));
+        message.setEncoding(MimeUtil.ENC_QUOTED_PRINTABLE);
+
+        long result = message.estimateSize();
+
+        assertEquals(getWrittenSize(message), result);
+    }
+
+    @Test
+    public void estimateSize_withBase64Attachment_shouldMatchWrittenSize() throws Exception {
+        MimeMessage message = createMessageWithAttachment(new Base64Body(false));
+
+        long result = message.estimateSize();
+
+        assertEquals(getWrittenSize(message), result);
+    }
+
+    @Test
+    public void estimateSize_withBase64Attachment_shouldNotWriteAttachment() throws Exception {
+        MimeMessage expectedMessage = createMessageWithAttachment(new Base64Body(false));
+        MimeMessage message = createMessageWithAttachment(new Base64Body(true));
+
+        long result = message.estimateSize();
+
+        assertEquals(getWrittenSize(expectedMessage), result);
+    }
+
+    @Test
+    public void estimateSize_withNestedMessage_shouldMatchWrittenSize() throws Exception {
+        MimeMessage innerMessage = createMessageWithAttachment(new Base64Body(false));
+        MimeMessage message = createMessage();
+        MimeMultipart multipart = new MimeMultipart("outer");
+        multipart.addBodyPart(new MimeBodyPart(innerMessage, "message/rfc822"));
+        MimeMessageHelper.setBody(message, multipart);
+
+        long result = message.estimateSize();
+
+        assertEquals(getWrittenSize(message), result);
+    }
+
+    @Test
+    public void calculateSize_withBodyOfWrongStoredSize_shouldReturnWrittenSize() throws Exception {
+        MimeMessage message = createMessageWithAttachment(new Base64Body(false) {
+            @Override
+            public long getSize() {
+                return 1;
+            }
+        });
+
+        long result = message.calculateSize();
+
+        assertEquals(getWrittenSize(message), result);
+    }
+
+    private MimeMessage createMessage() throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setHeader("From", "from@example.com");
+        message.setHeader("To", "to@example.com");
+        message.setHeader("Subject", "Test Message");
+        message.setHeader("MIME-Version", "1.0");
+        return message;
+    }
+
+    private MimeMessage createMessageWithAttachment(Base64Body attachmentBody) throws MessagingException {
+        MimeMultipart multipart = new MimeMultipart("boundary");
+        multipart.setPreamble("This is a multi-part message in MIME format.".getBytes());
+
+        TextBody textBody = new TextBody("Text\nwith bare line feeds\n");
+        textBody.setEncoding(MimeUtil.ENC_QUOTED_PRINTABLE);
+        multipart.addBodyPart(new MimeBodyPart(textBody, "text/plain"));
+
+        MimeBodyPart attachmentPart = new MimeBodyPart(attachmentBody, "application/octet-stream");
+        attachmentPart.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, MimeUtil.ENC_BASE64);
+        multipart.addBodyPart(attachmentPart);
+
+        MimeMessage message = createMessage();
+        MimeMessageHelper.setBody(message, multipart);
+        return message;
+    }
+
+    private long getWrittenSize(Message message) throws IOException, MessagingException {
+        CountingOutputStream countingOut = new CountingOutputStream();
+        EOLConvertingOutputStream out = new EOLConvertingOutputStream(countingOut);
+        message.writeTo(out);
+        out.flush();
+        return countingOut.getCount();
+    }
+
+
+    static class Base64Body implements RawDataBody, SizeAware {
+        private final boolean failOnWrite;
+
+
+        Base64Body(boolean failOnWrite) {
+            this.failOnWrite = failOnWrite;
+        }
+
+        @Override
+        public String getEncoding() {
+            return MimeUtil.ENC_BASE64;
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException {
+            return new ByteArrayInputStream(BASE64_DATA.getBytes());
+        }
+
+        @Override
+        public void setEncoding(String encoding) throws MessagingException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException, MessagingException {
+            if (failOnWrite) {
+                throw new AssertionError("Body with known size shouldn't be written");
+            }
+            out.write(BASE64_DATA.getBytes());
+        }
+
+        @Override
+        public long getSize() {
+            return BASE64_DATA.length();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.fsck.k9.mail.NetworkType;
+
+
+/**
+ * Learns how long an idling connection can stay quiet before a NAT or carrier middlebox silently drops it, and
+ * stretches the IDLE refresh interval up to that bound.
+ * <p>
+ * Every network type starts out with the configured refresh interval. Each IDLE that lasted the whole interval
+ * extends it by {@link #STEP}, up to {@link #MAX_INTERVAL} (RFC 2177 asks clients to restart IDLE at least every 29
+ * minutes). When an idling connection is dropped, the interval it was dropped at becomes the upper bound for that
+ * network type. The bound is probed again after {@link #PROBE_SUCCESS_COUNT} successful refreshes, because the
+ * network behind a network type changes over time.
+ * <p>
+ * The interval never gets shorter than the configured one.
+ */
+class AdaptiveIdleInterval {
+    static final long STEP = 2 * 60 * 1000;
+    static final long MAX_INTERVAL = 29 * 60 * 1000;
+    static final int PROBE_SUCCESS_COUNT = 10;
+    private static final long REFRESH_TOLERANCE = 60 * 1000;
+    private static final long NO_BOUND = Long.MAX_VALUE;
+
+
+    private final Map<NetworkType, State> states = new EnumMap<>(NetworkType.class);
+
+
+    synchronized long getInterval(NetworkType networkType, long configuredInterval) {
+        State state = states.get(networkType);
+        if (state == null) {
+            return configuredInterval;
+        }
+
+        long maxInterval = Math.max(configuredInterval, Math.min(MAX_INTERVAL, state.upperBound - STEP));
+        return Math.min(maxInterval, Math.max(configuredInterval, state.interval));
+    }
+
+    /**
+     * Called when IDLE ended normally, either because it was refreshed or because the server reported a change.
+     */
+    synchronized void idleCompleted(NetworkType networkType, long configuredInterval, long idleTime) {
+        long interval = getInterval(networkType, configuredInterval);
+        if (idleTime < interval - REFRESH_TOLERANCE) {
+            // IDLE was ended early by the server, which tells us nothing about how long the connection would last
+            return;
+        }
+
+        State state = getOrCreateState(networkType);
+        state.successCount++;
+        if (state.upperBound != NO_BOUND && state.successCount >= PROBE_SUCCESS_COUNT) {
+            state.upperBound += STEP;
+            state.successCount = 0;
+        }
+
+        state.interval = interval + STEP;
+    }
+
+    /**
+     * Called when the connection broke while idling.
+     */
+    synchronized void idleDropped(NetworkType networkType, long configuredInterval, long idleTime) {
+        long interval = getInterval(networkType, configuredInterval);
+        long droppedAt = Math.min(idleTime, interval);
+        if (droppedAt < configuredInterval) {
+            // Can't go below the configured interval anyway, so don't let a random drop cap the interval
+            return;
+        }
+
+        State state = getOrCreateState(networkType);
+        state.upperBound = droppedAt;
+        state.interval = droppedAt - STEP;
+        state.successCount = 0;
+    }
+
+    private State getOrCreateState(NetworkType networkType) {
+        State state = states.get(networkType);
+        if (state == null) {
+            state = new State();
+            states.put(networkType, state);
+        }
+
+        return state;
+    }
+
+
+    private static class State {
+        long interval;
+        long upperBound = NO_BOUND;
+        int successCount;
+    }
+}
@@ -14,9 +14,13 @@ class Commands {
     public static final String LOGIN = "LOGIN";
     public static final String LIST = "LIST";
     public static final String NOOP = "NOOP";
+    public static final String ENABLE_QRESYNC = "ENABLE QRESYNC";
     public static final String UID_SEARCH = "UID SEARCH";
     public static final String UID_STORE = "UID STORE";
     public static final String UID_FETCH = "UID FETCH";
     public static final String UID_COPY = "UID COPY";
     public static final String UID_EXPUNGE = "UID EXPUNGE";
+    public static final String EXAMINE = "EXAMINE";
+    public static final String STATUS = "STATUS";
+    public static final String NOTIFY_SET_STATUS = "NOTIFY SET STATUS";
 }
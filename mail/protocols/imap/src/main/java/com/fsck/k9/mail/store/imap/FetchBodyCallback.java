@@ -2,13 +2,23 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import org.apache.commons.io.IOUtils;
 
 
+/**
+ * Streams message literals of a {@code FETCH} response straight from the connection into the message they belong
+ * to, so a message body is never held in memory as a whole.
+ * <p>
+ * If the server sends the literal before the {@code UID} we can't tell which message it belongs to yet. In that
+ * case the literal is spooled to a {@link BinaryTempFileBody} that is parsed once the whole response has been read.
+ */
 class FetchBodyCallback implements ImapResponseCallback {
     private Map<String, Message> mMessageMap;
 
@@ -22,9 +32,18 @@ class FetchBodyCallback implements ImapResponseCallback {
         if (response.getTag() == null &&
                 ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
             ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+            if (!isBodySectionLiteral(fetchList)) {
+                // e.g. a literal inside BODYSTRUCTURE; these are small and handled by the parser
+                return null;
+            }
+
             String uid = fetchList.getKeyedString("UID");
 
             ImapMessage message = (ImapMessage) mMessageMap.get(uid);
+            if (message == null) {
+                return spoolToTempFile(literal);
+            }
+
             message.parse(literal);
 
             // Return placeholder object
@@ -32,4 +51,30 @@ class FetchBodyCallback implements ImapResponseCallback {
         }
         return null;
     }
+
+    /**
+     * Checks whether the literal about to be read is the value of a {@code BODY[<section>]<<origin>>} item, i.e.
+     * whether the elements parsed so far end with {@code BODY}, the section list, and an optional origin octet.
+     */
+    private static boolean isBodySectionLiteral(ImapList fetchList) {
+        int index = fetchList.size() - 1;
+        if (index >= 0 && fetchList.get(index) instanceof String && ((String) fetchList.get(index)).startsWith("<")) {
+            index--;
+        }
+
+        return index >= 1 && fetchList.get(index) instanceof ImapList &&
+                ImapResponseParser.equalsIgnoreCase(fetchList.get(index - 1), "BODY");
+    }
+
+    private static BinaryTempFileBody spoolToTempFile(FixedLengthInputStream literal) throws IOException {
+        BinaryTempFileBody body = new BinaryTempFileBody(null);
+        OutputStream outputStream = body.getOutputStream();
+        try {
+            IOUtils.copy(literal, outputStream);
+        } finally {
+            outputStream.close();
+        }
+
+        return body;
+    }
 }
@@ -0,0 +1,46 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+
+import com.fsck.k9.mail.store.RemoteStore;
+
+
+/**
+ * Ensure the DONE continuation is only sent when the IDLE command was sent and hasn't completed yet.
+ */
+class IdleStopper {
+    private boolean acceptDoneContinuation = false;
+    private ImapConnection imapConnection;
+
+
+    public synchronized void startAcceptingDoneContinuation(ImapConnection connection) {
+        if (connection == null) {
+            throw new NullPointerException("connection must not be null");
+        }
+
+        acceptDoneContinuation = true;
+        imapConnection = connection;
+    }
+
+    public synchronized void stopAcceptingDoneContinuation() {
+        acceptDoneContinuation = false;
+        imapConnection = null;
+    }
+
+    public synchronized void stopIdle() {
+        if (acceptDoneContinuation) {
+            acceptDoneContinuation = false;
+            sendDone();
+        }
+    }
+
+    private void sendDone() {
+        try {
+            imapConnection.setReadTimeout(RemoteStore.SOCKET_READ_TIMEOUT);
+            imapConnection.sendContinuation("DONE");
+        } catch (IOException e) {
+            imapConnection.close();
+        }
+    }
+}
@@ -19,9 +19,11 @@ import java.security.Security;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.zip.Inflater;
@@ -74,6 +76,12 @@ class ImapConnection {
     private static final int LENGTH_LIMIT_WITHOUT_CONDSTORE = 980;
     private static final int LENGTH_LIMIT_WITH_CONDSTORE = 8172;
 
+    /**
+     * The maximum number of commands we send before waiting for the completion of the first one. This keeps the
+     * amount of unread response data bounded, so neither side blocks writing while the other one isn't reading.
+     */
+    static final int MAX_PIPELINED_COMMANDS = 8;
+
 
     private final ConnectivityManager connectivityManager;
     private final OAuth2TokenProvider oauthTokenProvider;
@@ -91,6 +99,8 @@ class ImapConnection {
     private Exception stacktraceForClose;
     private boolean open = false;
     private boolean retryXoauth2WithNewToken = true;
+    private boolean qresyncEnableAttempted = false;
+    private boolean qresyncEnabled = false;
     private int lineLengthLimit;
 
 
@@ -616,6 +626,62 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Sends {@code ENABLE QRESYNC} unless that has already been attempted on this connection.
+     * <p>
+     * This is only done right before selecting a folder using the QRESYNC parameter. Once enabled the server reports
+     * expunged messages using {@code VANISHED} instead of {@code EXPUNGE} responses for the rest of the session, so
+     * connections that are never used that way (e.g. for push) keep receiving {@code EXPUNGE}.
+     *
+     * @return {@code true} if QRESYNC is enabled on this connection.
+     */
+    boolean enableQresync() throws IOException, MessagingException {
+        if (qresyncEnableAttempted) {
+            return qresyncEnabled;
+        }
+
+        open();
+        qresyncEnableAttempted = true;
+        if (!hasCapability(Capabilities.QRESYNC)) {
+            return false;
+        }
+
+        List<ImapResponse> responses;
+        try {
+            responses = executeSimpleCommand(Commands.ENABLE_QRESYNC);
+        } catch (NegativeImapResponseException e) {
+            Timber.d(e, "Error enabling QRESYNC for %s", getLogId());
+            return false;
+        }
+
+        for (ImapResponse response : responses) {
+            if (isEnabledResponseFor(response, Capabilities.QRESYNC)) {
+                qresyncEnabled = true;
+                break;
+            }
+        }
+
+        if (K9MailLib.isDebug()) {
+            Timber.d("QRESYNC %s for %s", qresyncEnabled ? "enabled" : "not enabled", getLogId());
+        }
+
+        return qresyncEnabled;
+    }
+
+    private boolean isEnabledResponseFor(ImapResponse response, String capability) {
+        if (response.isTagged() || response.size() < 2 || !equalsIgnoreCase(response.get(0), Responses.ENABLED)) {
+            return false;
+        }
+
+        for (int i = 1, size = response.size(); i < size; i++) {
+            if (equalsIgnoreCase(response.get(i), capability)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private void retrievePathPrefixIfNecessary() throws IOException, MessagingException {
         if (settings.getPathPrefix() != null) {
             return;
@@ -702,6 +768,15 @@ class ImapConnection {
         return hasCapability(Capabilities.CONDSTORE);
     }
 
+    /**
+     * Returns {@code true} if the server accepted {@code ENABLE QRESYNC} on this connection.
+     * <p>
+     * Once enabled the server reports expunged messages using {@code VANISHED} instead of {@code EXPUNGE} responses.
+     */
+    boolean isQresyncEnabled() {
+        return qresyncEnabled;
+    }
+
     protected boolean isIdleCapable() {
         if (K9MailLib.isDebug()) {
             Timber.v("Connection %s has %d capabilities", getLogId(), capabilities.size());
@@ -714,6 +789,14 @@ class ImapConnection {
         return capabilities.contains(Capabilities.UID_PLUS);
     }
 
+    boolean isMultiAppendCapable() {
+        return capabilities.contains(Capabilities.MULTIAPPEND);
+    }
+
+    boolean isNotifyCapable() {
+        return capabilities.contains(Capabilities.NOTIFY);
+    }
+
     public void close() {
         if (!open) {
             return;
@@ -768,14 +851,94 @@ class ImapConnection {
         List<String> splitCommands = ImapCommandSplitter.splitCommand(
                 commandPrefix, commandSuffix, groupedIds, getLineLengthLimit());
 
+        if (splitCommands.size() == 1) {
+            return executeSimpleCommand(splitCommands.get(0));
+        }
+
         List<ImapResponse> responses = new ArrayList<>();
-        for (String splitCommand : splitCommands) {
-            responses.addAll(executeSimpleCommand(splitCommand));
+        for (List<ImapResponse> commandResponses : executePipelinedCommands(splitCommands)) {
+            responses.addAll(commandResponses);
         }
 
         return responses;
     }
 
+    /**
+     * Sends several commands without waiting for the previous one to complete (RFC 3501, section 5.5).
+     * <p>
+     * Untagged responses are attributed to the next command that completes. Only use this for commands that can
+     * safely be executed concurrently, e.g. multiple {@code UID} commands of the same kind, and never for commands
+     * that need a continuation.
+     *
+     * @return The responses to each command, in the order of {@code commands}. Each list ends with the tagged
+     *         completion result.
+     *
+     * @throws NegativeImapResponseException for the first command that didn't complete successfully. This is only
+     *         thrown once all commands completed, so the connection can still be used afterwards.
+     */
+    public List<List<ImapResponse>> executePipelinedCommands(List<String> commands) throws IOException,
+            MessagingException {
+        List<List<ImapResponse>> results = new ArrayList<>(commands.size());
+        Map<String, Integer> pendingCommands = new HashMap<>();
+        NegativeImapResponseException negativeResponseException = null;
+
+        try {
+            open();
+
+            int commandsSent = 0;
+            List<ImapResponse> responses = new ArrayList<>();
+            while (commandsSent < commands.size() || !pendingCommands.isEmpty()) {
+                boolean commandsWritten = false;
+                while (commandsSent < commands.size() && pendingCommands.size() < MAX_PIPELINED_COMMANDS) {
+                    String tag = writeCommand(commands.get(commandsSent), false);
+                    pendingCommands.put(tag, commandsSent);
+                    results.add(null);
+                    commandsSent++;
+                    commandsWritten = true;
+                }
+
+                if (commandsWritten) {
+                    outputStream.flush();
+                }
+
+                ImapResponse response = responseParser.readResponse();
+                if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP) {
+                    Timber.v("%s<<<%s", getLogId(), response);
+                }
+
+                responses.add(response);
+                if (response.getTag() == null) {
+                    continue;
+                }
+
+                Integer commandIndex = pendingCommands.remove(response.getTag());
+                if (commandIndex == null) {
+                    Timber.w("Got tagged response %s for unknown command for %s", response, getLogId());
+                    responses.remove(responses.size() - 1);
+                    continue;
+                }
+
+                results.set(commandIndex, responses);
+                if (negativeResponseException == null &&
+                        (response.size() < 1 || !equalsIgnoreCase(response.get(0), Responses.OK))) {
+                    String message = "Command: " + commands.get(commandIndex) + "; response: " + response;
+                    negativeResponseException = new NegativeImapResponseException(message, responses);
+                }
+
+                responses = new ArrayList<>();
+            }
+        } catch (IOException | MessagingException e) {
+            close();
+            throw e;
+        }
+
+        if (negativeResponseException != null) {
+            throw negativeResponseException;
+        }
+
+        return results;
+    }
+
     public List<ImapResponse> readStatusResponse(String tag, String commandToLog, UntaggedHandler untaggedHandler)
             throws IOException, NegativeImapResponseException {
         return responseParser.readStatusResponse(tag, commandToLog, getLogId(), untaggedHandler);
@@ -810,19 +973,9 @@ class ImapConnection {
         try {
             open();
 
-            String tag = Integer.toString(nextCommandTag++);
-            String commandToSend = tag + " " + command + "\r\n";
-            outputStream.write(commandToSend.getBytes());
+            String tag = writeCommand(command, sensitive);
             outputStream.flush();
 
-            if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP) {
-                if (sensitive && !K9MailLib.isDebugSensitive()) {
-                    Timber.v("%s>>> [Command Hidden, Enable Sensitive Debug Logging To Show]", getLogId());
-                } else {
-                    Timber.v("%s>>> %s %s", getLogId(), tag, command);
-                }
-            }
-
             return tag;
         } catch (IOException | MessagingException e) {
             close();
@@ -830,6 +983,22 @@ class ImapConnection {
         }
     }
 
+    private String writeCommand(String command, boolean sensitive) throws IOException {
+        String tag = Integer.toString(nextCommandTag++);
+        String commandToSend = tag + " " + command + "\r\n";
+        outputStream.write(commandToSend.getBytes());
+
+        if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP) {
+            if (sensitive && !K9MailLib.isDebugSensitive()) {
+                Timber.v("%s>>> [Command Hidden, Enable Sensitive Debug Logging To Show]", getLogId());
+            } else {
+                Timber.v("%s>>> %s %s", getLogId(), tag, command);
+            }
+        }
+
+        return tag;
+    }
+
     public void sendContinuation(String continuation) throws IOException {
         outputStream.write(continuation.getBytes());
         outputStream.write('\r');
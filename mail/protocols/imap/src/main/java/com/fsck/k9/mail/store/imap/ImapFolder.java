@@ -2,6 +2,7 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
@@ -10,6 +11,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
@@ -30,6 +32,7 @@ import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessageHelper;
@@ -37,8 +40,6 @@ import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import timber.log.Timber;
 
-import static com.fsck.k9.mail.store.imap.ImapUtility.getLastResponse;
-
 
 public class ImapFolder extends Folder<ImapMessage> {
     static final String INBOX = "INBOX";
@@ -54,6 +55,8 @@ public class ImapFolder extends Folder<ImapMessage> {
 
     protected volatile int messageCount = -1;
     protected volatile long uidNext = -1L;
+    private volatile long uidValidity = -1L;
+    private volatile long highestModSeq = -1L;
     protected volatile ImapConnection connection;
     protected ImapStore store = null;
     protected Map<Long, String> msgSeqUidMap = new ConcurrentHashMap<>();
@@ -120,8 +123,71 @@ public class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    /**
+     * Opens the folder and asks the server to report everything that changed since the given mod-sequence.
+     * <p>
+     * If QRESYNC has been enabled on the connection and both {@code knownUidValidity} and
+     * {@code knownHighestModSeq} are known (i.e. positive), the folder is selected using the QRESYNC parameter and the
+     * expunged UIDs and changed messages reported by the server are returned. Otherwise the folder is opened as usual
+     * (requesting mod-sequences if the server supports CONDSTORE) and {@code null} is returned.
+     * <p>
+     * If {@link #getUidValidity()} doesn't match {@code knownUidValidity} after this call the server ignored the
+     * parameter and the returned changes must not be used.
+     */
+    public QresyncResponse openUsingQresync(int mode, long knownUidValidity, long knownHighestModSeq)
+            throws MessagingException {
+        List<ImapResponse> responses = internalOpen(mode, true, knownUidValidity, knownHighestModSeq);
+
+        if (messageCount == -1) {
+            throw new MessagingException("Did not find message count during open");
+        }
+
+        if (!canUseQresync(knownUidValidity, knownHighestModSeq)) {
+            return null;
+        }
+
+        List<UidRangeSet> expungedUidSets = new ArrayList<>();
+        List<ImapMessage> changedMessages = new ArrayList<>();
+        for (ImapResponse response : responses) {
+            VanishedResponse vanishedResponse = VanishedResponse.parse(response);
+            if (vanishedResponse != null) {
+                if (vanishedResponse.isEarlier()) {
+                    expungedUidSets.add(vanishedResponse.getUids());
+                }
+                continue;
+            }
+
+            if (isUntaggedFetchResponse(response)) {
+                ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                String uid = fetchList.getKeyedString("UID");
+                if (uid == null) {
+                    continue;
+                }
+
+                msgSeqUidMap.put(response.getLong(0), uid);
+
+                ImapMessage message = new ImapMessage(uid, this);
+                handleFetchResponse(message, fetchList);
+                changedMessages.add(message);
+            }
+        }
+
+        UidRangeSet expungedUids = UidRangeSet.union(expungedUidSets);
+        if (K9MailLib.isDebug()) {
+            Timber.d("QRESYNC reported %d expunged and %d changed messages for %s",
+                    expungedUids.size(), changedMessages.size(), getLogId());
+        }
+
+        return new QresyncResponse(expungedUids, changedMessages);
+    }
+
     protected List<ImapResponse> internalOpen(int mode) throws MessagingException {
-        if (isOpen() && this.mode == mode) {
+        return internalOpen(mode, false, -1L, -1L);
+    }
+
+    private List<ImapResponse> internalOpen(int mode, boolean requestModSeq, long knownUidValidity,
+            long knownHighestModSeq) throws MessagingException {
+        if (isOpen() && this.mode == mode && !requestModSeq) {
             // Make sure the connection is valid. If it's not we'll close it down and continue
             // on to get a new one.
             try {
@@ -144,6 +210,14 @@ public class ImapFolder extends Folder<ImapMessage> {
             String encodedFolderName = folderNameCodec.encode(getPrefixedName());
             String escapedFolderName = ImapUtility.encodeString(encodedFolderName);
             String command = String.format("%s %s", openCommand, escapedFolderName);
+            if (requestModSeq) {
+                // Capabilities are only known once the connection is open
+                connection.open();
+                command += getSelectParameters(knownUidValidity, knownHighestModSeq);
+            }
+
+            uidValidity = -1L;
+            highestModSeq = -1L;
             List<ImapResponse> responses = executeSimpleCommand(command);
 
             /*
@@ -156,7 +230,7 @@ public class ImapFolder extends Folder<ImapMessage> {
                 handlePermanentFlags(response);
             }
 
-            handleSelectOrExamineOkResponse(getLastResponse(responses));
+            handleSelectOrExamineOkResponse(responses);
 
             exists = true;
 
@@ -180,8 +254,23 @@ public class ImapFolder extends Folder<ImapMessage> {
         canCreateKeywords = permanentFlagsResponse.canCreateKeywords();
     }
 
-    private void handleSelectOrExamineOkResponse(ImapResponse response) {
-        SelectOrExamineResponse selectOrExamineResponse = SelectOrExamineResponse.parse(response);
+    private String getSelectParameters(long knownUidValidity, long knownHighestModSeq)
+            throws IOException, MessagingException {
+        if (knownUidValidity > 0 && knownHighestModSeq > 0 && connection.enableQresync()) {
+            return String.format(Locale.US, " (QRESYNC (%d %d))", knownUidValidity, knownHighestModSeq);
+        } else if (connection.isCondstoreCapable()) {
+            return " (CONDSTORE)";
+        }
+
+        return "";
+    }
+
+    private boolean canUseQresync(long knownUidValidity, long knownHighestModSeq) {
+        return connection.isQresyncEnabled() && knownUidValidity > 0 && knownHighestModSeq > 0;
+    }
+
+    private void handleSelectOrExamineOkResponse(List<ImapResponse> responses) {
+        SelectOrExamineResponse selectOrExamineResponse = SelectOrExamineResponse.parse(responses);
         if (selectOrExamineResponse == null) {
             // This shouldn't happen
             return;
@@ -190,6 +279,34 @@ public class ImapFolder extends Folder<ImapMessage> {
         if (selectOrExamineResponse.hasOpenMode()) {
             mode = selectOrExamineResponse.getOpenMode();
         }
+
+        uidValidity = selectOrExamineResponse.getUidValidity();
+        highestModSeq = selectOrExamineResponse.getHighestModSeq();
+        if (selectOrExamineResponse.getUidNext() != SelectOrExamineResponse.UNKNOWN) {
+            uidNext = selectOrExamineResponse.getUidNext();
+        }
+    }
+
+    /**
+     * Returns the {@code UIDNEXT} value last reported by the server, or {@code -1} if unknown.
+     */
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    /**
+     * Returns the {@code UIDVALIDITY} reported when the folder was opened, or {@code -1} if unknown.
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * Returns the {@code HIGHESTMODSEQ} reported when the folder was opened, or {@code -1} if the server doesn't
+     * support persistent mod-sequences for this folder.
+     */
+    public long getHighestModSeq() {
+        return highestModSeq;
     }
 
     @Override
@@ -524,6 +641,35 @@ public class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    /**
+     * Returns all messages not flagged as deleted with a UID of at least {@code firstUid}, newest first.
+     * <p>
+     * Unlike {@link #getMessages(int, int, Date, MessageRetrievalListener)} this doesn't depend on the message count,
+     * so it can be used to discover new messages without listing the whole visible window.
+     */
+    public List<ImapMessage> getMessagesFromUid(long firstUid) throws MessagingException {
+        checkOpen();
+
+        String command = String.format(Locale.US, "UID SEARCH UID %d:* NOT DELETED", firstUid);
+
+        try {
+            List<ImapResponse> imapResponses = connection.executeSimpleCommand(command);
+            SearchResponse searchResponse = SearchResponse.parse(imapResponses);
+
+            // "n:*" always includes the message with the highest UID, even if that's lower than n
+            Iterator<Long> uidIterator = searchResponse.getNumbers().iterator();
+            while (uidIterator.hasNext()) {
+                if (uidIterator.next() < firstUid) {
+                    uidIterator.remove();
+                }
+            }
+
+            return getMessages(searchResponse, null);
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
+        }
+    }
+
     private String getDateSearchString(Date earliestDate) {
         if (earliestDate == null) {
             return "";
@@ -683,83 +829,165 @@ public class ImapFolder extends Folder<ImapMessage> {
 
         String spaceSeparatedFetchFields = ImapUtility.join(" ", fetchFields);
 
+        List<String> commands = new ArrayList<>();
         for (int windowStart = 0; windowStart < messages.size(); windowStart += (FETCH_WINDOW_SIZE)) {
             int windowEnd = Math.min(windowStart + FETCH_WINDOW_SIZE, messages.size());
             List<String> uidWindow = uids.subList(windowStart, windowEnd);
 
-            try {
-                String commaSeparatedUids = ImapUtility.join(",", uidWindow);
-                String command = String.format("UID FETCH %s (%s)", commaSeparatedUids, spaceSeparatedFetchFields);
-                connection.sendCommand(command, false);
+            String commaSeparatedUids = ImapUtility.join(",", uidWindow);
+            commands.add(String.format("UID FETCH %s (%s)", commaSeparatedUids, spaceSeparatedFetchFields));
+        }
 
-                ImapResponse response;
-                int messageNumber = 0;
+        // Header and body literals are always streamed into the messages, never buffered as strings
+        ImapResponseCallback callback = new FetchBodyCallback(messageMap);
 
-                ImapResponseCallback callback = null;
-                if (fetchProfile.contains(FetchProfile.Item.BODY) ||
-                        fetchProfile.contains(FetchProfile.Item.BODY_SANE)) {
-                    callback = new FetchBodyCallback(messageMap);
+        int commandsSent = 0;
+        int commandsCompleted = 0;
+        NegativeImapResponseException negativeResponseException = null;
+        try {
+            int messageNumber = 0;
+            while (commandsCompleted < commands.size()) {
+                // Keep several windows in flight so we don't pay a round trip per window. Responses are matched to
+                // messages by UID, so it doesn't matter which window they belong to.
+                while (commandsSent < commands.size() &&
+                        commandsSent - commandsCompleted < ImapConnection.MAX_PIPELINED_COMMANDS) {
+                    connection.sendCommand(commands.get(commandsSent++), false);
                 }
 
-                do {
-                    response = connection.readResponse(callback);
-
-                    if (response.getTag() == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-                        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
-                        String uid = fetchList.getKeyedString("UID");
-                        long msgSeq = response.getLong(0);
-                        if (uid != null) {
-                            try {
-                                msgSeqUidMap.put(msgSeq, uid);
-                                if (K9MailLib.isDebug()) {
-                                    Timber.v("Stored uid '%s' for msgSeq %d into map", uid, msgSeq);
-                                }
-                            } catch (Exception e) {
-                                Timber.e("Unable to store uid '%s' for msgSeq %d", uid, msgSeq);
-                            }
-                        }
+                ImapResponse response = connection.readResponse(callback);
+                if (response.getTag() != null) {
+                    commandsCompleted++;
+                    if (negativeResponseException == null && (response.size() < 1 ||
+                            !ImapResponseParser.equalsIgnoreCase(response.get(0), Responses.OK))) {
+                        // Keep reading until the other windows completed so the connection can still be used
+                        String message = "Command: UID FETCH; response: " + response;
+                        negativeResponseException = new NegativeImapResponseException(message,
+                                Collections.singletonList(response));
+                    }
+                    continue;
+                }
 
-                        Message message = messageMap.get(uid);
-                        if (message == null) {
+                if (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                    ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                    String uid = fetchList.getKeyedString("UID");
+                    long msgSeq = response.getLong(0);
+                    if (uid != null) {
+                        try {
+                            msgSeqUidMap.put(msgSeq, uid);
                             if (K9MailLib.isDebug()) {
-                                Timber.d("Do not have message in messageMap for UID %s for %s", uid, getLogId());
+                                Timber.v("Stored uid '%s' for msgSeq %d into map", uid, msgSeq);
                             }
-
-                            handleUntaggedResponse(response);
-                            continue;
+                        } catch (Exception e) {
+                            Timber.e("Unable to store uid '%s' for msgSeq %d", uid, msgSeq);
                         }
+                    }
 
-                        if (listener != null) {
-                            listener.messageStarted(uid, messageNumber++, messageMap.size());
+                    Message message = messageMap.get(uid);
+                    if (message == null) {
+                        if (K9MailLib.isDebug()) {
+                            Timber.d("Do not have message in messageMap for UID %s for %s", uid, getLogId());
                         }
 
-                        ImapMessage imapMessage = (ImapMessage) message;
-                        Object literal = handleFetchResponse(imapMessage, fetchList);
-
-                        if (literal != null) {
-                            if (literal instanceof String) {
-                                String bodyString = (String) literal;
-                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
-                                imapMessage.parse(bodyStream);
-                            } else if (literal instanceof Integer) {
-                                // All the work was done in FetchBodyCallback.foundLiteral()
-                            } else {
-                                // This shouldn't happen
-                                throw new MessagingException("Got FETCH response with bogus parameters");
-                            }
-                        }
+                        discardSpooledLiterals(fetchList);
+                        handleUntaggedResponse(response);
+                        continue;
+                    }
 
-                        if (listener != null) {
-                            listener.messageFinished(imapMessage, messageNumber, messageMap.size());
+                    if (listener != null) {
+                        listener.messageStarted(uid, messageNumber++, messageMap.size());
+                    }
+
+                    ImapMessage imapMessage = (ImapMessage) message;
+                    Object literal = handleFetchResponse(imapMessage, fetchList);
+
+                    if (literal != null) {
+                        if (literal instanceof BinaryTempFileBody) {
+                            // The literal arrived before the UID and was spooled by FetchBodyCallback
+                            parseSpooledLiteral(imapMessage, (BinaryTempFileBody) literal);
+                        } else if (literal instanceof String) {
+                            // Only empty literals aren't passed to FetchBodyCallback
+                            String bodyString = (String) literal;
+                            InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                            imapMessage.parse(bodyStream);
+                        } else if (literal instanceof Integer) {
+                            // All the work was done in FetchBodyCallback.foundLiteral()
+                        } else {
+                            // This shouldn't happen
+                            throw new MessagingException("Got FETCH response with bogus parameters");
                         }
-                    } else {
-                        handleUntaggedResponse(response);
                     }
 
-                } while (response.getTag() == null);
-            } catch (IOException ioe) {
-                throw ioExceptionHandler(connection, ioe);
+                    if (listener != null) {
+                        listener.messageFinished(imapMessage, messageNumber, messageMap.size());
+                    }
+                } else {
+                    handleUntaggedResponse(response);
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
+        } catch (MessagingException | RuntimeException e) {
+            int outstandingCommands = commandsSent - commandsCompleted;
+            if (outstandingCommands > 0) {
+                // The responses to the windows still in flight would be read by the next command
+                Timber.w("Closing connection with %d outstanding FETCH commands for %s", outstandingCommands,
+                        getLogId());
+                connection.close();
             }
+            throw e;
+        }
+
+        if (negativeResponseException != null) {
+            throw negativeResponseException;
+        }
+    }
+
+    /**
+     * Fetches the flags of those of the given messages whose mod-sequence is greater than {@code changedSince}
+     * (CONDSTORE {@code CHANGEDSINCE} modifier).
+     *
+     * @return The messages the server reported changes for. Their flags have been populated; the flags of the other
+     *         messages are left untouched.
+     */
+    public List<ImapMessage> fetchChangedFlags(List<? extends Message> messages, long changedSince)
+            throws MessagingException {
+        if (messages.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        checkOpen();
+
+        Set<Long> uids = new HashSet<>(messages.size());
+        Map<String, ImapMessage> messageMap = new HashMap<>(messages.size());
+        for (Message message : messages) {
+            String uid = message.getUid();
+            uids.add(Long.parseLong(uid));
+            messageMap.put(uid, (ImapMessage) message);
+        }
+
+        try {
+            String commandSuffix = String.format(Locale.US, "(UID FLAGS) (CHANGEDSINCE %d)", changedSince);
+            List<ImapResponse> imapResponses = connection.executeCommandWithIdSet(Commands.UID_FETCH, commandSuffix,
+                    uids);
+
+            List<ImapMessage> changedMessages = new ArrayList<>();
+            for (ImapResponse response : imapResponses) {
+                if (!isUntaggedFetchResponse(response)) {
+                    handleUntaggedResponse(response);
+                    continue;
+                }
+
+                ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                ImapMessage message = messageMap.get(fetchList.getKeyedString("UID"));
+                if (message != null) {
+                    handleFetchResponse(message, fetchList);
+                    changedMessages.add(message);
+                }
+            }
+
+            return changedMessages;
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
         }
     }
 
@@ -843,6 +1071,33 @@ public class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    private static void parseSpooledLiteral(ImapMessage message, BinaryTempFileBody spooledLiteral)
+            throws MessagingException, IOException {
+        // Closing the stream deletes the temp file
+        InputStream inputStream = spooledLiteral.getInputStream();
+        try {
+            message.parse(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void discardSpooledLiterals(ImapList fetchList) {
+        for (Object value : fetchList) {
+            if (value instanceof BinaryTempFileBody) {
+                File file = ((BinaryTempFileBody) value).getFile();
+                if (!file.delete()) {
+                    Timber.i("Failed to delete temporary file: %s", file.getName());
+                }
+            }
+        }
+    }
+
+    private static boolean isUntaggedFetchResponse(ImapResponse response) {
+        return response.getTag() == null && response.size() > 1 &&
+                ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH");
+    }
+
     // Returns value of body field
     private Object handleFetchResponse(ImapMessage message, ImapList fetchList) throws MessagingException {
         Object result = null;
@@ -943,6 +1198,18 @@ public class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    private void handlePossibleVanished(ImapResponse response) {
+        VanishedResponse vanishedResponse = VanishedResponse.parse(response);
+        if (vanishedResponse == null || vanishedResponse.isEarlier() || messageCount <= 0) {
+            return;
+        }
+
+        messageCount = (int) Math.max(0, messageCount - vanishedResponse.getUids().size());
+        if (K9MailLib.isDebug()) {
+            Timber.d("Got untagged VANISHED with messageCount %d for %s", messageCount, getLogId());
+        }
+    }
+
     /**
      * Handle an untagged response that the caller doesn't care to handle themselves.
      */
@@ -956,6 +1223,7 @@ public class ImapFolder extends Folder<ImapMessage> {
             }
 
             handlePossibleUidNext(response);
+            handlePossibleVanished(response);
 
             if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXPUNGE") && messageCount > 0) {
                 messageCount--;
@@ -1132,17 +1400,16 @@ public class ImapFolder extends Folder<ImapMessage> {
         open(OPEN_MODE_RW);
         checkOpen();
 
+        if (messages.size() > 1 && connection.isMultiAppendCapable()) {
+            return appendMessagesUsingMultiAppend(messages);
+        }
+
         try {
             Map<String, String> uidMap = new HashMap<>();
             for (Message message : messages) {
-                long messageSize = message.calculateSize();
-
                 String encodeFolderName = folderNameCodec.encode(getPrefixedName());
                 String escapedFolderName = ImapUtility.encodeString(encodeFolderName);
-                String combinedFlags = ImapUtility.combineFlags(message.getFlags(),
-                        canCreateKeywords || store.getPermanentFlagsIndex().contains(Flag.FORWARDED));
-                String command = String.format(Locale.US, "APPEND %s (%s) {%d}", escapedFolderName,
-                        combinedFlags, messageSize);
+                String command = "APPEND " + escapedFolderName + " " + getAppendArguments(message);
                 connection.sendCommand(command, false);
 
                 ImapResponse response;
@@ -1189,16 +1456,7 @@ public class ImapFolder extends Folder<ImapMessage> {
                  * This part is executed in case the server does not support UIDPLUS or does
                  * not implement the APPENDUID response code.
                  */
-                String messageId = extractMessageId(message);
-                String newUid = messageId != null ? getUidFromMessageId(messageId) : null;
-                if (K9MailLib.isDebug()) {
-                    Timber.d("Got UID %s for message for %s", newUid, getLogId());
-                }
-
-                if (!TextUtils.isEmpty(newUid)) {
-                    uidMap.put(message.getUid(), newUid);
-                    message.setUid(newUid);
-                }
+                findUidByMessageId(message, uidMap);
             }
 
             /*
@@ -1212,6 +1470,105 @@ public class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    /**
+     * Uploads all messages using a single {@code APPEND} command with one literal per message (RFC 3502). The server
+     * adds either all of the messages or none of them.
+     */
+    private Map<String, String> appendMessagesUsingMultiAppend(List<? extends Message> messages)
+            throws MessagingException {
+        try {
+            String encodeFolderName = folderNameCodec.encode(getPrefixedName());
+            String escapedFolderName = ImapUtility.encodeString(encodeFolderName);
+            String command = "APPEND " + escapedFolderName + " " + getAppendArguments(messages.get(0));
+            connection.sendCommand(command, false);
+
+            int messageIndex = 0;
+            ImapResponse response;
+            do {
+                response = connection.readResponse();
+
+                handleUntaggedResponse(response);
+
+                if (response.isContinuationRequested() && messageIndex < messages.size()) {
+                    EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(connection.getOutputStream());
+                    messages.get(messageIndex).writeTo(eolOut);
+                    messageIndex++;
+
+                    // The arguments of the next message continue the command line started by the first one
+                    if (messageIndex < messages.size()) {
+                        String nextArguments = " " + getAppendArguments(messages.get(messageIndex));
+                        eolOut.write(nextArguments.getBytes());
+                    }
+                    eolOut.write('\r');
+                    eolOut.write('\n');
+                    eolOut.flush();
+                }
+            } while (response.getTag() == null);
+
+            if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), Responses.OK)) {
+                throw new NegativeImapResponseException("APPEND of " + messages.size() + " messages failed",
+                        Collections.singletonList(response));
+            }
+
+            Map<String, String> uidMap = new HashMap<>();
+            List<String> newUids = getAppendUids(response);
+            if (newUids != null && newUids.size() == messages.size()) {
+                for (int i = 0, size = messages.size(); i < size; i++) {
+                    Message message = messages.get(i);
+                    String newUid = newUids.get(i);
+                    uidMap.put(message.getUid(), newUid);
+                    message.setUid(newUid);
+                }
+            } else {
+                for (Message message : messages) {
+                    findUidByMessageId(message, uidMap);
+                }
+            }
+
+            return (uidMap.isEmpty()) ? null : uidMap;
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
+        }
+    }
+
+    private String getAppendArguments(Message message) {
+        // The literal has to match the bytes written exactly, so this can't use Message.estimateSize()
+        long messageSize = message.calculateSize();
+        String combinedFlags = ImapUtility.combineFlags(message.getFlags(),
+                canCreateKeywords || store.getPermanentFlagsIndex().contains(Flag.FORWARDED));
+
+        return String.format(Locale.US, "(%s) {%d}", combinedFlags, messageSize);
+    }
+
+    /**
+     * Returns the UIDs of the {@code APPENDUID} response code (RFC 4315), in the order the messages were appended.
+     */
+    private List<String> getAppendUids(ImapResponse response) {
+        if (response.size() < 2 || !(response.get(1) instanceof ImapList)) {
+            return null;
+        }
+
+        ImapList appendList = (ImapList) response.get(1);
+        if (appendList.size() < 3 || !ImapResponseParser.equalsIgnoreCase(appendList.get(0), "APPENDUID")) {
+            return null;
+        }
+
+        return ImapUtility.getImapSequenceValues(appendList.getString(2));
+    }
+
+    private void findUidByMessageId(Message message, Map<String, String> uidMap) throws MessagingException {
+        String messageId = extractMessageId(message);
+        String newUid = messageId != null ? getUidFromMessageId(messageId) : null;
+        if (K9MailLib.isDebug()) {
+            Timber.d("Got UID %s for message for %s", newUid, getLogId());
+        }
+
+        if (!TextUtils.isEmpty(newUid)) {
+            uidMap.put(message.getUid(), newUid);
+            message.setUid(newUid);
+        }
+    }
+
     private String extractMessageId(Message message) {
         String[] messageIdHeader = message.getHeader("Message-ID");
         return messageIdHeader.length == 0 ? null : messageIdHeader[0];
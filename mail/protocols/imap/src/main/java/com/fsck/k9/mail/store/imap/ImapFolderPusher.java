@@ -2,7 +2,6 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -11,7 +10,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
-import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.Message;
@@ -19,37 +17,25 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.PushReceiver;
 import com.fsck.k9.mail.power.PowerManager;
 import com.fsck.k9.mail.power.WakeLock;
-import com.fsck.k9.mail.store.RemoteStore;
 import timber.log.Timber;
 
-import static com.fsck.k9.mail.K9MailLib.PUSH_WAKE_LOCK_TIMEOUT;
 import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
 
 
 class ImapFolderPusher extends ImapFolder {
-    private static final int IDLE_READ_TIMEOUT_INCREMENT = 5 * 60 * 1000;
-    private static final int IDLE_FAILURE_COUNT_LIMIT = 10;
-    private static final int MAX_DELAY_TIME = 5 * 60 * 1000; // 5 minutes
-    private static final int NORMAL_DELAY_TIME = 5000;
-
-
-    private final PushReceiver pushReceiver;
     private final Object threadLock = new Object();
-    private final IdleStopper idleStopper = new IdleStopper();
-    private final WakeLock wakeLock;
     private final List<ImapResponse> storedUntaggedResponses = new ArrayList<>();
+    private final PushRunnable pushRunnable;
     private Thread listeningThread;
-    private volatile boolean stop = false;
-    private volatile boolean idling = false;
 
 
     public ImapFolderPusher(ImapStore store, String serverId, PushReceiver pushReceiver, PowerManager powerManager) {
         super(store, serverId);
-        this.pushReceiver = pushReceiver;
 
         String tag = "ImapFolderPusher " + store.getStoreConfig().toString() + ":" + getServerId();
-        wakeLock = powerManager.newWakeLock(tag);
+        WakeLock wakeLock = powerManager.newWakeLock(tag);
         wakeLock.setReferenceCounted(false);
+        pushRunnable = new PushRunnable(pushReceiver, wakeLock);
     }
 
     public void start() {
@@ -58,16 +44,13 @@ class ImapFolderPusher extends ImapFolder {
                 throw new IllegalStateException("start() called twice");
             }
 
-            listeningThread = new Thread(new PushRunnable());
+            listeningThread = new Thread(pushRunnable);
             listeningThread.start();
         }
     }
 
     public void refresh() {
-        if (idling) {
-            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
-            idleStopper.stopIdle();
-        }
+        pushRunnable.refresh();
     }
 
     public void stop() {
@@ -76,7 +59,7 @@ class ImapFolderPusher extends ImapFolder {
                 throw new IllegalStateException("stop() called twice");
             }
 
-            stop = true;
+            pushRunnable.requestStop();
 
             listeningThread.interrupt();
             listeningThread = null;
@@ -94,12 +77,16 @@ class ImapFolderPusher extends ImapFolder {
         }
     }
 
+    private static boolean isVanishedResponse(ImapResponse response) {
+        return response.getTag() == null && response.size() > 1 && equalsIgnoreCase(response.get(0), Responses.VANISHED);
+    }
+
     @Override
     protected void handleUntaggedResponse(ImapResponse response) {
         if (response.getTag() == null && response.size() > 1) {
             Object responseType = response.get(1);
             if (equalsIgnoreCase(responseType, "FETCH") || equalsIgnoreCase(responseType, "EXPUNGE") ||
-                    equalsIgnoreCase(responseType, "EXISTS")) {
+                    equalsIgnoreCase(responseType, "EXISTS") || isVanishedResponse(response)) {
 
                 if (K9MailLib.isDebug()) {
                     Timber.d("Storing response %s for later processing", response);
@@ -119,137 +106,108 @@ class ImapFolderPusher extends ImapFolder {
     }
 
 
-    private class PushRunnable implements Runnable, UntaggedHandler {
-        private int delayTime = NORMAL_DELAY_TIME;
-        private int idleFailureCount = 0;
+    private class PushRunnable extends ImapPushRunnable {
         private boolean needsPoll = false;
+        private long lastUidNext = -1L;
 
-        @Override
-        public void run() {
-            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
-
-            if (K9MailLib.isDebug()) {
-                Timber.i("Pusher starting for %s", getLogId());
-            }
-
-            long lastUidNext = -1L;
-            while (!stop) {
-                try {
-                    long oldUidNext = getOldUidNext();
-
-                        /*
-                         * This makes sure 'oldUidNext' is never smaller than 'UIDNEXT' from
-                         * the last loop iteration. This way we avoid looping endlessly causing
-                         * the battery to drain.
-                         *
-                         * See issue 4907
-                         */
-                    if (oldUidNext < lastUidNext) {
-                        oldUidNext = lastUidNext;
-                    }
-
-                    boolean openedNewConnection = openConnectionIfNecessary();
-
-                    if (stop) {
-                        break;
-                    }
-
-                    boolean pushPollOnConnect = store.getStoreConfig().isPushPollOnConnect();
-                    if (pushPollOnConnect && (openedNewConnection || needsPoll)) {
-                        needsPoll = false;
-                        syncFolderOnConnect();
-                    }
-
-                    if (stop) {
-                        break;
-                    }
-
-                    long newUidNext = getNewUidNext();
-                    lastUidNext = newUidNext;
-                    long startUid = getStartUid(oldUidNext, newUidNext);
-
-                    if (newUidNext > startUid) {
-                        notifyMessagesArrived(startUid, newUidNext);
-                    } else {
-                        processStoredUntaggedResponses();
 
-                        if (K9MailLib.isDebug()) {
-                            Timber.i("About to IDLE for %s", getLogId());
-                        }
+        PushRunnable(PushReceiver pushReceiver, WakeLock wakeLock) {
+            super(ImapFolderPusher.this.store, pushReceiver, wakeLock);
+        }
 
-                        prepareForIdle();
+        @Override
+        protected void push() throws MessagingException, IOException {
+            long oldUidNext = getOldUidNext();
 
-                        ImapConnection conn = connection;
-                        setReadTimeoutForIdle(conn);
-                        sendIdle(conn);
+                /*
+                 * This makes sure 'oldUidNext' is never smaller than 'UIDNEXT' from
+                 * the last loop iteration. This way we avoid looping endlessly causing
+                 * the battery to drain.
+                 *
+                 * See issue 4907
+                 */
+            if (oldUidNext < lastUidNext) {
+                oldUidNext = lastUidNext;
+            }
 
-                        returnFromIdle();
-                    }
-                } catch (AuthenticationFailedException e) {
-                    reacquireWakeLockAndCleanUp();
+            boolean openedNewConnection = openConnectionIfNecessary();
+            if (openedNewConnection) {
+                sessionStarted();
+            }
 
-                    if (K9MailLib.isDebug()) {
-                        Timber.e(e, "Authentication failed. Stopping ImapFolderPusher.");
-                    }
+            if (stop) {
+                return;
+            }
 
-                    pushReceiver.authenticationFailed();
-                    stop = true;
-                } catch (Exception e) {
-                    reacquireWakeLockAndCleanUp();
+            boolean pushPollOnConnect = store.getStoreConfig().isPushPollOnConnect();
+            if (pushPollOnConnect && (openedNewConnection || needsPoll)) {
+                needsPoll = false;
+                syncFolderOnConnect();
+            }
 
-                    if (stop) {
-                        Timber.i("Got exception while idling, but stop is set for %s", getLogId());
-                    } else {
-                        pushReceiver.pushError("Push error for " + getServerId(), e);
-                        Timber.e("Got exception while idling for %s", getLogId());
+            if (stop) {
+                return;
+            }
 
-                        pushReceiver.sleep(wakeLock, delayTime);
+            long newUidNext = getNewUidNext();
+            lastUidNext = newUidNext;
+            long startUid = getStartUid(oldUidNext, newUidNext);
 
-                        delayTime *= 2;
-                        if (delayTime > MAX_DELAY_TIME) {
-                            delayTime = MAX_DELAY_TIME;
-                        }
+            if (newUidNext > startUid) {
+                notifyMessagesArrived(startUid, newUidNext);
+            } else {
+                processStoredUntaggedResponses();
 
-                        idleFailureCount++;
-                        if (idleFailureCount > IDLE_FAILURE_COUNT_LIMIT) {
-                            Timber.e("Disabling pusher for %s after %d consecutive errors", getLogId(), idleFailureCount);
-                            pushReceiver.pushError("Push disabled for " + getServerId() + " after " + idleFailureCount +
-                                    " consecutive errors", e);
-                            stop = true;
-                        }
-                    }
-                }
+                List<ImapResponse> responses = idle(connection);
+                handleUntaggedResponses(responses);
             }
+        }
 
-            pushReceiver.setPushActive(getServerId(), false);
+        @Override
+        protected ImapConnection getConnection() {
+            return connection;
+        }
 
-            try {
-                if (K9MailLib.isDebug()) {
-                    Timber.i("Pusher for %s is exiting", getLogId());
-                }
+        @Override
+        protected void closeConnectionAfterError() {
+            clearStoredUntaggedResponses();
 
-                close();
-            } catch (Exception me) {
-                Timber.e(me, "Got exception while closing for %s", getLogId());
-            } finally {
-                wakeLock.release();
+            ImapConnection conn = connection;
+            connection = null;
+            if (conn != null) {
+                conn.close();
             }
         }
 
-        private void reacquireWakeLockAndCleanUp() {
-            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+        @Override
+        protected void closeConnection() {
+            close();
+        }
 
-            clearStoredUntaggedResponses();
-            idling = false;
-            pushReceiver.setPushActive(getServerId(), false);
+        @Override
+        protected void setPushActive(boolean enabled) {
+            pushReceiver.setPushActive(getServerId(), enabled);
+        }
 
-            try {
-                connection.close();
-            } catch (Exception me) {
-                Timber.e(me, "Got exception while closing for exception for %s", getLogId());
+        @Override
+        protected boolean handleIdleResponse(ImapResponse response) {
+            if (response.size() > 1) {
+                Object responseType = response.get(1);
+                return equalsIgnoreCase(responseType, "EXISTS") || equalsIgnoreCase(responseType, "EXPUNGE") ||
+                        equalsIgnoreCase(responseType, "FETCH") || isVanishedResponse(response);
             }
 
-            connection = null;
+            return false;
+        }
+
+        @Override
+        protected String getPushedFolders() {
+            return getServerId();
+        }
+
+        @Override
+        protected String getLogId() {
+            return ImapFolderPusher.this.getLogId();
         }
 
         private long getNewUidNext() throws MessagingException {
@@ -291,35 +249,6 @@ class ImapFolderPusher extends ImapFolder {
             return startUid;
         }
 
-        private void prepareForIdle() {
-            pushReceiver.setPushActive(getServerId(), true);
-            idling = true;
-        }
-
-        private void sendIdle(ImapConnection conn) throws MessagingException, IOException {
-            String tag = conn.sendCommand(Commands.IDLE, false);
-
-            List<ImapResponse> responses;
-            try {
-                try {
-                    responses = conn.readStatusResponse(tag, Commands.IDLE, this);
-                } finally {
-                    idleStopper.stopAcceptingDoneContinuation();
-                }
-            } catch (IOException e) {
-                conn.close();
-                throw e;
-            }
-
-            handleUntaggedResponses(responses);
-        }
-
-        private void returnFromIdle() {
-            idling = false;
-            delayTime = NORMAL_DELAY_TIME;
-            idleFailureCount = 0;
-        }
-
         private boolean openConnectionIfNecessary() throws MessagingException {
             ImapConnection oldConnection = connection;
             internalOpen(OPEN_MODE_RO);
@@ -341,61 +270,6 @@ class ImapFolderPusher extends ImapFolder {
             }
         }
 
-        private void checkConnectionIdleCapable(ImapConnection conn) throws MessagingException {
-            if (!conn.isIdleCapable()) {
-                stop = true;
-
-                String message = "IMAP server is not IDLE capable: " + conn.toString();
-                pushReceiver.pushError(message, null);
-
-                throw new MessagingException(message);
-            }
-        }
-
-        private void setReadTimeoutForIdle(ImapConnection conn) throws SocketException {
-            int idleRefreshTimeout = store.getStoreConfig().getIdleRefreshMinutes() * 60 * 1000;
-            conn.setReadTimeout(idleRefreshTimeout + IDLE_READ_TIMEOUT_INCREMENT);
-        }
-
-        @Override
-        public void handleAsyncUntaggedResponse(ImapResponse response) {
-            if (K9MailLib.isDebug()) {
-                Timber.v("Got async response: %s", response);
-            }
-
-            if (stop) {
-                if (K9MailLib.isDebug()) {
-                    Timber.d("Got async untagged response: %s, but stop is set for %s", response, getLogId());
-                }
-
-                idleStopper.stopIdle();
-            } else {
-                if (response.getTag() == null) {
-                    if (response.size() > 1) {
-                        Object responseType = response.get(1);
-                        if (equalsIgnoreCase(responseType, "EXISTS") || equalsIgnoreCase(responseType, "EXPUNGE") ||
-                                equalsIgnoreCase(responseType, "FETCH")) {
-
-                            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
-
-                            if (K9MailLib.isDebug()) {
-                                Timber.d("Got useful async untagged response: %s for %s", response, getLogId());
-                            }
-
-                            idleStopper.stopIdle();
-                        }
-                    } else if (response.isContinuationRequested()) {
-                        if (K9MailLib.isDebug()) {
-                            Timber.d("Idling %s", getLogId());
-                        }
-
-                        idleStopper.startAcceptingDoneContinuation(connection);
-                        wakeLock.release();
-                    }
-                }
-            }
-        }
-
         private void clearStoredUntaggedResponses() {
             synchronized (storedUntaggedResponses) {
                 storedUntaggedResponses.clear();
@@ -474,6 +348,10 @@ class ImapFolderPusher extends ImapFolder {
             superHandleUntaggedResponse(response);
 
             int messageCountDelta = 0;
+            if (isVanishedResponse(response)) {
+                return processVanishedResponse(VanishedResponse.parse(response), flagSyncMsgSeqs, removeMsgUids);
+            }
+
             if (response.getTag() == null && response.size() > 1) {
                 try {
                     Object responseType = response.get(1);
@@ -552,6 +430,37 @@ class ImapFolderPusher extends ImapFolder {
             return messageCountDelta;
         }
 
+        private int processVanishedResponse(VanishedResponse vanishedResponse, List<Long> flagSyncMsgSeqs,
+                List<String> removeMsgUids) {
+            if (vanishedResponse == null || vanishedResponse.isEarlier()) {
+                return 0;
+            }
+
+            // Unlike VANISHED (EARLIER) these are sent as messages are expunged, so they only cover a few UIDs
+            List<String> uids = vanishedResponse.getUids().toUidList();
+            if (K9MailLib.isDebug()) {
+                Timber.d("Got untagged VANISHED for %d UIDs for %s", uids.size(), getLogId());
+            }
+
+            removeMsgUids.addAll(uids);
+
+            // VANISHED doesn't tell us which message sequence numbers went away, so any we remembered are now stale.
+            // Each pending flag sync can have moved down by at most the number of vanished messages.
+            msgSeqUidMap.clear();
+
+            long maxShift = uids.size();
+            Set<Long> shiftedMsgSeqs = new HashSet<>();
+            for (long msgSeq : flagSyncMsgSeqs) {
+                for (long candidate = Math.max(1, msgSeq - maxShift); candidate <= msgSeq; candidate++) {
+                    shiftedMsgSeqs.add(candidate);
+                }
+            }
+            flagSyncMsgSeqs.clear();
+            flagSyncMsgSeqs.addAll(shiftedMsgSeqs);
+
+            return -uids.size();
+        }
+
         private void syncMessages(int end) throws MessagingException {
             long oldUidNext = getOldUidNext();
 
@@ -679,43 +588,4 @@ class ImapFolderPusher extends ImapFolder {
             return oldUidNext;
         }
     }
-
-    /**
-     * Ensure the DONE continuation is only sent when the IDLE command was sent and hasn't completed yet.
-     */
-    private static class IdleStopper {
-        private boolean acceptDoneContinuation = false;
-        private ImapConnection imapConnection;
-
-
-        public synchronized void startAcceptingDoneContinuation(ImapConnection connection) {
-            if (connection == null) {
-                throw new NullPointerException("connection must not be null");
-            }
-
-            acceptDoneContinuation = true;
-            imapConnection = connection;
-        }
-
-        public synchronized void stopAcceptingDoneContinuation() {
-            acceptDoneContinuation = false;
-            imapConnection = null;
-        }
-
-        public synchronized void stopIdle() {
-            if (acceptDoneContinuation) {
-                acceptDoneContinuation = false;
-                sendDone();
-            }
-        }
-
-        private void sendDone() {
-            try {
-                imapConnection.setReadTimeout(RemoteStore.SOCKET_READ_TIMEOUT);
-                imapConnection.sendContinuation("DONE");
-            } catch (IOException e) {
-                imapConnection.close();
-            }
-        }
-    }
 }
@@ -0,0 +1,421 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.power.PowerManager;
+import com.fsck.k9.mail.power.WakeLock;
+import timber.log.Timber;
+
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+
+
+/**
+ * Pushes several folders using a single connection and a single thread.
+ * <p>
+ * If the server supports NOTIFY (RFC 5465), it is asked to report changes to all pushed folders while the connection
+ * is idling. Otherwise the inbox is watched with IDLE, and the other folders are checked with STATUS whenever IDLE
+ * returns, which happens at the latest after the IDLE refresh interval.
+ * <p>
+ * Changed folders are synchronized using {@link PushReceiver#syncFolder(com.fsck.k9.mail.Folder)}.
+ */
+class ImapNotifyPusher {
+    private static final String NOTIFY_EVENTS = "(MessageNew MessageExpunge FlagChange)";
+    private static final String STATUS_ITEMS = "(MESSAGES UIDNEXT UIDVALIDITY UNSEEN)";
+
+
+    private final ImapStore store;
+    private final List<String> folderServerIds;
+    private final Object threadLock = new Object();
+    private final PushRunnable pushRunnable;
+    private Thread listeningThread;
+    private volatile ImapConnection connection;
+
+
+    ImapNotifyPusher(ImapStore store, List<String> folderServerIds, PushReceiver pushReceiver,
+            PowerManager powerManager) {
+        this.store = store;
+        this.folderServerIds = new ArrayList<>(folderServerIds);
+
+        String tag = "ImapNotifyPusher " + store.getStoreConfig().toString();
+        WakeLock wakeLock = powerManager.newWakeLock(tag);
+        wakeLock.setReferenceCounted(false);
+        pushRunnable = new PushRunnable(pushReceiver, wakeLock);
+    }
+
+    public void start() {
+        synchronized (threadLock) {
+            if (listeningThread != null) {
+                throw new IllegalStateException("start() called twice");
+            }
+
+            listeningThread = new Thread(pushRunnable);
+            listeningThread.start();
+        }
+    }
+
+    public void refresh() {
+        pushRunnable.refresh();
+    }
+
+    public void stop() {
+        synchronized (threadLock) {
+            if (listeningThread == null) {
+                throw new IllegalStateException("stop() called twice");
+            }
+
+            pushRunnable.requestStop();
+
+            listeningThread.interrupt();
+            listeningThread = null;
+        }
+
+        ImapConnection conn = connection;
+        if (conn != null) {
+            if (K9MailLib.isDebug()) {
+                Timber.v("Closing connection to stop pushing for %s", getLogId());
+            }
+
+            conn.close();
+        }
+    }
+
+    List<String> getFolderServerIds() {
+        return folderServerIds;
+    }
+
+    private String getLogId() {
+        String id = store.getStoreConfig().toString() + ":" + folderServerIds;
+
+        ImapConnection conn = connection;
+        if (conn != null) {
+            id += "/" + conn.getLogId();
+        }
+
+        return id;
+    }
+
+
+    private class PushRunnable extends ImapPushRunnable {
+        private final Map<String, String> serverIdByMailbox = new HashMap<>();
+        private final Map<String, Map<String, String>> statusByServerId = new HashMap<>();
+        private final Set<String> changedFolders = new LinkedHashSet<>();
+        private boolean notifyEnabled = false;
+        private boolean notificationOverflow = false;
+        private String idleFolderServerId;
+
+
+        PushRunnable(PushReceiver pushReceiver, WakeLock wakeLock) {
+            super(ImapNotifyPusher.this.store, pushReceiver, wakeLock);
+        }
+
+        @Override
+        protected void push() throws MessagingException, IOException {
+            boolean openedNewConnection = openConnectionIfNecessary();
+            if (openedNewConnection) {
+                sessionStarted();
+            }
+
+            if (stop) {
+                return;
+            }
+
+            if (notificationOverflow) {
+                // The server stopped sending notifications, so we don't know what changed
+                changedFolders.addAll(folderServerIds);
+                setUpNotifications(connection);
+            }
+
+            boolean pushPollOnConnect = store.getStoreConfig().isPushPollOnConnect();
+            if (pushPollOnConnect && openedNewConnection) {
+                changedFolders.addAll(folderServerIds);
+            }
+
+            if (!notifyEnabled) {
+                checkFolderStatus();
+            }
+
+            syncChangedFolders();
+
+            if (stop) {
+                return;
+            }
+
+            List<ImapResponse> responses = idle(connection);
+            handleUntaggedResponses(responses);
+        }
+
+        @Override
+        protected ImapConnection getConnection() {
+            return connection;
+        }
+
+        @Override
+        protected void closeConnectionAfterError() {
+            closeConnection();
+        }
+
+        @Override
+        protected void closeConnection() {
+            ImapConnection conn = connection;
+            connection = null;
+            if (conn != null) {
+                conn.close();
+            }
+        }
+
+        @Override
+        protected void setPushActive(boolean enabled) {
+            for (String serverId : folderServerIds) {
+                pushReceiver.setPushActive(serverId, enabled);
+            }
+        }
+
+        @Override
+        protected boolean handleIdleResponse(ImapResponse response) {
+            return handleUntaggedResponse(response);
+        }
+
+        @Override
+        protected String getPushedFolders() {
+            return folderServerIds.toString();
+        }
+
+        @Override
+        protected String getLogId() {
+            return ImapNotifyPusher.this.getLogId();
+        }
+
+        private boolean openConnectionIfNecessary() throws MessagingException, IOException {
+            ImapConnection conn = connection;
+            if (conn != null && conn.isConnected()) {
+                return false;
+            }
+
+            conn = store.getConnection();
+            connection = conn;
+            conn.open();
+
+            checkConnectionIdleCapable(conn);
+
+            mapMailboxNames();
+            setUpNotifications(conn);
+
+            return true;
+        }
+
+        private void setUpNotifications(ImapConnection conn) throws IOException, MessagingException {
+            notifyEnabled = false;
+            notificationOverflow = false;
+
+            if (conn.isNotifyCapable()) {
+                notifyEnabled = enableNotify(conn);
+            }
+
+            if (!notifyEnabled) {
+                selectIdleFolder(conn);
+            }
+        }
+
+        /**
+         * Remembers which folder a mailbox name in a STATUS response belongs to. Needs an open connection, because
+         * that's where the path prefix comes from.
+         */
+        private void mapMailboxNames() {
+            serverIdByMailbox.clear();
+            for (String serverId : folderServerIds) {
+                serverIdByMailbox.put(normalizeMailboxName(getEncodedName(serverId)), serverId);
+            }
+        }
+
+        private String getEncodedName(String serverId) {
+            String prefixedName = ImapFolder.INBOX.equalsIgnoreCase(serverId) ?
+                    serverId : store.getCombinedPrefix() + serverId;
+            return store.getFolderNameCodec().encode(prefixedName);
+        }
+
+        private String normalizeMailboxName(String mailbox) {
+            return ImapFolder.INBOX.equalsIgnoreCase(mailbox) ? ImapFolder.INBOX : mailbox;
+        }
+
+        private boolean enableNotify(ImapConnection conn) throws IOException, MessagingException {
+            StringBuilder mailboxes = new StringBuilder();
+            for (String serverId : folderServerIds) {
+                if (mailboxes.length() > 0) {
+                    mailboxes.append(' ');
+                }
+                mailboxes.append(ImapUtility.encodeString(getEncodedName(serverId)));
+            }
+
+            String command = String.format(Locale.ROOT, "%s (mailboxes (%s) %s)", Commands.NOTIFY_SET_STATUS,
+                    mailboxes, NOTIFY_EVENTS);
+
+            List<ImapResponse> responses;
+            try {
+                responses = conn.executeSimpleCommand(command);
+            } catch (NegativeImapResponseException e) {
+                Timber.w(e, "Server rejected NOTIFY, falling back to IDLE for %s", getLogId());
+                return false;
+            }
+
+            // With the STATUS indicator the server starts by reporting the current status of every mailbox
+            handleUntaggedResponses(responses);
+
+            if (K9MailLib.isDebug()) {
+                Timber.d("Enabled NOTIFY for %s", getLogId());
+            }
+
+            return true;
+        }
+
+        private void selectIdleFolder(ImapConnection conn) throws IOException, MessagingException {
+            idleFolderServerId = folderServerIds.get(0);
+            for (String serverId : folderServerIds) {
+                if (ImapFolder.INBOX.equalsIgnoreCase(serverId)) {
+                    idleFolderServerId = serverId;
+                    break;
+                }
+            }
+
+            String escapedName = ImapUtility.encodeString(getEncodedName(idleFolderServerId));
+            conn.executeSimpleCommand(Commands.EXAMINE + " " + escapedName);
+
+            if (K9MailLib.isDebug()) {
+                Timber.d("Server doesn't support NOTIFY, idling on %s and checking other folders with STATUS for %s",
+                        idleFolderServerId, getLogId());
+            }
+        }
+
+        /**
+         * Without NOTIFY, checks the folders we're not idling on for changes.
+         */
+        private void checkFolderStatus() throws IOException, MessagingException {
+            ImapConnection conn = connection;
+            for (String serverId : folderServerIds) {
+                if (serverId.equals(idleFolderServerId)) {
+                    continue;
+                }
+
+                String escapedName = ImapUtility.encodeString(getEncodedName(serverId));
+                try {
+                    List<ImapResponse> responses =
+                            conn.executeSimpleCommand(Commands.STATUS + " " + escapedName + " " + STATUS_ITEMS);
+                    handleUntaggedResponses(responses);
+                } catch (NegativeImapResponseException e) {
+                    Timber.w(e, "Couldn't get status of %s for %s", serverId, getLogId());
+                }
+            }
+        }
+
+        private void syncChangedFolders() {
+            List<String> serverIds = new ArrayList<>(changedFolders);
+            changedFolders.clear();
+
+            for (String serverId : serverIds) {
+                if (stop) {
+                    return;
+                }
+
+                if (K9MailLib.isDebug()) {
+                    Timber.i("Folder %s changed, syncing for %s", serverId, getLogId());
+                }
+
+                pushReceiver.syncFolder(store.getFolder(serverId));
+            }
+        }
+
+        private void handleUntaggedResponses(List<ImapResponse> responses) {
+            for (ImapResponse response : responses) {
+                if (response.getTag() == null) {
+                    handleUntaggedResponse(response);
+                }
+            }
+        }
+
+        /**
+         * @return {@code true} if the response means that a folder has changed.
+         */
+        private boolean handleUntaggedResponse(ImapResponse response) {
+            if (response.size() > 2 && equalsIgnoreCase(response.get(0), Responses.STATUS)) {
+                return handleStatusResponse(response);
+            }
+
+            if (equalsIgnoreCase(response.get(0), Responses.OK) &&
+                    Responses.NOTIFICATIONOVERFLOW.equalsIgnoreCase(ResponseCodeExtractor.getResponseCode(response))) {
+                Timber.w("Got NOTIFICATIONOVERFLOW for %s", getLogId());
+                notificationOverflow = true;
+                return true;
+            }
+
+            if (!notifyEnabled && idleFolderServerId != null && response.size() > 1) {
+                Object responseType = response.get(1);
+                if (equalsIgnoreCase(responseType, Responses.EXISTS) ||
+                        equalsIgnoreCase(responseType, Responses.EXPUNGE) ||
+                        equalsIgnoreCase(responseType, "FETCH") ||
+                        equalsIgnoreCase(response.get(0), Responses.VANISHED)) {
+                    changedFolders.add(idleFolderServerId);
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private boolean handleStatusResponse(ImapResponse response) {
+            if (!response.isString(1) || !response.isList(2)) {
+                return false;
+            }
+
+            String serverId = serverIdByMailbox.get(normalizeMailboxName(response.getString(1)));
+            if (serverId == null) {
+                return false;
+            }
+
+            ImapList items = response.getList(2);
+            Map<String, String> status = new HashMap<>();
+            for (int i = 0, size = items.size() - 1; i < size; i += 2) {
+                if (items.isString(i) && items.isString(i + 1)) {
+                    status.put(items.getString(i).toUpperCase(Locale.US), items.getString(i + 1));
+                }
+            }
+
+            Map<String, String> oldStatus = statusByServerId.get(serverId);
+            if (oldStatus == null) {
+                oldStatus = new HashMap<>();
+                statusByServerId.put(serverId, oldStatus);
+            }
+
+            // Once NOTIFY is enabled, the server only sends STATUS responses when something happened. Otherwise the
+            // first status we get for a folder is only used as a reference.
+            boolean changed = notifyEnabled || (!oldStatus.isEmpty() && hasStatusChanged(oldStatus, status));
+            oldStatus.putAll(status);
+
+            if (changed) {
+                changedFolders.add(serverId);
+            }
+
+            return changed;
+        }
+
+        private boolean hasStatusChanged(Map<String, String> oldStatus, Map<String, String> status) {
+            for (Map.Entry<String, String> entry : status.entrySet()) {
+                String oldValue = oldStatus.get(entry.getKey());
+                if (oldValue != null && !oldValue.equals(entry.getValue())) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
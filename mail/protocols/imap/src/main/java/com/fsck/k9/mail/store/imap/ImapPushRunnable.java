@@ -0,0 +1,301 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.List;
+
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.NetworkType;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.PushStatistics;
+import com.fsck.k9.mail.power.WakeLock;
+import com.fsck.k9.mail.store.RemoteStore;
+import timber.log.Timber;
+
+import static com.fsck.k9.mail.K9MailLib.PUSH_WAKE_LOCK_TIMEOUT;
+
+
+/**
+ * The thread of a pusher. Keeps the push connection alive, backs off after errors and records how long IDLE lasted,
+ * while subclasses decide what to check before each IDLE and which responses mean that something changed.
+ *
+ * @see ImapFolderPusher
+ * @see ImapNotifyPusher
+ */
+abstract class ImapPushRunnable implements Runnable, UntaggedHandler {
+    private static final int IDLE_READ_TIMEOUT_INCREMENT = 5 * 60 * 1000;
+    private static final int IDLE_FAILURE_COUNT_LIMIT = 10;
+    private static final int MAX_DELAY_TIME = 5 * 60 * 1000; // 5 minutes
+    private static final int NORMAL_DELAY_TIME = 5000;
+
+
+    protected final ImapStore store;
+    protected final PushReceiver pushReceiver;
+    protected final WakeLock wakeLock;
+    private final AdaptiveIdleInterval adaptiveIdleInterval;
+    private final PushStatistics pushStatistics;
+    private final IdleStopper idleStopper = new IdleStopper();
+    protected volatile boolean stop = false;
+    private volatile boolean idling = false;
+    private int delayTime = NORMAL_DELAY_TIME;
+    private int idleFailureCount = 0;
+    private boolean connected = false;
+    private boolean hadConnection = false;
+    private NetworkType idleNetworkType;
+    private long idleStartTime;
+
+
+    ImapPushRunnable(ImapStore store, PushReceiver pushReceiver, WakeLock wakeLock) {
+        this.store = store;
+        this.pushReceiver = pushReceiver;
+        this.wakeLock = wakeLock;
+        adaptiveIdleInterval = store.getAdaptiveIdleInterval();
+        pushStatistics = store.getPushStatistics();
+    }
+
+    /**
+     * Makes sure there's a connection, handles what happened since the last call, and then IDLEs once.
+     */
+    protected abstract void push() throws MessagingException, IOException;
+
+    /**
+     * Returns the connection used for IDLE, or {@code null} if there is none.
+     */
+    protected abstract ImapConnection getConnection();
+
+    /**
+     * Throws away the connection after an error, along with anything that was learned from it.
+     */
+    protected abstract void closeConnectionAfterError();
+
+    /**
+     * Closes the connection once pushing has stopped.
+     */
+    protected abstract void closeConnection();
+
+    protected abstract void setPushActive(boolean enabled);
+
+    /**
+     * Returns {@code true} if an untagged response received during IDLE means the pushed folders need to be checked.
+     */
+    protected abstract boolean handleIdleResponse(ImapResponse response);
+
+    protected abstract String getPushedFolders();
+
+    protected abstract String getLogId();
+
+    @Override
+    public void run() {
+        wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+        if (K9MailLib.isDebug()) {
+            Timber.i("Pusher starting for %s", getLogId());
+        }
+
+        while (!stop) {
+            try {
+                push();
+            } catch (AuthenticationFailedException e) {
+                reacquireWakeLockAndCleanUp();
+
+                if (K9MailLib.isDebug()) {
+                    Timber.e(e, "Authentication failed. Stopping pusher for %s", getLogId());
+                }
+
+                pushReceiver.authenticationFailed();
+                stop = true;
+            } catch (Exception e) {
+                boolean droppedWhileIdling = idling;
+                reacquireWakeLockAndCleanUp();
+
+                if (stop) {
+                    Timber.i("Got exception while idling, but stop is set for %s", getLogId());
+                } else {
+                    if (droppedWhileIdling) {
+                        idleDropped();
+                    }
+
+                    pushReceiver.pushError("Push error for " + getPushedFolders(), e);
+                    Timber.e("Got exception while idling for %s", getLogId());
+
+                    pushReceiver.sleep(wakeLock, delayTime);
+
+                    delayTime *= 2;
+                    if (delayTime > MAX_DELAY_TIME) {
+                        delayTime = MAX_DELAY_TIME;
+                    }
+
+                    idleFailureCount++;
+                    if (idleFailureCount > IDLE_FAILURE_COUNT_LIMIT) {
+                        Timber.e("Disabling pusher for %s after %d consecutive errors", getLogId(), idleFailureCount);
+                        pushReceiver.pushError("Push disabled for " + getPushedFolders() + " after " +
+                                idleFailureCount + " consecutive errors", e);
+                        stop = true;
+                    }
+                }
+            }
+        }
+
+        setPushActive(false);
+        sessionEnded();
+
+        try {
+            if (K9MailLib.isDebug()) {
+                Timber.i("Pusher for %s is exiting", getLogId());
+            }
+
+            closeConnection();
+        } catch (Exception me) {
+            Timber.e(me, "Got exception while closing for %s", getLogId());
+        } finally {
+            wakeLock.release();
+        }
+    }
+
+    void requestStop() {
+        stop = true;
+    }
+
+    /**
+     * Ends the current IDLE, so the loop checks for changes and starts a new one.
+     */
+    void refresh() {
+        if (idling) {
+            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+            idleStopper.stopIdle();
+        }
+    }
+
+    private void reacquireWakeLockAndCleanUp() {
+        wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+        idling = false;
+        setPushActive(false);
+        sessionEnded();
+
+        try {
+            closeConnectionAfterError();
+        } catch (Exception me) {
+            Timber.e(me, "Got exception while closing for exception for %s", getLogId());
+        }
+    }
+
+    protected void checkConnectionIdleCapable(ImapConnection conn) throws MessagingException {
+        if (!conn.isIdleCapable()) {
+            stop = true;
+
+            String message = "IMAP server is not IDLE capable: " + conn.toString();
+            pushReceiver.pushError(message, null);
+
+            throw new MessagingException(message);
+        }
+    }
+
+    /**
+     * Sends IDLE and waits until it completes, either because the server reported a change, or because
+     * {@link #refresh()} was called.
+     *
+     * @return the untagged responses that came with the end of IDLE.
+     */
+    protected List<ImapResponse> idle(ImapConnection conn) throws MessagingException, IOException {
+        if (K9MailLib.isDebug()) {
+            Timber.i("About to IDLE for %s", getLogId());
+        }
+
+        setPushActive(true);
+        idleNetworkType = store.getActiveNetworkType();
+        idleStartTime = System.currentTimeMillis();
+        idling = true;
+
+        long idleRefreshTimeout = adaptiveIdleInterval.getInterval(idleNetworkType,
+                store.getConfiguredIdleRefreshInterval());
+        conn.setReadTimeout((int) idleRefreshTimeout + IDLE_READ_TIMEOUT_INCREMENT);
+
+        String tag = conn.sendCommand(Commands.IDLE, false);
+
+        List<ImapResponse> responses;
+        try {
+            try {
+                responses = conn.readStatusResponse(tag, Commands.IDLE, this);
+            } finally {
+                idleStopper.stopAcceptingDoneContinuation();
+            }
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+
+        conn.setReadTimeout(RemoteStore.SOCKET_READ_TIMEOUT);
+        returnFromIdle();
+
+        return responses;
+    }
+
+    private void returnFromIdle() {
+        idling = false;
+        delayTime = NORMAL_DELAY_TIME;
+        idleFailureCount = 0;
+
+        long idleTime = System.currentTimeMillis() - idleStartTime;
+        adaptiveIdleInterval.idleCompleted(idleNetworkType, store.getConfiguredIdleRefreshInterval(), idleTime);
+        pushStatistics.wakeup();
+    }
+
+    private void idleDropped() {
+        // A connection that broke because we switched networks says nothing about how long it could have idled
+        if (idleNetworkType != store.getActiveNetworkType()) {
+            return;
+        }
+
+        long idleTime = System.currentTimeMillis() - idleStartTime;
+        adaptiveIdleInterval.idleDropped(idleNetworkType, store.getConfiguredIdleRefreshInterval(), idleTime);
+    }
+
+    protected void sessionStarted() {
+        sessionEnded();
+        pushStatistics.sessionStarted(hadConnection);
+        connected = true;
+        hadConnection = true;
+    }
+
+    private void sessionEnded() {
+        if (connected) {
+            pushStatistics.sessionEnded();
+            connected = false;
+        }
+    }
+
+    @Override
+    public void handleAsyncUntaggedResponse(ImapResponse response) {
+        if (K9MailLib.isDebug()) {
+            Timber.v("Got async response: %s", response);
+        }
+
+        if (stop) {
+            if (K9MailLib.isDebug()) {
+                Timber.d("Got async untagged response: %s, but stop is set for %s", response, getLogId());
+            }
+
+            idleStopper.stopIdle();
+        } else if (response.getTag() == null) {
+            if (response.isContinuationRequested()) {
+                if (K9MailLib.isDebug()) {
+                    Timber.d("Idling %s", getLogId());
+                }
+
+                idleStopper.startAcceptingDoneContinuation(getConnection());
+                wakeLock.release();
+            } else if (handleIdleResponse(response)) {
+                wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+                if (K9MailLib.isDebug()) {
+                    Timber.d("Got useful async untagged response: %s for %s", response, getLogId());
+                }
+
+                idleStopper.stopIdle();
+            }
+        }
+    }
+}
@@ -6,17 +6,23 @@ import java.util.List;
 
 import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.PushStatistics;
 import com.fsck.k9.mail.Pusher;
 import com.fsck.k9.mail.power.PowerManager;
 import timber.log.Timber;
 
 
+/**
+ * Pushes a single folder using IDLE ({@link ImapFolderPusher}), or several folders over one connection
+ * ({@link ImapNotifyPusher}).
+ */
 public class ImapPusher implements Pusher {
     private final ImapStore store;
     private final PushReceiver pushReceiver;
     private final PowerManager powerManager;
 
     private final List<ImapFolderPusher> folderPushers = new ArrayList<>();
+    private ImapNotifyPusher notifyPusher;
 
     private long lastRefresh = -1;
 
@@ -34,6 +40,12 @@ public class ImapPusher implements Pusher {
 
             setLastRefresh(currentTimeMillis());
 
+            if (folderServerIds.size() > 1) {
+                notifyPusher = createImapNotifyPusher(folderServerIds);
+                notifyPusher.start();
+                return;
+            }
+
             for (String folderName : folderServerIds) {
                 ImapFolderPusher pusher = createImapFolderPusher(folderName);
                 folderPushers.add(pusher);
@@ -53,6 +65,14 @@ public class ImapPusher implements Pusher {
                     Timber.e(e, "Got exception while refreshing for %s", folderPusher.getServerId());
                 }
             }
+
+            if (notifyPusher != null) {
+                try {
+                    notifyPusher.refresh();
+                } catch (Exception e) {
+                    Timber.e(e, "Got exception while refreshing for %s", notifyPusher.getFolderServerIds());
+                }
+            }
         }
     }
 
@@ -76,12 +96,28 @@ public class ImapPusher implements Pusher {
             }
 
             folderPushers.clear();
+
+            if (notifyPusher != null) {
+                try {
+                    notifyPusher.stop();
+                } catch (Exception e) {
+                    Timber.e(e, "Got exception while stopping %s", notifyPusher.getFolderServerIds());
+                }
+
+                notifyPusher = null;
+            }
         }
     }
 
     @Override
     public int getRefreshInterval() {
-        return (store.getStoreConfig().getIdleRefreshMinutes() * 60 * 1000);
+        AdaptiveIdleInterval idleInterval = store.getAdaptiveIdleInterval();
+        return (int) idleInterval.getInterval(store.getActiveNetworkType(), store.getConfiguredIdleRefreshInterval());
+    }
+
+    @Override
+    public PushStatistics getPushStatistics() {
+        return store.getPushStatistics();
     }
 
     @Override
@@ -98,6 +134,10 @@ public class ImapPusher implements Pusher {
         return new ImapFolderPusher(store, folderName, pushReceiver, powerManager);
     }
 
+    ImapNotifyPusher createImapNotifyPusher(List<String> folderServerIds) {
+        return new ImapNotifyPusher(store, folderServerIds, pushReceiver, powerManager);
+    }
+
     long currentTimeMillis() {
         return System.currentTimeMillis();
     }
@@ -15,6 +15,7 @@ import java.util.Map;
 import java.util.Set;
 
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import androidx.annotation.Nullable;
 
 import com.fsck.k9.mail.AuthType;
@@ -23,6 +24,7 @@ import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.NetworkType;
+import com.fsck.k9.mail.PushStatistics;
 import com.fsck.k9.mail.oauth.OAuth2TokenProvider;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.fsck.k9.mail.store.RemoteStore;
@@ -62,6 +64,12 @@ public class ImapStore extends RemoteStore {
      */
     private final Map<String, ImapFolder> folderCache = new HashMap<>();
 
+    /**
+     * Shared by all pushers of this account, so what was learned survives restarting push.
+     */
+    private final AdaptiveIdleInterval adaptiveIdleInterval = new AdaptiveIdleInterval();
+    private final PushStatistics pushStatistics = new PushStatistics();
+
 
     public ImapStore(ImapStoreSettings serverSettings, StoreConfig storeConfig,
             TrustedSocketFactory trustedSocketFactory, ConnectivityManager connectivityManager,
@@ -386,6 +394,27 @@ public class ImapStore extends RemoteStore {
         return permanentFlagsIndex;
     }
 
+    AdaptiveIdleInterval getAdaptiveIdleInterval() {
+        return adaptiveIdleInterval;
+    }
+
+    PushStatistics getPushStatistics() {
+        return pushStatistics;
+    }
+
+    long getConfiguredIdleRefreshInterval() {
+        return mStoreConfig.getIdleRefreshMinutes() * 60 * 1000L;
+    }
+
+    NetworkType getActiveNetworkType() {
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null) {
+            return NetworkType.OTHER;
+        }
+
+        return NetworkType.fromConnectivityManagerType(networkInfo.getType());
+    }
+
 
     private class StoreImapSettings implements ImapSettings {
         @Override
@@ -129,7 +129,7 @@ class ImapUtility {
         return false;
     }
 
-    private static boolean is32bitValue(long value) {
+    static boolean is32bitValue(long value) {
         return ((value & ~0xFFFFFFFFL) == 0L);
     }
 
@@ -0,0 +1,40 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The changes a server reported in reply to {@code SELECT ... (QRESYNC (uidvalidity modseq))}.
+ *
+ * @see ImapFolder#openUsingQresync(int, long, long)
+ */
+public class QresyncResponse {
+    private final UidRangeSet expungedUids;
+    private final List<ImapMessage> changedMessages;
+
+
+    QresyncResponse(UidRangeSet expungedUids, List<ImapMessage> changedMessages) {
+        this.expungedUids = expungedUids;
+        this.changedMessages = Collections.unmodifiableList(changedMessages);
+    }
+
+    /**
+     * UIDs of messages that were expunged since the known mod-sequence ({@code VANISHED (EARLIER)}).
+     * <p>
+     * This is usually a short list of ranges that can cover most of the folder, so check local messages against it
+     * rather than expanding it.
+     */
+    public UidRangeSet getExpungedUids() {
+        return expungedUids;
+    }
+
+    /**
+     * Messages that were added or had their flags changed since the known mod-sequence. Their flags have been
+     * populated.
+     */
+    public List<ImapMessage> getChangedMessages() {
+        return changedMessages;
+    }
+}
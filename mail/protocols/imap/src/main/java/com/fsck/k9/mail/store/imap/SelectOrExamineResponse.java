@@ -1,17 +1,69 @@
 package com.fsck.k9.mail.store.imap;
 
 
+import java.util.List;
+
 import com.fsck.k9.mail.Folder;
 
 import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+import static com.fsck.k9.mail.store.imap.ImapUtility.getLastResponse;
 
 
 class SelectOrExamineResponse {
+    static final long UNKNOWN = -1L;
+
+
     private final Boolean readWriteMode;
+    private final long uidValidity;
+    private final long uidNext;
+    private final long highestModSeq;
 
 
-    private SelectOrExamineResponse(Boolean readWriteMode) {
+    private SelectOrExamineResponse(Boolean readWriteMode, long uidValidity, long uidNext, long highestModSeq) {
         this.readWriteMode = readWriteMode;
+        this.uidValidity = uidValidity;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+    }
+
+    /**
+     * Parses all responses to a {@code SELECT} or {@code EXAMINE} command, i.e. the untagged {@code OK} responses
+     * carrying {@code UIDVALIDITY}, {@code UIDNEXT} and {@code HIGHESTMODSEQ} as well as the tagged completion result.
+     */
+    public static SelectOrExamineResponse parse(List<ImapResponse> responses) {
+        SelectOrExamineResponse taggedResponse = parse(getLastResponse(responses));
+        if (taggedResponse == null) {
+            return null;
+        }
+
+        long uidValidity = UNKNOWN;
+        long uidNext = UNKNOWN;
+        long highestModSeq = UNKNOWN;
+        for (ImapResponse response : responses) {
+            if (response.isTagged() || !equalsIgnoreCase(response.get(0), Responses.OK) || !response.isList(1)) {
+                continue;
+            }
+
+            ImapList responseTextList = response.getList(1);
+            if (responseTextList.size() < 2 || !responseTextList.isString(0) || !responseTextList.isString(1)) {
+                continue;
+            }
+
+            String responseCode = responseTextList.getString(0);
+            try {
+                if (equalsIgnoreCase(responseCode, Responses.UIDVALIDITY)) {
+                    uidValidity = responseTextList.getLong(1);
+                } else if (equalsIgnoreCase(responseCode, Responses.UIDNEXT)) {
+                    uidNext = responseTextList.getLong(1);
+                } else if (equalsIgnoreCase(responseCode, Responses.HIGHESTMODSEQ)) {
+                    highestModSeq = responseTextList.getLong(1);
+                }
+            } catch (NumberFormatException e) {
+                // Ignore malformed response codes; the server will simply be treated as not providing this value
+            }
+        }
+
+        return new SelectOrExamineResponse(taggedResponse.readWriteMode, uidValidity, uidNext, highestModSeq);
     }
 
     public static SelectOrExamineResponse parse(ImapResponse response) {
@@ -30,16 +82,16 @@ class SelectOrExamineResponse {
 
         String responseCode = responseTextList.getString(0);
         if ("READ-ONLY".equalsIgnoreCase(responseCode)) {
-            return new SelectOrExamineResponse(false);
+            return new SelectOrExamineResponse(false, UNKNOWN, UNKNOWN, UNKNOWN);
         } else if ("READ-WRITE".equalsIgnoreCase(responseCode)) {
-            return new SelectOrExamineResponse(true);
+            return new SelectOrExamineResponse(true, UNKNOWN, UNKNOWN, UNKNOWN);
         }
 
         return noOpenModeInResponse();
     }
 
     private static SelectOrExamineResponse noOpenModeInResponse() {
-        return new SelectOrExamineResponse(null);
+        return new SelectOrExamineResponse(null, UNKNOWN, UNKNOWN, UNKNOWN);
     }
 
     public boolean hasOpenMode() {
@@ -53,4 +105,20 @@ class SelectOrExamineResponse {
 
         return readWriteMode ? Folder.OPEN_MODE_RW : Folder.OPEN_MODE_RO;
     }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    /**
+     * Returns the {@code HIGHESTMODSEQ} value or {@link #UNKNOWN} if the server didn't send one, e.g. because it
+     * doesn't support CONDSTORE or because the mailbox doesn't support persistent mod-sequences ({@code NOMODSEQ}).
+     */
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
 }
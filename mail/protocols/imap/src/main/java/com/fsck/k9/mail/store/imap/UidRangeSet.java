@@ -0,0 +1,172 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import timber.log.Timber;
+
+
+/**
+ * A set of UIDs sent by the server as a sequence set, e.g. {@code 41,43:45}.
+ * <p>
+ * Unlike {@link ImapUtility#getImapSequenceValues(String)} the ranges are not expanded, so a response covering
+ * thousands of UIDs only takes up one entry per range. Membership is checked using a binary search.
+ */
+public class UidRangeSet {
+    private static final UidRangeSet EMPTY = new UidRangeSet(new long[0], new long[0]);
+
+
+    private final long[] starts;
+    private final long[] ends;
+
+
+    private UidRangeSet(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    public static UidRangeSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Parses a sequence set as received by the server. Invalid items are skipped.
+     */
+    public static UidRangeSet parse(String set) {
+        if (set == null) {
+            return EMPTY;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        for (String item : set.split(",")) {
+            long[] range = parseRange(item);
+            if (range != null) {
+                ranges.add(range);
+            }
+        }
+
+        return fromRanges(ranges);
+    }
+
+    /**
+     * Combines the given sets into one.
+     */
+    public static UidRangeSet union(List<UidRangeSet> sets) {
+        List<long[]> ranges = new ArrayList<>();
+        for (UidRangeSet uidSet : sets) {
+            for (int i = 0; i < uidSet.starts.length; i++) {
+                ranges.add(new long[] { uidSet.starts[i], uidSet.ends[i] });
+            }
+        }
+
+        return fromRanges(ranges);
+    }
+
+    private static long[] parseRange(String item) {
+        try {
+            int colonPos = item.indexOf(':');
+            long first;
+            long second;
+            if (colonPos == -1) {
+                first = Long.parseLong(item);
+                second = first;
+            } else {
+                first = Long.parseLong(item.substring(0, colonPos));
+                second = Long.parseLong(item.substring(colonPos + 1));
+            }
+
+            if (!ImapUtility.is32bitValue(first) || !ImapUtility.is32bitValue(second)) {
+                Timber.d("Invalid UID range: %s", item);
+                return null;
+            }
+
+            return new long[] { Math.min(first, second), Math.max(first, second) };
+        } catch (NumberFormatException e) {
+            Timber.d(e, "Invalid UID range: %s", item);
+            return null;
+        }
+    }
+
+    private static UidRangeSet fromRanges(List<long[]> ranges) {
+        if (ranges.isEmpty()) {
+            return EMPTY;
+        }
+
+        long[][] sortedRanges = ranges.toArray(new long[ranges.size()][]);
+        Arrays.sort(sortedRanges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+
+        long[] starts = new long[sortedRanges.length];
+        long[] ends = new long[sortedRanges.length];
+        int count = 0;
+        for (long[] range : sortedRanges) {
+            if (count > 0 && range[0] <= ends[count - 1] + 1) {
+                ends[count - 1] = Math.max(ends[count - 1], range[1]);
+            } else {
+                starts[count] = range[0];
+                ends[count] = range[1];
+                count++;
+            }
+        }
+
+        return new UidRangeSet(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+    }
+
+    public boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    /**
+     * Returns the number of UIDs in this set.
+     */
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < starts.length; i++) {
+            size += ends[i] - starts[i] + 1;
+        }
+
+        return size;
+    }
+
+    public boolean contains(long uid) {
+        int index = Arrays.binarySearch(starts, uid);
+        if (index >= 0) {
+            return true;
+        }
+
+        int rangeIndex = -index - 2;
+        return rangeIndex >= 0 && uid <= ends[rangeIndex];
+    }
+
+    /**
+     * Returns {@code true} if {@code uid} is a valid UID contained in this set.
+     */
+    public boolean contains(String uid) {
+        try {
+            return contains(Long.parseLong(uid));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Expands this set into a list of UIDs. Only use this when the set is known to be small.
+     */
+    public List<String> toUidList() {
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < starts.length; i++) {
+            for (long uid = starts[i]; uid <= ends[i]; uid++) {
+                uids.add(Long.toString(uid));
+            }
+        }
+
+        return uids;
+    }
+}
@@ -0,0 +1,52 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+
+
+/**
+ * An untagged {@code VANISHED} response as defined in RFC 7162.
+ * <p>
+ * Servers send these instead of {@code EXPUNGE} responses once QRESYNC has been enabled. {@code VANISHED (EARLIER)}
+ * responses are sent in reply to {@code SELECT ... (QRESYNC ...)} and list messages expunged since the given
+ * mod-sequence; they don't affect the current message count.
+ */
+class VanishedResponse {
+    private final UidRangeSet uids;
+    private final boolean earlier;
+
+
+    private VanishedResponse(UidRangeSet uids, boolean earlier) {
+        this.uids = uids;
+        this.earlier = earlier;
+    }
+
+    public static VanishedResponse parse(ImapResponse response) {
+        if (response.isTagged() || response.size() < 2 || !equalsIgnoreCase(response.get(0), Responses.VANISHED)) {
+            return null;
+        }
+
+        boolean earlier = false;
+        int uidSetIndex = 1;
+        if (response.isList(1)) {
+            ImapList tagList = response.getList(1);
+            earlier = tagList.size() == 1 && equalsIgnoreCase(tagList.get(0), Responses.EARLIER);
+            uidSetIndex = 2;
+        }
+
+        if (!response.isString(uidSetIndex)) {
+            return null;
+        }
+
+        UidRangeSet uids = UidRangeSet.parse(response.getString(uidSetIndex));
+        return new VanishedResponse(uids, earlier);
+    }
+
+    public UidRangeSet getUids() {
+        return uids;
+    }
+
+    public boolean isEarlier() {
+        return earlier;
+    }
+}
@@ -0,0 +1,119 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import com.fsck.k9.mail.NetworkType;
+import org.junit.Test;
+
+import static com.fsck.k9.mail.store.imap.AdaptiveIdleInterval.MAX_INTERVAL;
+import static com.fsck.k9.mail.store.imap.AdaptiveIdleInterval.PROBE_SUCCESS_COUNT;
+import static com.fsck.k9.mail.store.imap.AdaptiveIdleInterval.STEP;
+import static org.junit.Assert.assertEquals;
+
+
+public class AdaptiveIdleIntervalTest {
+    private static final long CONFIGURED_INTERVAL = 12 * 60 * 1000;
+
+
+    private final AdaptiveIdleInterval adaptiveIdleInterval = new AdaptiveIdleInterval();
+
+
+    @Test
+    public void getInterval_initially_shouldReturnConfiguredInterval() throws Exception {
+        long result = getInterval(NetworkType.WIFI);
+
+        assertEquals(CONFIGURED_INTERVAL, result);
+    }
+
+    @Test
+    public void idleCompleted_afterFullInterval_shouldStretchInterval() throws Exception {
+        completeIdle(NetworkType.WIFI);
+
+        assertEquals(CONFIGURED_INTERVAL + STEP, getInterval(NetworkType.WIFI));
+    }
+
+    @Test
+    public void idleCompleted_endedEarlyByServer_shouldNotStretchInterval() throws Exception {
+        adaptiveIdleInterval.idleCompleted(NetworkType.WIFI, CONFIGURED_INTERVAL, 30 * 1000);
+
+        assertEquals(CONFIGURED_INTERVAL, getInterval(NetworkType.WIFI));
+    }
+
+    @Test
+    public void idleCompleted_shouldOnlyAffectNetworkType() throws Exception {
+        completeIdle(NetworkType.WIFI);
+
+        assertEquals(CONFIGURED_INTERVAL, getInterval(NetworkType.MOBILE));
+    }
+
+    @Test
+    public void idleCompleted_manyTimes_shouldNotExceedMaximum() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            completeIdle(NetworkType.WIFI);
+        }
+
+        assertEquals(MAX_INTERVAL, getInterval(NetworkType.WIFI));
+    }
+
+    @Test
+    public void idleCompleted_withConfiguredIntervalAboveMaximum_shouldKeepConfiguredInterval() throws Exception {
+        long configuredInterval = 36 * 60 * 1000;
+        adaptiveIdleInterval.idleCompleted(NetworkType.WIFI, configuredInterval, configuredInterval);
+
+        assertEquals(configuredInterval, adaptiveIdleInterval.getInterval(NetworkType.WIFI, configuredInterval));
+    }
+
+    @Test
+    public void idleDropped_shouldLimitIntervalBelowDroppedInterval() throws Exception {
+        completeIdle(NetworkType.WIFI);
+        completeIdle(NetworkType.WIFI);
+        long droppedInterval = getInterval(NetworkType.WIFI);
+
+        dropIdle(NetworkType.WIFI);
+        completeIdle(NetworkType.WIFI);
+        completeIdle(NetworkType.WIFI);
+
+        assertEquals(droppedInterval - STEP, getInterval(NetworkType.WIFI));
+    }
+
+    @Test
+    public void idleDropped_beforeConfiguredInterval_shouldBeIgnored() throws Exception {
+        completeIdle(NetworkType.WIFI);
+
+        adaptiveIdleInterval.idleDropped(NetworkType.WIFI, CONFIGURED_INTERVAL, 60 * 1000);
+
+        assertEquals(CONFIGURED_INTERVAL + STEP, getInterval(NetworkType.WIFI));
+    }
+
+    @Test
+    public void idleDropped_atConfiguredInterval_shouldKeepConfiguredInterval() throws Exception {
+        dropIdle(NetworkType.WIFI);
+
+        assertEquals(CONFIGURED_INTERVAL, getInterval(NetworkType.WIFI));
+    }
+
+    @Test
+    public void idleCompleted_afterProbeSuccessCount_shouldProbeAboveDroppedInterval() throws Exception {
+        completeIdle(NetworkType.WIFI);
+        long droppedInterval = getInterval(NetworkType.WIFI);
+        dropIdle(NetworkType.WIFI);
+
+        for (int i = 0; i < PROBE_SUCCESS_COUNT; i++) {
+            completeIdle(NetworkType.WIFI);
+        }
+
+        assertEquals(droppedInterval, getInterval(NetworkType.WIFI));
+    }
+
+    private long getInterval(NetworkType networkType) {
+        return adaptiveIdleInterval.getInterval(networkType, CONFIGURED_INTERVAL);
+    }
+
+    private void completeIdle(NetworkType networkType) {
+        adaptiveIdleInterval.idleCompleted(networkType, CONFIGURED_INTERVAL, getInterval(networkType));
+    }
+
+    private void dropIdle(NetworkType networkType) {
+        long readTimeout = getInterval(networkType) + 5 * 60 * 1000;
+        adaptiveIdleInterval.idleDropped(networkType, CONFIGURED_INTERVAL, readTimeout);
+    }
+}
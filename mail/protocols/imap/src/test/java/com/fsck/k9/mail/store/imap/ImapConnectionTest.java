@@ -27,6 +27,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.shadows.ShadowLog;
 
+import static java.util.Arrays.asList;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -729,6 +730,48 @@ public class ImapConnectionTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void open_withQresyncCapability_shouldNotEnableQresync() throws Exception {
+        MockImapServer server = new MockImapServer();
+        ImapConnection imapConnection = simpleOpenWithCapabilities(server, "QRESYNC");
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+        assertFalse(imapConnection.isQresyncEnabled());
+    }
+
+    @Test
+    public void enableQresync_withQresyncCapability_shouldSendEnableOnce() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "QRESYNC");
+        server.expect("4 ENABLE QRESYNC");
+        server.output("* ENABLED QRESYNC");
+        server.output("4 OK");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+        imapConnection.open();
+
+        boolean firstResult = imapConnection.enableQresync();
+        boolean secondResult = imapConnection.enableQresync();
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+        assertTrue(firstResult);
+        assertTrue(secondResult);
+        assertTrue(imapConnection.isQresyncEnabled());
+    }
+
+    @Test
+    public void enableQresync_withoutQresyncCapability_shouldNotSendEnable() throws Exception {
+        MockImapServer server = new MockImapServer();
+        ImapConnection imapConnection = simpleOpen(server);
+
+        boolean result = imapConnection.enableQresync();
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+        assertFalse(result);
+    }
+
     @Test
     public void open_withNegativeResponseToCompressionCommand_shouldContinue() throws Exception {
         settings.setAuthType(AuthType.PLAIN);
@@ -935,6 +978,57 @@ public class ImapConnectionTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void executePipelinedCommands_shouldSendCommandsBeforeReadingResponses() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "");
+        server.expect("4 UID SEARCH UID 1:2");
+        server.expect("5 UID SEARCH UID 5:6");
+        server.output("* SEARCH 1 2");
+        server.output("4 OK SEARCH completed");
+        server.output("* SEARCH 5");
+        server.output("5 OK SEARCH completed");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        List<List<ImapResponse>> results = imapConnection.executePipelinedCommands(
+                asList("UID SEARCH UID 1:2", "UID SEARCH UID 5:6"));
+
+        assertEquals(2, results.size());
+        assertEquals(2, results.get(0).size());
+        assertEquals("2", results.get(0).get(0).getString(2));
+        assertEquals("4", results.get(0).get(1).getTag());
+        assertEquals(2, results.get(1).size());
+        assertEquals("5", results.get(1).get(0).getString(1));
+        assertEquals("5", results.get(1).get(1).getTag());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void executePipelinedCommands_withNoResponse_shouldReadAllResponsesBeforeThrowing() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "");
+        server.expect("4 UID STORE 1 +FLAGS.SILENT (\\Seen)");
+        server.expect("5 UID STORE 2 +FLAGS.SILENT (\\Seen)");
+        server.output("4 NO STORE failed");
+        server.output("5 OK STORE completed");
+        server.expect("6 NOOP");
+        server.output("6 OK NOOP completed");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        try {
+            imapConnection.executePipelinedCommands(
+                    asList("UID STORE 1 +FLAGS.SILENT (\\Seen)", "UID STORE 2 +FLAGS.SILENT (\\Seen)"));
+            fail("Expected exception");
+        } catch (NegativeImapResponseException e) {
+            assertEquals("STORE failed", e.getLastResponse().getString(1));
+        }
+        imapConnection.executeSimpleCommand("NOOP");
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
     private ImapConnection createImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
             ConnectivityManager connectivityManager, OAuth2TokenProvider oAuth2TokenProvider) {
         return new ImapConnection(settings, socketFactory, connectivityManager, oAuth2TokenProvider,
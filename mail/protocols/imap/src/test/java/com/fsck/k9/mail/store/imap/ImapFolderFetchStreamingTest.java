@@ -0,0 +1,178 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import android.net.ConnectivityManager;
+
+import com.fsck.k9.mail.AuthType;
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.FetchProfile.Item;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.helpers.TestTrustedSocketFactory;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.oauth.OAuth2TokenProvider;
+import com.fsck.k9.mail.store.StoreConfig;
+import com.fsck.k9.mail.store.imap.mockserver.MockImapServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Fetches large message literals from a {@link MockImapServer} to make sure they are streamed to disk instead of
+ * being materialized on the heap.
+ */
+@RunWith(K9LibRobolectricTestRunner.class)
+public class ImapFolderFetchStreamingTest {
+    private static final String USERNAME = "user";
+    private static final String PASSWORD = "123456";
+    private static final int SOCKET_CONNECT_TIMEOUT = 10000;
+    private static final int SOCKET_READ_TIMEOUT = 10000;
+    private static final String MESSAGE_HEADER = "Subject: Large message\r\n" +
+            "Content-Type: text/plain; charset=us-ascii\r\n" +
+            "\r\n";
+    private static final int LARGE_BODY_SIZE = 30 * 1024 * 1024;
+
+
+    private MockImapServer server;
+    private ImapStore imapStore;
+
+
+    @Before
+    public void setUp() throws Exception {
+        BinaryTempFileBody.setTempDirectory(RuntimeEnvironment.application.getCacheDir());
+
+        StoreConfig storeConfig = mock(StoreConfig.class);
+        when(storeConfig.getInboxFolder()).thenReturn("INBOX");
+        imapStore = mock(ImapStore.class);
+        when(imapStore.getCombinedPrefix()).thenReturn("");
+        when(imapStore.getStoreConfig()).thenReturn(storeConfig);
+
+        server = new MockImapServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void fetch_withLargeBody_shouldNotAllocateMessageSizedBuffers() throws Exception {
+        int literalSize = MESSAGE_HEADER.length() + LARGE_BODY_SIZE;
+        openFolderDialog();
+        server.expect("5 UID FETCH 1 (UID BODY.PEEK[])");
+        server.output("* 1 FETCH (UID 1 BODY[] {" + literalSize + "}");
+        server.outputLiteralData(MESSAGE_HEADER, LARGE_BODY_SIZE);
+        server.output(")");
+        server.output("5 OK FETCH completed");
+        ImapFolder folder = openFolder();
+        ImapMessage message = new ImapMessage("1", folder);
+        com.sun.management.ThreadMXBean threadBean = getThreadMXBean();
+        assumeTrue(threadBean != null);
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        folder.fetch(Collections.singletonList(message), createFetchProfile(Item.BODY), null);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertTrue("Allocated " + allocated + " bytes while fetching " + literalSize + " bytes",
+                allocated < LARGE_BODY_SIZE / 4);
+        assertBodyStoredInTempFile(message, LARGE_BODY_SIZE);
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void fetch_withBodyBeforeUid_shouldSpoolBodyAndParseItLater() throws Exception {
+        int bodySize = 1024 * 1024;
+        int literalSize = MESSAGE_HEADER.length() + bodySize;
+        openFolderDialog();
+        server.expect("5 UID FETCH 1 (UID BODY.PEEK[])");
+        server.output("* 1 FETCH (BODY[] {" + literalSize + "}");
+        server.outputLiteralData(MESSAGE_HEADER, bodySize);
+        server.output(" UID 1)");
+        server.output("5 OK FETCH completed");
+        ImapFolder folder = openFolder();
+        ImapMessage message = new ImapMessage("1", folder);
+
+        folder.fetch(Collections.singletonList(message), createFetchProfile(Item.BODY), null);
+
+        assertEquals("Large message", message.getSubject());
+        assertBodyStoredInTempFile(message, bodySize);
+        server.verifyInteractionCompleted();
+    }
+
+    private void assertBodyStoredInTempFile(ImapMessage message, int bodySize) {
+        Body body = message.getBody();
+        assertTrue(body instanceof BinaryTempFileBody);
+        assertEquals(bodySize, ((BinaryTempFileBody) body).getSize());
+    }
+
+    private void openFolderDialog() {
+        server.output("* OK IMAP4rev1 Service Ready");
+        server.expect("1 CAPABILITY");
+        server.output("* CAPABILITY IMAP4 IMAP4REV1");
+        server.output("1 OK CAPABILITY");
+        server.expect("2 LOGIN \"" + USERNAME + "\" \"" + PASSWORD + "\"");
+        server.output("2 OK [CAPABILITY IMAP4 IMAP4REV1] LOGIN completed");
+        server.expect("3 LIST \"\" \"\"");
+        server.output("* LIST () \"/\" foo/bar");
+        server.output("3 OK");
+        server.expect("4 EXAMINE \"Folder\"");
+        server.output("* 1 EXISTS");
+        server.output("4 OK [READ-ONLY] Examine completed.");
+    }
+
+    private ImapFolder openFolder() throws Exception {
+        server.start();
+
+        SimpleImapSettings settings = new SimpleImapSettings();
+        settings.setHost(server.getHost());
+        settings.setPort(server.getPort());
+        settings.setAuthType(AuthType.PLAIN);
+        settings.setUsername(USERNAME);
+        settings.setPassword(PASSWORD);
+
+        ImapConnection connection = new ImapConnection(settings, TestTrustedSocketFactory.newInstance(),
+                mock(ConnectivityManager.class), mock(OAuth2TokenProvider.class), SOCKET_CONNECT_TIMEOUT,
+                SOCKET_READ_TIMEOUT);
+        connection.open();
+        when(imapStore.getConnection()).thenReturn(connection);
+
+        ImapFolder folder = new ImapFolder(imapStore, "Folder", FolderNameCodec.newInstance());
+        folder.open(Folder.OPEN_MODE_RO);
+        return folder;
+    }
+
+    private FetchProfile createFetchProfile(Item... items) {
+        FetchProfile fetchProfile = new FetchProfile();
+        Collections.addAll(fetchProfile, items);
+        return fetchProfile;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+
+        com.sun.management.ThreadMXBean allocationTrackingBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationTrackingBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+
+        allocationTrackingBean.setThreadAllocatedMemoryEnabled(true);
+        return allocationTrackingBean;
+    }
+}
@@ -1,6 +1,7 @@
 package com.fsck.k9.mail.store.imap;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -32,6 +33,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.robolectric.RuntimeEnvironment;
@@ -49,13 +51,16 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anySetOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -111,6 +116,103 @@ public class ImapFolderTest {
         assertEquals(23, imapFolder.getMessageCount());
     }
 
+    @Test
+    public void openUsingQresync_withKnownModSeq_shouldReturnVanishedAndChangedMessages() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnection()).thenReturn(imapConnection);
+        when(imapConnection.enableQresync()).thenReturn(true);
+        when(imapConnection.isQresyncEnabled()).thenReturn(true);
+        when(imapConnection.executeSimpleCommand("EXAMINE \"Folder\" (QRESYNC (1125022061 715194045007))"))
+                .thenReturn(asList(
+                        createImapResponse("* 23 EXISTS"),
+                        createImapResponse("* OK [UIDVALIDITY 1125022061] UIDs valid"),
+                        createImapResponse("* OK [HIGHESTMODSEQ 715194045020] Highest"),
+                        createImapResponse("* VANISHED (EARLIER) 41,43:45"),
+                        createImapResponse("* 22 FETCH (UID 57575 FLAGS (\\Seen) MODSEQ (715194045019))"),
+                        createImapResponse("2 OK [READ-ONLY] Examine completed.")
+                ));
+
+        QresyncResponse response = imapFolder.openUsingQresync(OPEN_MODE_RO, 1125022061L, 715194045007L);
+
+        assertNotNull(response);
+        assertEquals(4, response.getExpungedUids().size());
+        assertTrue(response.getExpungedUids().contains("41"));
+        assertFalse(response.getExpungedUids().contains("42"));
+        assertTrue(response.getExpungedUids().contains("45"));
+        assertEquals(1, response.getChangedMessages().size());
+        assertEquals("57575", response.getChangedMessages().get(0).getUid());
+        assertTrue(response.getChangedMessages().get(0).isSet(Flag.SEEN));
+        assertEquals(1125022061L, imapFolder.getUidValidity());
+        assertEquals(715194045020L, imapFolder.getHighestModSeq());
+    }
+
+    @Test
+    public void openUsingQresync_withCondstoreOnly_shouldRequestModSeqAndReturnNull() throws Exception {
+        ImapFolder imapFolder = createFolder("Folder");
+        when(imapStore.getConnection()).thenReturn(imapConnection);
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        when(imapConnection.executeSimpleCommand("EXAMINE \"Folder\" (CONDSTORE)")).thenReturn(asList(
+                createImapResponse("* 23 EXISTS"),
+                createImapResponse("* OK [HIGHESTMODSEQ 715194045007] Highest"),
+                createImapResponse("2 OK [READ-ONLY] Examine completed.")
+        ));
+
+        QresyncResponse response = imapFolder.openUsingQresync(OPEN_MODE_RO, 1125022061L, 715194045007L);
+
+        assertNull(response);
+        assertEquals(715194045007L, imapFolder.getHighestModSeq());
+    }
+
+    @Test
+    public void fetchChangedFlags_shouldOnlyReturnMessagesReportedByServer() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        List<ImapMessage> messages = asList(createImapMessage("1"), createImapMessage("2"));
+        when(imapConnection.executeCommandWithIdSet(Commands.UID_FETCH, "(UID FLAGS) (CHANGEDSINCE 12345)",
+                newSet(1L, 2L))).thenReturn(asList(
+                        createImapResponse("* 2 FETCH (UID 2 FLAGS (\\Flagged) MODSEQ (12350))"),
+                        createImapResponse("x OK")
+                ));
+
+        List<ImapMessage> changedMessages = folder.fetchChangedFlags(messages, 12345L);
+
+        assertEquals(singletonList(messages.get(1)), changedMessages);
+        verify(messages.get(1)).setFlagInternal(Flag.FLAGGED, true);
+    }
+
+    @Test
+    public void getMessagesFromUid_shouldIgnoreHighestUidBelowRange() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        when(imapConnection.executeSimpleCommand("UID SEARCH UID 100:* NOT DELETED")).thenReturn(asList(
+                createImapResponse("* SEARCH 99"),
+                createImapResponse("x OK")
+        ));
+
+        List<ImapMessage> messages = folder.getMessagesFromUid(100L);
+
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    public void getMessagesFromUid_shouldReturnNewMessages() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        when(imapConnection.executeSimpleCommand("UID SEARCH UID 100:* NOT DELETED")).thenReturn(asList(
+                createImapResponse("* SEARCH 100 101"),
+                createImapResponse("x OK")
+        ));
+
+        List<ImapMessage> messages = folder.getMessagesFromUid(100L);
+
+        assertEquals(2, messages.size());
+        assertEquals("101", messages.get(0).getUid());
+        assertEquals("100", messages.get(1).getUid());
+    }
+
     @Test
     public void open_readWrite_shouldMakeGetModeReturnReadWrite() throws Exception {
         ImapFolder imapFolder = createFolder("Folder");
@@ -823,6 +925,73 @@ public class ImapFolderTest {
                 ")", false);
     }
 
+    @Test
+    public void fetch_withMultipleWindows_shouldSendAllWindowsBeforeReadingResponses() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        when(imapConnection.readResponse(nullable(ImapResponseCallback.class))).thenReturn(createImapResponse("x OK"));
+        List<ImapMessage> messages = new ArrayList<>();
+        for (int uid = 1; uid <= 150; uid++) {
+            messages.add(createImapMessage(String.valueOf(uid)));
+        }
+        FetchProfile fetchProfile = createFetchProfile(Item.FLAGS);
+
+        folder.fetch(messages, fetchProfile, null);
+
+        InOrder inOrder = inOrder(imapConnection);
+        inOrder.verify(imapConnection, times(2)).sendCommand(startsWith("UID FETCH "), eq(false));
+        inOrder.verify(imapConnection, times(2)).readResponse(nullable(ImapResponseCallback.class));
+    }
+
+    @Test
+    public void fetch_withNegativeResponseToOneWindow_shouldReadAllWindowsAndThrow() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        when(imapConnection.readResponse(nullable(ImapResponseCallback.class)))
+                .thenReturn(createImapResponse("x NO Fetch failed"))
+                .thenReturn(createImapResponse("y OK"));
+        List<ImapMessage> messages = new ArrayList<>();
+        for (int uid = 1; uid <= 150; uid++) {
+            messages.add(createImapMessage(String.valueOf(uid)));
+        }
+        FetchProfile fetchProfile = createFetchProfile(Item.FLAGS);
+
+        try {
+            folder.fetch(messages, fetchProfile, null);
+            fail("Expected exception");
+        } catch (NegativeImapResponseException e) {
+            assertEquals("x", e.getLastResponse().getTag());
+        }
+
+        verify(imapConnection, times(2)).readResponse(nullable(ImapResponseCallback.class));
+        verify(imapConnection, never()).close();
+    }
+
+    @Test
+    public void fetch_withExceptionWhileWindowsOutstanding_shouldCloseConnection() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        when(imapConnection.readResponse(nullable(ImapResponseCallback.class)))
+                .thenReturn(createImapResponse("* 1 FETCH (UID 1 FLAGS (\\Seen))"));
+        List<ImapMessage> messages = new ArrayList<>();
+        for (int uid = 1; uid <= 150; uid++) {
+            messages.add(createImapMessage(String.valueOf(uid)));
+        }
+        FetchProfile fetchProfile = createFetchProfile(Item.FLAGS);
+        MessageRetrievalListener<ImapMessage> listener = createMessageRetrievalListener();
+        doThrow(RuntimeException.class).when(listener).messageStarted(anyString(), anyInt(), anyInt());
+
+        try {
+            folder.fetch(messages, fetchProfile, listener);
+            fail("Expected exception");
+        } catch (RuntimeException e) {
+            verify(imapConnection).close();
+        }
+    }
+
     @Test
     public void fetch_withStructureFetchProfile_shouldIssueRespectiveCommand() throws Exception {
         ImapFolder folder = createFolder("Folder");
@@ -976,6 +1145,46 @@ public class ImapFolderTest {
         verify(imapConnection).sendCommand("APPEND \"Folder\" () {0}", false);
     }
 
+    @Test
+    public void appendMessages_withMultiAppendCapability_shouldUploadAllMessagesWithOneCommand() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        folder.open(OPEN_MODE_RW);
+        List<ImapMessage> messages = createImapMessages("1", "2", "3");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(imapConnection.isMultiAppendCapable()).thenReturn(true);
+        when(imapConnection.getOutputStream()).thenReturn(outputStream);
+        when(imapConnection.readResponse()).thenReturn(
+                createImapResponse("+ Ready"),
+                createImapResponse("+ Ready"),
+                createImapResponse("+ Ready"),
+                createImapResponse("x OK [APPENDUID 1 23:25] APPEND completed"));
+
+        Map<String, String> uidMap = folder.appendMessages(messages);
+
+        verify(imapConnection).sendCommand("APPEND \"Folder\" () {0}", false);
+        verify(imapConnection, times(1)).sendCommand(anyString(), eq(false));
+        assertEquals(" () {0}\r\n () {0}\r\n\r\n", outputStream.toString());
+        assertEquals("23", uidMap.get("1"));
+        assertEquals("24", uidMap.get("2"));
+        assertEquals("25", uidMap.get("3"));
+    }
+
+    @Test(expected = NegativeImapResponseException.class)
+    public void appendMessages_withMultiAppendRejected_shouldThrow() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        folder.open(OPEN_MODE_RW);
+        List<ImapMessage> messages = createImapMessages("1", "2");
+        when(imapConnection.isMultiAppendCapable()).thenReturn(true);
+        when(imapConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(imapConnection.readResponse()).thenReturn(
+                createImapResponse("+ Ready"),
+                createImapResponse("x NO [OVERQUOTA] Mailbox is full"));
+
+        folder.appendMessages(messages);
+    }
+
     @Test
     public void getUidFromMessageId_withMessageIdHeader_shouldIssueUidSearchCommand() throws Exception {
         ImapFolder folder = createFolder("Folder");
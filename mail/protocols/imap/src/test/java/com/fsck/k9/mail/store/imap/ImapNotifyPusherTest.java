@@ -0,0 +1,210 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import android.net.ConnectivityManager;
+
+import com.fsck.k9.mail.AuthType;
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.NetworkType;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.PushStatistics;
+import com.fsck.k9.mail.helpers.TestTrustedSocketFactory;
+import com.fsck.k9.mail.oauth.OAuth2TokenProvider;
+import com.fsck.k9.mail.power.PowerManager;
+import com.fsck.k9.mail.power.WakeLock;
+import com.fsck.k9.mail.store.StoreConfig;
+import com.fsck.k9.mail.store.imap.mockserver.MockImapServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static java.util.Arrays.asList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(K9LibRobolectricTestRunner.class)
+public class ImapNotifyPusherTest {
+    private static final String USERNAME = "user";
+    private static final String PASSWORD = "123456";
+    private static final int SOCKET_CONNECT_TIMEOUT = 10000;
+    private static final int SOCKET_READ_TIMEOUT = 10000;
+    private static final long VERIFY_TIMEOUT = 5000;
+    private static final String NOTIFY_COMMAND = "NOTIFY SET STATUS (mailboxes (\"INBOX\" \"Drafts\") " +
+            "(MessageNew MessageExpunge FlagChange))";
+    private static final String STATUS_COMMAND = "STATUS \"Drafts\" (MESSAGES UIDNEXT UIDVALIDITY UNSEEN)";
+
+
+    private final MockImapServer server = new MockImapServer();
+    private final SimpleImapSettings settings = new SimpleImapSettings();
+    private ImapStore store;
+    private PushReceiver pushReceiver;
+    private PowerManager powerManager;
+    private ImapFolder inbox;
+    private ImapFolder drafts;
+    private ImapNotifyPusher pusher;
+
+
+    @Before
+    public void setUp() throws Exception {
+        settings.setUsername(USERNAME);
+        settings.setPassword(PASSWORD);
+        settings.setAuthType(AuthType.PLAIN);
+
+        pushReceiver = mock(PushReceiver.class);
+        powerManager = mock(PowerManager.class);
+        when(powerManager.newWakeLock(anyString())).thenReturn(mock(WakeLock.class));
+
+        store = createStore();
+        inbox = mock(ImapFolder.class);
+        drafts = mock(ImapFolder.class);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        when(store.getFolder("Drafts")).thenReturn(drafts);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pusher != null) {
+            pusher.stop();
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void start_withNotifyCapability_shouldSyncFolderReportedByStatus() throws Exception {
+        openDialog("IDLE NOTIFY");
+        server.expect("4 " + NOTIFY_COMMAND);
+        server.output("* STATUS \"INBOX\" (MESSAGES 3 UIDNEXT 4 UIDVALIDITY 1 UNSEEN 0)");
+        server.output("* STATUS \"Drafts\" (MESSAGES 1 UIDNEXT 2 UIDVALIDITY 1 UNSEEN 0)");
+        server.output("4 OK NOTIFY completed");
+        server.expect("5 IDLE");
+        server.output("+ idling");
+        server.output("* STATUS \"Drafts\" (MESSAGES 2 UIDNEXT 3)");
+        server.expect("DONE");
+        server.output("5 OK IDLE terminated");
+        server.expect("6 IDLE");
+        server.output("+ idling");
+
+        startPusher();
+
+        verify(pushReceiver, timeout(VERIFY_TIMEOUT)).syncFolder(drafts);
+        server.waitForInteractionToComplete();
+        verify(pushReceiver, never()).syncFolder(inbox);
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void start_withNotificationOverflow_shouldSetUpNotifyAgainAndSyncAllFolders() throws Exception {
+        openDialog("IDLE NOTIFY");
+        server.expect("4 " + NOTIFY_COMMAND);
+        server.output("4 OK NOTIFY completed");
+        server.expect("5 IDLE");
+        server.output("+ idling");
+        server.output("* OK [NOTIFICATIONOVERFLOW] Too many changes");
+        server.expect("DONE");
+        server.output("5 OK IDLE terminated");
+        server.expect("6 " + NOTIFY_COMMAND);
+        server.output("6 OK NOTIFY completed");
+        server.expect("7 IDLE");
+        server.output("+ idling");
+
+        startPusher();
+
+        verify(pushReceiver, timeout(VERIFY_TIMEOUT)).syncFolder(inbox);
+        verify(pushReceiver, timeout(VERIFY_TIMEOUT)).syncFolder(drafts);
+        server.waitForInteractionToComplete();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void start_withoutNotifyCapability_shouldIdleOnInboxAndCheckOtherFoldersWithStatus() throws Exception {
+        openDialog("IDLE");
+        server.expect("4 EXAMINE \"INBOX\"");
+        server.output("4 OK [READ-ONLY] EXAMINE completed");
+        server.expect("5 " + STATUS_COMMAND);
+        server.output("* STATUS \"Drafts\" (MESSAGES 1 UIDNEXT 2 UIDVALIDITY 1 UNSEEN 0)");
+        server.output("5 OK STATUS completed");
+        server.expect("6 IDLE");
+        server.output("+ idling");
+        server.output("* 4 EXISTS");
+        server.expect("DONE");
+        server.output("6 OK IDLE terminated");
+        server.expect("7 " + STATUS_COMMAND);
+        server.output("* STATUS \"Drafts\" (MESSAGES 2 UIDNEXT 3 UIDVALIDITY 1 UNSEEN 1)");
+        server.output("7 OK STATUS completed");
+        server.expect("8 IDLE");
+        server.output("+ idling");
+
+        startPusher();
+
+        verify(pushReceiver, timeout(VERIFY_TIMEOUT)).syncFolder(inbox);
+        verify(pushReceiver, timeout(VERIFY_TIMEOUT)).syncFolder(drafts);
+        server.waitForInteractionToComplete();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void start_withNotifyRejected_shouldFallBackToIdleOnInbox() throws Exception {
+        openDialog("IDLE NOTIFY");
+        server.expect("4 " + NOTIFY_COMMAND);
+        server.output("4 NO [BADEVENT (MessageNew MessageExpunge)] Unsupported event");
+        server.expect("5 EXAMINE \"INBOX\"");
+        server.output("5 OK [READ-ONLY] EXAMINE completed");
+        server.expect("6 " + STATUS_COMMAND);
+        server.output("* STATUS \"Drafts\" (MESSAGES 1 UIDNEXT 2 UIDVALIDITY 1 UNSEEN 0)");
+        server.output("6 OK STATUS completed");
+        server.expect("7 IDLE");
+        server.output("+ idling");
+
+        startPusher();
+
+        server.waitForInteractionToComplete();
+        server.verifyInteractionCompleted();
+        verify(pushReceiver, never()).syncFolder(inbox);
+        verify(pushReceiver, never()).syncFolder(drafts);
+    }
+
+    private void startPusher() throws Exception {
+        server.start();
+        settings.setHost(server.getHost());
+        settings.setPort(server.getPort());
+
+        ImapConnection connection = new ImapConnection(settings, TestTrustedSocketFactory.newInstance(),
+                mock(ConnectivityManager.class), mock(OAuth2TokenProvider.class), SOCKET_CONNECT_TIMEOUT,
+                SOCKET_READ_TIMEOUT);
+        when(store.getConnection()).thenReturn(connection);
+
+        pusher = new ImapNotifyPusher(store, asList("INBOX", "Drafts"), pushReceiver, powerManager);
+        pusher.start();
+    }
+
+    private ImapStore createStore() {
+        ImapStore store = mock(ImapStore.class);
+        StoreConfig storeConfig = mock(StoreConfig.class);
+        when(store.getStoreConfig()).thenReturn(storeConfig);
+        when(store.getAdaptiveIdleInterval()).thenReturn(mock(AdaptiveIdleInterval.class));
+        when(store.getPushStatistics()).thenReturn(mock(PushStatistics.class));
+        when(store.getCombinedPrefix()).thenReturn("");
+        when(store.getFolderNameCodec()).thenReturn(FolderNameCodec.newInstance());
+        when(store.getActiveNetworkType()).thenReturn(NetworkType.WIFI);
+        when(store.getConfiguredIdleRefreshInterval()).thenReturn(24 * 60 * 1000L);
+        return store;
+    }
+
+    private void openDialog(String postAuthCapabilities) {
+        server.output("* OK IMAP4rev1 Service Ready");
+        server.expect("1 CAPABILITY");
+        server.output("* CAPABILITY IMAP4 IMAP4REV1");
+        server.output("1 OK CAPABILITY");
+        server.expect("2 LOGIN \"" + USERNAME + "\" \"" + PASSWORD + "\"");
+        server.output("2 OK [CAPABILITY IMAP4 IMAP4REV1 " + postAuthCapabilities + "] LOGIN completed");
+        server.expect("3 LIST \"\" \"\"");
+        server.output("* LIST () \"/\" foo/bar");
+        server.output("3 OK");
+    }
+}
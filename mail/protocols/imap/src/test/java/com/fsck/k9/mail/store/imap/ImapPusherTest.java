@@ -6,9 +6,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import com.fsck.k9.mail.NetworkType;
 import com.fsck.k9.mail.PushReceiver;
 import com.fsck.k9.mail.power.PowerManager;
-import com.fsck.k9.mail.store.StoreConfig;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -20,13 +20,21 @@ import static org.mockito.Mockito.when;
 
 
 public class ImapPusherTest {
+    private static final long IDLE_REFRESH_INTERVAL = 23 * 60 * 1000;
+
+
     private ImapStore imapStore;
+    private AdaptiveIdleInterval adaptiveIdleInterval;
     private TestImapPusher imapPusher;
 
 
     @Before
     public void setUp() throws Exception {
         imapStore = mock(ImapStore.class);
+        adaptiveIdleInterval = new AdaptiveIdleInterval();
+        when(imapStore.getAdaptiveIdleInterval()).thenReturn(adaptiveIdleInterval);
+        when(imapStore.getActiveNetworkType()).thenReturn(NetworkType.WIFI);
+        when(imapStore.getConfiguredIdleRefreshInterval()).thenReturn(IDLE_REFRESH_INTERVAL);
 
         PushReceiver pushReceiver = mock(PushReceiver.class);
         PowerManager powerManager = mock(PowerManager.class);
@@ -65,17 +73,32 @@ public class ImapPusherTest {
     }
 
     @Test
-    public void start_withTwoFolderNames_shouldCreateTwoImapFolderPushersAndCallStart() throws Exception {
+    public void start_withTwoFolderNames_shouldCreateSingleImapNotifyPusherAndCallStart() throws Exception {
         List<String> folderNames = Arrays.asList("Important", "Drafts");
 
         imapPusher.start(folderNames);
 
-        List<ImapFolderPusher> imapFolderPushers = imapPusher.getImapFolderPushers();
-        assertEquals(2, imapFolderPushers.size());
-        ImapFolderPusher imapFolderPusherOne = imapFolderPushers.get(0);
-        ImapFolderPusher imapFolderPusherTwo = imapFolderPushers.get(1);
-        verify(imapFolderPusherOne).start();
-        verify(imapFolderPusherTwo).start();
+        assertEquals(0, imapPusher.getImapFolderPushers().size());
+        assertEquals(1, imapPusher.getImapNotifyPushers().size());
+        verify(imapPusher.getImapNotifyPushers().get(0)).start();
+    }
+
+    @Test
+    public void stop_afterStartWithTwoFolderNames_shouldStopImapNotifyPusher() throws Exception {
+        imapPusher.start(Arrays.asList("Important", "Drafts"));
+
+        imapPusher.stop();
+
+        verify(imapPusher.getImapNotifyPushers().get(0)).stop();
+    }
+
+    @Test
+    public void refresh_afterStartWithTwoFolderNames_shouldRefreshImapNotifyPusher() throws Exception {
+        imapPusher.start(Arrays.asList("Important", "Drafts"));
+
+        imapPusher.refresh();
+
+        verify(imapPusher.getImapNotifyPushers().get(0)).refresh();
     }
 
     @Test
@@ -134,13 +157,18 @@ public class ImapPusherTest {
 
     @Test
     public void getRefreshInterval() throws Exception {
-        StoreConfig storeConfig = mock(StoreConfig.class);
-        when(storeConfig.getIdleRefreshMinutes()).thenReturn(23);
-        when(imapStore.getStoreConfig()).thenReturn(storeConfig);
+        int result = imapPusher.getRefreshInterval();
+
+        assertEquals(IDLE_REFRESH_INTERVAL, result);
+    }
+
+    @Test
+    public void getRefreshInterval_afterCompletedIdle_shouldBeStretched() throws Exception {
+        adaptiveIdleInterval.idleCompleted(NetworkType.WIFI, IDLE_REFRESH_INTERVAL, IDLE_REFRESH_INTERVAL);
 
         int result = imapPusher.getRefreshInterval();
 
-        assertEquals(23 * 60 * 1000, result);
+        assertEquals(IDLE_REFRESH_INTERVAL + AdaptiveIdleInterval.STEP, result);
     }
 
     @Test
@@ -156,6 +184,7 @@ public class ImapPusherTest {
 
 
         private final List<ImapFolderPusher> imapFolderPushers = new ArrayList<>();
+        private final List<ImapNotifyPusher> imapNotifyPushers = new ArrayList<>();
 
 
         public TestImapPusher(ImapStore store, PushReceiver receiver, PowerManager powerManager) {
@@ -173,6 +202,17 @@ public class ImapPusherTest {
             return imapFolderPushers;
         }
 
+        @Override
+        ImapNotifyPusher createImapNotifyPusher(List<String> folderServerIds) {
+            ImapNotifyPusher imapNotifyPusher = mock(ImapNotifyPusher.class);
+            imapNotifyPushers.add(imapNotifyPusher);
+            return imapNotifyPusher;
+        }
+
+        public List<ImapNotifyPusher> getImapNotifyPushers() {
+            return imapNotifyPushers;
+        }
+
         @Override
         long currentTimeMillis() {
             return CURRENT_TIME_MILLIS;
@@ -1,11 +1,14 @@
 package com.fsck.k9.mail.store.imap;
 
 
+import java.util.List;
+
 import org.junit.Test;
 
 import static com.fsck.k9.mail.Folder.OPEN_MODE_RO;
 import static com.fsck.k9.mail.Folder.OPEN_MODE_RW;
 import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponse;
+import static com.fsck.k9.mail.store.imap.ImapResponseHelper.createImapResponseList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -78,6 +81,38 @@ public class SelectOrExamineResponseTest {
         assertEquals(false, result.hasOpenMode());
     }
 
+    @Test
+    public void parse_withResponseList_shouldReturnUidValidityUidNextAndHighestModSeq() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* 172 EXISTS",
+                "* OK [UIDVALIDITY 3857529045] UIDs valid",
+                "* OK [UIDNEXT 4392] Predicted next UID",
+                "* OK [HIGHESTMODSEQ 715194045007] Highest",
+                "x OK [READ-WRITE] Select completed.");
+
+        SelectOrExamineResponse result = SelectOrExamineResponse.parse(imapResponses);
+
+        assertNotNull(result);
+        assertEquals(OPEN_MODE_RW, result.getOpenMode());
+        assertEquals(3857529045L, result.getUidValidity());
+        assertEquals(4392L, result.getUidNext());
+        assertEquals(715194045007L, result.getHighestModSeq());
+    }
+
+    @Test
+    public void parse_withNoModSeqResponse_shouldReturnUnknownHighestModSeq() throws Exception {
+        List<ImapResponse> imapResponses = createImapResponseList(
+                "* OK [UIDVALIDITY 3857529045] UIDs valid",
+                "* OK [NOMODSEQ] Sorry, this mailbox format doesn't support modsequences",
+                "x OK [READ-ONLY] Examine completed.");
+
+        SelectOrExamineResponse result = SelectOrExamineResponse.parse(imapResponses);
+
+        assertNotNull(result);
+        assertEquals(3857529045L, result.getUidValidity());
+        assertEquals(SelectOrExamineResponse.UNKNOWN, result.getHighestModSeq());
+    }
+
     @Test
     public void parse_withUntaggedResponse_shouldReturnNull() throws Exception {
         ImapResponse imapResponse = createImapResponse("* OK [READ-WRITE] Select completed.");
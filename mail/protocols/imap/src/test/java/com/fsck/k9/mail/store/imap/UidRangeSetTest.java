@@ -0,0 +1,71 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class UidRangeSetTest {
+    @Test
+    public void parse_withRangesAndSingleUids_shouldContainAllUids() throws Exception {
+        UidRangeSet uidSet = UidRangeSet.parse("41,43:45");
+
+        assertEquals(4, uidSet.size());
+        assertTrue(uidSet.contains("41"));
+        assertFalse(uidSet.contains("42"));
+        assertTrue(uidSet.contains("43"));
+        assertTrue(uidSet.contains("45"));
+        assertFalse(uidSet.contains("46"));
+        assertFalse(uidSet.contains("40"));
+    }
+
+    @Test
+    public void parse_withLargeRange_shouldNotExpandRange() throws Exception {
+        UidRangeSet uidSet = UidRangeSet.parse("1:4294967295");
+
+        assertEquals(4294967295L, uidSet.size());
+        assertTrue(uidSet.contains("1"));
+        assertTrue(uidSet.contains("4294967295"));
+    }
+
+    @Test
+    public void parse_withReversedAndOverlappingRanges_shouldMergeRanges() throws Exception {
+        UidRangeSet uidSet = UidRangeSet.parse("9:7,5:8,1");
+
+        assertEquals(asList("1", "5", "6", "7", "8", "9"), uidSet.toUidList());
+    }
+
+    @Test
+    public void parse_withInvalidItems_shouldSkipThem() throws Exception {
+        UidRangeSet uidSet = UidRangeSet.parse("foo,3,4294967296,5:bar");
+
+        assertEquals(asList("3"), uidSet.toUidList());
+    }
+
+    @Test
+    public void contains_withInvalidUid_shouldReturnFalse() throws Exception {
+        UidRangeSet uidSet = UidRangeSet.parse("1:10");
+
+        assertFalse(uidSet.contains("K9LOCAL:1"));
+    }
+
+    @Test
+    public void union_shouldCombineSets() throws Exception {
+        UidRangeSet uidSet = UidRangeSet.union(asList(UidRangeSet.parse("1:2"), UidRangeSet.parse("3,10")));
+
+        assertEquals(asList("1", "2", "3", "10"), uidSet.toUidList());
+    }
+
+    @Test
+    public void empty_shouldNotContainAnything() throws Exception {
+        UidRangeSet uidSet = UidRangeSet.empty();
+
+        assertTrue(uidSet.isEmpty());
+        assertEquals(0, uidSet.size());
+        assertFalse(uidSet.contains("1"));
+    }
+}
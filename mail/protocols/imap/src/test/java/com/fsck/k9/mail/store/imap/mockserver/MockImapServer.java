@@ -14,6 +14,7 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
@@ -66,6 +67,17 @@ public class MockImapServer {
         interactions.add(new CannedResponse(response));
     }
 
+    /**
+     * Writes {@code header} followed by {@code bodySize} bytes of generated text lines, without a trailing CRLF.
+     * <p>
+     * The data is generated while it's being written so tests can send literals much larger than what they would
+     * want to keep in memory.
+     */
+    public void outputLiteralData(String header, int bodySize) {
+        checkServerNotRunning();
+        interactions.add(new GeneratedLiteralData(header, bodySize));
+    }
+
     public void expect(String command) {
         checkServerNotRunning();
         interactions.add(new ExpectedCommand(command));
@@ -215,6 +227,25 @@ public class MockImapServer {
         }
     }
 
+    private static class GeneratedLiteralData implements ImapInteraction {
+        private final String header;
+        private final int bodySize;
+
+
+        public GeneratedLiteralData(String header, int bodySize) {
+            this.header = header;
+            this.bodySize = bodySize;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+
+        public int getBodySize() {
+            return bodySize;
+        }
+    }
+
     private static class CloseConnection implements ImapInteraction {
     }
 
@@ -312,6 +343,8 @@ public class MockImapServer {
                 readExpectedCommand((ExpectedCommand) interaction);
             } else if (interaction instanceof CannedResponse) {
                 writeCannedResponse((CannedResponse) interaction);
+            } else if (interaction instanceof GeneratedLiteralData) {
+                writeGeneratedLiteralData((GeneratedLiteralData) interaction);
             } else if (interaction instanceof CloseConnection) {
                 clientSocket.close();
             } else if (interaction instanceof EnableCompression) {
@@ -347,6 +380,25 @@ public class MockImapServer {
             output.flush();
         }
 
+        private void writeGeneratedLiteralData(GeneratedLiteralData literalData) throws IOException {
+            int bodySize = literalData.getBodySize();
+            logger.log("S: [%d bytes of literal data]", literalData.getHeader().length() + bodySize);
+
+            byte[] line = new byte[78];
+            Arrays.fill(line, (byte) 'a');
+            line[76] = '\r';
+            line[77] = '\n';
+
+            output.writeUtf8(literalData.getHeader());
+            int remaining = bodySize;
+            while (remaining > 0) {
+                int count = Math.min(remaining, line.length);
+                output.write(line, line.length - count, count);
+                remaining -= count;
+            }
+            output.flush();
+        }
+
         private void enableCompression(Socket socket) throws IOException {
             InputStream inputStream = new InflaterInputStream(socket.getInputStream(), new Inflater(true));
             input = Okio.buffer(Okio.source(inputStream));
@@ -16,11 +16,17 @@ import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import androidx.annotation.VisibleForTesting;
 import android.text.TextUtils;
@@ -35,6 +41,7 @@ import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.Message.RecipientType;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.SendMessagesListener;
 import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.Transport;
 import com.fsck.k9.mail.filter.Base64;
@@ -57,8 +64,11 @@ import static com.fsck.k9.mail.K9MailLib.DEBUG_PROTOCOL_SMTP;
 public class SmtpTransport extends Transport {
     private static final int SMTP_CONTINUE_REQUEST = 334;
     private static final int SMTP_AUTHENTICATION_FAILURE_ERROR_CODE = 535;
+    private static final int BDAT_CHUNK_SIZE = 64 * 1024;
 
 
+    private final ServerSettings serverSettings;
+    private final StoreConfig storeConfig;
     private final TrustedSocketFactory trustedSocketFactory;
     private final OAuth2TokenProvider oauthTokenProvider;
 
@@ -79,7 +89,9 @@ public class SmtpTransport extends Transport {
     private int largestAcceptableMessage;
     private boolean retryXoauthWithNewToken;
     private boolean isPipeliningSupported;
+    private boolean isChunkingSupported;
     private boolean shouldHideHostname;
+    private int transactionCount;
 
 
     public SmtpTransport(ServerSettings serverSettings, StoreConfig storeConfig,
@@ -88,6 +100,9 @@ public class SmtpTransport extends Transport {
             throw new IllegalArgumentException("Expected SMTP StoreConfig!");
         }
 
+        this.serverSettings = serverSettings;
+        this.storeConfig = storeConfig;
+
         host = serverSettings.host;
         port = serverSettings.port;
 
@@ -135,6 +150,8 @@ public class SmtpTransport extends Transport {
             inputStream = new PeekableInputStream(new BufferedInputStream(socket.getInputStream(), 1024));
             outputStream = new BufferedOutputStream(socket.getOutputStream(), 1024);
 
+            transactionCount = 0;
+
             // Eat the banner
             executeCommand(null);
 
@@ -145,6 +162,7 @@ public class SmtpTransport extends Transport {
             is8bitEncodingAllowed = extensions.containsKey("8BITMIME");
             isEnhancedStatusCodesProvided = extensions.containsKey("ENHANCEDSTATUSCODES");
             isPipeliningSupported = extensions.containsKey("PIPELINING");
+            isChunkingSupported = extensions.containsKey("CHUNKING");
 
             if (connectionSecurity == ConnectionSecurity.STARTTLS_REQUIRED) {
                 if (extensions.containsKey("STARTTLS")) {
@@ -391,6 +409,141 @@ public class SmtpTransport extends Transport {
 
     @Override
     public void sendMessage(Message message) throws MessagingException {
+        try {
+            sendMessageInSession(message);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Sends several messages, reusing connections between them.
+     * <p>
+     * Up to {@link StoreConfig#getMaxSmtpSessions()} connections are used in parallel. Each connection is opened and
+     * authenticated once, and sends one message after the other, with an {@code RSET} between transactions. If the
+     * calling thread is interrupted, every message that hasn't been reported yet is reported as failed.
+     */
+    @Override
+    public <T extends Message> void sendMessages(List<T> messages, SendMessagesListener<T> listener) {
+        int sessionCount = Math.min(Math.max(1, storeConfig.getMaxSmtpSessions()), messages.size());
+        if (sessionCount <= 1) {
+            try {
+                sendQueuedMessages(new LinkedList<>(messages), listener);
+            } finally {
+                close();
+            }
+        } else {
+            sendMessagesInParallel(messages, listener, sessionCount);
+        }
+    }
+
+    private <T extends Message> void sendMessagesInParallel(List<T> messages, final SendMessagesListener<T> listener,
+            int sessionCount) {
+        final Queue<T> queuedMessages = new ConcurrentLinkedQueue<>(messages);
+        final BlockingQueue<SendResult<T>> results = new LinkedBlockingQueue<>();
+        Map<T, Boolean> reportedMessages = new IdentityHashMap<>();
+        final SendMessagesListener<T> resultCollector = new SendMessagesListener<T>() {
+            @Override
+            public void messageSending(T message) {
+                listener.messageSending(message);
+            }
+
+            @Override
+            public void messageSent(T message) {
+                results.add(new SendResult<>(message, null));
+            }
+
+            @Override
+            public void messageFailed(T message, Exception exception) {
+                results.add(new SendResult<>(message, exception));
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(sessionCount);
+        try {
+            for (int i = 0; i < sessionCount; i++) {
+                final SmtpTransport session = createSessionTransport();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            session.sendQueuedMessages(queuedMessages, resultCollector);
+                        } finally {
+                            session.close();
+                        }
+                    }
+                });
+            }
+
+            // Report results on the calling thread
+            for (int i = 0; i < messages.size(); i++) {
+                reportResult(results.take(), listener, reportedMessages);
+            }
+        } catch (InterruptedException e) {
+            Timber.w("Interrupted while sending messages");
+            queuedMessages.clear();
+            executor.shutdownNow();
+
+            SendResult<T> result;
+            while ((result = results.poll()) != null) {
+                reportResult(result, listener, reportedMessages);
+            }
+
+            // Messages still in flight might get sent after all, but the caller can't wait for them
+            MessagingException exception = new MessagingException("Interrupted while sending messages");
+            for (T message : messages) {
+                if (!reportedMessages.containsKey(message)) {
+                    listener.messageFailed(message, exception);
+                }
+            }
+
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static <T extends Message> void reportResult(SendResult<T> result, SendMessagesListener<T> listener,
+            Map<T, Boolean> reportedMessages) {
+        reportedMessages.put(result.message, true);
+        if (result.exception == null) {
+            listener.messageSent(result.message);
+        } else {
+            listener.messageFailed(result.message, result.exception);
+        }
+    }
+
+    /**
+     * Creates a transport with the same settings that is used for an additional connection to the server.
+     */
+    @VisibleForTesting
+    protected SmtpTransport createSessionTransport() {
+        return new SmtpTransport(serverSettings, storeConfig, trustedSocketFactory, oauthTokenProvider);
+    }
+
+    private <T extends Message> void sendQueuedMessages(Queue<T> queuedMessages, SendMessagesListener<T> listener) {
+        T message;
+        while ((message = queuedMessages.poll()) != null) {
+            try {
+                listener.messageSending(message);
+                sendMessageInSession(message);
+                listener.messageSent(message);
+            } catch (AuthenticationFailedException | CertificateValidationException e) {
+                // Retrying won't help, and repeated authentication failures might get the account locked
+                listener.messageFailed(message, e);
+                while ((message = queuedMessages.poll()) != null) {
+                    listener.messageFailed(message, e);
+                }
+            } catch (Exception e) {
+                listener.messageFailed(message, e);
+            }
+        }
+    }
+
+    /**
+     * Sends a message using the current connection, opening a new one if necessary. The connection is left open.
+     */
+    private void sendMessageInSession(Message message) throws MessagingException {
         List<Address> addresses = new ArrayList<>();
         {
             addresses.addAll(Arrays.asList(message.getRecipients(RecipientType.TO)));
@@ -422,17 +575,22 @@ public class SmtpTransport extends Transport {
 
     private void sendMessageTo(List<String> addresses, Message message)
             throws MessagingException {
-        close();
-        open();
+        if (socket == null) {
+            open();
+        }
 
         // If the message has attachments and our server has told us about a limit on
         // the size of messages, count the message's size before sending it
         if (largestAcceptableMessage > 0 && message.hasAttachments()) {
-            if (message.calculateSize() > largestAcceptableMessage) {
+            if (message.estimateSize() > largestAcceptableMessage) {
                 throw new MessagingException("Message too large for server", true);
             }
         }
 
+        // Start every transaction but the first on this connection from a clean state
+        boolean resetSession = transactionCount > 0;
+        transactionCount++;
+
         boolean entireMessageSent = false;
 
         try {
@@ -440,44 +598,77 @@ public class SmtpTransport extends Transport {
 
             if (isPipeliningSupported) {
                 Queue<String> pipelinedCommands = new LinkedList<>();
+                if (resetSession) {
+                    pipelinedCommands.add("RSET");
+                }
                 pipelinedCommands.add(mailFrom);
 
                 for (String address : addresses) {
                     pipelinedCommands.add(String.format("RCPT TO:<%s>", address));
                 }
 
-                pipelinedCommands.add("DATA");
+                if (!isChunkingSupported) {
+                    pipelinedCommands.add("DATA");
+                }
                 executePipelinedCommands(pipelinedCommands);
                 readPipelinedResponse(pipelinedCommands);
             } else {
+                if (resetSession) {
+                    executeCommand("RSET");
+                }
+
                 executeCommand(mailFrom);
 
                 for (String address : addresses) {
                     executeCommand("RCPT TO:<%s>", address);
                 }
 
-                executeCommand("DATA");
+                if (!isChunkingSupported) {
+                    executeCommand("DATA");
+                }
             }
 
-            EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
-                    new LineWrapOutputStream(new SmtpDataStuffing(outputStream), 1000));
+            if (isChunkingSupported) {
+                // BDAT needs neither dot-stuffing nor an end-of-data marker. BINARYMIME isn't used, so the message
+                // is sent in the same 7bit/8bit form as with DATA, including line wrapping and CRLF conversion.
+                BdatOutputStream bdatOut = new BdatOutputStream();
+                EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
+                        new LineWrapOutputStream(bdatOut, 1000));
 
-            message.writeTo(msgOut);
-            msgOut.endWithCrLfAndFlush();
+                message.writeTo(msgOut);
+                msgOut.endWithCrLfAndFlush();
 
-            entireMessageSent = true; // After the "\r\n." is attempted, we may have sent the message
-            executeCommand(".");
+                entireMessageSent = true; // After the last chunk is attempted, we may have sent the message
+                bdatOut.sendLastChunk();
+            } else {
+                EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
+                        new LineWrapOutputStream(new SmtpDataStuffing(outputStream), 1000));
+
+                message.writeTo(msgOut);
+                msgOut.endWithCrLfAndFlush();
+
+                entireMessageSent = true; // After the "\r\n." is attempted, we may have sent the message
+                executeCommand(".");
+            }
         } catch (NegativeSmtpReplyException e) {
+            // The server rejected this transaction, but the connection can still be used for the next one
             throw e;
+        } catch (BdatFailedException e) {
+            if (e.reply instanceof NegativeSmtpReplyException) {
+                throw (NegativeSmtpReplyException) e.reply;
+            }
+
+            close();
+            e.reply.setPermanentFailure(entireMessageSent);
+            throw e.reply;
         } catch (Exception e) {
+            close();
+
             MessagingException me = new MessagingException("Unable to send message", e);
             me.setPermanentFailure(entireMessageSent);
 
             throw me;
-        } finally {
-            close();
         }
-
     }
 
     private static String constructSmtpMailFromCommand(Address[] from, boolean is8bitEncodingAllowed) {
@@ -546,6 +737,86 @@ public class SmtpTransport extends Transport {
         outputStream.flush();
     }
 
+    /**
+     * Sends everything written to it in {@code BDAT} chunks (RFC 3030), waiting for the server to accept each chunk.
+     * <p>
+     * Only {@code CHUNKING} is used, not {@code BINARYMIME}. Parts keep the transfer encoding they were stored with,
+     * so binary attachments are still sent base64 encoded.
+     */
+    private class BdatOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[BDAT_CHUNK_SIZE];
+        private int count = 0;
+
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (count == buffer.length) {
+                sendChunk(false);
+            }
+            buffer[count++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    sendChunk(false);
+                }
+
+                int bytesToCopy = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, bytesToCopy);
+                count += bytesToCopy;
+                offset += bytesToCopy;
+                length -= bytesToCopy;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Chunks are only sent when the buffer is full or the message is complete
+        }
+
+        void sendLastChunk() throws IOException {
+            sendChunk(true);
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            writeLine(last ? "BDAT " + count + " LAST" : "BDAT " + count, false);
+            outputStream.write(buffer, 0, count);
+            outputStream.flush();
+            count = 0;
+
+            try {
+                executeCommand(null);
+            } catch (MessagingException e) {
+                throw new BdatFailedException(e);
+            }
+        }
+    }
+
+    /**
+     * Carries a negative reply to a {@code BDAT} command through the {@link OutputStream} methods.
+     */
+    private static class BdatFailedException extends IOException {
+        final MessagingException reply;
+
+
+        BdatFailedException(MessagingException reply) {
+            super(reply.getMessage(), reply);
+            this.reply = reply;
+        }
+    }
+
+    private static class SendResult<T extends Message> {
+        final T message;
+        final Exception exception;
+
+        SendResult(T message, Exception exception) {
+            this.message = message;
+            this.exception = exception;
+        }
+    }
+
     private static class CommandResponse {
 
         private final int replyCode;
@@ -655,6 +926,7 @@ public class SmtpTransport extends Transport {
         String responseLine;
         List<String> results = new ArrayList<>();
         NegativeSmtpReplyException negativeRecipient = null;
+        MessagingException negativeReply = null;
         for (String command : pipelinedCommands) {
             results.clear();
             responseLine = readCommandResponseLine(results);
@@ -667,10 +939,22 @@ public class SmtpTransport extends Transport {
                 }
                 if (command.startsWith("RCPT")) {
                     negativeRecipient = (NegativeSmtpReplyException) exception;
+                } else if (negativeReply == null) {
+                    negativeReply = exception;
                 }
             }
         }
 
+        if (!pipelinedCommands.contains("DATA")) {
+            // Without DATA (i.e. when using BDAT) there's no message data to terminate
+            if (negativeReply != null) {
+                throw negativeReply;
+            } else if (negativeRecipient != null) {
+                throw negativeRecipient;
+            }
+            return;
+        }
+
         if (negativeRecipient != null) {
             try {
                 executeCommand(".");
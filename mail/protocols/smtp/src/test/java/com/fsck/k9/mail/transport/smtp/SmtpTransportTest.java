@@ -2,6 +2,7 @@ package com.fsck.k9.mail.transport.smtp;
 
 
 import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
 
 import com.fsck.k9.mail.AuthType;
 import com.fsck.k9.mail.AuthenticationFailedException;
@@ -10,6 +11,7 @@ import com.fsck.k9.mail.ConnectionSecurity;
 import com.fsck.k9.mail.K9LibRobolectricTestRunner;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.SendMessagesListener;
 import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.XOAuth2ChallengeParserTest;
 import com.fsck.k9.mail.filter.Base64;
@@ -25,14 +27,19 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InOrder;
 
+import static java.util.Arrays.asList;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.same;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -787,6 +794,235 @@ public class SmtpTransportTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void sendMessages_withPipelining_shouldReuseConnection() throws Exception {
+        Message message1 = getDefaultMessage();
+        Message message2 = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("PIPELINING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.expect("DATA");
+        server.output("250 OK");
+        server.output("250 OK");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect("[message data]");
+        server.expect(".");
+        server.output("250 OK: queued as 12345");
+        server.expect("RSET");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.expect("DATA");
+        server.output("250 OK");
+        server.output("250 OK");
+        server.output("250 OK");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect("[message data]");
+        server.expect(".");
+        server.output("250 OK: queued as 12346");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+        SendMessagesListener<Message> listener = createSendMessagesListener();
+
+        transport.sendMessages(asList(message1, message2), listener);
+
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).messageSending(message1);
+        inOrder.verify(listener).messageSent(message1);
+        inOrder.verify(listener).messageSending(message2);
+        inOrder.verify(listener).messageSent(message2);
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessages_withoutPipelining_shouldReuseConnection() throws Exception {
+        Message message1 = getDefaultMessage();
+        Message message2 = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication();
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect("[message data]");
+        server.expect(".");
+        server.output("250 OK: queued as 12345");
+        server.expect("RSET");
+        server.output("250 OK");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect("[message data]");
+        server.expect(".");
+        server.output("250 OK: queued as 12346");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+        SendMessagesListener<Message> listener = createSendMessagesListener();
+
+        transport.sendMessages(asList(message1, message2), listener);
+
+        verify(listener).messageSent(message1);
+        verify(listener).messageSent(message2);
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessages_withNegativeReply_shouldContinueWithNextMessage() throws Exception {
+        Message message1 = getDefaultMessage();
+        Message message2 = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication();
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("550 remote mail to <user2@localhost> not allowed");
+        server.expect("RSET");
+        server.output("250 OK");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect("[message data]");
+        server.expect(".");
+        server.output("250 OK: queued as 12346");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+        SendMessagesListener<Message> listener = createSendMessagesListener();
+
+        transport.sendMessages(asList(message1, message2), listener);
+
+        verify(listener).messageFailed(eq(message1), any(NegativeSmtpReplyException.class));
+        verify(listener).messageSent(message2);
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessages_inParallelWhenInterrupted_shouldReportUnsentMessagesAsFailed() throws Exception {
+        when(storeConfig.getMaxSmtpSessions()).thenReturn(2);
+        Message message1 = getDefaultMessage();
+        Message message2 = getDefaultMessage();
+        ServerSettings serverSettings = new ServerSettings("smtp", "localhost", 25, ConnectionSecurity.NONE,
+                AuthType.PLAIN, USERNAME, PASSWORD, CLIENT_CERTIFICATE_ALIAS);
+        SmtpTransport transport = new BlockingSessionsSmtpTransport(serverSettings, storeConfig, socketFactory,
+                oAuth2TokenProvider);
+        SendMessagesListener<Message> listener = createSendMessagesListener();
+
+        Thread.currentThread().interrupt();
+        transport.sendMessages(asList(message1, message2), listener);
+
+        assertTrue(Thread.interrupted());
+        verify(listener).messageFailed(same(message1), any(MessagingException.class));
+        verify(listener).messageFailed(same(message2), any(MessagingException.class));
+        verify(listener, never()).messageSent(any(Message.class));
+    }
+
+    @Test
+    public void sendMessage_withChunking_shouldUseBdat() throws Exception {
+        Message message = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("250 OK: queued as 12345");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(message);
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunkingAndBinaryMime_shouldNotRequestBinaryMime() throws Exception {
+        Message message = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("8BITMIME", "CHUNKING", "BINARYMIME");
+        server.expect("MAIL FROM:<user@localhost> BODY=8BITMIME");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("250 OK: queued as 12345");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(message);
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunkingAndPipelining_shouldNotPipelineData() throws Exception {
+        Message message = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("PIPELINING", "CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.output("250 OK");
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("250 OK: queued as 12345");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(message);
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunkingAndNegativeReply_shouldThrow() throws Exception {
+        Message message = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("554 Message rejected");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        try {
+            transport.sendMessage(message);
+            fail("Expected exception");
+        } catch (NegativeSmtpReplyException e) {
+            assertEquals(554, e.getReplyCode());
+            assertEquals("Message rejected", e.getReplyText());
+        }
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
     @Test
     public void sendMessagePipelining_withNegativeReply() throws Exception {
         Message message = getDefaultMessage();
@@ -960,6 +1196,11 @@ public class SmtpTransportTest {
                 .build();
     }
 
+    @SuppressWarnings("unchecked")
+    private SendMessagesListener<Message> createSendMessagesListener() {
+        return mock(SendMessagesListener.class);
+    }
+
     private MockSmtpServer createServerAndSetupForPlainAuthentication(String... extensions) {
         MockSmtpServer server = new MockSmtpServer();
         
@@ -979,6 +1220,37 @@ public class SmtpTransportTest {
     }
     
     
+    static class BlockingSessionsSmtpTransport extends SmtpTransport {
+        private final ServerSettings serverSettings;
+        private final StoreConfig storeConfig;
+        private final TrustedSocketFactory trustedSocketFactory;
+        private final OAuth2TokenProvider oAuth2TokenProvider;
+
+        BlockingSessionsSmtpTransport(ServerSettings serverSettings, StoreConfig storeConfig,
+                TrustedSocketFactory trustedSocketFactory, OAuth2TokenProvider oAuth2TokenProvider) {
+            super(serverSettings, storeConfig, trustedSocketFactory, oAuth2TokenProvider);
+            this.serverSettings = serverSettings;
+            this.storeConfig = storeConfig;
+            this.trustedSocketFactory = trustedSocketFactory;
+            this.oAuth2TokenProvider = oAuth2TokenProvider;
+        }
+
+        @Override
+        protected SmtpTransport createSessionTransport() {
+            // Sessions never get to connect, so the messages are still unsent when sending is interrupted
+            return new SmtpTransport(serverSettings, storeConfig, trustedSocketFactory, oAuth2TokenProvider) {
+                @Override
+                public void open() throws MessagingException {
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        throw new MessagingException("Interrupted while connecting", e);
+                    }
+                }
+            };
+        }
+    }
+
     static class TestSmtpTransport extends SmtpTransport {
         private final String injectedHostname;
         private final String injectedIP;
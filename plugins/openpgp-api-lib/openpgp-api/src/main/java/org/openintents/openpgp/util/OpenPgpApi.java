@@ -497,6 +497,14 @@ public class OpenPgpApi {
             this.apiResult = apiResult;
             this.sinkResult = sinkResult;
         }
+
+        public Intent getApiResult() {
+            return apiResult;
+        }
+
+        public T getSinkResult() {
+            return sinkResult;
+        }
     }
 
     public <T> OpenPgpDataResult<T> executeApi(Intent data, OpenPgpDataSource dataSource, OpenPgpDataSink<T> dataSink) {